@@ -0,0 +1,73 @@
+package com.bmapleaf.audio.component;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Segmented decode must give the same pcm as decoding the file in one piece.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelDecoderTest {
+    private static final String TAG = "ParallelDecoderTest";
+    private static final int sampleRate = 44100;
+    private static final int seconds = 40;
+    private static File file;
+
+    @BeforeClass
+    public static void encodeTestFile() throws Exception {
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "parallel_decoder_test.m4a");
+        AacFileSink sink = new AacFileSink(file.getAbsolutePath(), 128000);
+        sink.open(sampleRate, 2);
+        short[] block = new short[1024 * 2];
+        long n = 0;
+        for (int i = 0; i < sampleRate * seconds / 1024; i++) {
+            for (int j = 0; j < block.length; j += 2, n++) {
+                /*a sweep on the left, a chord on the right, so misaligned segments can not match*/
+                double t = (double) n / sampleRate;
+                block[j] = (short) (8000 * Math.sin(2 * Math.PI * (200 + 20 * t) * t));
+                block[j + 1] = (short) (5000 * (Math.sin(2 * Math.PI * 440 * t) + Math.sin(2 * Math.PI * 554 * t)));
+            }
+            sink.write(block, 0, block.length);
+        }
+        sink.close();
+    }
+
+    @Test
+    public void segmentedEqualsSingleThreaded() throws Exception {
+        ParallelDecoder single = new ParallelDecoder(file.getAbsolutePath());
+        single.setThreads(1);
+        ParallelDecoder.ArrayOutput expected = new ParallelDecoder.ArrayOutput(single);
+        long t0 = System.nanoTime();
+        single.decode(expected);
+        long singleNanos = System.nanoTime() - t0;
+
+        ParallelDecoder parallel = new ParallelDecoder(file.getAbsolutePath());
+        parallel.setThreads(4);
+        ParallelDecoder.ArrayOutput actual = new ParallelDecoder.ArrayOutput(parallel);
+        t0 = System.nanoTime();
+        parallel.decode(actual);
+        long parallelNanos = System.nanoTime() - t0;
+        Log.d(TAG, "segmentedEqualsSingleThreaded: single " + singleNanos / 1000000 + "ms, parallel "
+                + parallelNanos / 1000000 + "ms");
+
+        assertTrue(expected.getFrames() > (long) sampleRate * (seconds - 1));
+        assertEquals(expected.getFrames(), actual.getFrames());
+        short[] a = expected.getData();
+        short[] b = actual.getData();
+        for (int i = 0; i < expected.getFrames() * 2; i++) {
+            if (a[i] != b[i]) {
+                assertEquals("sample " + i + " (frame " + i / 2 + ")", a[i], b[i]);
+            }
+        }
+    }
+}
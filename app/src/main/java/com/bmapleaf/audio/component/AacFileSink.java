@@ -0,0 +1,140 @@
+package com.bmapleaf.audio.component;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes 16 bit pcm to AAC-LC with a {@link MediaCodecWrapper} and writes it to an mp4 file
+ * with {@link MediaMuxer}. Everything runs on the writing thread.
+ */
+public class AacFileSink implements IAudioSink, MediaCodecWrapper.OutputSampleListener {
+    private static final String mimeType = "audio/mp4a-latm";
+    private static final long timeoutUs = 10000;
+    /*one AAC frame of stereo pcm per input buffer*/
+    private static final int inputSize = 1024 * 2 * 2;
+    private final String path;
+    private final int bitRate;
+    private MediaCodecWrapper encoder;
+    private MediaMuxer muxer;
+    private int track;
+    private boolean muxerStarted;
+    private boolean isEos;
+    private ByteBuffer input;
+    private MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private int sampleRate;
+    private int channels;
+    private long frames;
+
+    public AacFileSink(String path, int bitRate) {
+        this.path = path;
+        this.bitRate = bitRate;
+    }
+
+    @Override
+    public void open(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        frames = 0;
+        isEos = muxerStarted = false;
+        MediaFormat mediaFormat = MediaFormat.createAudioFormat(mimeType, sampleRate, channels);
+        mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, inputSize);
+        encoder = MediaCodecWrapper.fromAudioFormat(mediaFormat, true);
+        encoder.setOutputSampleListener(this);
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        input = ByteBuffer.allocateDirect(inputSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void write(short[] data, int offset, int size) throws IOException {
+        final int maxSamples = inputSize / 2 / channels * channels;
+        while (size > 0) {
+            int n = Math.min(size, maxSamples);
+            input.clear();
+            for (int i = offset, end = offset + n; i < end; i++) {
+                input.putShort(data[i]);
+            }
+            input.flip();
+            long presentationTimeUs = frames * 1000000 / sampleRate;
+            while (!encoder.writeSample(input, null, presentationTimeUs, 0)) {
+                drain();
+                encoder.awaitInputBuffer(timeoutUs);
+            }
+            frames += n / channels;
+            offset += n;
+            size -= n;
+            drain();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null == encoder) {
+            return;
+        }
+        try {
+            long presentationTimeUs = frames * 1000000 / sampleRate;
+            while (!encoder.writeEndOfStream(presentationTimeUs)) {
+                drain();
+                encoder.awaitInputBuffer(timeoutUs);
+            }
+            /*give up if the codec stays silent for about two seconds*/
+            for (int idle = 0; !isEos && idle < 200; ) {
+                if (encoder.awaitOutputBuffer(timeoutUs)) {
+                    drain();
+                    idle = 0;
+                } else {
+                    idle++;
+                }
+            }
+        } finally {
+            encoder.stopAndRelease();
+            encoder = null;
+            if (muxerStarted) {
+                muxer.stop();
+            }
+            muxer.release();
+            muxer = null;
+        }
+    }
+
+    /**
+     * @return duration of the pcm written so far in microseconds
+     */
+    public long getDurationUs() {
+        return frames * 1000000 / sampleRate;
+    }
+
+    private void drain() {
+        while (encoder.peekSample(info)) {
+            encoder.popSample();
+        }
+    }
+
+    @Override
+    public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isEos = true;
+        }
+        /*the codec specific data reaches the muxer through the output format*/
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size <= 0) {
+            return;
+        }
+        if (!muxerStarted) {
+            track = muxer.addTrack(sender.getOutputFormat());
+            muxer.start();
+            muxerStarted = true;
+        }
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+        muxer.writeSampleData(track, buffer, info);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,126 @@
+package com.bmapleaf.audio.component;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes raw AAC-LC frames to an ADTS (.aac) file.
+ * <p>
+ * Unlike an mp4, an ADTS stream needs no index written at the end: every frame carries its own
+ * 7 byte header, so a file cut anywhere plays up to the cut and files can be played one after
+ * the other as one stream. Frames are batched in a direct buffer and written when it is full
+ * or when the flush interval passed, which bounds what a crash can lose.
+ */
+public class AdtsFileWriter {
+    private static final int headerSize = 7;
+    private static final int[] sampleRates = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350,
+    };
+    private final int sampleRateIndex;
+    private final int channels;
+    private final ByteBuffer buffer;
+    private long flushIntervalNanos;
+    private long lastFlush;
+    private FileOutputStream stream;
+    private FileChannel channel;
+
+    /**
+     * @param bufferSize bytes batched per write call
+     */
+    public AdtsFileWriter(int sampleRate, int channels, int bufferSize) {
+        sampleRateIndex = indexOf(sampleRate);
+        if (sampleRateIndex < 0) {
+            throw new IllegalArgumentException("no ADTS sample rate index for " + sampleRate);
+        }
+        this.channels = channels;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * @param intervalMs longest time frames stay in the buffer, 0 to write full buffers only
+     */
+    public void setFlushInterval(long intervalMs) {
+        flushIntervalNanos = intervalMs * 1000000;
+    }
+
+    public void open(String path) throws IOException {
+        stream = new FileOutputStream(path);
+        channel = stream.getChannel();
+        buffer.clear();
+        lastFlush = System.nanoTime();
+    }
+
+    /**
+     * Writes the frame between position and limit of data, the position is left at the limit.
+     */
+    public void write(ByteBuffer data) throws IOException {
+        int size = data.remaining();
+        if (buffer.remaining() < headerSize + size) {
+            flush();
+        }
+        if (buffer.remaining() < headerSize + size) {
+            throw new IOException("frame of " + size + " bytes does not fit the buffer");
+        }
+        writeHeader(buffer, sampleRateIndex, channels, size);
+        buffer.put(data);
+        if (flushIntervalNanos > 0 && System.nanoTime() - lastFlush >= flushIntervalNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes what is left and syncs the file to the storage.
+     */
+    public void close() throws IOException {
+        if (null == channel) {
+            return;
+        }
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            stream.close();
+            stream = null;
+            channel = null;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        lastFlush = System.nanoTime();
+    }
+
+    static int indexOf(int sampleRate) {
+        for (int i = 0; i < sampleRates.length; i++) {
+            if (sampleRates[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Puts an ADTS header for one AAC-LC frame without CRC.
+     *
+     * @param payload size of the raw frame that follows
+     */
+    static void writeHeader(ByteBuffer out, int sampleRateIndex, int channels, int payload) {
+        int length = headerSize + payload;
+        out.put((byte) 0xFF);
+        /*MPEG-4, layer 0, no CRC*/
+        out.put((byte) 0xF1);
+        /*profile LC is object type 2, stored minus one*/
+        out.put((byte) ((1 << 6) | (sampleRateIndex << 2) | (channels >> 2)));
+        out.put((byte) (((channels & 3) << 6) | (length >> 11)));
+        out.put((byte) ((length >> 3) & 0xFF));
+        /*buffer fullness 0x7FF: variable bit rate*/
+        out.put((byte) (((length & 7) << 5) | 0x1F));
+        out.put((byte) 0xFC);
+    }
+}
@@ -2,6 +2,7 @@ package com.bmapleaf.audio.component;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
@@ -9,6 +10,11 @@ import android.media.MediaFormat;
 import android.support.annotation.IntDef;
 import android.util.Log;
 
+import com.bmapleaf.audio.dsp.EditList;
+import com.bmapleaf.audio.dsp.EffectChain;
+import com.bmapleaf.audio.dsp.LoudnessMeter;
+import com.bmapleaf.audio.dsp.Resampler;
+import com.bmapleaf.audio.dsp.SpectrumAnalyzer;
 import com.bmapleaf.utils.ObjectPool;
 
 import java.io.IOException;
@@ -26,6 +32,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,6 +48,10 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
     private static final int mode = AudioTrack.MODE_STREAM;
     private static final int channelConfig = AudioFormat.CHANNEL_OUT_STEREO;
     private static final int bitPerSample = 16;
+    private static final long loudnessStartToleranceUs = 100000;
+    private static final long loudnessJumpToleranceUs = 5000;
+    /*the decoder drops the last partial buffer*/
+    private static final long loudnessEndToleranceUs = 100000;
     private static final String stateName[] = {
             "Idle",
             "Initialized",
@@ -62,6 +73,7 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
     private long positionStartUs;
     private long positionEndUs;
     private int sampleRateInHz;
+    private int outputSampleRateInHz;
     private int channels;
     private long durationUs;
     /*listeners*/
@@ -69,6 +81,31 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
     private OnPreparedListener onPreparedListener;
     private OnErrorListener onErrorListener;
     private OnDataProcessListener onDataProcessListener;
+    /*sample rate conversion to the device rate and varispeed*/
+    private Resampler resampler = new Resampler();
+    @Resampler.Quality
+    private int resampleQuality = Resampler.Quality.MEDIUM;
+    private short[] resampleBuffer;
+    private volatile EffectChain effectChain;
+    private volatile EditList editList;
+    private volatile SpectrumAnalyzer spectrumAnalyzer;
+    /*loudness normalization: the cached gain, or the meter of a first playback*/
+    private String dataSourcePath;
+    private volatile MediaCache loudnessCache;
+    private float targetLufs;
+    private volatile float normalizationGain = 1f;
+    private volatile LoudnessMeter loudnessMeter;
+    /*pts the next metered buffer should have, -1 before the first*/
+    private long meterNextUs;
+    /*media clock: frames written to the track since play() and the pts at their end*/
+    private volatile int clockSequence;
+    private volatile long writtenFrames;
+    private volatile long writtenEndUs;
+    private long headBase;
+    private final AudioTimestamp outputTimestamp = new AudioTimestamp();
+    private TrackSink trackSink = new TrackSink();
+    /*true while render() drives the decoder, looping is ignored*/
+    private volatile boolean offline;
     private AudioDecoder audioDecoder;
     private ExecutorService executorService;
     private FutureTask<Integer> futureTask;
@@ -91,6 +128,7 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
             if (getState() == State.Idle) {
                 audioDecoder = new AudioDecoder();
                 audioDecoder.setDataSource(audioPath, isEncoded);
+                dataSourcePath = audioPath;
             } else {
                 throw new IllegalStateException("setDataSource() must called after reset()");
             }
@@ -108,6 +146,23 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         this.volume = volume;
     }
 
+    @Override
+    public void setLoudnessNormalization(MediaCache cache, float targetLufs) {
+        synchronized (this) {
+            loudnessCache = cache;
+            this.targetLufs = targetLufs;
+            if (null == cache) {
+                normalizationGain = 1f;
+                loudnessMeter = null;
+            }
+        }
+    }
+
+    @Override
+    public float getNormalizationGainDb() {
+        return (float) (20 * Math.log10(normalizationGain));
+    }
+
     @Override
     public boolean isLooping() {
         return isLooping;
@@ -138,6 +193,56 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         return us2msI(positionUs);
     }
 
+    @Override
+    public long getMediaTimeUs() {
+        return Math.max(0, getMediaTimeAt(System.nanoTime()));
+    }
+
+    @Override
+    public long getMediaTimeAt(long nanoTime) {
+        AudioTrack track = audioTrack;
+        if (getState() != State.Started || offline || null == track) {
+            return positionUs;
+        }
+        int before;
+        long frames, endUs;
+        do {
+            before = clockSequence;
+            frames = writtenFrames;
+            endUs = writtenEndUs;
+        } while ((before & 1) != 0 || before != clockSequence);
+        /*the frame leaving the speaker at a known time, else the one leaving the mixer now*/
+        long frame, frameNanos;
+        synchronized (outputTimestamp) {
+            if (track.getTimestamp(outputTimestamp)) {
+                frame = outputTimestamp.framePosition;
+                frameNanos = outputTimestamp.nanoTime;
+            } else {
+                frame = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+                frameNanos = System.nanoTime();
+            }
+        }
+        float speed = resampler.getSpeed();
+        long queued = frames - (frame - headBase);
+        long frameUs = endUs - (long) (queued * 1000000L * speed / outputSampleRateInHz);
+        return frameUs + (long) ((nanoTime - frameNanos) / 1000 * speed);
+    }
+
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        resampler.setSpeed(speed);
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return resampler.getSpeed();
+    }
+
+    @Override
+    public void setResampleQuality(@Resampler.Quality int quality) {
+        resampleQuality = quality;
+    }
+
     @Override
     public void start() throws IllegalStateException {
         synchronized (this) {
@@ -200,8 +305,23 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
                 if (positionEndUs == 0 || positionEndUs > durationUs) {
                     positionEndUs = durationUs;
                 }
-                int bufferSizeInBytes = AudioTrack.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
-                audioTrack = new AudioTrack(streamType, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes, mode);
+                /*let the resampler, not the system mixer, convert to the device rate*/
+                outputSampleRateInHz = AudioTrack.getNativeOutputSampleRate(streamType);
+                if (outputSampleRateInHz <= 0) {
+                    outputSampleRateInHz = sampleRateInHz;
+                }
+                int frames = AudioBuffer.size / 2;
+                resampler.configure(sampleRateInHz, outputSampleRateInHz, 2, frames, resampleQuality);
+                resampleBuffer = new short[resampler.getMaxOutputFrames(frames) * 2];
+                prepareNormalization();
+                if (null != effectChain) {
+                    prepareEffectChain(effectChain);
+                }
+                if (null != spectrumAnalyzer) {
+                    spectrumAnalyzer.prepare(outputSampleRateInHz, 2);
+                }
+                int bufferSizeInBytes = AudioTrack.getMinBufferSize(outputSampleRateInHz, channelConfig, audioFormat);
+                audioTrack = new AudioTrack(streamType, outputSampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes, mode);
                 if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
                     audioTrack.release();
                     audioTrack = null;
@@ -214,6 +334,50 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         }
     }
 
+    @Override
+    public RenderResult render(IAudioSink sink) throws IllegalStateException, IOException {
+        synchronized (this) {
+            if (getState() == State.Prepared || getState() == State.Completed) {
+                offline = true;
+                startDecodeThread();
+                setState(State.Started);
+            } else {
+                throw new IllegalStateException("render() must called after prepare() or onCompletion() and there is no Error.");
+            }
+        }
+        long frames = 0;
+        long startNanos = System.nanoTime();
+        boolean completed = false;
+        try {
+            sink.open(outputSampleRateInHz, 2);
+            while (getState() == State.Started) {
+                AudioBuffer audioBuffer = audioDecoder.awaitBuffer(10);
+                if (null != audioBuffer) {
+                    frames += renderBuffer(audioBuffer, sink) / 2;
+                    positionUs = audioBuffer.presentationTimeUs;
+                    audioBuffer.recycle();
+                } else if (completed = audioDecoder.isEos) {
+                    break;
+                }
+            }
+            if (completed) {
+                finishLoudness();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            offline = false;
+            sink.close();
+            synchronized (this) {
+                if (getState() == State.Started) {
+                    stopDecodeThread(false);
+                    setState(State.Completed);
+                }
+            }
+        }
+        return new RenderResult(frames, outputSampleRateInHz, System.nanoTime() - startNanos, completed);
+    }
+
     @Override
     public void prepareAsync() throws IllegalStateException {
         synchronized (this) {
@@ -244,6 +408,10 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
             setState(State.End);
             stopPlayThread(true);
             stopDecodeThread(true);
+            if (null != effectChain) {
+                effectChain.detach();
+                effectChain = null;
+            }
         }
         executorService.shutdown();
     }
@@ -295,6 +463,41 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         this.onDataProcessListener = l;
     }
 
+    @Override
+    public void setEffectChain(EffectChain chain) {
+        synchronized (this) {
+            EffectChain.swap(effectChain, chain, null != audioTrack, new EffectChain.Host() {
+                @Override
+                public void prepare(EffectChain chain) {
+                    prepareEffectChain(chain);
+                }
+
+                @Override
+                public void install(EffectChain chain) {
+                    effectChain = chain;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void setEditList(EditList edits) {
+        if (null != edits && edits.getChannels() != 2) {
+            throw new IllegalArgumentException("edit list must be stereo");
+        }
+        editList = edits;
+    }
+
+    @Override
+    public void setSpectrumAnalyzer(SpectrumAnalyzer analyzer) {
+        synchronized (this) {
+            if (null != analyzer && null != audioTrack) {
+                analyzer.prepare(outputSampleRateInHz, 2);
+            }
+            spectrumAnalyzer = analyzer;
+        }
+    }
+
     @Override
     public void setOnCompletionListener(OnCompletionListener l) {
         this.onCompletionListener = l;
@@ -313,23 +516,16 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
     @Override
     public Integer call() throws Exception {
         boolean onCompletion = false;
+        headBase = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        updateClock(0, positionUs, true);
         audioTrack.play();
         while (isPlaying()) {
             AudioBuffer audioBuffer = audioDecoder.getBuffer();
             if (null != audioBuffer) {
                 //Log.d(TAG, "call: " + positionUs + "/" + positionEndUs);
-                /*process audio*/
-                onDataProcess(audioBuffer.buffer, audioBuffer.size / channels);
-                /*volume*/
-                for (int i = 0, data; i < audioBuffer.size; i++) {
-                    data = (int) (audioBuffer.buffer[i] * volume);
-                    if (data > 32767)
-                        data = 32767;
-                    else if (data < -32768)
-                        data = -32768;
-                    audioBuffer.buffer[i] = (short) data;
-                }
-                audioTrack.write(audioBuffer.buffer, 0, audioBuffer.size);
+                int written = renderBuffer(audioBuffer, trackSink);
+                updateClock(written / 2, audioBuffer.presentationTimeUs
+                        + AudioBuffer.size / 2 * 1000000L / sampleRateInHz, false);
                 positionUs = audioBuffer.presentationTimeUs;
                 audioBuffer.recycle();
             } else {
@@ -341,6 +537,7 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         }
         audioTrack.stop();
         if (onCompletion) {
+            finishLoudness();
             executorService.execute(new Runnable() {
                 @Override
                 public void run() {
@@ -351,9 +548,134 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         return 0;
     }
 
+    private void updateClock(int frames, long endUs, boolean restart) {
+        clockSequence++;
+        writtenFrames = restart ? frames : writtenFrames + frames;
+        writtenEndUs = endUs;
+        clockSequence++;
+    }
+
+    /**
+     * The processing shared by playback and render(): splice, resample, process, volume, analyze,
+     * write.
+     *
+     * @return number of samples written to the sink
+     */
+    private int renderBuffer(AudioBuffer audioBuffer, IAudioSink sink) throws IOException {
+        short[] buffer = audioBuffer.buffer;
+        int size = audioBuffer.size;
+        /*a first playback measures the track as decoded*/
+        LoudnessMeter meter = loudnessMeter;
+        if (null != meter) {
+            measureLoudness(meter, audioBuffer);
+        }
+        /*retakes, at the position in the file*/
+        EditList edits = editList;
+        if (null != edits) {
+            edits.apply((audioBuffer.presentationTimeUs * sampleRateInHz + 500000) / 1000000, buffer, 0, size / 2);
+        }
+        /*resample*/
+        if (!resampler.isPassThrough()) {
+            size = resampler.process(buffer, size / 2, resampleBuffer) * 2;
+            buffer = resampleBuffer;
+        }
+        /*process audio*/
+        onDataProcess(buffer, size / channels);
+        EffectChain chain = effectChain;
+        if (null != chain) {
+            chain.process(buffer, size / 2);
+        }
+        /*volume*/
+        float gain = volume * normalizationGain;
+        for (int i = 0, data; i < size; i++) {
+            data = (int) (buffer[i] * gain);
+            if (data > 32767)
+                data = 32767;
+            else if (data < -32768)
+                data = -32768;
+            buffer[i] = (short) data;
+        }
+        SpectrumAnalyzer spectrum = spectrumAnalyzer;
+        if (null != spectrum) {
+            spectrum.process(buffer, 0, size);
+        }
+        sink.write(buffer, 0, size);
+        return size;
+    }
+
+    /**
+     * Reads the cached loudness of the track, or sets up a meter to measure it while it plays.
+     */
+    private void prepareNormalization() {
+        normalizationGain = 1f;
+        loudnessMeter = null;
+        MediaCache cache = loudnessCache;
+        if (null == cache || null == dataSourcePath) {
+            return;
+        }
+        try {
+            LoudnessAnalyzer.Loudness loudness = new LoudnessAnalyzer(cache).load(dataSourcePath);
+            if (null != loudness) {
+                normalizationGain = (float) Math.pow(10, loudness.getGainDb(targetLufs) / 20);
+                Log.d(TAG, "prepare: " + loudness + ", gain " + getNormalizationGainDb() + " dB");
+            } else {
+                meterNextUs = -1;
+                loudnessMeter = new LoudnessMeter(sampleRateInHz, 2);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "prepare: loudness cache not readable", e);
+        }
+    }
+
+    /**
+     * Meters the buffers as long as they follow each other from the start of the track. A seek,
+     * a play range or a loop jumps; the measurement is kept if it reached the end by then, else
+     * dropped until the next prepare().
+     */
+    private void measureLoudness(LoudnessMeter meter, AudioBuffer audioBuffer) {
+        long pts = audioBuffer.presentationTimeUs;
+        /*a track may start a little late (encoder delay), a jump is more than rounding*/
+        if (meterNextUs < 0 ? pts > loudnessStartToleranceUs : Math.abs(pts - meterNextUs) > loudnessJumpToleranceUs) {
+            finishLoudness();
+            return;
+        }
+        meter.add(audioBuffer.buffer, 0, AudioBuffer.size / 2);
+        meterNextUs = pts + AudioBuffer.size / 2 * 1000000L / sampleRateInHz;
+    }
+
+    /**
+     * Caches the loudness if the meter saw the whole track, off the playing thread.
+     */
+    private void finishLoudness() {
+        final LoudnessMeter meter = loudnessMeter;
+        final MediaCache cache = loudnessCache;
+        final String path = dataSourcePath;
+        loudnessMeter = null;
+        if (null == meter || null == cache || meterNextUs + loudnessEndToleranceUs < durationUs) {
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.d(TAG, "finishLoudness: " + new LoudnessAnalyzer(cache).store(path, meter));
+                } catch (IOException e) {
+                    Log.w(TAG, "finishLoudness: not cached", e);
+                }
+            }
+        });
+    }
+
     private void startDecodeThread() {
         audioDecoder.stop();
         audioDecoder.seekTo(positionUs = positionStartUs);
+        resampler.reset();
+        if (null != effectChain) {
+            effectChain.reset();
+        }
+        if (null != spectrumAnalyzer) {
+            spectrumAnalyzer.reset();
+        }
         audioDecoder.start();
     }
 
@@ -419,6 +741,24 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         }
     }
 
+    /**
+     * Prepares a chain about to be installed, or the installed one while the play thread is
+     * stopped; only other hosts running it keep it from being prepared again.
+     */
+    private void prepareEffectChain(EffectChain chain) {
+        boolean installed = chain == effectChain;
+        if (installed) {
+            chain.detach();
+        }
+        try {
+            chain.prepare(outputSampleRateInHz, 2, resampleBuffer.length / 2);
+        } finally {
+            if (installed) {
+                chain.attach();
+            }
+        }
+    }
+
     private float getBufferDuration(int bufferSize) {
         return bufferSize * 1000 * 8 * 2.0f / sampleRateInHz / bitPerSample / channels;
     }
@@ -471,7 +811,7 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
                 return new AudioBuffer();
             }
         }, TAG);
-        final int size = 1024;
+        static final int size = 1024;
         short[] buffer;
         float duration;
         long index;
@@ -495,38 +835,58 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
         }
     }
 
+    /**
+     * Playback sink, the AudioTrack itself is owned by the player.
+     */
+    private class TrackSink implements IAudioSink {
+        @Override
+        public void open(int sampleRate, int channels) {
+        }
+
+        @Override
+        public void write(short[] data, int offset, int size) {
+            audioTrack.write(data, offset, size);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     private class AudioDecoder implements Callable<Integer>, MediaCodecWrapper.OutputSampleListener {
         private static final int maxPoolSize = 300;
+        /*how far from the target a seek may land, decoded output before that predates it*/
+        private static final long maxSeekLandingUs = 1000000;
         private Queue<AudioBuffer> audioBuffers = new ArrayDeque<>();
         private int bufferIndex;
         private int writePtr;
         private AudioBuffer writeAudio;
-        private boolean isEos;
+        private volatile boolean isEos;
         private boolean isSampleEos;
-        private boolean isRunning;
+        private volatile boolean isRunning;
+        /*pts the next decoded sample should have, -1 after a seek*/
+        private long nextPresentationTimeUs = -1;
+        /*target of a seek until the decoded output reaches it, -1 otherwise*/
+        private final AtomicLong seekTimeUs = new AtomicLong(-1);
         private MediaCodecWrapper mMediaCodecWrapper;
-        private MediaExtractor mMediaExtractor;
+        private SegmentedExtractor mExtractor;
         private MediaCodec.BufferInfo out_bufferInfo = new MediaCodec.BufferInfo();
         private Lock lock = new ReentrantLock();
         private Condition condition = lock.newCondition();
+        private Condition notEmpty = lock.newCondition();
         private FutureTask<Integer> futureTask;
 
         void setDataSource(String audioPath, boolean isEncoded) throws IOException {
-            mMediaExtractor = new MediaExtractor();
-            mMediaExtractor.setDataSource(audioPath);
-            for (int i = 0; i < mMediaExtractor.getTrackCount(); i++) {
-                MediaFormat trackFormat = mMediaExtractor.getTrackFormat(i);
-                String mMediaType = trackFormat.getString(MediaFormat.KEY_MIME);
-                if (mMediaType.startsWith("audio/")) {
-                    Log.d(TAG, "MediaFormat: " + trackFormat);
-                    mMediaExtractor.selectTrack(i);
-                    sampleRateInHz = trackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-                    channels = trackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
-                    durationUs = trackFormat.getLong(MediaFormat.KEY_DURATION);
-                    mMediaCodecWrapper = MediaCodecWrapper.fromAudioFormat(trackFormat);
-                    mMediaCodecWrapper.setOutputSampleListener(audioDecoder);
-                    break;
-                }
+            /*a segment manifest plays as one file*/
+            mExtractor = new SegmentedExtractor(audioPath);
+            MediaFormat trackFormat = mExtractor.getFormat();
+            if (null != trackFormat) {
+                Log.d(TAG, "MediaFormat: " + trackFormat);
+                sampleRateInHz = trackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channels = trackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                durationUs = trackFormat.getLong(MediaFormat.KEY_DURATION);
+                mMediaCodecWrapper = MediaCodecWrapper.fromAudioFormat(trackFormat);
+                mMediaCodecWrapper.setOutputSampleListener(audioDecoder);
             }
         }
 
@@ -541,26 +901,48 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
 //                    break;
 //                }
 //            }
-            AudioBuffer audio = audioBuffers.poll();
-            if (audioBuffers.size() <= maxPoolSize / 2) {
-                lock.lock();
-                condition.signalAll();
+            lock.lock();
+            try {
+                AudioBuffer audio = audioBuffers.poll();
+                if (audioBuffers.size() <= maxPoolSize / 2) {
+                    condition.signalAll();
+                }
+                return audio;
+            } finally {
                 lock.unlock();
             }
-            return audio;
+        }
+
+        /**
+         * Like getBuffer(), but waits up to timeoutMs for the decoder instead of returning null at once.
+         */
+        AudioBuffer awaitBuffer(long timeoutMs) throws InterruptedException {
+            lock.lock();
+            try {
+                if (audioBuffers.isEmpty() && isRunning && !isEos) {
+                    notEmpty.await(timeoutMs, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return getBuffer();
         }
 
         void start() {
             synchronized (this) {
                 isRunning = true;
                 isSampleEos = isEos = false;
+                nextPresentationTimeUs = -1;
+                seekTimeUs.set(-1);
                 executorService.execute(futureTask = new FutureTask<>(this));
             }
         }
 
         void seekTo(long timeUs) {
-            if (null != mMediaExtractor) {
-                mMediaExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            /*a seek jumps the pts as well, it must not be played as a gap*/
+            seekTimeUs.set(timeUs);
+            if (null != mExtractor) {
+                mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
             }
         }
 
@@ -581,18 +963,20 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
                     }
                 }
                 futureTask = null;
+                lock.lock();
                 for (AudioBuffer audioBuffer : audioBuffers) {
                     audioBuffer.recycle();
                 }
                 audioBuffers.clear();
+                lock.unlock();
             }
         }
 
         void release() {
             synchronized (this) {
                 mMediaCodecWrapper.stopAndRelease();
-                mMediaExtractor.release();
-                mMediaExtractor = null;
+                mExtractor.release();
+                mExtractor = null;
             }
         }
 
@@ -615,12 +999,12 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
                         lock.unlock();
                     }
                 }
-                if (!(isSampleEos = MediaCodec.BUFFER_FLAG_END_OF_STREAM == (mMediaExtractor.getSampleFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) || isSampleEos)
-                        && mMediaCodecWrapper.writeSample(mMediaExtractor, false, mMediaExtractor.getSampleTime(), mMediaExtractor.getSampleFlags())) {
-                    mMediaExtractor.advance();
+                if (!(isSampleEos = MediaCodec.BUFFER_FLAG_END_OF_STREAM == (mExtractor.getSampleFlags() & MediaCodec.BUFFER_FLAG_END_OF_STREAM) || isSampleEos)
+                        && mMediaCodecWrapper.writeSample(mExtractor.getExtractor(), false, mExtractor.getSampleTime(), mExtractor.getSampleFlags())) {
+                    mExtractor.advance();
                 }
-                if (mMediaExtractor.getSampleTime() >= positionEndUs || isSampleEos) {
-                    if (!(isSampleEos = !isLooping())) {
+                if (mExtractor.getSampleTime() >= positionEndUs || isSampleEos) {
+                    if (!(isSampleEos = !isLooping() || offline)) {
                         seekTo(positionStartUs);
                     }
                 }
@@ -631,6 +1015,9 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
                 }
             }
             isRunning = false;
+            lock.lock();
+            notEmpty.signalAll();
+            lock.unlock();
             return 0;
         }
 
@@ -642,27 +1029,84 @@ public class AudioPlayer implements IPlayer, Callable<Integer> {
             buffer.position(info.offset);
             buffer.limit(info.offset + info.size);
             buffer.order(ByteOrder.LITTLE_ENDIAN);
+            long seekUs = seekTimeUs.get();
+            if (seekUs >= 0) {
+                /*buffers decoded before the seek may still come out first*/
+                nextPresentationTimeUs = -1;
+                if (Math.abs(info.presentationTimeUs - seekUs) < maxSeekLandingUs) {
+                    seekTimeUs.compareAndSet(seekUs, -1);
+                }
+            }
+            /*a voice gated recording leaves the silent parts out, play them as silence*/
+            long gapFrames = nextPresentationTimeUs < 0 ? 0 : PtsGap.frames(info.presentationTimeUs,
+                    Math.round(nextPresentationTimeUs * (double) sampleRateInHz / 1000000), sampleRateInHz);
+            if (gapFrames > 0) {
+                fillGap(gapFrames);
+            }
             for (int i = 0; i < info.size; i += 2) {
-                if (null == writeAudio) {
-                    writeAudio = AudioBuffer.obtain();
-                    writeAudio.index = bufferIndex++;
-                    writeAudio.presentationTimeUs = info.presentationTimeUs;
+                /*pts of the frame, the first one of a buffer gives it its pts*/
+                putSample(buffer.getShort(i), info.presentationTimeUs + (long) (i / 2 / channels) * 1000000 / sampleRateInHz);
+            }
+            nextPresentationTimeUs = info.presentationTimeUs + (long) (info.size / 2 / channels) * 1000000 / sampleRateInHz;
+            buffer.clear();
+        }
+
+        /**
+         * Queues gapFrames of silence from nextPresentationTimeUs a buffer at a time, waiting
+         * like call() whenever the queue is full, so a long gap holds no more than maxPoolSize
+         * buffers. A seek or stop() ends the fill.
+         */
+        private void fillGap(long gapFrames) {
+            for (long f = 0; f < gapFrames; f++) {
+                long presentationTimeUs = nextPresentationTimeUs + f * 1000000 / sampleRateInHz;
+                for (int c = 0; c < channels; c++) {
+                    putSample((short) 0, presentationTimeUs);
                 }
-                if (channels == 2) {
-                    writeAudio.buffer[writePtr] = buffer.getShort(i);
-                    writePtr = (writePtr + 1) % writeAudio.size;
-                } else {
-                    writeAudio.buffer[writePtr + 1] = writeAudio.buffer[writePtr] = buffer.getShort(i);
-                    writePtr = (writePtr + 2) % writeAudio.size;
+                if (0 == writePtr && !awaitRoom()) {
+                    return;
                 }
-                if (0 == writePtr && null != writeAudio) {
-                    writeAudio.duration = getBufferDuration(writeAudio.size);
-                    audioBuffers.add(writeAudio);
-                    //Log.d(TAG, "outputSample: " + writeAudio.presentationTimeUs);
-                    writeAudio = null;
+            }
+        }
+
+        /**
+         * @return false if the decoder stopped or a seek came while waiting for room
+         */
+        private boolean awaitRoom() {
+            lock.lock();
+            try {
+                while (audioBuffers.size() >= maxPoolSize && isRunning && seekTimeUs.get() < 0) {
+                    condition.await(10, TimeUnit.MILLISECONDS);
                 }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                lock.unlock();
+            }
+            return isRunning && seekTimeUs.get() < 0;
+        }
+
+        private void putSample(short value, long presentationTimeUs) {
+            if (null == writeAudio) {
+                writeAudio = AudioBuffer.obtain();
+                writeAudio.index = bufferIndex++;
+                writeAudio.presentationTimeUs = presentationTimeUs;
+            }
+            if (channels == 2) {
+                writeAudio.buffer[writePtr] = value;
+                writePtr = (writePtr + 1) % writeAudio.size;
+            } else {
+                writeAudio.buffer[writePtr + 1] = writeAudio.buffer[writePtr] = value;
+                writePtr = (writePtr + 2) % writeAudio.size;
+            }
+            if (0 == writePtr) {
+                writeAudio.duration = getBufferDuration(writeAudio.size);
+                lock.lock();
+                audioBuffers.add(writeAudio);
+                notEmpty.signal();
+                lock.unlock();
+                writeAudio = null;
             }
-            buffer.clear();
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -2,32 +2,83 @@ package com.bmapleaf.audio.component;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.util.Log;
 
+import com.bmapleaf.audio.dsp.EffectChain;
+import com.bmapleaf.audio.dsp.PitchTracker;
+import com.bmapleaf.audio.dsp.SpectrumAnalyzer;
+import com.bmapleaf.audio.dsp.VoiceActivityDetector;
 import com.bmapleaf.utils.ObjectPool;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Queue;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Created by ZhangMing on 2017/06/12.
+ * <p>
+ * Recording runs as a pipeline of three threads:
+ * capture (AudioRecord) -> {@link CaptureRing} -> process and encode (listener, effect chain, AAC)
+ * -> bounded queue -> write (MediaMuxer).
+ * The capture thread only reads AudioRecord into the lock-free ring and never waits for a later
+ * stage. If the encoder falls a ring behind, the overwritten samples are encoded as silence and
+ * counted in {@link RecorderStats} with their frame position.
+ * <p>
+ * Without a listener or an effect chain nobody needs the samples as short[], so the capture
+ * thread reads AudioRecord straight into the codec input buffers instead and the encode thread
+ * only drains the codec. With them, the block is processed in place inside the ring and copied
+ * once, into the codec input buffer; only a live monitor, which reads the same ring, needs the
+ * raw samples kept and costs a second copy.
+ * <p>
+ * Pcm output skips the codec and the muxer: one writer thread reads the ring into a
+ * {@link WavFileSink}.
+ * <p>
+ * Several outputs (one AAC, any number of pcm) fan out from the same ring. Every output has its
+ * own worker and reader and reads the ring in place, so a slow one loses data on its own
+ * (silence in its file, or encoded frames dropped after its muxer queue pushed back) and
+ * never holds up the capture or the other outputs. A listener or an effect chain then runs
+ * once, on a process thread that publishes the result in a second ring the outputs read.
+ * <p>
+ * pause() keeps AudioRecord and the encoder running, the capture thread just stops publishing
+ * what it reads. Timestamps count published frames only, so the paused part leaves no hole in
+ * the output and resume() takes effect with the next block read.
+ * <p>
+ * With a segment duration the output file is a {@link SegmentManifest} and the recording goes
+ * to chunk files that roll over every few seconds, at an AAC frame (ADTS chunks) or a capture
+ * block (.wav chunks). A crash costs at most the unflushed end of the last chunk.
+ * <p>
+ * The voice gate sits in front of the AAC encoder only, pcm outputs stay complete: blocks a
+ * {@link VoiceActivityDetector} finds silent are encoded as zeros or skipped, leaving a gap in
+ * the timestamps. {@link RecorderStats} counts the gated frames and the bytes they cost.
  */
 
-public class AudioRecorder implements IRecorder {
+public class AudioRecorder implements IRecorder, Callable<Integer> {
     private static final String stateName[] = {
             "Idle",
             "Initial",
@@ -37,46 +88,271 @@ public class AudioRecorder implements IRecorder {
             "Recording",
             "Release",
             "Error",
+            "Paused",
     };
     private static final String TAG = "AudioRecorder";
+    private static final String mimeType = "audio/mp4a-latm";
+    private static final long timeoutUs = 10000;
+    /*samples per AudioRecord.read() and per encoder input*/
+    private static final int blockSize = 1024;
+    /*seconds of audio the encoder may lag behind before data is lost*/
+    private static final int ringSeconds = 2;
+    /*empty reads in a row, a block apart, before the capture gives up*/
+    private static final int maxEmptyReads = 20;
     private static int audioSource = MediaRecorder.AudioSource.MIC;
     private static int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
     private static int bitRate = 96000;
     private AudioRecord audioRecord;
-    private int sampleRateInHz = 41000;
+    private int sampleRateInHz = 44100;
     private int channels = 2;
+    /*the AAC output, null if there is none*/
+    private String encodedFile;
+    private final List<String> pcmFiles = new ArrayList<>();
+    /*punch-in: the take, the segment being recorded and its place in the take in frames*/
+    private Take punchTake;
+    private File punchSegment;
+    private long punchOrigin;
+    private long punchStart;
+    private long punchEnd;
+    private long headerUpdateIntervalMs = 1000;
+    /*0: one output file, otherwise length of the chunks of a segmented recording*/
+    private int segmentSeconds;
+    private volatile int voiceGate = VOICE_GATE_OFF;
+    private volatile boolean isCapturing;
+    private volatile boolean isPaused;
+    /*the read() result that ended the capture, 0 while it runs*/
+    private volatile int captureError;
+    /*whether blocks are processed where they lie in the capture ring*/
+    private boolean processInRing;
+    /*System.nanoTime() of the last resume(), 0 once the capture thread picked it up*/
+    private volatile long resumeNanos;
+    /*capture clock: recorded frames at the end of the last accepted block and when it was read*/
+    private volatile int clockSequence;
+    private volatile long clockFrames;
+    private volatile long clockNanos;
+    /*frames read from AudioRecord since startRecording(), paused ones too*/
+    private long readFrames;
+    private long lastTimestampNanos;
+    private final AudioTimestamp captureTimestamp = new AudioTimestamp();
+    private volatile long inputLatencyNanos;
+    private CaptureRing captureRing;
+    /*processed samples shared by several outputs, see ProcessStage*/
+    private CaptureRing processedRing;
+    /*AudioRecord -> codec input buffer, chosen at start() when there is no processing*/
+    private boolean directCapture;
+    /*receives a block when the codec has no free input buffer in direct capture*/
+    private ByteBuffer dropBuffer;
 
     private AudioEncoder audioEncoder;
+    private AudioMuxer audioMuxer;
+    private final List<PcmWriter> pcmWriters = new ArrayList<>();
+    private ProcessStage processStage;
+    private final RecorderStats stats = new RecorderStats();
+    private ExecutorService executorService;
+    private FutureTask<Integer> futureTask;
+    /*cpu time of the capture thread when it started*/
+    private long captureCpuBase;
 
     /*listeners*/
     private OnErrorListener onErrorListener;
     private OnDataProcessListener onDataProcessListener;
+    private volatile EffectChain effectChain;
+    private volatile PitchTracker pitchTracker;
+    private volatile SpectrumAnalyzer spectrumAnalyzer;
+    private LiveMonitor monitor;
+    /*the monitor of the running recording*/
+    private LiveMonitor activeMonitor;
     @State
     private int state;
 
+    public AudioRecorder() {
+        /*capture, process, encode, write, and one writer per pcm output*/
+        executorService = Executors.newCachedThreadPool();
+        setState(State.Idle);
+    }
+
     @Override
     public void pause() throws IllegalStateException {
-
+        synchronized (this) {
+            if (getState() == State.Recording) {
+                isPaused = true;
+                setState(State.Paused);
+            } else {
+                throw new IllegalStateException("pause() must called after start()");
+            }
+        }
     }
 
     @Override
     public void prepare() throws IllegalStateException, IOException {
         synchronized (this) {
             if (getState() == State.DataSourceConfigured) {
+                if (segmentSeconds > 0) {
+                    for (String file : getOutputFiles()) {
+                        if (!SegmentManifest.isManifest(file)) {
+                            throw new IllegalStateException("a segmented recording needs output files ending with " + SegmentManifest.suffix);
+                        }
+                    }
+                }
                 int channelConfig = channels == Channel.MONO ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
                 int bufferSizeInBytes = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
+                /*room for a few blocks, so a late capture thread does not overrun the hal at once*/
+                bufferSizeInBytes = Math.max(bufferSizeInBytes, blockSize * 2 * 4);
                 audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes);
                 if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
                     audioRecord.release();
                     audioRecord = null;
                     onError(RECORDER_ERROR_INITIALIZED, RECORDER_ERROR_CHANNEL_NOT_SUPPORT);
+                    return;
+                }
+                captureRing = new CaptureRing(sampleRateInHz * channels * ringSeconds, channels, blockSize / channels * channels);
+                if (getOutputFiles().size() > 1) {
+                    processedRing = new CaptureRing(captureRing.getCapacity(), channels, blockSize / channels * channels);
+                    processStage = new ProcessStage();
+                }
+                try {
+                    if (null != encodedFile) {
+                        audioEncoder = new AudioEncoder();
+                        audioMuxer = new AudioMuxer(encodedFile);
+                    }
+                    for (String file : pcmFiles) {
+                        pcmWriters.add(new PcmWriter(file));
+                    }
+                } catch (IOException e) {
+                    releaseResources();
+                    onError(RECORDER_ERROR_INITIALIZED, RECORDER_ERROR_UNKNOWN);
+                    throw e;
+                }
+                if (null != effectChain) {
+                    prepareEffectChain(effectChain);
                 }
+                if (null != pitchTracker) {
+                    pitchTracker.prepare(sampleRateInHz, channels);
+                }
+                if (null != spectrumAnalyzer) {
+                    spectrumAnalyzer.prepare(sampleRateInHz, channels);
+                }
+                setState(State.Prepared);
             } else {
                 throw new IllegalStateException("prepare() must called after DataSourceConfigured");
             }
         }
     }
 
+    /**
+     * Capture loop. Does nothing but read AudioRecord straight into the capture ring, or into
+     * the codec in direct capture.
+     */
+    @Override
+    public Integer call() throws Exception {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        captureCpuBase = RecorderStats.threadCpuNanos();
+        return directCapture ? captureToCodec() : captureToRing();
+    }
+
+    private int captureToRing() {
+        CaptureRing ring = captureRing;
+        int emptyReads = 0;
+        try {
+            while (isCapturing) {
+                int read = audioRecord.read(ring.array(), ring.writeOffset(), ring.writableSamples());
+                if (read <= 0) {
+                    if (retryRead(read, ++emptyReads)) {
+                        continue;
+                    }
+                    return -1;
+                }
+                emptyReads = 0;
+                long nanos = System.nanoTime();
+                if (accept(read / channels, nanos)) {
+                    ring.commit(read, nanos);
+                }
+                stats.updateCaptureCpu(captureCpuBase);
+            }
+            return 0;
+        } finally {
+            ring.close();
+        }
+    }
+
+    /**
+     * Reads AudioRecord into dequeued codec input buffers, no copy at all. A block that finds
+     * no free input buffer within its own duration is read into dropBuffer and lost; the pts
+     * keep counting, so the file keeps its timeline.
+     */
+    private int captureToCodec() {
+        MediaCodecWrapper codec = audioEncoder.getCodec();
+        final int frameBytes = channels * 2;
+        final long blockUs = blockSize / channels * 1000000L / sampleRateInHz;
+        long frames = 0;
+        int index = -1;
+        int emptyReads = 0;
+        try {
+            while (isCapturing) {
+                if (index < 0) {
+                    index = codec.dequeueInputBuffer(blockUs);
+                }
+                ByteBuffer buffer = index >= 0 ? codec.getInputBuffer(index) : dropBuffer;
+                int read = audioRecord.read(buffer, Math.min(buffer.capacity(), blockSize * 2) / frameBytes * frameBytes);
+                if (read <= 0) {
+                    if (retryRead(read, ++emptyReads)) {
+                        continue;
+                    }
+                    return -1;
+                }
+                emptyReads = 0;
+                long nanos = System.nanoTime();
+                if (!accept(read / frameBytes, nanos)) {
+                    /*the buffer is kept and read into again*/
+                    stats.updateCaptureCpu(captureCpuBase);
+                    continue;
+                }
+                long presentationTimeUs = frames * 1000000 / sampleRateInHz;
+                if (index >= 0) {
+                    audioEncoder.onDirectInput(presentationTimeUs, nanos);
+                    codec.queueInputBuffer(index, read, presentationTimeUs, 0);
+                    index = -1;
+                } else {
+                    stats.onOverrun(frames, read / frameBytes);
+                }
+                frames += read / frameBytes;
+                stats.updateCaptureCpu(captureCpuBase);
+            }
+            return 0;
+        } finally {
+            long presentationTimeUs = frames * 1000000 / sampleRateInHz;
+            if (index >= 0) {
+                codec.queueInputBuffer(index, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            } else {
+                for (int i = 0; i < 200 && !codec.writeEndOfStream(presentationTimeUs); i++) {
+                    codec.awaitInputBuffer(timeoutUs);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a read that returned no samples. A negative result (invalid operation, bad value,
+     * dead object) does not recover, an empty read is retried a block later up to maxEmptyReads
+     * times in a row. Either way a broken AudioRecord can not keep the capture thread spinning.
+     *
+     * @return true to read again, false when the capture failed and was reported
+     */
+    private boolean retryRead(int read, int emptyReads) {
+        stats.onReadError();
+        if (read == 0 && emptyReads < maxEmptyReads) {
+            SystemClock.sleep(blockSize / channels * 1000L / sampleRateInHz);
+            return true;
+        }
+        Log.e(TAG, "capture: read " + read + " after " + emptyReads + " failed reads");
+        captureError = read;
+        /*the state stays, stop() or release() still finish the outputs*/
+        if (null != onErrorListener) {
+            onErrorListener.onError(this, RECORDER_ERROR_CAPTURE, read);
+        }
+        return false;
+    }
+
     private void onError(int what, int extra) {
         setState(State.Error);
         if (null != onErrorListener) {
@@ -84,9 +360,89 @@ public class AudioRecorder implements IRecorder {
         }
     }
 
-    private void onDataProcess(short[] data, int samples) {
+    /**
+     * Decides on the capture thread whether a block read at nanos belongs to the recording.
+     *
+     * @return false while paused, the block is then dropped without advancing the timeline
+     */
+    private boolean accept(int frames, long nanos) {
+        readFrames += frames;
+        if (nanos - lastTimestampNanos >= 1000000000L) {
+            lastTimestampNanos = nanos;
+            updateInputLatency(nanos);
+        }
+        if (isPaused) {
+            stats.onPaused(frames);
+            return false;
+        }
+        long resumed = resumeNanos;
+        if (resumed != 0) {
+            resumeNanos = 0;
+            stats.onResumed(nanos - resumed);
+        }
+        stats.onCaptured(frames);
+        clockSequence++;
+        clockFrames += frames;
+        clockNanos = nanos;
+        clockSequence++;
+        return true;
+    }
+
+    /**
+     * Measures the time from the microphone to the return of read() where the system tells it,
+     * Android 7 on. The last frame read was captured (readFrames - framePosition) frames after
+     * the frame of the timestamp.
+     */
+    private void updateInputLatency(long nanos) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        if (audioRecord.getTimestamp(captureTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS) {
+            long capturedNanos = captureTimestamp.nanoTime
+                    + (readFrames - 1 - captureTimestamp.framePosition) * 1000000000L / sampleRateInHz;
+            inputLatencyNanos = Math.max(0, nanos - capturedNanos);
+            stats.onInputLatency(inputLatencyNanos);
+        }
+    }
+
+    private void onCaptureOverrun(long frame, int frames) {
+        stats.onOverrun(frame, frames);
+        Log.w(TAG, "onOverrun: " + frames + " frames at " + frame + " replaced with silence");
+    }
+
+    private void onDataProcess(short[] data, int offset, int samples) {
+        PitchTracker tracker = pitchTracker;
+        if (null != tracker) {
+            tracker.process(data, offset, samples);
+        }
         if (null != onDataProcessListener) {
-            onDataProcessListener.onProcess(data, samples);
+            onDataProcessListener.onProcess(data, offset, samples);
+        }
+        EffectChain chain = effectChain;
+        if (null != chain) {
+            chain.process(data, offset, samples / channels);
+        }
+        SpectrumAnalyzer spectrum = spectrumAnalyzer;
+        if (null != spectrum) {
+            spectrum.process(data, offset, samples);
+        }
+    }
+
+    /**
+     * Prepares a chain about to be installed, or the installed one while nothing is captured;
+     * only other hosts running it keep it from being prepared again.
+     */
+    private void prepareEffectChain(EffectChain chain) {
+        boolean installed = chain == effectChain;
+        if (installed) {
+            chain.detach();
+        }
+        try {
+            chain.prepare(sampleRateInHz, channels, blockSize / channels);
+        } finally {
+            if (installed) {
+                chain.attach();
+            }
         }
     }
 
@@ -96,37 +452,212 @@ public class AudioRecorder implements IRecorder {
 
     @Override
     public void release() {
-        setState(State.Release);
+        synchronized (this) {
+            if (isRecording()) {
+                stopRecording();
+            }
+            releaseResources();
+            executorService.shutdown();
+            if (null != effectChain) {
+                effectChain.detach();
+                effectChain = null;
+            }
+            setState(State.Release);
+        }
     }
 
     @Override
     public void reset() {
-        setState(State.Initial);
+        synchronized (this) {
+            if (isRecording()) {
+                stopRecording();
+            }
+            releaseResources();
+            encodedFile = null;
+            pcmFiles.clear();
+            setState(State.Initial);
+        }
     }
 
     @Override
     public void resume() throws IllegalStateException {
-
+        synchronized (this) {
+            if (getState() == State.Paused) {
+                resumeNanos = System.nanoTime();
+                isPaused = false;
+                setState(State.Recording);
+            } else {
+                throw new IllegalStateException("resume() must called after pause()");
+            }
+        }
     }
 
     @Override
     public void stop() throws IllegalStateException {
-        if (getState() == State.Recording) {
-            setState(State.Initial);
-        } else {
-            throw new IllegalStateException("stop() must called after start()");
+        synchronized (this) {
+            if (isRecording()) {
+                stopRecording();
+                releaseResources();
+                setState(State.Initial);
+                Log.d(TAG, "stop: " + stats);
+                finishPunchIn();
+            } else {
+                throw new IllegalStateException("stop() must called after start()");
+            }
         }
     }
 
     @Override
     public void start() throws IllegalStateException {
-        if (getState() == State.Prepared) {
-            setState(State.Recording);
-        } else {
-            throw new IllegalStateException("start() must called after prepare()");
+        synchronized (this) {
+            if (getState() == State.Prepared) {
+                stats.reset();
+                captureRing.reset();
+                boolean processing = null != onDataProcessListener || null != effectChain || null != pitchTracker
+                        || null != spectrumAnalyzer;
+                if (null != pitchTracker) {
+                    pitchTracker.reset();
+                }
+                if (null != spectrumAnalyzer) {
+                    spectrumAnalyzer.reset();
+                }
+                boolean fanOut = getOutputFiles().size() > 1;
+                directCapture = !fanOut && null != encodedFile && !processing && voiceGate == VOICE_GATE_OFF
+                        && null == monitor;
+                if (directCapture && null == dropBuffer) {
+                    dropBuffer = ByteBuffer.allocateDirect(blockSize * 2);
+                }
+                /*the outputs read processed samples from one ring, or process on their own*/
+                CaptureRing source = captureRing;
+                boolean processInSink = processing;
+                /*the reader that processes is the only one of its ring unless the monitor listens*/
+                processInRing = null == monitor;
+                if (fanOut && processing) {
+                    processedRing.reset();
+                    processStage.start();
+                    source = processedRing;
+                    processInSink = false;
+                }
+                isCapturing = true;
+                captureError = 0;
+                clockSequence = 0;
+                clockFrames = clockNanos = 0;
+                readFrames = lastTimestampNanos = 0;
+                activeMonitor = monitor;
+                if (null != activeMonitor) {
+                    activeMonitor.start(captureRing, this, sampleRateInHz, blockSize / channels);
+                }
+                audioRecord.startRecording();
+                if (null != encodedFile) {
+                    audioMuxer.start();
+                    audioEncoder.start(source, processInSink);
+                }
+                for (PcmWriter writer : pcmWriters) {
+                    writer.start(source, processInSink);
+                }
+                executorService.execute(futureTask = new FutureTask<>(this));
+                setState(State.Recording);
+            } else {
+                throw new IllegalStateException("start() must called after prepare()");
+            }
+        }
+    }
+
+    /**
+     * Stops the capture thread and waits until every output has written everything that was
+     * captured before.
+     */
+    private void stopRecording() {
+        isCapturing = false;
+        isPaused = false;
+        int result = waitFor(futureTask, 2);
+        if (captureError != 0) {
+            /*reported when it happened*/
+            result = 0;
+        }
+        futureTask = null;
+        audioRecord.stop();
+        if (null != activeMonitor) {
+            activeMonitor.stop(captureRing);
+            activeMonitor = null;
+        }
+        if (null != processStage) {
+            result |= processStage.finish();
+        }
+        if (null != encodedFile) {
+            result |= audioEncoder.finish();
+            result |= audioMuxer.finish();
+        }
+        for (PcmWriter writer : pcmWriters) {
+            result |= writer.finish();
+        }
+        if (result != 0) {
+            onError(RECORDER_ERROR_UNKNOWN, result);
         }
     }
 
+    /**
+     * Lists the recorded segment in the edit list of the take, cut to what was recorded.
+     */
+    private void finishPunchIn() {
+        if (null == punchTake) {
+            return;
+        }
+        long end = Math.min(punchEnd, punchOrigin + stats.getCapturedFrames());
+        try {
+            if (end > punchStart) {
+                punchTake.addRetake(punchSegment, punchStart, end, punchOrigin);
+            } else {
+                punchSegment.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            onError(RECORDER_ERROR_UNKNOWN, RECORDER_ERROR_INVALID_OUTPUT_FILE);
+        }
+        punchTake = null;
+    }
+
+    private void releaseResources() {
+        if (null != audioEncoder) {
+            audioEncoder.release();
+            audioEncoder = null;
+        }
+        if (null != audioMuxer) {
+            audioMuxer.release();
+            audioMuxer = null;
+        }
+        for (PcmWriter writer : pcmWriters) {
+            writer.release();
+        }
+        pcmWriters.clear();
+        processStage = null;
+        processedRing = null;
+        if (null != audioRecord) {
+            audioRecord.release();
+            audioRecord = null;
+        }
+        captureRing = null;
+    }
+
+    /**
+     * @return result of the task, -1 if it failed or did not finish in time
+     */
+    private static int waitFor(FutureTask<Integer> task, int seconds) {
+        if (null == task) {
+            return 0;
+        }
+        try {
+            Integer result = task.get(seconds, TimeUnit.SECONDS);
+            return null == result ? 0 : result;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        } catch (TimeoutException e) {
+            Log.e(TAG, "waitFor: TimeoutException");
+            task.cancel(true);
+        }
+        return -1;
+    }
+
     @Override
     public void reStart() {
 
@@ -144,8 +675,64 @@ public class AudioRecorder implements IRecorder {
 
     @Override
     public void setOutputFile(String file, boolean encode) throws IllegalStateException, IOException {
-        audioEncoder = new AudioEncoder();
-        audioEncoder.setOutputFile(file, encode);
+        synchronized (this) {
+            if (getState() >= State.Prepared && getState() != State.Error) {
+                throw new IllegalStateException("setOutputFile() must called before prepare()");
+            }
+            encodedFile = null;
+            pcmFiles.clear();
+            punchTake = null;
+            addOutput(file, encode);
+            setState(State.DataSourceConfigured);
+        }
+    }
+
+    @Override
+    public void addOutputFile(String file, boolean encode) throws IllegalStateException {
+        synchronized (this) {
+            if (getState() != State.DataSourceConfigured) {
+                throw new IllegalStateException("addOutputFile() must called after setOutputFile() before prepare()");
+            }
+            addOutput(file, encode);
+        }
+    }
+
+    private void addOutput(String file, boolean encode) {
+        if (!encode) {
+            pcmFiles.add(file);
+        } else if (null == encodedFile) {
+            encodedFile = file;
+        } else {
+            throw new IllegalStateException("there is an encoded output already: " + encodedFile);
+        }
+    }
+
+    private List<String> getOutputFiles() {
+        List<String> files = new ArrayList<>(pcmFiles);
+        if (null != encodedFile) {
+            files.add(0, encodedFile);
+        }
+        return files;
+    }
+
+    @Override
+    public void setPunchIn(Take take, boolean encode, long originUs, long startUs, long endUs) throws IllegalStateException, IOException {
+        if (originUs > startUs || startUs >= endUs) {
+            throw new IllegalArgumentException("punch-in needs origin <= start < end");
+        }
+        synchronized (this) {
+            File segment = take.newSegmentFile(encode ? ".m4a" : ".wav");
+            setOutputFile(segment.getPath(), encode);
+            punchTake = take;
+            punchSegment = segment;
+            punchOrigin = toFrames(originUs);
+            punchStart = toFrames(startUs);
+            punchEnd = toFrames(endUs);
+        }
+    }
+
+    private long toFrames(long timeUs) {
+        return (timeUs * sampleRateInHz + 500000) / 1000000;
     }
 
     @Override
@@ -158,6 +745,90 @@ public class AudioRecorder implements IRecorder {
         onDataProcessListener = l;
     }
 
+    @Override
+    public void setEffectChain(EffectChain chain) {
+        synchronized (this) {
+            EffectChain.swap(effectChain, chain, null != audioRecord, new EffectChain.Host() {
+                @Override
+                public void prepare(EffectChain chain) {
+                    prepareEffectChain(chain);
+                }
+
+                @Override
+                public void install(EffectChain chain) {
+                    effectChain = chain;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void setPitchTracker(PitchTracker tracker) {
+        synchronized (this) {
+            if (null != tracker && null != audioRecord) {
+                tracker.prepare(sampleRateInHz, channels);
+            }
+            pitchTracker = tracker;
+        }
+    }
+
+    @Override
+    public void setSpectrumAnalyzer(SpectrumAnalyzer analyzer) {
+        synchronized (this) {
+            if (null != analyzer && null != audioRecord) {
+                analyzer.prepare(sampleRateInHz, channels);
+            }
+            spectrumAnalyzer = analyzer;
+        }
+    }
+
+    @Override
+    public void setHeaderUpdateInterval(long intervalMs) {
+        headerUpdateIntervalMs = intervalMs;
+    }
+
+    @Override
+    public void setVoiceGate(int mode) {
+        voiceGate = mode;
+    }
+
+    @Override
+    public void setSegmentDuration(int seconds) {
+        segmentSeconds = Math.max(0, seconds);
+    }
+
+    @Override
+    public void setMonitor(LiveMonitor monitor) {
+        synchronized (this) {
+            this.monitor = monitor;
+        }
+    }
+
+    @Override
+    public long getCaptureNanos(long frame) {
+        int before;
+        long frames, nanos;
+        do {
+            before = clockSequence;
+            frames = clockFrames;
+            nanos = clockNanos;
+        } while ((before & 1) != 0 || before != clockSequence);
+        if (nanos == 0) {
+            return -1;
+        }
+        /*the last frame of a block is captured just before read() returns it*/
+        return nanos - inputLatencyNanos - (frames - 1 - frame) * 1000000000L / sampleRateInHz;
+    }
+
+    @Override
+    public RecorderStats getStats() {
+        return stats;
+    }
+
+    private boolean isRecording() {
+        return getState() == State.Recording || getState() == State.Paused;
+    }
+
     @State
     private int getState() {
         return state;
@@ -170,11 +841,11 @@ public class AudioRecorder implements IRecorder {
     }
 
     private String getStateName(@State int state) {
-        return state < stateName.length - 1 ? stateName[state] : String.valueOf(state);
+        return state < stateName.length ? stateName[state] : String.valueOf(state);
     }
 
     @IntDef({State.Idle, State.Initial, State.Initialized, State.DataSourceConfigured,
-            State.Prepared, State.Recording, State.Release, State.Error})
+            State.Prepared, State.Recording, State.Release, State.Error, State.Paused})
     @Retention(RetentionPolicy.SOURCE)
     @interface State {
         int Idle = 0;
@@ -185,61 +856,673 @@ public class AudioRecorder implements IRecorder {
         int Recording = 5;
         int Release = 6;
         int Error = 7;
+        int Paused = 8;
     }
 
-    private static class AudioBuffer {
-        private static final ObjectPool<AudioBuffer> oPool = new ObjectPool<>(new ObjectPool.ObjectFactory<AudioBuffer>() {
+    /**
+     * One encoded AAC frame on its way from the encoder to the muxer.
+     */
+    private static class EncodedFrame {
+        private static final ObjectPool<EncodedFrame> oPool = new ObjectPool<>(new ObjectPool.ObjectFactory<EncodedFrame>() {
             @Override
-            public AudioBuffer newObject() {
-                return new AudioBuffer();
+            public EncodedFrame newObject() {
+                return new EncodedFrame();
             }
         }, TAG);
-        final int size = 1024;
-        short[] buffer;
-        float duration;
-        long index;
-        long presentationTimeUs;
+        ByteBuffer data = ByteBuffer.allocateDirect(2048);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        /*capture time of the pcm the frame starts with*/
+        long captureNanos;
+        /*output format of the encoder, set on the first frame only*/
+        MediaFormat format;
+        boolean eos;
 
-        private AudioBuffer() {
-            buffer = new short[size];
+        static EncodedFrame obtain() {
+            return oPool.acquire();
         }
 
-        static AudioBuffer obtain() {
-            return oPool.acquire();
+        void set(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo) {
+            if (data.capacity() < bufferInfo.size) {
+                data = ByteBuffer.allocateDirect(bufferInfo.size);
+            }
+            buffer.position(bufferInfo.offset);
+            buffer.limit(bufferInfo.offset + bufferInfo.size);
+            data.clear();
+            data.put(buffer);
+            data.flip();
+            buffer.clear();
+            info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
         }
 
         void recycle() {
-            // Clear state if needed.
-            Arrays.fill(buffer, (short) 0);
-            duration = 0;
-            index = 0;
-            presentationTimeUs = 0;
+            captureNanos = 0;
+            format = null;
+            eos = false;
             oPool.release(this);
         }
     }
 
-    private class AudioEncoder {
-        private static final int maxPoolSize = 300;
-        private Queue<AudioBuffer> audioBuffers = new ArrayDeque<>();
-        private int bufferIndex;
-        private int writePtr;
-        private AudioBuffer writeAudio;
+    /**
+     * Encode stage: copies blocks of the ring, processed by itself or by the process stage,
+     * once into codec input buffers. In direct capture it only drains the codec.
+     */
+    private class AudioEncoder implements Callable<Integer>, MediaCodecWrapper.OutputSampleListener {
+        /*pts -> capture time of the blocks inside the codec, to measure latency per encoded frame*/
+        private static final int maxPending = 64;
+        private BlockReader input;
+        private long[] pendingPts = new long[maxPending];
+        private long[] pendingNanos = new long[maxPending];
+        private boolean[] pendingGated = new boolean[maxPending];
+        private int pendingHead;
+        private int pendingTail;
         private boolean isEos;
-        private boolean isSampleEos;
-        private boolean isRunning;
+        private boolean formatSent;
+        private VoiceActivityDetector voiceDetector;
+        private int gateMode;
+        private short[] silence;
+        /*direct capture: capture time of pts 0, estimated from the latest block*/
+        private volatile long directBaseNanos;
         private MediaCodecWrapper mMediaCodecWrapper;
-        private MediaMuxer mMediaMuxer;
         private MediaCodec.BufferInfo out_bufferInfo = new MediaCodec.BufferInfo();
-        private Lock lock = new ReentrantLock();
-        private Condition condition = lock.newCondition();
         private FutureTask<Integer> futureTask;
+        private long cpuBase;
 
-        void setOutputFile(String audioPath, boolean isEncoded) throws IOException {
-            MediaFormat mediaFormat = MediaFormat.createAudioFormat("audio/mp4a-latm", sampleRateInHz, channels);
+        AudioEncoder() throws IOException {
+            MediaFormat mediaFormat = MediaFormat.createAudioFormat(mimeType, sampleRateInHz, channels);
             mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
             mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, blockSize * 2);
+            mMediaCodecWrapper = MediaCodecWrapper.fromAudioFormat(mediaFormat, true);
+            mMediaCodecWrapper.setOutputSampleListener(this);
+        }
+
+        MediaCodecWrapper getCodec() {
+            return mMediaCodecWrapper;
+        }
+
+        /**
+         * @param source  the ring to encode, unless in direct capture
+         * @param process whether to run the listener and the effect chain on the blocks
+         */
+        void start(CaptureRing source, boolean process) {
+            synchronized (this) {
+                isEos = formatSent = false;
+                pendingHead = pendingTail = 0;
+                mMediaCodecWrapper.setSeparateInputThread(directCapture);
+                if (!directCapture) {
+                    input = new BlockReader(source, process);
+                }
+                /*ADTS chunks have no timestamps to leave gaps in*/
+                gateMode = voiceGate == VOICE_GATE_GAP && segmentSeconds > 0 ? VOICE_GATE_SILENCE : voiceGate;
+                if (gateMode != VOICE_GATE_OFF) {
+                    voiceDetector = new VoiceActivityDetector(sampleRateInHz, channels);
+                    silence = new short[blockSize];
+                } else {
+                    voiceDetector = null;
+                }
+                executorService.execute(futureTask = new FutureTask<>(this));
+            }
+        }
+
+        /**
+         * Waits until the capture ring was read to its end and the end of stream went through
+         * the codec.
+         */
+        int finish() {
+            synchronized (this) {
+                int result = waitFor(futureTask, 5);
+                futureTask = null;
+                if (null != input) {
+                    input.close();
+                    input = null;
+                }
+                return result;
+            }
+        }
+
+        void release() {
+            synchronized (this) {
+                if (null != mMediaCodecWrapper) {
+                    mMediaCodecWrapper.stopAndRelease();
+                    mMediaCodecWrapper = null;
+                }
+            }
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            cpuBase = RecorderStats.threadCpuNanos();
+            try {
+                if (directCapture) {
+                    return drainCodec();
+                }
+                while (true) {
+                    int samples = input.next();
+                    long position = input.getPosition();
+                    if (samples == 0) {
+                        if (input.isEndOfStream()) {
+                            return writeEndOfStream(position / channels * 1000000 / sampleRateInHz);
+                        }
+                        drain();
+                        input.await(timeoutUs * 1000);
+                        continue;
+                    }
+                    long presentationTimeUs = position / channels * 1000000 / sampleRateInHz;
+                    boolean gated = null != voiceDetector && !voiceDetector.process(input.array, input.offset, samples);
+                    if (gated) {
+                        stats.onGated(samples / channels);
+                        if (gateMode == VOICE_GATE_GAP) {
+                            /*not encoded at all, the next pts jumps*/
+                            input.done();
+                            drain();
+                            stats.updateEncodeCpu(cpuBase);
+                            continue;
+                        }
+                    }
+                    addPending(presentationTimeUs, input.captureNanos(), gated);
+                    int index;
+                    while ((index = mMediaCodecWrapper.dequeueInputBuffer(timeoutUs)) < 0) {
+                        drain();
+                    }
+                    ByteBuffer buffer = mMediaCodecWrapper.getInputBuffer(index);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(gated ? silence : input.array, gated ? 0 : input.offset, samples);
+                    input.done();
+                    mMediaCodecWrapper.queueInputBuffer(index, samples * 2, presentationTimeUs, 0);
+                    drain();
+                    stats.updateEncodeCpu(cpuBase);
+                }
+            } finally {
+                audioMuxer.endOfStream();
+            }
+        }
+
+        /**
+         * Direct capture: the capture thread feeds the codec, this one only drains it until the
+         * end of stream, giving up about two seconds after the capture stopped.
+         */
+        private int drainCodec() {
+            for (int idle = 0; !isEos && idle < 200; ) {
+                if (mMediaCodecWrapper.awaitOutputBuffer(timeoutUs)) {
+                    drain();
+                    idle = 0;
+                } else if (!isCapturing) {
+                    idle++;
+                }
+                stats.updateEncodeCpu(cpuBase);
+            }
+            return isEos ? 0 : -1;
+        }
 
-            mMediaCodecWrapper = MediaCodecWrapper.fromAudioFormat(mediaFormat);
+        /**
+         * Called on the capture thread for every block queued in direct capture.
+         */
+        void onDirectInput(long presentationTimeUs, long captureNanos) {
+            directBaseNanos = captureNanos - presentationTimeUs * 1000;
+        }
+
+        private int writeEndOfStream(long presentationTimeUs) {
+            while (!mMediaCodecWrapper.writeEndOfStream(presentationTimeUs)) {
+                drain();
+                mMediaCodecWrapper.awaitInputBuffer(timeoutUs);
+            }
+            /*give up if the codec stays silent for about two seconds*/
+            for (int idle = 0; !isEos && idle < 200; ) {
+                if (mMediaCodecWrapper.awaitOutputBuffer(timeoutUs)) {
+                    drain();
+                    idle = 0;
+                } else {
+                    idle++;
+                }
+            }
+            return isEos ? 0 : -1;
+        }
+
+        private void drain() {
+            while (mMediaCodecWrapper.peekSample(out_bufferInfo)) {
+                mMediaCodecWrapper.popSample();
+            }
+        }
+
+        private void addPending(long presentationTimeUs, long captureNanos, boolean gated) {
+            if (pendingTail - pendingHead == maxPending) {
+                pendingHead++;
+            }
+            pendingPts[pendingTail % maxPending] = presentationTimeUs;
+            pendingNanos[pendingTail % maxPending] = captureNanos;
+            pendingGated[pendingTail % maxPending] = gated;
+            pendingTail++;
+        }
+
+        /**
+         * @return slot of the block holding presentationTimeUs, pts only grow
+         */
+        private int pendingSlotOf(long presentationTimeUs) {
+            while (pendingTail - pendingHead > 1 && pendingPts[(pendingHead + 1) % maxPending] <= presentationTimeUs) {
+                pendingHead++;
+            }
+            return pendingHead % maxPending;
+        }
+
+        @Override
+        public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                isEos = true;
+            }
+            /*the codec specific data reaches the muxer through the output format*/
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size <= 0) {
+                return;
+            }
+            EncodedFrame frame = EncodedFrame.obtain();
+            frame.set(buffer, info);
+            boolean gated = false;
+            if (directCapture) {
+                frame.captureNanos = directBaseNanos + info.presentationTimeUs * 1000;
+            } else {
+                int slot = pendingSlotOf(info.presentationTimeUs);
+                frame.captureNanos = pendingNanos[slot];
+                gated = pendingGated[slot];
+            }
+            stats.onEncoded(info.size, gated);
+            if (!formatSent) {
+                frame.format = sender.getOutputFormat();
+                formatSent = true;
+            }
+            if (!audioMuxer.offer(frame)) {
+                frame.recycle();
+                stats.onDropped();
+            }
+        }
+    }
+
+    /**
+     * Pcm stage: batches blocks of the ring, processed by itself or by the process stage, into
+     * a {@link WavFileSink}, a .wav file or raw pcm by the name of the file. A segmented
+     * recording gets a new .wav chunk after every segment duration.
+     */
+    private class PcmWriter implements Callable<Integer> {
+        private WavFileSink sink;
+        private SegmentManifest manifest;
+        private long chunkStart;
+        private long endFrame;
+        private BlockReader input;
+        private FutureTask<Integer> futureTask;
+        private long cpuBase;
+
+        PcmWriter(String path) throws IOException {
+            if (segmentSeconds > 0) {
+                manifest = new SegmentManifest(new File(path), sampleRateInHz, channels);
+                return;
+            }
+            sink = new WavFileSink(path, path.toLowerCase(Locale.US).endsWith(".wav"));
+            sink.setHeaderUpdateInterval(headerUpdateIntervalMs);
+            sink.open(sampleRateInHz, channels);
+        }
+
+        /**
+         * @param source  the ring to write
+         * @param process whether to run the listener and the effect chain on the blocks
+         */
+        void start(CaptureRing source, boolean process) {
+            synchronized (this) {
+                input = new BlockReader(source, process);
+                executorService.execute(futureTask = new FutureTask<>(this));
+            }
+        }
+
+        /**
+         * Waits until the ring was read to its end, then closes the file.
+         */
+        int finish() {
+            synchronized (this) {
+                int result = waitFor(futureTask, 5);
+                futureTask = null;
+                if (null != input) {
+                    input.close();
+                    input = null;
+                }
+                try {
+                    if (null != sink) {
+                        sink.close();
+                    }
+                    if (null != manifest) {
+                        manifest.closeChunk(endFrame);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    result = -1;
+                }
+                return result;
+            }
+        }
+
+        void release() {
+            synchronized (this) {
+                try {
+                    if (null != sink) {
+                        sink.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            cpuBase = RecorderStats.threadCpuNanos();
+            while (true) {
+                int samples = input.next();
+                long position = input.getPosition();
+                if (samples == 0) {
+                    if (input.isEndOfStream()) {
+                        return 0;
+                    }
+                    input.await(timeoutUs * 1000);
+                    continue;
+                }
+                long captureNanos = input.captureNanos();
+                if (null != manifest) {
+                    rollOver(position / channels);
+                }
+                endFrame = (position + samples) / channels;
+                sink.write(input.array, input.offset, samples);
+                input.done();
+                stats.onWritten(captureNanos);
+                stats.updateWriteCpu(cpuBase);
+            }
+        }
+
+        /**
+         * Starts the first chunk, or the next one at frame once the current one is long enough.
+         */
+        private void rollOver(long frame) throws IOException {
+            if (null != sink && frame - chunkStart < (long) segmentSeconds * sampleRateInHz) {
+                return;
+            }
+            if (null != sink) {
+                sink.close();
+            }
+            File chunk = manifest.openChunk(frame, ".wav");
+            sink = new WavFileSink(chunk.getPath(), true);
+            sink.setHeaderUpdateInterval(headerUpdateIntervalMs);
+            sink.open(sampleRateInHz, channels);
+            chunkStart = frame;
+        }
+    }
+
+    /**
+     * Process stage of a recording with several outputs: runs the listener and the effect chain
+     * once per block and publishes the result in processedRing, which all outputs read.
+     */
+    private class ProcessStage implements Callable<Integer> {
+        private BlockReader input;
+        private FutureTask<Integer> futureTask;
+        private long cpuBase;
+
+        void start() {
+            synchronized (this) {
+                input = new BlockReader(captureRing, true);
+                executorService.execute(futureTask = new FutureTask<>(this));
+            }
+        }
+
+        int finish() {
+            synchronized (this) {
+                int result = waitFor(futureTask, 5);
+                futureTask = null;
+                if (null != input) {
+                    input.close();
+                    input = null;
+                }
+                return result;
+            }
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            cpuBase = RecorderStats.threadCpuNanos();
+            try {
+                while (true) {
+                    int samples = input.next();
+                    if (samples == 0) {
+                        if (input.isEndOfStream()) {
+                            return 0;
+                        }
+                        input.await(timeoutUs * 1000);
+                        continue;
+                    }
+                    /*positions and capture times carry over, so the outputs keep the timeline*/
+                    processedRing.write(input.array, input.offset, samples, input.captureNanos());
+                    input.done();
+                    stats.updateProcessCpu(cpuBase);
+                }
+            } finally {
+                processedRing.close();
+            }
+        }
+    }
+
+    /**
+     * The blocks one stage reads from a ring, always the ring's own block without a copy. A
+     * stage that processes them does so in place when it is the only reader of the ring, else
+     * on a copy of its own so the other readers still get the captured samples.
+     */
+    private class BlockReader implements CaptureRing.OnOverrunListener {
+        private final CaptureRing ring;
+        private final CaptureRing.Reader reader;
+        private final short[] block;
+        private final boolean inPlace;
+        /*the current block*/
+        short[] array;
+        int offset;
+        private long position;
+
+        BlockReader(CaptureRing ring, boolean process) {
+            this.ring = ring;
+            reader = ring.newReader();
+            reader.setOnOverrunListener(this);
+            block = process ? new short[blockSize] : null;
+            inPlace = process && processInRing;
+        }
+
+        /**
+         * @return samples of the next block in array from offset, 0 if none is available
+         */
+        int next() {
+            position = reader.getPosition();
+            if (null == block || inPlace) {
+                int samples = reader.acquire(blockSize);
+                array = reader.blockArray();
+                offset = reader.blockOffset();
+                if (null != block && samples > 0) {
+                    if (array != ring.array()) {
+                        /*lost samples, the ring's shared silence must stay silent*/
+                        Arrays.fill(block, 0, samples, (short) 0);
+                        array = block;
+                        offset = 0;
+                    }
+                    onDataProcess(array, offset, samples);
+                }
+                return samples;
+            }
+            int samples = reader.read(block, 0, block.length);
+            if (samples > 0) {
+                onDataProcess(block, 0, samples);
+            }
+            array = block;
+            offset = 0;
+            return samples;
+        }
+
+        /**
+         * Hands the block back, call it once it was copied.
+         */
+        void done() {
+            if (null == block || inPlace) {
+                reader.release();
+            }
+        }
+
+        /**
+         * @return position of the current block in the ring
+         */
+        long getPosition() {
+            return position;
+        }
+
+        long captureNanos() {
+            return ring.captureNanosOf(position, sampleRateInHz);
+        }
+
+        boolean isEndOfStream() {
+            return reader.isEndOfStream();
+        }
+
+        void await(long timeoutNanos) {
+            reader.await(timeoutNanos);
+        }
+
+        void close() {
+            ring.removeReader(reader);
+        }
+
+        @Override
+        public void onOverrun(CaptureRing.Reader reader, long frame, int frames) {
+            onCaptureOverrun(frame, frames);
+        }
+    }
+
+    /**
+     * Write stage: the only thread touching the MediaMuxer and the output file.
+     * <p>
+     * A segmented recording skips the MediaMuxer, whose mp4 is unreadable until stop() and
+     * whose sample tables grow with the recording, and writes ADTS chunks instead, rolling over
+     * to the next one at the first AAC frame past the segment duration.
+     */
+    private class AudioMuxer implements Callable<Integer> {
+        private static final int maxPoolSize = 300;
+        private static final int aacFrameSize = 1024;
+        private static final int chunkBufferSize = 64 * 1024;
+        private BlockingQueue<EncodedFrame> frames = new ArrayBlockingQueue<>(maxPoolSize);
+        private MediaMuxer mMediaMuxer;
+        private int track = -1;
+        private SegmentManifest manifest;
+        private AdtsFileWriter chunkWriter;
+        private long chunkStart = -1;
+        private long endFrame;
+        private FutureTask<Integer> futureTask;
+        private long cpuBase;
+
+        AudioMuxer(String path) throws IOException {
+            if (segmentSeconds > 0) {
+                manifest = new SegmentManifest(new File(path), sampleRateInHz, channels);
+                chunkWriter = new AdtsFileWriter(sampleRateInHz, channels, chunkBufferSize);
+                chunkWriter.setFlushInterval(headerUpdateIntervalMs);
+            } else {
+                mMediaMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            }
+        }
+
+        void start() {
+            synchronized (this) {
+                executorService.execute(futureTask = new FutureTask<>(this));
+            }
+        }
+
+        /**
+         * Waits a little for room, the encoder can absorb short stalls of the file system
+         * but must not stop for long.
+         */
+        boolean offer(EncodedFrame frame) {
+            try {
+                return frames.offer(frame, 100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        void endOfStream() throws InterruptedException {
+            EncodedFrame frame = EncodedFrame.obtain();
+            frame.eos = true;
+            if (!frames.offer(frame, 2, TimeUnit.SECONDS)) {
+                frame.recycle();
+            }
+        }
+
+        int finish() {
+            synchronized (this) {
+                int result = waitFor(futureTask, 5);
+                futureTask = null;
+                EncodedFrame frame;
+                while (null != (frame = frames.poll())) {
+                    frame.recycle();
+                }
+                return result;
+            }
+        }
+
+        void release() {
+            synchronized (this) {
+                if (null != mMediaMuxer) {
+                    mMediaMuxer.release();
+                    mMediaMuxer = null;
+                }
+                if (null != chunkWriter) {
+                    try {
+                        chunkWriter.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    chunkWriter = null;
+                }
+            }
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            cpuBase = RecorderStats.threadCpuNanos();
+            while (true) {
+                EncodedFrame frame = frames.take();
+                if (frame.eos) {
+                    frame.recycle();
+                    break;
+                }
+                if (null != manifest) {
+                    writeChunk(frame);
+                } else {
+                    if (track < 0) {
+                        track = mMediaMuxer.addTrack(frame.format);
+                        mMediaMuxer.start();
+                    }
+                    mMediaMuxer.writeSampleData(track, frame.data, frame.info);
+                }
+                stats.onWritten(frame.captureNanos);
+                frame.recycle();
+                stats.updateWriteCpu(cpuBase);
+            }
+            if (null != manifest) {
+                chunkWriter.close();
+                manifest.closeChunk(endFrame);
+            } else if (track >= 0) {
+                mMediaMuxer.stop();
+                track = -1;
+            }
+            return 0;
+        }
+
+        private void writeChunk(EncodedFrame frame) throws IOException {
+            long frameIndex = (frame.info.presentationTimeUs * sampleRateInHz + 500000) / 1000000;
+            if (chunkStart < 0 || frameIndex - chunkStart >= (long) segmentSeconds * sampleRateInHz) {
+                chunkWriter.close();
+                File chunk = manifest.openChunk(frameIndex, ".aac");
+                chunkWriter.open(chunk.getPath());
+                chunkStart = frameIndex;
+            }
+            chunkWriter.write(frame.data);
+            endFrame = frameIndex + aacFrameSize;
         }
     }
 }
@@ -0,0 +1,491 @@
+package com.bmapleaf.audio.component;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.Resampler;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts imported songs to one sample rate and channel layout, as AAC in mp4 or as .wav, with
+ * several decode, resample and encode pipelines running at once.
+ * <p>
+ * Every job runs on a worker thread of its own with a {@link PcmStream} decoder, a
+ * {@link Resampler} if the rate differs and an {@link AacFileSink} or {@link WavFileSink}, one
+ * block at a time like {@link Mixdown}, so a pipeline holds a decoder and an encoder instance and
+ * a few blocks of memory. The number of workers is bounded by the cores and, from Android 6 on,
+ * by the instances the AAC decoder and encoder support; before that by 4 like
+ * {@link ParallelDecoder}. Should a codec still refuse to configure while other jobs hold
+ * instances, the pool shrinks by one and the job is queued again.
+ * <p>
+ * Jobs report their progress, and the transcoder the aggregate real time factor: the audio
+ * produced by all jobs over the wall clock time any job was running.
+ */
+public class BatchTranscoder {
+    private static final String TAG = "BatchTranscoder";
+    private static final String aacMime = "audio/mp4a-latm";
+    private static final int blockFrames = 4096;
+    private final int sampleRate;
+    private final int channels;
+    private final ThreadPoolExecutor executor;
+    private final Set<Job> unfinished = Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+    private final AtomicLong producedFrames = new AtomicLong();
+    private int concurrency;
+    private int bitRate = 128000;
+    @Resampler.Quality
+    private int quality = Resampler.Quality.HIGH;
+    private volatile OnJobListener onJobListener;
+    /*guarded by this*/
+    private int running;
+    private long busySinceNanos;
+    private long busyNanos;
+
+    /**
+     * States of a {@link Job}.
+     */
+    @IntDef({State.QUEUED, State.RUNNING, State.COMPLETED, State.FAILED, State.CANCELLED})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface State {
+        int QUEUED = 0;
+        int RUNNING = 1;
+        int COMPLETED = 2;
+        int FAILED = 3;
+        int CANCELLED = 4;
+    }
+
+    /**
+     * Called on the worker threads.
+     */
+    public interface OnJobListener {
+        /**
+         * @param progress 0 to 1
+         */
+        void onProgress(Job job, float progress);
+
+        /**
+         * The job completed, failed or was cancelled; see {@link Job#getState()}.
+         */
+        void onFinished(Job job);
+    }
+
+    /**
+     * @param sampleRate rate of every output
+     * @param channels   1 or 2, mono outputs get the mix of both sides
+     */
+    public BatchTranscoder(int sampleRate, int channels) {
+        this(sampleRate, channels, maxConcurrency());
+    }
+
+    /**
+     * @param concurrency pipelines to start with, in place of what the device supports
+     */
+    BatchTranscoder(int sampleRate, int channels, int concurrency) {
+        if (channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("channels must be 1 or 2, not " + channels);
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.concurrency = concurrency;
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        Log.d(TAG, "BatchTranscoder: " + concurrency + " pipelines");
+    }
+
+    /**
+     * @param bitRate of the AAC outputs
+     */
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    public void setQuality(@Resampler.Quality int quality) {
+        this.quality = quality;
+    }
+
+    public void setOnJobListener(OnJobListener l) {
+        onJobListener = l;
+    }
+
+    /**
+     * @return number of jobs that may run at once, lower than at the start if codecs ran out
+     */
+    public synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    public synchronized int getRunningJobs() {
+        return running;
+    }
+
+    /**
+     * @return duration of the audio produced by all jobs so far
+     */
+    public long getProducedMs() {
+        return producedFrames.get() * 1000 / sampleRate;
+    }
+
+    /**
+     * @return audio produced over the wall clock time jobs were running, 10 means the library
+     * is converted ten times faster than it plays
+     */
+    public synchronized float getRealTimeFactor() {
+        long nanos = busyNanos + (running > 0 ? System.nanoTime() - busySinceNanos : 0);
+        return nanos == 0 ? 0 : (float) ((double) producedFrames.get() / sampleRate * 1e9 / nanos);
+    }
+
+    /**
+     * Queues a conversion.
+     *
+     * @param outputPath .wav for pcm, any other name gets AAC in mp4
+     * @throws RejectedExecutionException after shutdown()
+     */
+    public Job submit(String inputPath, String outputPath) {
+        Job job = new Job(inputPath, outputPath);
+        unfinished.add(job);
+        executor.execute(job.task);
+        return job;
+    }
+
+    /**
+     * Runs the queued jobs to the end but takes no new ones.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Cancels every job, queued or running.
+     */
+    public void shutdownNow() {
+        executor.shutdown();
+        for (Job job : unfinished) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Blocks until all jobs are finished after a shutdown.
+     *
+     * @return false on timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * One song to convert.
+     */
+    public class Job {
+        private final String inputPath;
+        private final String outputPath;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        @State
+        private volatile int state = State.QUEUED;
+        private volatile float progress;
+        private volatile boolean cancelled;
+        private volatile RenderResult result;
+        private volatile Exception error;
+        private final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                execute();
+            }
+        };
+
+        private Job(String inputPath, String outputPath) {
+            this.inputPath = inputPath;
+            this.outputPath = outputPath;
+        }
+
+        public String getInputPath() {
+            return inputPath;
+        }
+
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        @State
+        public int getState() {
+            return state;
+        }
+
+        /**
+         * @return share of the input converted, 0 to 1
+         */
+        public float getProgress() {
+            return progress;
+        }
+
+        /**
+         * @return frames written and the real time factor of this job, null until it finished
+         */
+        public RenderResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return why the job failed, null otherwise
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Stops the job from any thread; a queued job never starts, a running one leaves no
+         * output file behind.
+         */
+        public void cancel() {
+            cancelled = true;
+            if (executor.remove(task)) {
+                finish(State.CANCELLED);
+            }
+        }
+
+        /**
+         * Blocks until the job completed, failed or was cancelled.
+         */
+        public void await() throws InterruptedException {
+            finished.await();
+        }
+
+        private void execute() {
+            if (cancelled) {
+                finish(State.CANCELLED);
+                return;
+            }
+            state = State.RUNNING;
+            onStart();
+            long startNanos = System.nanoTime();
+            PcmStream stream = null;
+            IAudioSink sink = null;
+            long frames = 0;
+            boolean completed = false;
+            boolean opened = false;
+            @State int end = State.FAILED;
+            try {
+                try {
+                    stream = openInput(inputPath);
+                    sink = newOutput(outputPath);
+                    sink.open(sampleRate, channels);
+                    opened = true;
+                } catch (IllegalStateException e) {
+                    if (!shrink()) {
+                        throw e;
+                    }
+                    Log.w(TAG, "execute: out of codecs, " + getConcurrency() + " pipelines from now on", e);
+                    end = State.QUEUED;
+                }
+                if (opened) {
+                    frames = transcode(stream, sink);
+                    completed = !cancelled;
+                    end = completed ? State.COMPLETED : State.CANCELLED;
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "execute: " + inputPath, e);
+                error = e;
+            } finally {
+                if (null != stream) {
+                    stream.release();
+                }
+                if (null != sink) {
+                    try {
+                        sink.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "execute: closing " + outputPath, e);
+                        error = e;
+                        completed = false;
+                        end = State.FAILED;
+                    }
+                }
+                if (!completed) {
+                    new File(outputPath).delete();
+                }
+                onEnd();
+            }
+            if (end == State.QUEUED) {
+                state = State.QUEUED;
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    finish(State.CANCELLED);
+                }
+                return;
+            }
+            result = new RenderResult(frames, sampleRate, System.nanoTime() - startNanos, completed);
+            Log.d(TAG, "execute: " + inputPath + " " + result);
+            if (completed) {
+                progress = 1;
+                onProgress(1);
+            }
+            finish(end);
+        }
+
+        /**
+         * @return frames written
+         */
+        private long transcode(PcmStream stream, IAudioSink sink) throws IOException {
+            int inputRate = stream.getSampleRate();
+            long totalFrames = Math.max(1, stream.getDurationUs() * inputRate / 1000000);
+            Resampler resampler = null;
+            short[] output;
+            if (inputRate != sampleRate) {
+                resampler = new Resampler();
+                resampler.configure(inputRate, sampleRate, channels, blockFrames, quality);
+                output = new short[resampler.getMaxOutputFrames(blockFrames) * channels];
+            } else {
+                output = new short[blockFrames * channels];
+            }
+            short[] stereo = new short[blockFrames * 2];
+            short[] mono = channels == 1 ? new short[blockFrames] : null;
+            long frames = 0;
+            int block = 0;
+            int n;
+            while (!cancelled && (n = stream.read(stereo, 0, blockFrames)) > 0) {
+                short[] input = stereo;
+                if (null != mono) {
+                    for (int f = 0; f < n; f++) {
+                        mono[f] = (short) ((stereo[2 * f] + stereo[2 * f + 1]) >> 1);
+                    }
+                    input = mono;
+                }
+                int m = n;
+                if (null != resampler) {
+                    m = resampler.process(input, n, output);
+                    input = output;
+                }
+                sink.write(input, 0, m * channels);
+                frames += m;
+                producedFrames.addAndGet(m);
+                if (++block % 20 == 0) {
+                    progress = Math.min(1f, (float) stream.getPosition() / totalFrames);
+                    onProgress(progress);
+                }
+            }
+            if (null != resampler && !cancelled) {
+                /*the last frames the filter still holds*/
+                n = resampler.drain(output);
+                sink.write(output, 0, n * channels);
+                frames += n;
+                producedFrames.addAndGet(n);
+            }
+            return frames;
+        }
+
+        private void onProgress(float progress) {
+            OnJobListener l = onJobListener;
+            if (null != l) {
+                l.onProgress(this, progress);
+            }
+        }
+
+        private void finish(@State int state) {
+            if (finished.getCount() == 0) {
+                return;
+            }
+            this.state = state;
+            unfinished.remove(this);
+            finished.countDown();
+            OnJobListener l = onJobListener;
+            if (null != l) {
+                l.onFinished(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Job{" + inputPath + ", state " + state + ", " + progress + "}";
+        }
+    }
+
+    /**
+     * Opens the decoder of a job.
+     *
+     * @throws IllegalStateException if the codec refused to configure
+     */
+    PcmStream openInput(String inputPath) throws IOException {
+        return new PcmStream(inputPath);
+    }
+
+    /**
+     * @return the encoder or .wav file of a job, not yet opened
+     */
+    IAudioSink newOutput(String outputPath) {
+        return outputPath.endsWith(".wav") ? new WavFileSink(outputPath, true) : new AacFileSink(outputPath, bitRate);
+    }
+
+    private synchronized void onStart() {
+        if (running++ == 0) {
+            busySinceNanos = System.nanoTime();
+        }
+    }
+
+    private synchronized void onEnd() {
+        if (--running == 0) {
+            busyNanos += System.nanoTime() - busySinceNanos;
+        }
+    }
+
+    /**
+     * Gives up a pipeline after a codec refused to configure, if other jobs hold instances.
+     *
+     * @return false if this is the only running job, the failure is then not for lack of codecs
+     */
+    private synchronized boolean shrink() {
+        if (running <= 1) {
+            return false;
+        }
+        concurrency = running - 1;
+        executor.setCorePoolSize(concurrency);
+        executor.setMaximumPoolSize(concurrency);
+        return true;
+    }
+
+    /**
+     * @return pipelines the device can run at once
+     */
+    private static int maxConcurrency() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return Math.max(1, Math.min(4, cores));
+        }
+        int instances = Math.min(maxInstances(aacMime, false), maxInstances(aacMime, true));
+        return Math.max(1, Math.min(cores, instances));
+    }
+
+    /**
+     * @return instances of the first codec of the type, the one createDecoderByType() and
+     * createEncoderByType() pick; Android 6 on
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private static int maxInstances(String mime, boolean encoder) {
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (info.isEncoder() != encoder) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    return info.getCapabilitiesForType(type).getMaxSupportedInstances();
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+}
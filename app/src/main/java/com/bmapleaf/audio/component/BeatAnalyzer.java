@@ -0,0 +1,224 @@
+package com.bmapleaf.audio.component;
+
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.BeatIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the {@link BeatIndex} of a track from the {@link MediaCache}, or builds it in one decode
+ * pass with {@link PcmStream} and stores it next to the track metadata, with the tempo in the
+ * metadata for library lists.
+ * <p>
+ * A library scan analyzes the tracks of a directory concurrently, one decoder per worker. The
+ * pool is bounded to the cores and to 4 like {@link ParallelDecoder}, devices run out of codec
+ * instances beyond that, and the scan blocks while every worker has a track queued so a large
+ * library does not pile up tasks. Should a decoder still refuse to configure while other tracks
+ * hold instances, the scan goes on with one decoder less and the track is tried again, like
+ * {@link BatchTranscoder}.
+ */
+public class BeatAnalyzer {
+    private static final String TAG = "BeatAnalyzer";
+    public static final String beatsFile = "beats.bin";
+    private static final int blockFrames = 4096;
+    private static final List<String> extensions = Arrays.asList(
+            "mp3", "m4a", "aac", "mp4", "wav", "flac", "ogg", "opus", "3gp", "amr");
+    private final MediaCache cache;
+    private int threads;
+
+    /**
+     * Receives the results of a library scan, called from the worker threads.
+     */
+    public interface OnAnalyzedListener {
+        /**
+         * @param done  tracks finished so far, this one included
+         * @param total tracks found in the directory
+         */
+        void onAnalyzed(String mediaPath, BeatIndex index, int done, int total);
+
+        /**
+         * The track could not be decoded, the scan goes on.
+         */
+        void onError(String mediaPath, Exception e, int done, int total);
+    }
+
+    public BeatAnalyzer(MediaCache cache) {
+        this.cache = cache;
+        threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param threads number of tracks decoded concurrently by a library scan
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return the cached index, null if it was not built yet
+     */
+    public BeatIndex load(String mediaPath) throws IOException {
+        File file = cache.getFile(mediaPath, beatsFile);
+        if (file.exists()) {
+            try {
+                return BeatIndex.load(file);
+            } catch (IOException e) {
+                Log.w(TAG, "load: dropping unreadable " + file, e);
+                file.delete();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached index or decodes the track to build it. Call it off the main thread.
+     */
+    public BeatIndex get(String mediaPath) throws IOException {
+        BeatIndex index = load(mediaPath);
+        if (null == index) {
+            index = analyze(mediaPath);
+        }
+        return index;
+    }
+
+    /**
+     * Decodes the whole track, builds its index and caches it.
+     */
+    public BeatIndex analyze(String mediaPath) throws IOException {
+        PcmStream stream = new PcmStream(mediaPath);
+        long t0 = System.currentTimeMillis();
+        BeatIndex index;
+        try {
+            index = new BeatIndex(stream.getSampleRate(), 2);
+            short[] block = new short[blockFrames * 2];
+            int n;
+            while ((n = stream.read(block, 0, blockFrames)) > 0) {
+                index.add(block, 0, n);
+            }
+        } finally {
+            stream.release();
+        }
+        index.finish();
+        Log.d(TAG, "analyze: " + index + " in " + (System.currentTimeMillis() - t0) + "ms");
+
+        index.save(cache.getFile(mediaPath, beatsFile));
+        Properties metadata = new Properties();
+        metadata.setProperty(MediaCache.KEY_TEMPO_BPM, String.valueOf(index.getTempo()));
+        cache.putMetadata(mediaPath, metadata);
+        return index;
+    }
+
+    /**
+     * Indexes every audio file under directory, blocking until all are done. Tracks indexed
+     * before are loaded from the cache instead of decoded.
+     *
+     * @return number of tracks indexed, errors not counted
+     * @throws InterruptedException if the calling thread is interrupted, the workers are
+     *                              interrupted as well
+     */
+    public int analyzeDirectory(File directory, final OnAnalyzedListener listener) throws InterruptedException {
+        final List<String> paths = new ArrayList<>();
+        collect(directory, paths);
+        final int total = paths.size();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger indexed = new AtomicInteger();
+        int workers = Math.max(1, Math.min(threads, total));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        /*a running and a queued track per worker*/
+        final Semaphore slots = new Semaphore(workers * 2);
+        /*decoders, one less for every time the device ran out*/
+        final Semaphore decoders = new Semaphore(workers);
+        final AtomicInteger decoding = new AtomicInteger();
+        long t0 = System.currentTimeMillis();
+        try {
+            for (final String path : paths) {
+                slots.acquire();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            BeatIndex index = get(path, decoders, decoding);
+                            indexed.incrementAndGet();
+                            if (null != listener) {
+                                listener.onAnalyzed(path, index, done.incrementAndGet(), total);
+                            }
+                        } catch (InterruptedException e) {
+                            Log.w(TAG, "analyzeDirectory: interrupted at " + path);
+                        } catch (IOException | RuntimeException e) {
+                            Log.w(TAG, "analyzeDirectory: " + path, e);
+                            if (null != listener) {
+                                listener.onError(path, e, done.incrementAndGet(), total);
+                            }
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.d(TAG, String.format(Locale.US, "analyzeDirectory: %d of %d tracks on %d threads in %dms",
+                indexed.get(), total, workers, System.currentTimeMillis() - t0));
+        return indexed.get();
+    }
+
+    /**
+     * get() holding one of the decoders of a library scan.
+     */
+    private BeatIndex get(String mediaPath, Semaphore decoders, AtomicInteger decoding) throws IOException, InterruptedException {
+        while (true) {
+            decoders.acquire();
+            decoding.incrementAndGet();
+            boolean shrink = false;
+            try {
+                return get(mediaPath);
+            } catch (IllegalStateException e) {
+                /*alone it is not for lack of codecs*/
+                if (decoding.get() <= 1) {
+                    throw e;
+                }
+                Log.w(TAG, "analyzeDirectory: out of codecs, one decoder less from now on", e);
+                shrink = true;
+            } finally {
+                decoding.decrementAndGet();
+                if (!shrink) {
+                    decoders.release();
+                }
+            }
+        }
+    }
+
+    private static void collect(File directory, List<String> paths) {
+        File[] files = directory.listFiles();
+        if (null == files) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, paths);
+                continue;
+            }
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.US))) {
+                paths.add(file.getPath());
+            }
+        }
+    }
+}
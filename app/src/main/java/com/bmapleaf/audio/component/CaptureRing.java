@@ -0,0 +1,377 @@
+package com.bmapleaf.audio.component;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring of interleaved 16 bit samples between the capture thread and its readers.
+ * <p>
+ * There is exactly one writer, which never waits: it reads AudioRecord straight into
+ * {@link #array()} at {@link #writeOffset()} and publishes the samples with commit(). Readers
+ * keep their own position and are never seen by the writer except for a wakeup. A reader that
+ * falls more than a ring behind has lost data; it gets silence in place of the overwritten
+ * samples, so its timeline stays intact, and every loss is reported with its exact frame
+ * position. Positions count samples since the start of the recording and never wrap.
+ * <p>
+ * Readers either copy with read() or use the ring itself as a shared read-only block with
+ * acquire() and release(), so any number of them consume the same samples without a copy
+ * per reader. The only reader of a ring may also process its blocks in place.
+ */
+public class CaptureRing {
+    private final short[] data;
+    private final int mask;
+    private final int channels;
+    private final int maxWrite;
+    /*handed out by acquire() in place of lost samples, never written*/
+    private final short[] silence;
+    private volatile long writePosition;
+    private volatile long writeNanos;
+    private volatile boolean closed;
+    private volatile Reader[] readers = new Reader[0];
+
+    /**
+     * @param capacity  size in samples, rounded up to a power of two
+     * @param channels  interleaved channels
+     * @param maxWrite  most samples the writer fills before one commit()
+     */
+    public CaptureRing(int capacity, int channels, int maxWrite) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        if (maxWrite <= 0 || maxWrite % channels != 0 || size % channels != 0 || maxWrite * 2 > size) {
+            throw new IllegalArgumentException("capacity " + capacity + " does not fit maxWrite " + maxWrite
+                    + " with " + channels + " channels");
+        }
+        data = new short[size];
+        mask = size - 1;
+        this.channels = channels;
+        this.maxWrite = maxWrite;
+        silence = new short[maxWrite];
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    /**
+     * @return backing array the writer reads into, from writeOffset() for writableSamples()
+     */
+    public short[] array() {
+        return data;
+    }
+
+    public int writeOffset() {
+        return (int) (writePosition & mask);
+    }
+
+    /**
+     * @return contiguous samples the writer may fill at writeOffset() before the next commit()
+     */
+    public int writableSamples() {
+        return Math.min(maxWrite, data.length - writeOffset());
+    }
+
+    /**
+     * Publishes samples written into array() at writeOffset(). Writer thread only.
+     *
+     * @param samples whole frames, at most writableSamples()
+     * @param nanos   System.nanoTime() when the samples were captured
+     */
+    public void commit(int samples, long nanos) {
+        writeNanos = nanos;
+        writePosition += samples;
+        wakeReaders();
+    }
+
+    /**
+     * Copies samples into the ring, for writers that do not capture in place. Writer thread only.
+     */
+    public void write(short[] src, int offset, int samples, long nanos) {
+        while (samples > 0) {
+            int n = Math.min(samples, writableSamples());
+            System.arraycopy(src, offset, data, writeOffset(), n);
+            commit(n, nanos);
+            offset += n;
+            samples -= n;
+        }
+    }
+
+    /**
+     * Marks the end of the capture, readers see it once they have read everything.
+     */
+    public void close() {
+        closed = true;
+        wakeReaders();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return samples written since the start
+     */
+    public long getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Estimates when a sample was captured from the last commit, without locking.
+     */
+    public long captureNanosOf(long position, int sampleRate) {
+        long w, nanos;
+        do {
+            w = writePosition;
+            nanos = writeNanos;
+        } while (w != writePosition);
+        return nanos - (w - position) / channels * 1000000000L / sampleRate;
+    }
+
+    /**
+     * Empties the ring. Only while no writer is running.
+     */
+    public void reset() {
+        writePosition = 0;
+        writeNanos = 0;
+        closed = false;
+        for (Reader reader : readers) {
+            reader.position = 0;
+        }
+    }
+
+    /**
+     * @return a reader starting at the current write position
+     */
+    public synchronized Reader newReader() {
+        Reader reader = new Reader();
+        reader.position = writePosition;
+        Reader[] list = Arrays.copyOf(readers, readers.length + 1);
+        list[list.length - 1] = reader;
+        readers = list;
+        return reader;
+    }
+
+    public synchronized void removeReader(Reader reader) {
+        Reader[] list = readers;
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == reader) {
+                Reader[] copy = new Reader[list.length - 1];
+                System.arraycopy(list, 0, copy, 0, i);
+                System.arraycopy(list, i + 1, copy, i, list.length - i - 1);
+                readers = copy;
+                return;
+            }
+        }
+    }
+
+    private void wakeReaders() {
+        for (Reader reader : readers) {
+            Thread waiter = reader.waiter;
+            if (null != waiter) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Called on the reader thread when samples were overwritten before they could be read.
+     */
+    public interface OnOverrunListener {
+        /**
+         * @param frame  first lost frame since the start of the recording
+         * @param frames number of frames replaced with silence, or read torn from a block
+         */
+        void onOverrun(Reader reader, long frame, int frames);
+    }
+
+    /**
+     * A cursor of one consumer thread.
+     */
+    public class Reader {
+        private volatile long position;
+        private volatile Thread waiter;
+        private long overruns;
+        private long lostFrames;
+        private OnOverrunListener onOverrunListener;
+        private short[] blockArray;
+        private int blockOffset;
+        private int blockSamples;
+
+        /**
+         * @return position of the next sample to read
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        public long getFrame() {
+            return position / channels;
+        }
+
+        public int available() {
+            return (int) Math.min(writePosition - position, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @return true once the ring is closed and everything was read
+         */
+        public boolean isEndOfStream() {
+            return closed && writePosition == position;
+        }
+
+        public long getOverruns() {
+            return overruns;
+        }
+
+        public long getLostFrames() {
+            return lostFrames;
+        }
+
+        public void setOnOverrunListener(OnOverrunListener l) {
+            onOverrunListener = l;
+        }
+
+        /**
+         * Parks the calling thread until the writer commits or closes, or the timeout passes.
+         */
+        public void await(long timeoutNanos) {
+            waiter = Thread.currentThread();
+            if (available() == 0 && !closed) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+            waiter = null;
+        }
+
+        /**
+         * Drops all but the newest samples without reading them, for a consumer that must stay
+         * close to the writer rather than complete. Dropped samples are not reported as lost.
+         *
+         * @param keep samples left available, rounded down to whole frames
+         * @return number of samples skipped
+         */
+        public int skipToLatest(int keep) {
+            long p = position;
+            long target = writePosition - keep / channels * channels;
+            if (target <= p) {
+                return 0;
+            }
+            position = target;
+            return (int) Math.min(target - p, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Reads up to samples samples, without waiting. Samples the writer overwrote before
+         * they were copied come out as silence and are reported to the OnOverrunListener.
+         *
+         * @param samples rounded down to whole frames
+         * @return number of samples copied, 0 if nothing is available
+         */
+        public int read(short[] dst, int offset, int samples) {
+            long p = position;
+            long w = writePosition;
+            int n = (int) Math.min(samples / channels * channels, w - p);
+            if (n <= 0) {
+                return 0;
+            }
+            /*the writer may be filling maxWrite samples past w right now*/
+            int lost = lostBefore(p, n, w);
+            Arrays.fill(dst, offset, offset + lost, (short) 0);
+            for (int copied = lost; copied < n; ) {
+                int index = (int) ((p + copied) & mask);
+                int count = Math.min(n - copied, data.length - index);
+                System.arraycopy(data, index, dst, offset + copied, count);
+                copied += count;
+            }
+            /*anything overwritten while copying is lost as well*/
+            int late = lostBefore(p, n, writePosition);
+            if (late > lost) {
+                Arrays.fill(dst, offset + lost, offset + late, (short) 0);
+                lost = late;
+            }
+            position = p + n;
+            if (lost > 0) {
+                onLost(p, lost);
+            }
+            return n;
+        }
+
+        /**
+         * Zero copy read: exposes up to samples contiguous samples in blockArray() from
+         * blockOffset() instead of copying them. The block stays valid until release(), which
+         * must come before the next read, and is read-only unless this is the ring's only reader
+         * and it lies in {@link #array()}. Lost samples come as a block of shared silence, which
+         * is never written, and are reported as in read().
+         *
+         * @param samples rounded down to whole frames
+         * @return samples in the block, 0 if nothing is available
+         */
+        public int acquire(int samples) {
+            long p = position;
+            long w = writePosition;
+            int n = (int) Math.min(samples / channels * channels, w - p);
+            if (n <= 0) {
+                return 0;
+            }
+            int lost = lostBefore(p, n, w);
+            if (lost > 0) {
+                blockArray = silence;
+                blockOffset = 0;
+                blockSamples = Math.min(lost, silence.length);
+                onLost(p, blockSamples);
+            } else {
+                blockArray = data;
+                blockOffset = (int) (p & mask);
+                blockSamples = Math.min(n, data.length - blockOffset);
+            }
+            return blockSamples;
+        }
+
+        public short[] blockArray() {
+            return blockArray;
+        }
+
+        public int blockOffset() {
+            return blockOffset;
+        }
+
+        /**
+         * Ends the read started with acquire() and moves past the block.
+         *
+         * @return false if the writer reached the block before release(); the overwritten part
+         * may have been read torn and is reported as lost
+         */
+        public boolean release() {
+            long p = position;
+            boolean intact = true;
+            if (blockArray == data) {
+                int torn = lostBefore(p, blockSamples, writePosition);
+                if (torn > 0) {
+                    onLost(p, torn);
+                    intact = false;
+                }
+            }
+            position = p + blockSamples;
+            blockSamples = 0;
+            return intact;
+        }
+
+        private void onLost(long p, int lost) {
+            overruns++;
+            lostFrames += lost / channels;
+            if (null != onOverrunListener) {
+                onOverrunListener.onOverrun(this, p / channels, lost / channels);
+            }
+        }
+
+        private int lostBefore(long p, int n, long w) {
+            long oldest = w + maxWrite - data.length;
+            if (oldest <= p) {
+                return 0;
+            }
+            long lost = (oldest - p + channels - 1) / channels * channels;
+            return (int) Math.min(n, lost);
+        }
+    }
+}
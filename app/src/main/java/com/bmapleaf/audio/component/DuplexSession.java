@@ -0,0 +1,138 @@
+package com.bmapleaf.audio.component;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records while the backing track plays, and aligns the recording with it.
+ * <p>
+ * Player and recorder run on their own clocks; the vocal they produce is late by the output
+ * latency (the singer hears the track late) plus the input latency (the recording gets the
+ * voice late), both different per device. The session starts the recorder, then the player,
+ * and while both run it measures on the System.nanoTime() clock they share: the recorder tells
+ * when a frame reached the microphone ({@link IRecorder#getCaptureNanos(long)}), the player
+ * what was heard then ({@link IPlayer#getMediaTimeAt(long)}). A {@link TimelineAligner} keeps
+ * the median, which stamps every recorded frame in media time of the backing track and is
+ * saved next to the recording for the mixdown.
+ * <p>
+ * A pause would move the two timelines against each other, so the session has none; stop it
+ * and punch in instead.
+ */
+public class DuplexSession {
+    private static final String TAG = "DuplexSession";
+    private static final long measureIntervalNanos = 250000000L;
+    /*the first output timestamps are often not settled*/
+    private static final long settleNanos = 1000000000L;
+    private final IPlayer player;
+    private final IRecorder recorder;
+    private final TimelineAligner aligner;
+    private volatile boolean running;
+    private Thread worker;
+    private long recorderStartNanos;
+    private long playerStartNanos;
+
+    /**
+     * @param player     prepared with the backing track
+     * @param recorder   prepared, at sampleRate
+     * @param sampleRate sample rate of the recorder
+     */
+    public DuplexSession(IPlayer player, IRecorder recorder, int sampleRate) {
+        this.player = player;
+        this.recorder = recorder;
+        aligner = new TimelineAligner(sampleRate, 31);
+    }
+
+    public synchronized void start() throws IllegalStateException {
+        if (running) {
+            throw new IllegalStateException("start() called twice");
+        }
+        aligner.reset();
+        recorderStartNanos = System.nanoTime();
+        recorder.start();
+        playerStartNanos = System.nanoTime();
+        player.start();
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                measure();
+            }
+        }, TAG);
+        worker.start();
+    }
+
+    /**
+     * Stops the player and the recorder. The alignment stays, save it with save().
+     */
+    public synchronized void stop() throws IllegalStateException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+        player.stop();
+        recorder.stop();
+        Log.d(TAG, "stop: offset " + aligner.getOffsetUs() + " us, jitter " + aligner.getJitterUs()
+                + " us, latency compensation " + getLatencyCompensationUs() + " us");
+    }
+
+    public TimelineAligner getAligner() {
+        return aligner;
+    }
+
+    /**
+     * @return media time of a recorded frame
+     */
+    public long toMediaUs(long frame) {
+        return aligner.toMediaUs(frame);
+    }
+
+    /**
+     * @return output plus input latency removed by the alignment, against lining up the two
+     * start() calls
+     */
+    public long getLatencyCompensationUs() {
+        if (!aligner.isAligned()) {
+            return 0;
+        }
+        long naiveOffsetUs = (recorderStartNanos - playerStartNanos) / 1000;
+        return naiveOffsetUs - aligner.getOffsetUs();
+    }
+
+    /**
+     * Saves the alignment next to a recording of this session, see
+     * {@link TimelineAligner#loadOffsetUs(String)}.
+     */
+    public void save(String recording) throws IOException {
+        aligner.save(recording);
+    }
+
+    private void measure() {
+        while (running) {
+            LockSupport.parkNanos(this, measureIntervalNanos);
+            if (!running || System.nanoTime() - playerStartNanos < settleNanos) {
+                continue;
+            }
+            long frame = recorder.getStats().getCapturedFrames() - 1;
+            long captureNanos = recorder.getCaptureNanos(frame);
+            if (frame < 0 || captureNanos < 0) {
+                continue;
+            }
+            try {
+                if (player.isPlaying()) {
+                    aligner.add(frame, player.getMediaTimeAt(captureNanos));
+                }
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "measure: player not ready", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.bmapleaf.audio.component;
+
+import java.io.IOException;
+
+/**
+ * Destination of rendered 16 bit interleaved pcm: the AudioTrack while playing, a file when
+ * rendering offline.
+ */
+public interface IAudioSink {
+    /**
+     * Opens the sink before the first write.
+     *
+     * @param sampleRate sample rate of the data
+     * @param channels   number of interleaved channels
+     * @throws IOException if the output can not be created
+     */
+    void open(int sampleRate, int channels) throws IOException;
+
+    /**
+     * Writes one block, may block until the sink accepted it.
+     *
+     * @param data   interleaved samples
+     * @param offset offset in samples
+     * @param size   number of samples (not frames)
+     * @throws IOException if writing fails
+     */
+    void write(short[] data, int offset, int size) throws IOException;
+
+    /**
+     * Flushes pending data and finishes the output (headers, muxer trailer...).
+     *
+     * @throws IOException if finishing fails
+     */
+    void close() throws IOException;
+}
@@ -1,5 +1,10 @@
 package com.bmapleaf.audio.component;
 
+import com.bmapleaf.audio.dsp.EditList;
+import com.bmapleaf.audio.dsp.EffectChain;
+import com.bmapleaf.audio.dsp.Resampler;
+import com.bmapleaf.audio.dsp.SpectrumAnalyzer;
+
 import java.io.IOException;
 
 /**
@@ -48,6 +53,22 @@ public interface IPlayer {
      */
     float getVolume();
 
+    /**
+     * Plays every track at the same loudness, with the integrated loudness the cache holds for
+     * it (see {@link LoudnessAnalyzer}) turned into a gain on top of the volume. A track not
+     * measured yet plays at its own level and is measured on the way; once it was played from
+     * its start to its end the result is cached and applies from the next prepare().
+     *
+     * @param cache      where the loudness is kept, null turns normalization off
+     * @param targetLufs loudness to play at, eg. {@link com.bmapleaf.audio.dsp.LoudnessMeter#replayGainReferenceLufs}
+     */
+    void setLoudnessNormalization(MediaCache cache, float targetLufs);
+
+    /**
+     * @return gain normalization applies to the current track in dB, 0 if none
+     */
+    float getNormalizationGainDb();
+
     /**
      * Checks whether the Player is looping or non-looping.
      *
@@ -84,6 +105,24 @@ public interface IPlayer {
      */
     int getCurrentPosition();
 
+    /**
+     * Gets the media time of the sample being heard now: the decoded position less what is
+     * still queued in the output, at the playback speed. Cheap enough to poll from another
+     * thread; right after a seek it lags until the queue has played out.
+     *
+     * @return the media time in microseconds, the current position when not playing
+     */
+    long getMediaTimeUs();
+
+    /**
+     * Gets the media time heard at nanoTime on the System.nanoTime() clock, using the time the
+     * output reports for a played frame where it does, so the output latency is included.
+     * Extrapolated at the playback speed, also to times before the current playback started.
+     *
+     * @return the media time in microseconds, the current position when not playing
+     */
+    long getMediaTimeAt(long nanoTime);
+
     /**
      * Starts or resumes playback.
      *
@@ -118,6 +157,19 @@ public interface IPlayer {
      */
     void prepare() throws IllegalStateException, IOException;
 
+    /**
+     * Renders the play range through the same decode and processing path as playback, without the
+     * AudioTrack pacing, as fast as the cpu allows. The output is identical to what playback
+     * produces at the device output rate. Looping is ignored. Blocks until the end of the range or
+     * until stop() is called from another thread.
+     *
+     * @param sink the output, eg. {@link WavFileSink} or {@link AacFileSink}
+     * @return frames written and the real time factor achieved
+     * @throws IllegalStateException if it is called in an invalid state(before prepare()).
+     * @throws IOException           if the sink fails.
+     */
+    RenderResult render(IAudioSink sink) throws IllegalStateException, IOException;
+
     /**
      * Prepares the player for playback, asynchronously.
      *
@@ -152,6 +204,28 @@ public interface IPlayer {
      */
     void setPlayRange(int start, int end) throws IllegalStateException;
 
+    /**
+     * Sets the playback speed, pitch follows the speed (varispeed).
+     *
+     * @param speed speed ratio, 1 is the original speed, clamped to [0.5, 2]
+     */
+    void setPlaybackSpeed(float speed);
+
+    /**
+     * Gets the playback speed.
+     *
+     * @return speed ratio
+     */
+    float getPlaybackSpeed();
+
+    /**
+     * Sets the quality of the resampler converting the media sample rate to the device output rate.
+     * Takes effect on the next prepare().
+     *
+     * @param quality one of {@link com.bmapleaf.audio.dsp.Resampler.Quality}
+     */
+    void setResampleQuality(@Resampler.Quality int quality);
+
     /**
      * Register a callback to be invoked when the record data is ready for process(eg.PitchShift).
      *
@@ -173,6 +247,31 @@ public interface IPlayer {
      */
     void setOnErrorListener(OnErrorListener l);
 
+    /**
+     * Sets the chain of effects run on every rendered block, after the OnDataProcessListener.
+     * The chain may be changed while playing.
+     *
+     * @param chain the effect chain, null to remove it
+     */
+    void setEffectChain(EffectChain chain);
+
+    /**
+     * Splices retakes into playback and render() while the file is decoded, see {@link Take}.
+     * Edit positions are frames of the file at its own sample rate, the pcm must be stereo.
+     *
+     * @param edits the edit list, null to play the file as it is
+     */
+    void setEditList(EditList edits);
+
+    /**
+     * Sets an analyzer fed with every block as it goes to the output, after the effects and the
+     * volume, so it shows what is heard. Poll {@link SpectrumAnalyzer#getLatest(SpectrumAnalyzer.Spectrum)}
+     * from the UI; disable the analyzer while no visualizer is shown.
+     *
+     * @param analyzer the spectrum analyzer, null to remove it
+     */
+    void setSpectrumAnalyzer(SpectrumAnalyzer analyzer);
+
     /**
      * Register a callback to be invoked when the media source is ready for playback.
      *
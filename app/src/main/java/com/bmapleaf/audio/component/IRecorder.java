@@ -2,6 +2,10 @@ package com.bmapleaf.audio.component;
 
 import android.support.annotation.IntDef;
 
+import com.bmapleaf.audio.dsp.EffectChain;
+import com.bmapleaf.audio.dsp.PitchTracker;
+import com.bmapleaf.audio.dsp.SpectrumAnalyzer;
+
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -27,9 +31,35 @@ public interface IRecorder {
      * The sample rate set by setAudioSamplingRate is not supported
      */
     int RECORDER_ERROR_SAMPLE_RATE_NOT_SUPPORT = -202;
+    /**
+     * The output file, or the edit list of a punch-in take, can not be written
+     */
+    int RECORDER_ERROR_INVALID_OUTPUT_FILE = -203;
+    /**
+     * AudioRecord failed while recording, the extra code is the result of AudioRecord.read().
+     * Reported on the capture thread, which has stopped; stop() still finishes the outputs
+     */
+    int RECORDER_ERROR_CAPTURE = -300;
+    /**
+     * Every block is encoded, default
+     */
+    int VOICE_GATE_OFF = 0;
+    /**
+     * Silent stretches are encoded as digital silence: small AAC frames, any player plays them
+     */
+    int VOICE_GATE_SILENCE = 1;
+    /**
+     * Silent stretches are not encoded and leave gaps in the timestamps, which AudioPlayer,
+     * PcmStream and ParallelDecoder turn back into silence; players that ignore timestamps do
+     * not. The least encoder cpu. Segmented recordings gate to silence instead
+     */
+    int VOICE_GATE_GAP = 2;
 
     /**
      * Pauses recording.Call resume() to resume.
+     * AudioRecord and the encoder stay alive while paused; the paused part is left out
+     * of the output without a gap in the timestamps, and resume() takes effect within one
+     * capture block, see {@link RecorderStats#getLastResumeLatencyMs()}.
      *
      * @throws IllegalStateException if it is called before start() or after stop()
      */
@@ -97,12 +127,42 @@ public interface IRecorder {
      * Sets the path of the output file to be produced. Call this before prepare().
      *
      * @param file   The pathname to use.
-     * @param encode whether to encode data while save record or not(aac or pcm)
+     * @param encode whether to encode data while save record or not(aac or pcm). Pcm is
+     *               16 bit little endian, with a RIFF/WAVE header if the name ends with .wav
      * @throws IllegalStateException if it is called after prepare().
      * @throws IOException           if the file path is invalid.
      */
     void setOutputFile(String file, boolean encode) throws IllegalStateException, IOException;
 
+    /**
+     * Adds another output of the same recording, eg. an .m4a to upload next to a .wav to mix.
+     * Call this after setOutputFile() and before prepare(). Every output has its own thread
+     * and reads the shared capture buffer without a copy of its own; one that can not keep up
+     * loses data itself and never slows the capture or the other outputs down.
+     *
+     * @param file   The pathname to use.
+     * @param encode as for setOutputFile(); there can be one encoded output only
+     * @throws IllegalStateException if it is called before setOutputFile(), after prepare(),
+     *                               or for a second encoded output.
+     */
+    void addOutputFile(String file, boolean encode) throws IllegalStateException;
+
+    /**
+     * Records a retake (punch-in) of [startUs, endUs) of an existing take instead of a new file.
+     * Call this instead of setOutputFile() before prepare(). The take is left untouched: the
+     * retake goes to a segment file next to it, which stop() lists in the take's edit list.
+     *
+     * @param take     the take to punch into
+     * @param encode   as for setOutputFile()
+     * @param originUs position of the take when start() is called, at most startUs; the
+     *                 part before startUs serves as pre-roll
+     * @param startUs  first replaced position of the take
+     * @param endUs    end of the replaced range, an earlier stop() shortens it
+     * @throws IllegalStateException if it is called after prepare().
+     * @throws IOException           if the segment file can not be created.
+     */
+    void setPunchIn(Take take, boolean encode, long originUs, long startUs, long endUs) throws IllegalStateException, IOException;
+
     /**
      * Register a callback to be invoked when an error occurs while recording.
      *
@@ -112,11 +172,96 @@ public interface IRecorder {
 
     /**
      * Register a callback to be invoked when the record data is ready for process(eg.GetSampleInfo,VocalEffects).
+     * Set it before start(): a recording started without a listener and without an effect chain
+     * captures straight into the encoder and only calls it from the next start().
      *
      * @param l the callback that will be run
      */
     void setOnDataProcessListener(OnDataProcessListener l);
 
+    /**
+     * Sets the chain of effects run on every captured block, after the OnDataProcessListener.
+     * The chain may be changed while recording, but a recording started without a listener and
+     * without a chain captures straight into the encoder and picks it up from the next start().
+     *
+     * @param chain the effect chain, null to remove it
+     */
+    void setEffectChain(EffectChain chain);
+
+    /**
+     * Sets a tracker fed with every captured block before the listener and the effects, so it
+     * sees the dry voice. Poll {@link PitchTracker#getLatest(PitchTracker.Pitch)} from the UI.
+     * Set it before start(), like the OnDataProcessListener.
+     *
+     * @param tracker the pitch tracker, null to remove it
+     */
+    void setPitchTracker(PitchTracker tracker);
+
+    /**
+     * Sets an analyzer fed with every captured block after the effects, so it shows what is
+     * recorded. Poll {@link SpectrumAnalyzer#getLatest(SpectrumAnalyzer.Spectrum)} from the UI.
+     * Set it before start(), like the OnDataProcessListener.
+     *
+     * @param analyzer the spectrum analyzer, null to remove it
+     */
+    void setSpectrumAnalyzer(SpectrumAnalyzer analyzer);
+
+    /**
+     * Plays the microphone back while recording, with the monitor's own effects, at the lowest
+     * latency the device allows. Takes effect with the next start() and keeps the capture
+     * going through the ring even without processing.
+     *
+     * @param monitor the monitor, null for none
+     */
+    void setMonitor(LiveMonitor monitor);
+
+    /**
+     * Gets when a frame of the recording reached the microphone, on the System.nanoTime()
+     * clock, so the recording can be placed against other audio on the same clock. The input
+     * latency is taken from the system on Android 7 and later and counted as 0 before. Frames
+     * are counted from start() without the paused ones; the mapping is extrapolated from the
+     * last block, so it holds for frames since the last resume().
+     *
+     * @return the capture time in nanoseconds, -1 before the first block was read
+     */
+    long getCaptureNanos(long frame);
+
+    /**
+     * Sets how often the header of a .wav recording is rewritten while recording, so the file
+     * stays playable if the app dies before stop(). Call this before prepare().
+     *
+     * @param intervalMs minimum time between two updates, 0 to write it on stop() only
+     */
+    void setHeaderUpdateInterval(long intervalMs);
+
+    /**
+     * Gates the silent stretches of the recording (instrumental breaks, room noise) in front of
+     * the AAC encoder with an energy and zero-crossing voice detector. Pcm outputs are not
+     * gated. Takes effect with the next start(); see {@link RecorderStats#getSavedBytes()}.
+     *
+     * @param mode VOICE_GATE_OFF, VOICE_GATE_SILENCE or VOICE_GATE_GAP
+     */
+    void setVoiceGate(int mode);
+
+    /**
+     * Splits the recording into chunk files of about this length, for long sessions that must
+     * survive the app dying. The output file then is a {@link SegmentManifest} listing the
+     * chunks, its name must end with {@link SegmentManifest#suffix}; players read it as one
+     * file. Encoded chunks are ADTS, pcm chunks .wav; the header update interval also bounds
+     * how long encoded data waits before it is written. Call this before prepare().
+     *
+     * @param seconds length of a chunk, 0 (the default) for a single output file
+     */
+    void setSegmentDuration(int seconds);
+
+    /**
+     * Returns the counters of the current (or last) recording: captured and dropped blocks,
+     * capture to disk latency and cpu load of the capture, encode and write threads.
+     *
+     * @return the statistics, updated live while recording
+     */
+    RecorderStats getStats();
+
     /**
      * Interface definition for a callback to be invoked when an error occurs while recording.
      */
@@ -128,6 +273,7 @@ public interface IRecorder {
          * @param what  the type of error that has occurred:
          *              RECORDER_ERROR_UNKNOWN
          *              RECORDER_ERROR_INITIALIZE
+         *              RECORDER_ERROR_CAPTURE
          * @param extra an extra code, specific to the error type
          *              RECORDER_ERROR_CHANNEL_NOT_SUPPORT
          *              RECORDER_ERROR_SAMPLE_RATE_NOT_SUPPORT
@@ -141,12 +287,14 @@ public interface IRecorder {
      */
     interface OnDataProcessListener {
         /**
-         * Called to process the data(eg.GetSampleInfo,VocalEffects).
+         * Called to process the data(eg.GetSampleInfo,VocalEffects). The block is processed in
+         * place, often right inside the capture ring, so keep no reference to data.
          *
          * @param data    the data to be process
+         * @param offset  where the block starts in data
          * @param samples number of samples.
          */
-        void onProcess(short[] data, int samples);
+        void onProcess(short[] data, int offset, int samples);
     }
 
     @IntDef({Channel.MONO, Channel.STEREO})
@@ -0,0 +1,189 @@
+package com.bmapleaf.audio.component;
+
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.Melody;
+import com.bmapleaf.audio.dsp.NoteScorer;
+import com.bmapleaf.audio.dsp.PitchTracker;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scores the singer live: pitch estimates of the recorder's {@link PitchTracker} are placed on
+ * the media clock of the backing track's {@link IPlayer} and fed to a {@link NoteScorer}.
+ * <p>
+ * The tracker's listener runs on the recorder's processing thread, so it only puts each
+ * estimate into a preallocated single producer ring; it never waits and drops estimates when
+ * the ring is full. Stamping, scoring and the listener run on the scorer's own thread, which
+ * also asks the player for its clock. An estimate is stamped with the media time at which its
+ * window center reached the microphone: the recorder maps the frame of the estimate to its
+ * capture time ({@link IRecorder#getCaptureNanos(long)}, input latency included where the
+ * system reports it), and the player's clock now is moved back by the time since then. Time a
+ * block spent waiting in the capture ring counts where it belongs, in the age of the estimate.
+ * <p>
+ * The latency from a sung sample to its score update is measured per estimate, from that
+ * capture time to the end of its scoring.
+ */
+public class KaraokeScorer implements PitchTracker.OnPitchListener {
+    private static final String TAG = "KaraokeScorer";
+    private static final int capacity = 256;
+    private final IPlayer player;
+    private final NoteScorer scorer;
+    /*ring of estimates, written by the tracker's thread only*/
+    private final long[] ringFrames = new long[capacity];
+    private final float[] ringFrequency = new float[capacity];
+    private final float[] ringConfidence = new float[capacity];
+    private volatile long writeCount;
+    private volatile long readCount;
+    private volatile long droppedCount;
+    private volatile Thread worker;
+    private volatile boolean running;
+    private IRecorder recorder;
+    private PitchTracker tracker;
+    /*latency from capture to score update*/
+    private volatile long lastLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile long sumLatencyNanos;
+    private volatile long scoredCount;
+
+    public KaraokeScorer(IPlayer player, Melody melody) {
+        this.player = player;
+        scorer = new NoteScorer(melody);
+    }
+
+    /**
+     * @return the scorer, configure it before start(); its listener is called on the
+     * scorer's thread
+     */
+    public NoteScorer getNoteScorer() {
+        return scorer;
+    }
+
+    /**
+     * Starts scoring the estimates of tracker, the one set on recorder with setPitchTracker(),
+     * whose frames are the recorder's.
+     */
+    public synchronized void start(IRecorder recorder, PitchTracker tracker) {
+        if (running) {
+            throw new IllegalStateException("start() called twice");
+        }
+        this.recorder = recorder;
+        this.tracker = tracker;
+        writeCount = readCount = droppedCount = 0;
+        lastLatencyNanos = maxLatencyNanos = sumLatencyNanos = scoredCount = 0;
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        worker = thread;
+        thread.start();
+        tracker.setOnPitchListener(this);
+    }
+
+    /**
+     * Stops scoring, waits for the estimates left and finishes the song if finish is true.
+     */
+    public synchronized void stop(boolean finish) {
+        if (!running) {
+            return;
+        }
+        tracker.setOnPitchListener(null);
+        running = false;
+        Thread thread = worker;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+        if (finish) {
+            scorer.finish();
+        }
+    }
+
+    @Override
+    public void onPitch(long frame, float frequency, float confidence) {
+        long write = writeCount;
+        if (write - readCount == capacity) {
+            droppedCount++;
+            return;
+        }
+        int slot = (int) (write % capacity);
+        ringFrames[slot] = frame;
+        ringFrequency[slot] = frequency;
+        ringConfidence[slot] = confidence;
+        writeCount = write + 1;
+        LockSupport.unpark(worker);
+    }
+
+    public float getTotal() {
+        return scorer.getTotal();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public float getLastLatencyMs() {
+        return lastLatencyNanos / 1e6f;
+    }
+
+    public float getMaxLatencyMs() {
+        return maxLatencyNanos / 1e6f;
+    }
+
+    public float getMeanLatencyMs() {
+        long count = scoredCount;
+        return count > 0 ? sumLatencyNanos / 1e6f / count : 0;
+    }
+
+    private void loop() {
+        while (true) {
+            long read = readCount;
+            if (read == writeCount) {
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(this, 20000000);
+                continue;
+            }
+            int slot = (int) (read % capacity);
+            long frame = ringFrames[slot];
+            float frequency = ringFrequency[slot];
+            float confidence = ringConfidence[slot];
+            readCount = read + 1;
+            long captureNanos = recorder.getCaptureNanos(frame);
+            if (captureNanos >= 0) {
+                score(captureNanos, frequency, confidence);
+            }
+        }
+    }
+
+    private void score(long captureNanos, float frequency, float confidence) {
+        long mediaUs;
+        float speed;
+        try {
+            if (!player.isPlaying()) {
+                return;
+            }
+            mediaUs = player.getMediaTimeUs();
+            speed = player.getPlaybackSpeed();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "score: player not ready", e);
+            return;
+        }
+        long ageNanos = System.nanoTime() - captureNanos;
+        scorer.add(mediaUs - (long) (ageNanos / 1000 * speed), PitchTracker.toMidiNote(frequency), confidence);
+        long latency = System.nanoTime() - captureNanos;
+        lastLatencyNanos = latency;
+        if (latency > maxLatencyNanos) {
+            maxLatencyNanos = latency;
+        }
+        sumLatencyNanos += latency;
+        scoredCount++;
+    }
+}
@@ -0,0 +1,229 @@
+package com.bmapleaf.audio.component;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.EffectChain;
+
+/**
+ * Lets the singer hear the microphone, with effects, while recording.
+ * <p>
+ * The monitor is one more reader of the recorder's {@link CaptureRing}, so it sees every
+ * captured block as soon as read() returned it, without waiting for the encoder or a player's
+ * decode queue. One thread at urgent audio priority runs its own effect chain on the block in
+ * place and writes it to an AudioTrack with the smallest buffer the device allows. When that
+ * thread falls behind it skips to the newest block instead of catching up, so the delay never
+ * grows. Recording at the device's native output rate lets the system take its fast path.
+ * <p>
+ * The round trip latency is measured from the capture time of a block (see
+ * {@link IRecorder#getCaptureNanos(long)}) to the time the output reports for playing it.
+ */
+public class LiveMonitor implements Runnable {
+    private static final String TAG = "LiveMonitor";
+    private static final int streamType = AudioManager.STREAM_MUSIC;
+    private static final long measureIntervalNanos = 250000000L;
+    private volatile EffectChain effectChain;
+    private volatile float volume = 1f;
+    private CaptureRing.Reader reader;
+    private IRecorder recorder;
+    private AudioTrack audioTrack;
+    private int sampleRate;
+    private int channels;
+    private int maxFrames;
+    private short[] block;
+    private short[] stereo;
+    private volatile boolean running;
+    private Thread thread;
+    private long writtenFrames;
+    private long lastMeasureNanos;
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+    private volatile long latencyNanos;
+    private volatile long minLatencyNanos;
+    private volatile long skippedFrames;
+    private int bufferFrames;
+
+    /**
+     * Sets the effects heard in the monitor only, eg. reverb the recording should not get.
+     *
+     * @param chain the effect chain, null to remove it
+     */
+    public void setEffectChain(EffectChain chain) {
+        synchronized (this) {
+            EffectChain.swap(effectChain, chain, null != block, new EffectChain.Host() {
+                @Override
+                public void prepare(EffectChain chain) {
+                    chain.prepare(sampleRate, 2, maxFrames);
+                }
+
+                @Override
+                public void install(EffectChain chain) {
+                    effectChain = chain;
+                }
+            });
+        }
+    }
+
+    public void setVolume(float volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * @return last measured time from the microphone to the speaker, 0 before the first
+     */
+    public float getLatencyMs() {
+        return latencyNanos / 1e6f;
+    }
+
+    public float getMinLatencyMs() {
+        return minLatencyNanos / 1e6f;
+    }
+
+    /**
+     * @return captured frames never played because the monitor fell behind
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @return size of the output buffer, the part of the latency the app chooses
+     */
+    public float getOutputBufferMs() {
+        return sampleRate > 0 ? bufferFrames * 1000f / sampleRate : 0;
+    }
+
+    /**
+     * Starts monitoring the ring of a recorder that is about to capture.
+     *
+     * @param maxFrames most frames the capture thread commits at once
+     */
+    synchronized void start(CaptureRing ring, IRecorder recorder, int sampleRate, int maxFrames) {
+        this.recorder = recorder;
+        this.sampleRate = sampleRate;
+        this.maxFrames = maxFrames;
+        channels = ring.getChannels();
+        int bufferSizeInBytes = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        audioTrack = new AudioTrack(streamType, sampleRate, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, bufferSizeInBytes, AudioTrack.MODE_STREAM);
+        if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "start: AudioTrack not initialized, monitoring off");
+            audioTrack.release();
+            audioTrack = null;
+            return;
+        }
+        bufferFrames = bufferSizeInBytes / 4;
+        block = new short[maxFrames * channels];
+        stereo = channels == 2 ? block : new short[maxFrames * 2];
+        EffectChain chain = effectChain;
+        if (null != chain) {
+            /*the thread is not running yet, only other hosts count*/
+            chain.detach();
+            try {
+                chain.prepare(sampleRate, 2, maxFrames);
+            } finally {
+                chain.attach();
+            }
+        }
+        writtenFrames = lastMeasureNanos = 0;
+        latencyNanos = minLatencyNanos = skippedFrames = 0;
+        reader = ring.newReader();
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    synchronized void stop(CaptureRing ring) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        ring.removeReader(reader);
+        reader = null;
+        audioTrack.stop();
+        audioTrack.release();
+        audioTrack = null;
+        Log.d(TAG, "stop: latency " + getLatencyMs() + " ms (min " + getMinLatencyMs() + "), skipped "
+                + skippedFrames + " frames");
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        final long blockNanos = maxFrames * 1000000000L / sampleRate;
+        audioTrack.play();
+        while (running && !reader.isEndOfStream()) {
+            /*more than two blocks waiting is delay the singer would hear*/
+            if (reader.available() > 2 * maxFrames * channels) {
+                skippedFrames += reader.skipToLatest(maxFrames * channels) / channels;
+            }
+            long frame = reader.getFrame();
+            int samples = reader.read(block, 0, block.length);
+            if (samples == 0) {
+                reader.await(blockNanos);
+                continue;
+            }
+            int frames = samples / channels;
+            if (channels == 1) {
+                for (int f = frames - 1; f >= 0; f--) {
+                    stereo[2 * f] = stereo[2 * f + 1] = block[f];
+                }
+            }
+            EffectChain chain = effectChain;
+            if (null != chain) {
+                chain.process(stereo, frames);
+            }
+            float gain = volume;
+            if (gain != 1f) {
+                for (int i = 0; i < frames * 2; i++) {
+                    int v = (int) (stereo[i] * gain);
+                    stereo[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+                }
+            }
+            long firstWritten = writtenFrames;
+            audioTrack.write(stereo, 0, frames * 2);
+            writtenFrames += frames;
+            measure(frame, firstWritten);
+        }
+    }
+
+    /**
+     * @param frame        recorded frame of the block just written
+     * @param writtenFrame its frame in the output
+     */
+    private void measure(long frame, long writtenFrame) {
+        long now = System.nanoTime();
+        if (now - lastMeasureNanos < measureIntervalNanos) {
+            return;
+        }
+        lastMeasureNanos = now;
+        long capturedNanos = recorder.getCaptureNanos(frame);
+        if (capturedNanos < 0) {
+            return;
+        }
+        long playedNanos;
+        if (audioTrack.getTimestamp(timestamp)) {
+            playedNanos = timestamp.nanoTime + (writtenFrame - timestamp.framePosition) * 1000000000L / sampleRate;
+        } else {
+            long head = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+            playedNanos = now + (writtenFrame - head) * 1000000000L / sampleRate;
+        }
+        long latency = playedNanos - capturedNanos;
+        if (latency <= 0) {
+            return;
+        }
+        latencyNanos = latency;
+        if (minLatencyNanos == 0 || latency < minLatencyNanos) {
+            minLatencyNanos = latency;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.bmapleaf.audio.component;
+
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.LoudnessMeter;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Loads the loudness of a track from the {@link MediaCache}, or measures it with a
+ * {@link LoudnessMeter} in one decode pass and stores it with the track metadata.
+ * <p>
+ * The track is measured as the player plays it, stereo at the rate of the track, so a mono
+ * track counts on both channels. The player also stores what it measured during a first
+ * playback through {@link #store(String, LoudnessMeter)}.
+ */
+public class LoudnessAnalyzer {
+    private static final String TAG = "LoudnessAnalyzer";
+    private static final int blockFrames = 4096;
+    private final MediaCache cache;
+
+    /**
+     * Integrated loudness and sample peak of a track.
+     */
+    public static class Loudness {
+        private final float integratedLufs;
+        private final float samplePeak;
+
+        public Loudness(float integratedLufs, float samplePeak) {
+            this.integratedLufs = integratedLufs;
+            this.samplePeak = samplePeak;
+        }
+
+        /**
+         * @return gated loudness, negative infinity for a silent track
+         */
+        public float getIntegratedLufs() {
+            return integratedLufs;
+        }
+
+        /**
+         * @return largest sample magnitude, 0 to 1
+         */
+        public float getSamplePeak() {
+            return samplePeak;
+        }
+
+        /**
+         * @return gain in dB that brings the track to targetLufs without clipping
+         */
+        public float getGainDb(float targetLufs) {
+            return LoudnessMeter.getNormalizationGainDb(integratedLufs, samplePeak, targetLufs);
+        }
+
+        @Override
+        public String toString() {
+            return "Loudness{" + integratedLufs + " LUFS, peak " + samplePeak + "}";
+        }
+    }
+
+    public LoudnessAnalyzer(MediaCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cached loudness, null if the track was not measured yet
+     */
+    public Loudness load(String mediaPath) throws IOException {
+        Properties metadata = cache.getMetadata(mediaPath);
+        String lufs = metadata.getProperty(MediaCache.KEY_LOUDNESS_LUFS);
+        String peak = metadata.getProperty(MediaCache.KEY_SAMPLE_PEAK);
+        if (null == lufs || null == peak) {
+            return null;
+        }
+        try {
+            return new Loudness(Float.parseFloat(lufs), Float.parseFloat(peak));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "load: dropping unreadable loudness of " + mediaPath, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached loudness or decodes the track to measure it. Call it off the main thread.
+     */
+    public Loudness get(String mediaPath) throws IOException {
+        Loudness loudness = load(mediaPath);
+        if (null == loudness) {
+            loudness = analyze(mediaPath);
+        }
+        return loudness;
+    }
+
+    /**
+     * Decodes the whole track, measures it and caches the result.
+     */
+    public Loudness analyze(String mediaPath) throws IOException {
+        PcmStream stream = new PcmStream(mediaPath);
+        long t0 = System.currentTimeMillis();
+        LoudnessMeter meter;
+        try {
+            meter = new LoudnessMeter(stream.getSampleRate(), 2);
+            short[] block = new short[blockFrames * 2];
+            int n;
+            while ((n = stream.read(block, 0, blockFrames)) > 0) {
+                meter.add(block, 0, n);
+            }
+        } finally {
+            stream.release();
+        }
+        Loudness loudness = store(mediaPath, meter);
+        Log.d(TAG, "analyze: " + loudness + ", " + meter.getFrames() + " frames in "
+                + (System.currentTimeMillis() - t0) + "ms");
+        return loudness;
+    }
+
+    /**
+     * Caches what a meter measured over a whole track.
+     */
+    public Loudness store(String mediaPath, LoudnessMeter meter) throws IOException {
+        Loudness loudness = new Loudness(meter.getIntegratedLufs(), meter.getSamplePeak());
+        Properties metadata = new Properties();
+        metadata.setProperty(MediaCache.KEY_LOUDNESS_LUFS, String.valueOf(loudness.getIntegratedLufs()));
+        metadata.setProperty(MediaCache.KEY_SAMPLE_PEAK, String.valueOf(loudness.getSamplePeak()));
+        cache.putMetadata(mediaPath, metadata);
+        return loudness;
+    }
+}
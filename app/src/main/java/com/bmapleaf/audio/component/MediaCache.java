@@ -0,0 +1,105 @@
+package com.bmapleaf.audio.component;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Per track cache of analysis results (metadata, waveform, ...).
+ * <p>
+ * Every media file gets a directory named after a hash of its path, size and modification time,
+ * so editing or replacing the file invalidates its entries. Small values live in a
+ * {@link #metadataFile} properties file, bigger results are binary files next to it.
+ */
+public class MediaCache {
+    public static final String metadataFile = "metadata.properties";
+    public static final String KEY_SAMPLE_RATE = "sampleRate";
+    public static final String KEY_CHANNELS = "channels";
+    public static final String KEY_DURATION_US = "durationUs";
+    public static final String KEY_FRAMES = "frames";
+    public static final String KEY_LOUDNESS_LUFS = "loudnessLufs";
+    public static final String KEY_SAMPLE_PEAK = "samplePeak";
+    public static final String KEY_TEMPO_BPM = "tempoBpm";
+    private final File root;
+
+    /**
+     * @param root cache root, eg. Context.getCacheDir() or getExternalCacheDir()
+     */
+    public MediaCache(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the cache directory of the media file, created if needed
+     */
+    public File getDirectory(String mediaPath) throws IOException {
+        File dir = new File(root, key(new File(mediaPath)));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create cache directory " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * @return a file in the cache directory of the media file, it may not exist yet
+     */
+    public File getFile(String mediaPath, String name) throws IOException {
+        return new File(getDirectory(mediaPath), name);
+    }
+
+    /**
+     * @return the cached metadata, empty if there is none
+     */
+    public synchronized Properties getMetadata(String mediaPath) throws IOException {
+        Properties properties = new Properties();
+        File file = getFile(mediaPath, metadataFile);
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Merges the values into the cached metadata.
+     */
+    public synchronized void putMetadata(String mediaPath, Properties values) throws IOException {
+        Properties properties = getMetadata(mediaPath);
+        properties.putAll(values);
+        File file = getFile(mediaPath, metadataFile);
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can not write " + file);
+        }
+    }
+
+    private static String key(File media) {
+        String id = media.getAbsolutePath() + '|' + media.length() + '|' + media.lastModified();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(id.hashCode());
+        }
+    }
+}
@@ -56,8 +56,14 @@ public class MediaCodecWrapper {
     // Information about each output buffer, by index. Each entry in this array
     // is valid if and only if its index is currently contained in mAvailableOutputBuffers.
     private MediaCodec.BufferInfo[] mOutputBufferInfo;
+    // Scratch info for dequeueOutputBuffer(), copied into mOutputBufferInfo.
+    private final MediaCodec.BufferInfo mDequeuedInfo = new MediaCodec.BufferInfo();
     // An (optional) stream that will receive decoded data.
     private OutputSampleListener mOutputSampleListener;
+    // The last format reported by the codec, needed by MediaMuxer when encoding.
+    private MediaFormat mOutputFormat;
+    // When set, input buffers are only touched by the feeding thread, see setSeparateInputThread().
+    private volatile boolean mSeparateInput;
 
     private MediaCodecWrapper(MediaCodec codec) {
         mDecoder = codec;
@@ -114,18 +120,34 @@ public class MediaCodecWrapper {
      * @throws IOException
      */
     public static MediaCodecWrapper fromAudioFormat(final MediaFormat trackFormat) throws IOException {
+        return fromAudioFormat(trackFormat, false);
+    }
+
+    /**
+     * Constructs the {@link MediaCodecWrapper} wrapper object around an audio decoder or encoder.
+     *
+     * @param trackFormat The format of the media object to be decoded, or of the encoded output.
+     * @param encoder     True to create an encoder, input is then raw pcm.
+     * @return
+     * @throws IOException
+     */
+    public static MediaCodecWrapper fromAudioFormat(final MediaFormat trackFormat, boolean encoder) throws IOException {
         MediaCodecWrapper result = null;
         MediaCodec audioCodec = null;
 
         // BEGIN_INCLUDE(create_codec)
         final String mimeType = trackFormat.getString(MediaFormat.KEY_MIME);
 
-        // Check to see if this is actually a video mime type. If it is, then create
-        // a codec that can decode this mime type.
+        // Check to see if this is actually an audio mime type. If it is, then create
+        // a codec that can decode (or encode) this mime type.
         if (mimeType.contains("audio/")) {
-            audioCodec = MediaCodec.createDecoderByType(mimeType);
-            audioCodec.configure(trackFormat, null, null, 0);
-
+            if (encoder) {
+                audioCodec = MediaCodec.createEncoderByType(mimeType);
+                audioCodec.configure(trackFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } else {
+                audioCodec = MediaCodec.createDecoderByType(mimeType);
+                audioCodec.configure(trackFormat, null, null, 0);
+            }
         }
 
         // If codec creation was successful, then create a wrapper object around the
@@ -152,6 +174,24 @@ public class MediaCodecWrapper {
         mHandler = null;
     }
 
+    /**
+     * Lets one thread feed the codec (writeSample(), dequeueInputBuffer(), queueInputBuffer(),
+     * writeEndOfStream()) while another one drains it (peekSample(), popSample(),
+     * awaitOutputBuffer()). The draining side then stops collecting input buffers, so the
+     * bookkeeping of each side stays confined to its thread.
+     */
+    public void setSeparateInputThread(boolean separate) {
+        mSeparateInput = separate;
+    }
+
+    /**
+     * The output format reported by the codec, null until the first
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}. Encoders report the codec specific data here.
+     */
+    public MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
     /**
      * Getter for the registered {@link OutputFormatChangedListener}
      */
@@ -280,6 +320,85 @@ public class MediaCodecWrapper {
         return result;
     }
 
+    /**
+     * Queues an empty input buffer flagged {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM}, the codec
+     * flushes its pending output and marks the last output buffer the same way.
+     *
+     * @return True, if an input buffer was available.
+     */
+    public boolean writeEndOfStream(final long presentationTimeUs) {
+        if (!awaitInputBuffer(0)) {
+            return false;
+        }
+        int index = mAvailableInputBuffers.remove();
+        mDecoder.queueInputBuffer(index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    /**
+     * Hands out an input buffer to be filled in place, eg. by AudioRecord.read(ByteBuffer, int),
+     * saving the copy writeSample() makes. Pass the index to queueInputBuffer() once filled.
+     *
+     * @param timeoutUs maximum time to wait
+     * @return index of the buffer, or -1 if none became available
+     */
+    public int dequeueInputBuffer(long timeoutUs) {
+        Integer index = mAvailableInputBuffers.poll();
+        if (null != index) {
+            return index;
+        }
+        return Math.max(-1, mDecoder.dequeueInputBuffer(timeoutUs));
+    }
+
+    /**
+     * @return the cleared input buffer of an index returned by dequeueInputBuffer()
+     */
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Submits size bytes from the start of a buffer filled after dequeueInputBuffer().
+     */
+    public void queueInputBuffer(int index, int size, long presentationTimeUs, int flags) {
+        mDecoder.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+    }
+
+    /**
+     * Blocks until the codec has an input buffer to fill, instead of polling writeSample().
+     *
+     * @param timeoutUs maximum time to wait
+     * @return True, if an input buffer is available.
+     */
+    public boolean awaitInputBuffer(long timeoutUs) {
+        if (mAvailableInputBuffers.isEmpty()) {
+            int index = mDecoder.dequeueInputBuffer(timeoutUs);
+            if (index >= 0) {
+                mAvailableInputBuffers.add(index);
+            }
+        }
+        return !mAvailableInputBuffers.isEmpty();
+    }
+
+    /**
+     * Blocks until the codec has produced an output buffer, instead of polling peekSample().
+     *
+     * @param timeoutUs maximum time to wait
+     * @return True, if an output buffer is available.
+     */
+    public boolean awaitOutputBuffer(long timeoutUs) {
+        if (mAvailableOutputBuffers.isEmpty()) {
+            int index = mDecoder.dequeueOutputBuffer(mDequeuedInfo, timeoutUs);
+            if (index != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                onOutputBufferDequeued(index, mDequeuedInfo);
+            }
+        }
+        update();
+        return !mAvailableOutputBuffers.isEmpty();
+    }
+
     /**
      * Performs a peek() operation in the queue to extract media info for the buffer ready to be
      * released i.e. the head element of the queue.
@@ -357,53 +476,61 @@ public class MediaCodecWrapper {
 
         // Get valid input buffers from the codec to fill later in the same order they were
         // made available by the codec.
-        while ((index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+        while (!mSeparateInput && (index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
             mAvailableInputBuffers.add(index);
         }
 
 
         // Likewise with output buffers. If the output buffers have changed, start using the
         // new set of output buffers. If the output format has changed, notify listeners.
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        while ((index = mDecoder.dequeueOutputBuffer(info, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
-            switch (index) {
-                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                    mOutputBuffers = mDecoder.getOutputBuffers();
-                    mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-                    mAvailableOutputBuffers.clear();
-                    break;
-                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                    if (mOutputFormatChangedListener != null) {
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mOutputFormatChangedListener
-                                        .outputFormatChanged(MediaCodecWrapper.this,
-                                                mDecoder.getOutputFormat());
-
-                            }
-                        });
-                    }
-                    break;
-                default:
-                    // Making sure the index is valid before adding to output buffers. We've already
-                    // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
-                    // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
-                    // asserting index value anyways for future-proofing the code.
-                    if (index >= 0) {
-                        mOutputBufferInfo[index] = info;
-                        mAvailableOutputBuffers.add(index);
-                    } else {
-                        throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
-                    }
-                    break;
-            }
-
+        while ((index = mDecoder.dequeueOutputBuffer(mDequeuedInfo, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            onOutputBufferDequeued(index, mDequeuedInfo);
         }
         // END_INCLUDE(update_codec_state)
 
     }
 
+    private void onOutputBufferDequeued(int index, MediaCodec.BufferInfo info) {
+        switch (index) {
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mOutputBuffers = mDecoder.getOutputBuffers();
+                mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
+                mAvailableOutputBuffers.clear();
+                break;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                mOutputFormat = mDecoder.getOutputFormat();
+                if (mOutputFormatChangedListener != null) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mOutputFormatChangedListener
+                                    .outputFormatChanged(MediaCodecWrapper.this,
+                                            mDecoder.getOutputFormat());
+
+                        }
+                    });
+                }
+                break;
+            default:
+                // Making sure the index is valid before adding to output buffers. We've already
+                // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
+                // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
+                // asserting index value anyways for future-proofing the code.
+                if (index >= 0) {
+                    // Each index keeps its own BufferInfo, several buffers may be dequeued
+                    // before the first one is popped.
+                    if (mOutputBufferInfo[index] == null) {
+                        mOutputBufferInfo[index] = new MediaCodec.BufferInfo();
+                    }
+                    mOutputBufferInfo[index].set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                    mAvailableOutputBuffers.add(index);
+                } else {
+                    throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
+                }
+                break;
+        }
+    }
+
     // Callback when media output format changes.
     public interface OutputFormatChangedListener {
         void outputFormatChanged(MediaCodecWrapper sender, MediaFormat newFormat);
@@ -417,7 +544,7 @@ public class MediaCodecWrapper {
         void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer);
     }
 
-    private class WriteException extends Throwable {
+    public static class WriteException extends IOException {
         private WriteException(final String detailMessage) {
             super(detailMessage);
         }
@@ -0,0 +1,233 @@
+package com.bmapleaf.audio.component;
+
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.EffectChain;
+import com.bmapleaf.audio.dsp.LoudnessMeter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Mixes a recorded vocal onto its backing track offline, into one AAC (or .wav) file.
+ * <p>
+ * Both sources are decoded side by side with {@link PcmStream}, one block at a time, so memory
+ * does not depend on the length of the song. The vocal is placed at its offset in frames of the
+ * output: a late vocal is preceded by silence, an early one loses its head, both sample
+ * accurately ({@link VocalMixer}); by default the offset a {@link DuplexSession} saved next to
+ * the vocal is used. A vocal at another rate is resampled to the rate of the backing track. The
+ * vocal gets its own effect chain and gain; with loudness matching a first pass measures the
+ * integrated loudness of both sources with the same {@link LoudnessMeter} normalization uses and
+ * sets the vocal gain so the vocal sits at a given level against the backing track.
+ * <p>
+ * run() blocks the calling thread; cancel() may come from any thread and leaves no output
+ * file behind.
+ */
+public class Mixdown {
+    private static final String TAG = "Mixdown";
+    private static final int blockFrames = 1024;
+    private final String backingPath;
+    private final String vocalPath;
+    private final String outputPath;
+    private long vocalOffsetUs;
+    private boolean hasOffset;
+    private float vocalGain = 1f;
+    private float backingGain = 1f;
+    private boolean matchLoudness;
+    private float vocalOverBackingDb;
+    private EffectChain vocalEffects;
+    private int bitRate = 192000;
+    private volatile boolean cancelled;
+    private OnProgressListener onProgressListener;
+
+    /**
+     * Called on the thread of run().
+     */
+    public interface OnProgressListener {
+        /**
+         * @param progress 0 to 1
+         */
+        void onProgress(Mixdown mixdown, float progress);
+    }
+
+    /**
+     * @param outputPath .wav for pcm, any other name gets AAC in mp4
+     */
+    public Mixdown(String backingPath, String vocalPath, String outputPath) {
+        this.backingPath = backingPath;
+        this.vocalPath = vocalPath;
+        this.outputPath = outputPath;
+    }
+
+    /**
+     * @param offsetUs media time of the backing track where the vocal starts, negative if the
+     *                 vocal started before it
+     */
+    public void setVocalOffsetUs(long offsetUs) {
+        vocalOffsetUs = offsetUs;
+        hasOffset = true;
+    }
+
+    public void setVocalGain(float gain) {
+        vocalGain = gain;
+    }
+
+    public void setBackingGain(float gain) {
+        backingGain = gain;
+    }
+
+    /**
+     * Measures the integrated loudness of both sources first and adds to the vocal gain what
+     * brings the vocal to vocalOverBackingDb (LU) against the backing track. Costs a decode of
+     * both.
+     */
+    public void setLoudnessMatch(boolean enabled, float vocalOverBackingDb) {
+        matchLoudness = enabled;
+        this.vocalOverBackingDb = vocalOverBackingDb;
+    }
+
+    /**
+     * @param chain effects run on the vocal only, prepared by run() for stereo at the output rate
+     */
+    public void setVocalEffects(EffectChain chain) {
+        vocalEffects = chain;
+    }
+
+    public void setBitRate(int bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    public void setOnProgressListener(OnProgressListener l) {
+        onProgressListener = l;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs the mixdown on the calling thread.
+     *
+     * @return frames written and the real time factor; not completed if cancelled
+     */
+    public RenderResult run() throws IOException {
+        long startNanos = System.nanoTime();
+        long offsetUs = hasOffset ? vocalOffsetUs : TimelineAligner.loadOffsetUs(vocalPath);
+        float gain = vocalGain;
+        float measureShare = 0;
+        if (matchLoudness) {
+            measureShare = 0.3f;
+            float backingLufs = measureLoudness(backingPath, 0, measureShare / 2);
+            float vocalLufs = measureLoudness(vocalPath, measureShare / 2, measureShare / 2);
+            if (cancelled) {
+                return new RenderResult(0, 0, System.nanoTime() - startNanos, false);
+            }
+            if (!Float.isNaN(backingLufs) && !Float.isNaN(vocalLufs)) {
+                gain *= (float) Math.pow(10, (backingLufs + vocalOverBackingDb - vocalLufs) / 20);
+            }
+            Log.d(TAG, "run: backing " + backingLufs + " LUFS, vocal " + vocalLufs + " LUFS, vocal gain " + gain);
+        }
+
+        PcmStream backing = new PcmStream(backingPath);
+        PcmStream vocal = null;
+        IAudioSink sink = null;
+        long frames = 0;
+        boolean completed = false;
+        int rate = 0;
+        try {
+            vocal = new PcmStream(vocalPath);
+            rate = backing.getSampleRate();
+            final PcmStream vocalStream = vocal;
+            VocalMixer mixer = new VocalMixer(new VocalMixer.Source() {
+                @Override
+                public int read(short[] dst, int offset, int frames) throws IOException {
+                    return vocalStream.read(dst, offset, frames);
+                }
+            }, vocal.getSampleRate(), rate, offsetUs, blockFrames);
+            EffectChain chain = vocalEffects;
+            if (null != chain && (!chain.isPrepared() || chain.getSampleRate() != rate
+                    || chain.getChannels() != 2 || chain.getMaxFrames() < blockFrames)) {
+                chain.prepare(rate, 2, blockFrames);
+            }
+            long vocalUs = Math.max(0, offsetUs + vocal.getDurationUs());
+            long totalFrames = Math.max(1, Math.max(backing.getDurationUs(), vocalUs) * rate / 1000000);
+
+            sink = outputPath.endsWith(".wav") ? new WavFileSink(outputPath, true) : new AacFileSink(outputPath, bitRate);
+            sink.open(rate, 2);
+            short[] backingBlock = new short[blockFrames * 2];
+            short[] vocalBlock = new short[blockFrames * 2];
+            short[] mix = new short[blockFrames * 2];
+            int block = 0;
+            while (!cancelled) {
+                int b = backing.isEndOfStream() ? 0 : backing.read(backingBlock, 0, blockFrames);
+                int v = mixer.read(vocalBlock, blockFrames);
+                if (b == 0 && v == 0) {
+                    completed = true;
+                    break;
+                }
+                if (v > 0 && null != chain) {
+                    chain.process(vocalBlock, v);
+                }
+                int n = VocalMixer.mix(backingBlock, b, backingGain, vocalBlock, v, gain, mix);
+                sink.write(mix, 0, n * 2);
+                frames += n;
+                if (++block % 50 == 0) {
+                    onProgress(measureShare + (1 - measureShare) * Math.min(1f, (float) frames / totalFrames));
+                }
+            }
+        } finally {
+            backing.release();
+            if (null != vocal) {
+                vocal.release();
+            }
+            if (null != sink) {
+                sink.close();
+            }
+            if (!completed) {
+                new File(outputPath).delete();
+            }
+        }
+        if (completed) {
+            onProgress(1);
+        }
+        RenderResult result = new RenderResult(frames, rate, System.nanoTime() - startNanos, completed);
+        Log.d(TAG, "run: " + result);
+        return result;
+    }
+
+    /**
+     * @return integrated loudness in LUFS, NaN if all of it is below the absolute gate
+     */
+    private float measureLoudness(String path, float progressFrom, float progressShare) throws IOException {
+        PcmStream stream = new PcmStream(path);
+        try {
+            int rate = stream.getSampleRate();
+            int frames = rate / 10;
+            short[] block = new short[frames * 2];
+            long totalFrames = Math.max(1, stream.getDurationUs() * rate / 1000000);
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            int n, count = 0;
+            while (!cancelled && (n = stream.read(block, 0, frames)) > 0) {
+                meter.add(block, 0, n);
+                if (++count % 50 == 0) {
+                    onProgress(progressFrom + progressShare * Math.min(1f, (float) stream.getPosition() / totalFrames));
+                }
+            }
+            float lufs = meter.getIntegratedLufs();
+            return Float.isInfinite(lufs) ? Float.NaN : lufs;
+        } finally {
+            stream.release();
+        }
+    }
+
+    private void onProgress(float progress) {
+        OnProgressListener l = onProgressListener;
+        if (null != l) {
+            l.onProgress(this, progress);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.bmapleaf.audio.component;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes a whole file to pcm for offline work (export, waveform, caches) on several codec
+ * instances at once.
+ * <p>
+ * The file is split into equal frame ranges. Every segment has its own {@link MediaExtractor} and
+ * {@link MediaCodecWrapper}, seeks to the previous sync point before its start minus a pre-roll,
+ * decodes, and hands over exactly the frames of its range. Frames are numbered from the
+ * presentation time of the first decoded buffer and counted from there, so the segments line up
+ * sample accurately and the result equals a single threaded decode. Where the presentation time
+ * jumps ahead, as in a voice gated recording, the count follows it and the skipped frames are
+ * never written, an {@link ArrayOutput} or {@link FileOutput} holds silence there.
+ */
+public class ParallelDecoder {
+    private static final String TAG = "ParallelDecoder";
+    private static final long timeoutUs = 10000;
+    /*shorter segments do not pay for a codec instance*/
+    private static final long minSegmentUs = 5000000;
+    private final String path;
+    private MediaFormat trackFormat;
+    private int trackIndex = -1;
+    private int sampleRate;
+    private int channels;
+    private long durationUs;
+    private int threads;
+    private long preRollUs = 200000;
+
+    /**
+     * Opens the file to read its audio format.
+     *
+     * @param path media file path
+     * @throws IOException if the file can not be read or has no audio track
+     */
+    public ParallelDecoder(String path) throws IOException {
+        this.path = path;
+        threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(path);
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat format = extractor.getTrackFormat(i);
+                if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                    trackFormat = format;
+                    trackIndex = i;
+                    sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    durationUs = format.getLong(MediaFormat.KEY_DURATION);
+                    break;
+                }
+            }
+        } finally {
+            extractor.release();
+        }
+        if (trackIndex < 0) {
+            throw new IOException("no audio track in " + path);
+        }
+    }
+
+    /**
+     * @param threads number of segments decoded concurrently, 1 decodes the file in one piece
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param preRollUs how much is decoded and thrown away before each segment so the codec state
+     *                  (overlap, bit reservoir) is settled when the segment starts
+     */
+    public void setPreRollUs(long preRollUs) {
+        this.preRollUs = preRollUs;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * Decodes the whole file, blocking until every segment is done.
+     *
+     * @param output receives the pcm, called from several threads with disjoint ranges
+     * @return number of frames decoded
+     */
+    public long decode(Output output) throws IOException, InterruptedException {
+        long totalFrames = durationUs * sampleRate / 1000000;
+        int segments = (int) Math.max(1, Math.min(threads, durationUs / minSegmentUs));
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+        List<Future<Long>> futures = new ArrayList<>(segments);
+        try {
+            for (int i = 0; i < segments; i++) {
+                long start = totalFrames * i / segments;
+                long end = i == segments - 1 ? Long.MAX_VALUE : totalFrames * (i + 1) / segments;
+                futures.add(executor.submit(new Segment(start, end, output)));
+            }
+            long frames = 0;
+            for (Future<Long> future : futures) {
+                frames = Math.max(frames, future.get());
+            }
+            return frames;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Receiver of decoded pcm.
+     */
+    public interface Output {
+        /**
+         * Called concurrently from the segment threads, ranges never overlap.
+         *
+         * @param frame index of the first frame in {@code pcm}
+         * @param pcm   little endian 16 bit interleaved samples between position and limit
+         */
+        void write(long frame, ByteBuffer pcm) throws IOException;
+    }
+
+    /**
+     * Writes raw pcm to a file with positional writes, no stitching copy is needed.
+     */
+    public static class FileOutput implements Output {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int frameSize;
+
+        public FileOutput(String path, int channels) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            frameSize = channels * 2;
+        }
+
+        @Override
+        public void write(long frame, ByteBuffer pcm) throws IOException {
+            long position = frame * frameSize;
+            while (pcm.hasRemaining()) {
+                position += channel.write(pcm, position);
+            }
+        }
+
+        public void close() throws IOException {
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Collects the pcm in memory, sized from the container duration.
+     */
+    public static class ArrayOutput implements Output {
+        private final short[] data;
+        private final int channels;
+        private volatile long frames;
+
+        public ArrayOutput(ParallelDecoder decoder) {
+            channels = decoder.getChannels();
+            /*the container duration is not exact, leave a second of room*/
+            long capacity = (decoder.getDurationUs() / 1000000 + 1) * decoder.getSampleRate() + decoder.getSampleRate();
+            data = new short[(int) (capacity * channels)];
+        }
+
+        @Override
+        public void write(long frame, ByteBuffer pcm) {
+            int offset = (int) (frame * channels);
+            int count = Math.min(pcm.remaining() / 2, data.length - offset);
+            if (count <= 0) {
+                return;
+            }
+            pcm.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(data, offset, count);
+            synchronized (this) {
+                frames = Math.max(frames, frame + count / channels);
+            }
+        }
+
+        public short[] getData() {
+            return data;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+    }
+
+    private class Segment implements Callable<Long>, MediaCodecWrapper.OutputSampleListener {
+        private final long startFrame;
+        private final long endFrame;
+        private final Output output;
+        private long nextFrame = -1;
+        private int frameSize;
+        private int rate;
+        private boolean isEos;
+        private IOException error;
+
+        Segment(long startFrame, long endFrame, Output output) {
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+            this.output = output;
+            rate = sampleRate;
+            frameSize = channels * 2;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            MediaExtractor extractor = new MediaExtractor();
+            MediaCodecWrapper codec = null;
+            try {
+                extractor.setDataSource(path);
+                extractor.selectTrack(trackIndex);
+                long startUs = startFrame * 1000000 / sampleRate;
+                extractor.seekTo(Math.max(0, startUs - preRollUs), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                codec = MediaCodecWrapper.fromAudioFormat(trackFormat);
+                codec.setOutputSampleListener(this);
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                boolean inputEos = false;
+                while (!isEos && nextFrame < endFrame && null == error) {
+                    if (!inputEos && codec.awaitInputBuffer(timeoutUs)) {
+                        long sampleTime = extractor.getSampleTime();
+                        if (sampleTime < 0) {
+                            inputEos = codec.writeEndOfStream(0);
+                        } else if (codec.writeSample(extractor, false, sampleTime, extractor.getSampleFlags())) {
+                            extractor.advance();
+                        }
+                    }
+                    if (codec.awaitOutputBuffer(inputEos ? timeoutUs : 0)) {
+                        while (codec.peekSample(info)) {
+                            codec.popSample();
+                        }
+                    }
+                }
+                if (null != error) {
+                    throw error;
+                }
+                Log.d(TAG, "segment [" + startFrame + ", " + endFrame + ") done at " + nextFrame);
+                return Math.min(nextFrame, endFrame);
+            } finally {
+                if (null != codec) {
+                    codec.stopAndRelease();
+                }
+                extractor.release();
+            }
+        }
+
+        @Override
+        public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                isEos = true;
+            }
+            if (info.size <= 0 || null != error) {
+                return;
+            }
+            if (nextFrame < 0) {
+                MediaFormat format = sender.getOutputFormat();
+                if (null != format && (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != sampleRate
+                        || format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) != channels)) {
+                    /*eg. HE-AAC, the segment ranges were computed for the track format*/
+                    if (startFrame != 0 || endFrame != Long.MAX_VALUE) {
+                        error = new IOException("decoder output format " + format + " differs from the track, use setThreads(1)");
+                        return;
+                    }
+                    rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    frameSize = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * 2;
+                }
+                nextFrame = Math.round(info.presentationTimeUs * (double) rate / 1000000);
+            } else {
+                nextFrame += PtsGap.frames(info.presentationTimeUs, nextFrame, rate);
+            }
+            long first = nextFrame;
+            long frames = info.size / frameSize;
+            nextFrame += frames;
+            /*keep only the part of the buffer inside [startFrame, endFrame)*/
+            long from = Math.max(first, startFrame);
+            long to = Math.min(nextFrame, endFrame);
+            if (from < to) {
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.limit(info.offset + (int) ((to - first) * frameSize));
+                buffer.position(info.offset + (int) ((from - first) * frameSize));
+                try {
+                    output.write(from, buffer);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            buffer.clear();
+        }
+    }
+}
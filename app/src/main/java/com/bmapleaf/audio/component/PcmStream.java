@@ -0,0 +1,197 @@
+package com.bmapleaf.audio.component;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Decodes a file block by block on the calling thread, as 16 bit stereo at the rate of the
+ * track.
+ * <p>
+ * The pull counterpart of {@link ParallelDecoder}, for offline work that reads several sources
+ * side by side such as the mixdown: read() pumps the codec only until the block is full, so
+ * memory stays at one decoded buffer whatever the length of the file. Frames are counted from
+ * the presentation time of the first decoded buffer like ParallelDecoder does, a file that
+ * starts late starts with silence, and so does a later jump in the presentation times, which
+ * a voice gated recording leaves where it skipped the silence. Segmented recordings are read through
+ * {@link SegmentedExtractor}.
+ */
+public class PcmStream implements MediaCodecWrapper.OutputSampleListener {
+    private static final long timeoutUs = 10000;
+    private final SegmentedExtractor extractor;
+    private final MediaCodecWrapper codec;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private int sampleRate;
+    private int channels;
+    private final long durationUs;
+    /*decoded stereo not read yet*/
+    private short[] pending = new short[4096];
+    private int pendingOffset;
+    private int pendingSize;
+    /*frames of silence to hand out before pending*/
+    private long leadIn;
+    private long nextFrame = -1;
+    private long position;
+    private boolean inputEos;
+    private boolean isEos;
+
+    public PcmStream(String path) throws IOException {
+        extractor = new SegmentedExtractor(path);
+        MediaFormat format = extractor.getFormat();
+        if (null == format) {
+            extractor.release();
+            throw new IOException("no audio track in " + path);
+        }
+        sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+        try {
+            codec = MediaCodecWrapper.fromAudioFormat(format);
+        } catch (IOException | RuntimeException e) {
+            /*configure() throws when the device is out of codec instances*/
+            extractor.release();
+            throw e;
+        }
+        codec.setOutputSampleListener(this);
+    }
+
+    /**
+     * @return sample rate of the output; decodes the first buffer to learn it, the decoder may
+     * correct the rate of the track (eg. HE-AAC)
+     */
+    public int getSampleRate() throws IOException {
+        while (nextFrame < 0 && !isEos) {
+            pump();
+        }
+        return sampleRate;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * @return frames read so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public boolean isEndOfStream() {
+        return isEos && leadIn == 0 && pendingSize == 0;
+    }
+
+    /**
+     * Reads up to frames stereo frames, blocking on the codec.
+     *
+     * @return frames read, less than frames only at the end of the stream
+     */
+    public int read(short[] dst, int offset, int frames) throws IOException {
+        int done = 0;
+        while (done < frames) {
+            if (leadIn > 0) {
+                int n = (int) Math.min(leadIn, frames - done);
+                Arrays.fill(dst, offset + done * 2, offset + (done + n) * 2, (short) 0);
+                leadIn -= n;
+                done += n;
+            } else if (pendingSize > 0) {
+                int n = Math.min(pendingSize / 2, frames - done);
+                System.arraycopy(pending, pendingOffset, dst, offset + done * 2, n * 2);
+                pendingOffset += n * 2;
+                pendingSize -= n * 2;
+                done += n;
+            } else if (isEos) {
+                break;
+            } else {
+                pump();
+            }
+        }
+        position += done;
+        return done;
+    }
+
+    /**
+     * Reads and drops frames, sample accurately.
+     *
+     * @return frames skipped, less than frames only at the end of the stream
+     */
+    public long skip(long frames) throws IOException {
+        short[] scratch = new short[2048];
+        long skipped = 0;
+        while (skipped < frames) {
+            int n = read(scratch, 0, (int) Math.min(scratch.length / 2, frames - skipped));
+            if (n == 0) {
+                break;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    public void release() {
+        codec.stopAndRelease();
+        extractor.release();
+    }
+
+    private void pump() throws IOException {
+        if (!inputEos && codec.awaitInputBuffer(timeoutUs)) {
+            long sampleTime = extractor.getSampleTime();
+            if (sampleTime < 0) {
+                inputEos = codec.writeEndOfStream(0);
+            } else if (codec.writeSample(extractor.getExtractor(), false, sampleTime, extractor.getSampleFlags())) {
+                extractor.advance();
+            }
+        }
+        if (codec.awaitOutputBuffer(inputEos ? timeoutUs : 0)) {
+            while (pendingSize == 0 && !isEos && codec.peekSample(info)) {
+                codec.popSample();
+            }
+        }
+    }
+
+    @Override
+    public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            isEos = true;
+        }
+        if (info.size <= 0) {
+            return;
+        }
+        if (nextFrame < 0) {
+            MediaFormat format = sender.getOutputFormat();
+            if (null != format) {
+                sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            }
+            nextFrame = Math.max(0, Math.round(info.presentationTimeUs * (double) sampleRate / 1000000));
+            leadIn = nextFrame;
+        } else {
+            long gap = PtsGap.frames(info.presentationTimeUs, nextFrame, sampleRate);
+            leadIn += gap;
+            nextFrame += gap;
+        }
+        int frames = info.size / 2 / channels;
+        if (pending.length < frames * 2) {
+            pending = new short[frames * 2];
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(info.offset);
+        for (int f = 0; f < frames; f++) {
+            short left = buffer.getShort();
+            short right = channels > 1 ? buffer.getShort() : left;
+            for (int c = 2; c < channels; c++) {
+                buffer.getShort();
+            }
+            pending[2 * f] = left;
+            pending[2 * f + 1] = right;
+        }
+        pendingOffset = 0;
+        pendingSize = frames * 2;
+        nextFrame += frames;
+        buffer.clear();
+    }
+}
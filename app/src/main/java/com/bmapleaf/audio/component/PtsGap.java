@@ -0,0 +1,26 @@
+package com.bmapleaf.audio.component;
+
+/**
+ * Gaps in the pts of decoded audio, which a voice gated recording leaves where it did not encode
+ * the silence. {@link PcmStream}, {@link ParallelDecoder} and the decoder of {@link AudioPlayer}
+ * fill them with silence so the output keeps the timeline of the recording.
+ */
+class PtsGap {
+    /*pts jumps up to this are rounding, not gaps*/
+    static final int maxToleranceMs = 5;
+
+    private PtsGap() {
+    }
+
+    /**
+     * @param ptsUs      pts of a decoded buffer
+     * @param nextFrame  frame the output goes on with, at sampleRate
+     * @param sampleRate rate of the output
+     * @return frames of silence missing in front of the buffer, 0 if it follows within the
+     * tolerance or overlaps
+     */
+    static long frames(long ptsUs, long nextFrame, int sampleRate) {
+        long gap = Math.round(ptsUs * (double) sampleRate / 1000000) - nextFrame;
+        return gap * 1000 > (long) sampleRate * maxToleranceMs ? gap : 0;
+    }
+}
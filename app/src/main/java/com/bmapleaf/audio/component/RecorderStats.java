@@ -0,0 +1,289 @@
+package com.bmapleaf.audio.component;
+
+import android.os.Debug;
+
+/**
+ * Counters of a recording session, written by the recorder threads and readable from any thread.
+ */
+public class RecorderStats {
+    private volatile long startNanos;
+    private volatile long capturedFrames;
+    private volatile long droppedBlocks;
+    private volatile long readErrors;
+    private volatile long overruns;
+    private volatile long lostFrames;
+    private volatile long lastOverrunFrame = -1;
+    private volatile long pausedFrames;
+    private volatile long gatedFrames;
+    private volatile long encodedBytes;
+    private volatile long gatedBytes;
+    private volatile long inputLatencyNanos;
+    private volatile long lastResumeNanos;
+    private volatile long maxResumeNanos;
+    private volatile long lastLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile long totalLatencyNanos;
+    private volatile long latencyCount;
+    private volatile long captureCpuNanos;
+    private volatile long encodeCpuNanos;
+    private volatile long processCpuNanos;
+    private volatile long writeCpuNanos;
+
+    void reset() {
+        startNanos = System.nanoTime();
+        capturedFrames = droppedBlocks = readErrors = 0;
+        overruns = lostFrames = 0;
+        lastOverrunFrame = -1;
+        pausedFrames = lastResumeNanos = maxResumeNanos = 0;
+        gatedFrames = encodedBytes = gatedBytes = 0;
+        inputLatencyNanos = 0;
+        lastLatencyNanos = maxLatencyNanos = totalLatencyNanos = latencyCount = 0;
+        captureCpuNanos = encodeCpuNanos = processCpuNanos = writeCpuNanos = 0;
+    }
+
+    void onCaptured(int frames) {
+        capturedFrames += frames;
+    }
+
+    void onDropped() {
+        droppedBlocks++;
+    }
+
+    void onReadError() {
+        readErrors++;
+    }
+
+    void onPaused(int frames) {
+        pausedFrames += frames;
+    }
+
+    void onInputLatency(long nanos) {
+        inputLatencyNanos = nanos;
+    }
+
+    void onGated(int frames) {
+        gatedFrames += frames;
+    }
+
+    /**
+     * @param gated whether the frame was encoded from gated (zeroed) audio
+     */
+    void onEncoded(int bytes, boolean gated) {
+        encodedBytes += bytes;
+        if (gated) {
+            gatedBytes += bytes;
+        }
+    }
+
+    /**
+     * @param latencyNanos from resume() to the end of the first block recorded again
+     */
+    void onResumed(long latencyNanos) {
+        lastResumeNanos = latencyNanos;
+        if (latencyNanos > maxResumeNanos) {
+            maxResumeNanos = latencyNanos;
+        }
+    }
+
+    void onOverrun(long frame, int frames) {
+        overruns++;
+        lostFrames += frames;
+        lastOverrunFrame = frame;
+    }
+
+    /**
+     * @param captureNanos System.nanoTime() when the data left AudioRecord.read()
+     */
+    void onWritten(long captureNanos) {
+        long latency = System.nanoTime() - captureNanos;
+        lastLatencyNanos = latency;
+        if (latency > maxLatencyNanos) {
+            maxLatencyNanos = latency;
+        }
+        totalLatencyNanos += latency;
+        latencyCount++;
+    }
+
+    /**
+     * @return cpu time of the calling thread, the baseline a stage takes when its call() starts;
+     * the pool threads are reused across sessions and stages
+     */
+    static long threadCpuNanos() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    /**
+     * @param baseNanos threadCpuNanos() when the capture thread started, likewise for the other
+     *                  stages
+     */
+    void updateCaptureCpu(long baseNanos) {
+        captureCpuNanos = cpuSince(baseNanos);
+    }
+
+    void updateEncodeCpu(long baseNanos) {
+        encodeCpuNanos = cpuSince(baseNanos);
+    }
+
+    void updateProcessCpu(long baseNanos) {
+        processCpuNanos = cpuSince(baseNanos);
+    }
+
+    void updateWriteCpu(long baseNanos) {
+        writeCpuNanos = cpuSince(baseNanos);
+    }
+
+    public long getCapturedFrames() {
+        return capturedFrames;
+    }
+
+    /**
+     * @return encoded frames lost because the writer thread could not keep up
+     */
+    public long getDroppedBlocks() {
+        return droppedBlocks;
+    }
+
+    public long getReadErrors() {
+        return readErrors;
+    }
+
+    /**
+     * @return how often the capture ring was overwritten before the encoder read it
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * @return frames replaced with silence after overruns
+     */
+    public long getLostFrames() {
+        return lostFrames;
+    }
+
+    /**
+     * @return first frame of the last overrun, -1 if there was none
+     */
+    public long getLastOverrunFrame() {
+        return lastOverrunFrame;
+    }
+
+    /**
+     * @return frames read while paused and left out of the recording
+     */
+    public long getPausedFrames() {
+        return pausedFrames;
+    }
+
+    /**
+     * @return frames the voice gate found silent and did not encode as captured
+     */
+    public long getGatedFrames() {
+        return gatedFrames;
+    }
+
+    /**
+     * @return size of all encoded frames
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * @return what the gated frames still cost as encoded silence, 0 with gaps
+     */
+    public long getGatedBytes() {
+        return gatedBytes;
+    }
+
+    /**
+     * @return bytes the voice gate saved: the gated frames at the byte rate of the voice
+     * around them, minus what they still cost
+     */
+    public long getSavedBytes() {
+        long voiceFrames = capturedFrames - gatedFrames;
+        if (voiceFrames <= 0) {
+            return 0;
+        }
+        return Math.max(0, gatedFrames * (encodedBytes - gatedBytes) / voiceFrames - gatedBytes);
+    }
+
+    /**
+     * @return time from the microphone to read(), 0 where the system does not tell it
+     */
+    public float getInputLatencyMs() {
+        return inputLatencyNanos / 1e6f;
+    }
+
+    /**
+     * @return time from the last resume() until recording went on, in milliseconds; at most
+     * one capture block unless the capture thread was late
+     */
+    public float getLastResumeLatencyMs() {
+        return lastResumeNanos / 1e6f;
+    }
+
+    public float getMaxResumeLatencyMs() {
+        return maxResumeNanos / 1e6f;
+    }
+
+    /**
+     * @return capture to disk latency of the last written frame in milliseconds
+     */
+    public float getLastLatencyMs() {
+        return lastLatencyNanos / 1e6f;
+    }
+
+    public float getMaxLatencyMs() {
+        return maxLatencyNanos / 1e6f;
+    }
+
+    public float getAverageLatencyMs() {
+        long n = latencyCount;
+        return n == 0 ? 0 : totalLatencyNanos / n / 1e6f;
+    }
+
+    /**
+     * @return cpu time of the capture thread divided by wall time since start, -1 if unknown
+     */
+    public float getCaptureCpuLoad() {
+        return load(captureCpuNanos);
+    }
+
+    public float getEncodeCpuLoad() {
+        return load(encodeCpuNanos);
+    }
+
+    /**
+     * @return load of the process thread, which only runs for several outputs with processing
+     */
+    public float getProcessCpuLoad() {
+        return load(processCpuNanos);
+    }
+
+    public float getWriteCpuLoad() {
+        return load(writeCpuNanos);
+    }
+
+    /**
+     * @return -1 if the system does not tell the cpu time
+     */
+    private static long cpuSince(long baseNanos) {
+        return baseNanos < 0 ? -1 : Debug.threadCpuTimeNanos() - baseNanos;
+    }
+
+    private float load(long cpuNanos) {
+        long wall = System.nanoTime() - startNanos;
+        return cpuNanos < 0 ? -1 : wall <= 0 ? 0 : (float) cpuNanos / wall;
+    }
+
+    @Override
+    public String toString() {
+        return "RecorderStats{frames=" + capturedFrames + ", dropped=" + droppedBlocks
+                + ", overruns=" + overruns + "/" + lostFrames + " frames"
+                + ", gated=" + gatedFrames + " frames/" + getSavedBytes() + " bytes saved"
+                + ", latency=" + getAverageLatencyMs() + "/" + getMaxLatencyMs() + "ms"
+                + ", cpu capture=" + getCaptureCpuLoad() + " encode=" + getEncodeCpuLoad()
+                + " write=" + getWriteCpuLoad() + "}";
+    }
+}
@@ -0,0 +1,60 @@
+package com.bmapleaf.audio.component;
+
+/**
+ * Outcome of an offline render: how much audio was produced and how fast.
+ */
+public class RenderResult {
+    private final long frames;
+    private final int sampleRate;
+    private final long elapsedNanos;
+    private final boolean completed;
+
+    public RenderResult(long frames, int sampleRate, long elapsedNanos, boolean completed) {
+        this.frames = frames;
+        this.sampleRate = sampleRate;
+        this.elapsedNanos = elapsedNanos;
+        this.completed = completed;
+    }
+
+    /**
+     * @return frames written to the sink
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return duration of the rendered audio in milliseconds
+     */
+    public long getDurationMs() {
+        return sampleRate == 0 ? 0 : frames * 1000 / sampleRate;
+    }
+
+    public long getElapsedMs() {
+        return elapsedNanos / 1000000;
+    }
+
+    /**
+     * @return audio duration divided by wall clock time, 10 means ten times faster than real time
+     */
+    public float getRealTimeFactor() {
+        return elapsedNanos == 0 || sampleRate == 0 ? 0 : (float) ((double) frames / sampleRate * 1e9 / elapsedNanos);
+    }
+
+    /**
+     * @return false if the render was stopped before the end of the play range
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderResult{" + getDurationMs() + "ms in " + getElapsedMs() + "ms, x" + getRealTimeFactor()
+                + (completed ? "" : ", stopped") + "}";
+    }
+}
@@ -0,0 +1,195 @@
+package com.bmapleaf.audio.component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The list of chunk files of a segmented recording, a small text file ending with
+ * {@link #suffix}. Chunks of "practice.segments" are "practice.0001.aac", "practice.0002.aac"
+ * and so on next to it.
+ * <p>
+ * A chunk is listed before its first byte is written and closed with its length once the next
+ * one starts, the file is replaced through a rename every time. If the app dies the manifest
+ * still lists every chunk on disk and only the last one is open (length -1); its length then
+ * comes from the chunk itself.
+ */
+public class SegmentManifest {
+    public static final String suffix = ".segments";
+    private static final String header = "segments 1";
+    private final File file;
+    private final int sampleRate;
+    private final int channels;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    public SegmentManifest(File file, int sampleRate, int channels) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    public static boolean isManifest(String path) {
+        return null != path && path.endsWith(suffix);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return the chunk file by its name in the manifest
+     */
+    public File fileOf(Chunk chunk) {
+        return new File(file.getParentFile(), chunk.name);
+    }
+
+    /**
+     * Closes the open chunk, if any, and lists a new one starting at startFrame.
+     *
+     * @param extension of the chunk file, eg. ".aac"
+     * @return the file to write the chunk to
+     */
+    public File openChunk(long startFrame, String extension) throws IOException {
+        closeChunk(startFrame);
+        String base = file.getName();
+        if (base.endsWith(suffix)) {
+            base = base.substring(0, base.length() - suffix.length());
+        }
+        Chunk chunk = new Chunk(String.format(Locale.US, "%s.%04d%s", base, chunks.size() + 1, extension), startFrame, -1);
+        chunks.add(chunk);
+        save();
+        return fileOf(chunk);
+    }
+
+    /**
+     * Sets the length of the open chunk.
+     *
+     * @param endFrame frame after its last one
+     */
+    public void closeChunk(long endFrame) throws IOException {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        Chunk last = chunks.get(chunks.size() - 1);
+        if (last.frames < 0) {
+            last.frames = Math.max(0, endFrame - last.startFrame);
+            save();
+        }
+    }
+
+    /**
+     * @return index of the chunk holding timeUs, the first or the last one outside the list
+     */
+    public int indexOf(long timeUs) {
+        long frame = timeUs * sampleRate / 1000000;
+        int index = 0;
+        while (index + 1 < chunks.size() && chunks.get(index + 1).startFrame <= frame) {
+            index++;
+        }
+        return index;
+    }
+
+    public long startUsOf(Chunk chunk) {
+        return chunk.startFrame * 1000000 / sampleRate;
+    }
+
+    private void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            out.write(header + "\n");
+            out.write("sampleRate " + sampleRate + "\n");
+            out.write("channels " + channels + "\n");
+            for (Chunk chunk : chunks) {
+                out.write(chunk.startFrame + "\t" + chunk.frames + "\t" + chunk.name + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can not write " + file);
+        }
+    }
+
+    /**
+     * Reads a manifest, also one left behind by a crash.
+     */
+    public static SegmentManifest load(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!header.equals(in.readLine())) {
+                throw new IOException("not a segment manifest: " + file);
+            }
+            int sampleRate = Integer.parseInt(value(in.readLine(), "sampleRate", file));
+            int channels = Integer.parseInt(value(in.readLine(), "channels", file));
+            SegmentManifest manifest = new SegmentManifest(file, sampleRate, channels);
+            String line;
+            while (null != (line = in.readLine())) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length != 3) {
+                    throw new IOException("bad chunk \"" + line + "\" in " + file);
+                }
+                manifest.chunks.add(new Chunk(fields[2], Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+            }
+            if (manifest.chunks.isEmpty()) {
+                throw new IOException("no chunks in " + file);
+            }
+            return manifest;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad number in " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String value(String line, String key, File file) throws IOException {
+        if (null == line || !line.startsWith(key + " ")) {
+            throw new IOException("missing " + key + " in " + file);
+        }
+        return line.substring(key.length() + 1);
+    }
+
+    /**
+     * One chunk file: frames [startFrame, startFrame + frames) of the recording.
+     */
+    public static class Chunk {
+        public final String name;
+        public final long startFrame;
+        /*-1 while the chunk is being written*/
+        private long frames;
+
+        Chunk(String name, long startFrame, long frames) {
+            this.name = name;
+            this.startFrame = startFrame;
+            this.frames = frames;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        public boolean isOpen() {
+            return frames < 0;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.bmapleaf.audio.component;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the chunks of a segmented recording (see {@link SegmentManifest}) as one continuous
+ * source: the part of {@link MediaExtractor} the player uses, over one extractor per chunk.
+ * Only the chunk being read is open, so memory does not depend on the length of the
+ * recording. Sample times count from the start of the recording. Any other path is read as a
+ * single chunk.
+ */
+public class SegmentedExtractor {
+    private static final String TAG = "SegmentedExtractor";
+    private final SegmentManifest manifest;
+    private final MediaFormat format;
+    private MediaExtractor extractor;
+    private int chunk;
+    private long chunkStartUs;
+
+    public SegmentedExtractor(String path) throws IOException {
+        if (SegmentManifest.isManifest(path)) {
+            manifest = SegmentManifest.load(new File(path));
+            format = openChunk(0);
+            if (null != format) {
+                format.setLong(MediaFormat.KEY_DURATION, getDurationUs());
+            }
+        } else {
+            manifest = null;
+            extractor = new MediaExtractor();
+            extractor.setDataSource(path);
+            format = selectAudioTrack(extractor);
+        }
+    }
+
+    /**
+     * @return format of the audio track, its duration covering all chunks; null if there is none
+     */
+    public MediaFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the extractor of the current chunk, positioned at the current sample
+     */
+    public MediaExtractor getExtractor() {
+        return extractor;
+    }
+
+    /**
+     * @return time of the current sample in the recording, -1 after the last one
+     */
+    public long getSampleTime() {
+        long timeUs = extractor.getSampleTime();
+        return timeUs < 0 ? -1 : chunkStartUs + timeUs;
+    }
+
+    public int getSampleFlags() {
+        return extractor.getSampleFlags();
+    }
+
+    /**
+     * Moves to the next sample, into the next chunk at the end of one.
+     *
+     * @return false after the last sample
+     */
+    public boolean advance() {
+        extractor.advance();
+        skipFinishedChunks();
+        return extractor.getSampleTime() >= 0;
+    }
+
+    public void seekTo(long timeUs, int mode) {
+        if (null != manifest) {
+            int index = manifest.indexOf(timeUs);
+            if (index != chunk) {
+                try {
+                    openChunk(index);
+                } catch (IOException e) {
+                    Log.e(TAG, "seekTo: can not open chunk " + index, e);
+                }
+            }
+        }
+        extractor.seekTo(Math.max(0, timeUs - chunkStartUs), mode);
+        skipFinishedChunks();
+    }
+
+    public void release() {
+        if (null != extractor) {
+            extractor.release();
+            extractor = null;
+        }
+    }
+
+    private void skipFinishedChunks() {
+        if (null == manifest) {
+            return;
+        }
+        int count = manifest.getChunks().size();
+        for (int next = chunk + 1; extractor.getSampleTime() < 0 && next < count; next++) {
+            try {
+                openChunk(next);
+            } catch (IOException e) {
+                /*a chunk lost in a crash leaves a gap, not the end of the recording*/
+                Log.e(TAG, "can not open chunk " + next, e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the current extractor by one at the start of chunk index, the current one stays
+     * if that fails.
+     *
+     * @return format of the audio track of the chunk
+     */
+    private MediaFormat openChunk(int index) throws IOException {
+        SegmentManifest.Chunk c = manifest.getChunks().get(index);
+        MediaExtractor next = new MediaExtractor();
+        MediaFormat chunkFormat;
+        try {
+            next.setDataSource(manifest.fileOf(c).getPath());
+            chunkFormat = selectAudioTrack(next);
+        } catch (IOException e) {
+            next.release();
+            throw e;
+        }
+        release();
+        extractor = next;
+        chunk = index;
+        chunkStartUs = manifest.startUsOf(c);
+        return chunkFormat;
+    }
+
+    /**
+     * @return duration of the recording, an open last chunk as long as its extractor tells
+     */
+    private long getDurationUs() {
+        List<SegmentManifest.Chunk> chunks = manifest.getChunks();
+        SegmentManifest.Chunk last = chunks.get(chunks.size() - 1);
+        if (!last.isOpen()) {
+            return (last.startFrame + last.getFrames()) * 1000000 / manifest.getSampleRate();
+        }
+        MediaExtractor probe = new MediaExtractor();
+        try {
+            probe.setDataSource(manifest.fileOf(last).getPath());
+            MediaFormat lastFormat = selectAudioTrack(probe);
+            if (null != lastFormat && lastFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                return manifest.startUsOf(last) + lastFormat.getLong(MediaFormat.KEY_DURATION);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "getDurationUs: can not open " + last.name, e);
+        } finally {
+            probe.release();
+        }
+        return manifest.startUsOf(last);
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = extractor.getTrackFormat(i);
+            if (trackFormat.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return trackFormat;
+            }
+        }
+        return null;
+    }
+}
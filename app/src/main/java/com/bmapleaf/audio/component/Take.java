@@ -0,0 +1,130 @@
+package com.bmapleaf.audio.component;
+
+import com.bmapleaf.audio.dsp.EditList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A recorded take and its retakes.
+ * <p>
+ * A punch-in never touches the take itself: the retake is recorded to its own segment file next
+ * to it ("song.m4a.retake1.m4a") and listed in "song.m4a.edits", see {@link EditList}. Players
+ * splice the segments in while reading, so a retake costs its own length only.
+ */
+public class Take {
+    public static final String editsSuffix = ".edits";
+    private static final String segmentSuffix = ".retake";
+    /*the player works on stereo buffers, mono segments are widened when loaded*/
+    private static final int channels = 2;
+    private final File file;
+    private final File editsFile;
+    private EditList editList;
+
+    public Take(String path) {
+        file = new File(path);
+        editsFile = new File(path + editsSuffix);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the edits of the take, empty if it was never retaken. Segment pcm is not loaded.
+     */
+    public synchronized EditList getEditList() throws IOException {
+        if (null == editList) {
+            editList = editsFile.exists() ? EditList.load(editsFile) : new EditList(channels);
+        }
+        return editList;
+    }
+
+    /**
+     * @param extension of the segment, eg. ".m4a" or ".wav"
+     * @return an unused file for the next retake
+     */
+    public synchronized File newSegmentFile(String extension) {
+        for (int n = 1; ; n++) {
+            File segment = new File(file.getPath() + segmentSuffix + n + extension);
+            if (!segment.exists()) {
+                return segment;
+            }
+        }
+    }
+
+    /**
+     * Lists a recorded segment as replacing [startFrame, endFrame) of the take.
+     *
+     * @param originFrame frame of the take where the segment starts
+     */
+    public synchronized EditList.Edit addRetake(File segment, long startFrame, long endFrame, long originFrame) throws IOException {
+        EditList.Edit edit = new EditList.Edit(segment.getName(), startFrame, endFrame, originFrame);
+        getEditList().add(edit);
+        editList.save(editsFile);
+        return edit;
+    }
+
+    /**
+     * Drops the last retake and deletes its segment.
+     *
+     * @return false if there was nothing to undo
+     */
+    public synchronized boolean undo() throws IOException {
+        EditList.Edit edit = getEditList().removeLast();
+        if (null == edit) {
+            return false;
+        }
+        editList.save(editsFile);
+        new File(file.getParentFile(), edit.segment).delete();
+        return true;
+    }
+
+    public void setCrossfade(int frames) throws IOException {
+        getEditList().setCrossfade(frames);
+        synchronized (this) {
+            editList.save(editsFile);
+        }
+    }
+
+    /**
+     * Decodes the segments that are not loaded yet, call it off the main thread.
+     *
+     * @return the edit list, ready for {@link IPlayer#setEditList(EditList)}
+     * @throws IOException if a segment is missing or has another sample rate than the take
+     */
+    public EditList loadSegments() throws IOException, InterruptedException {
+        EditList list = getEditList();
+        int sampleRate = 0;
+        for (EditList.Edit edit : list.getEdits()) {
+            if (null != edit.getPcm()) {
+                continue;
+            }
+            if (0 == sampleRate) {
+                sampleRate = new ParallelDecoder(file.getPath()).getSampleRate();
+            }
+            ParallelDecoder decoder = new ParallelDecoder(new File(file.getParentFile(), edit.segment).getPath());
+            if (decoder.getSampleRate() != sampleRate) {
+                throw new IOException(edit.segment + " is " + decoder.getSampleRate() + " Hz, the take " + sampleRate + " Hz");
+            }
+            ParallelDecoder.ArrayOutput output = new ParallelDecoder.ArrayOutput(decoder);
+            decoder.decode(output);
+            edit.setPcm(toStereo(output.getData(), (int) output.getFrames(), decoder.getChannels()));
+        }
+        return list;
+    }
+
+    private static short[] toStereo(short[] data, int frames, int channels) {
+        if (channels == 2) {
+            return data.length == frames * 2 ? data : Arrays.copyOf(data, frames * 2);
+        }
+        short[] stereo = new short[frames * 2];
+        for (int f = 0; f < frames; f++) {
+            short v = data[f * channels];
+            stereo[f * 2] = v;
+            stereo[f * 2 + 1] = channels > 1 ? data[f * channels + 1] : v;
+        }
+        return stereo;
+    }
+}
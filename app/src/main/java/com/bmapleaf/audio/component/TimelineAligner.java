@@ -0,0 +1,139 @@
+package com.bmapleaf.audio.component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Places a recording on the media timeline of the backing track it was sung over.
+ * <p>
+ * Every measurement pairs a recorded frame with the media time heard when that frame was
+ * captured, both taken on the System.nanoTime() clock, so the output and input latency are
+ * inside it. Each pair estimates the media time of recorded frame 0; the median of the last
+ * estimates ignores the jitter of single timestamps. The result is saved next to the recording
+ * ("vocal.m4a.align") for the mixdown.
+ */
+public class TimelineAligner {
+    public static final String suffix = ".align";
+    private static final String header = "align 1";
+    private final int sampleRate;
+    private final long[] estimates;
+    private final long[] sorted;
+    private int count;
+    private int next;
+
+    /**
+     * @param window number of recent estimates the median is taken over
+     */
+    public TimelineAligner(int sampleRate, int window) {
+        this.sampleRate = sampleRate;
+        estimates = new long[window];
+        sorted = new long[window];
+    }
+
+    /**
+     * Adds one measurement.
+     *
+     * @param frame   recorded frame
+     * @param mediaUs media time heard when frame was captured
+     */
+    public synchronized void add(long frame, long mediaUs) {
+        estimates[next] = mediaUs - frame * 1000000 / sampleRate;
+        next = (next + 1) % estimates.length;
+        count = Math.min(count + 1, estimates.length);
+    }
+
+    public synchronized void reset() {
+        count = next = 0;
+    }
+
+    public synchronized boolean isAligned() {
+        return count > 0;
+    }
+
+    /**
+     * @return media time of recorded frame 0, negative if the recording started before the
+     * backing track; 0 before the first measurement
+     */
+    public synchronized long getOffsetUs() {
+        if (count == 0) {
+            return 0;
+        }
+        System.arraycopy(estimates, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+
+    /**
+     * @return spread of the estimates, a measure of how far the offset can be trusted
+     */
+    public synchronized long getJitterUs() {
+        if (count == 0) {
+            return 0;
+        }
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            min = Math.min(min, estimates[i]);
+            max = Math.max(max, estimates[i]);
+        }
+        return max - min;
+    }
+
+    /**
+     * @return media time of a recorded frame
+     */
+    public long toMediaUs(long frame) {
+        return getOffsetUs() + frame * 1000000 / sampleRate;
+    }
+
+    /**
+     * Saves the offset next to recording.
+     */
+    public void save(String recording) throws IOException {
+        File file = new File(recording + suffix);
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            out.write(header + "\n");
+            out.write("offsetUs " + getOffsetUs() + "\n");
+            out.write("jitterUs " + getJitterUs() + "\n");
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can not write " + file);
+        }
+    }
+
+    /**
+     * @return media time of the first frame of recording as saved by save(), 0 if it was not
+     * aligned
+     */
+    public static long loadOffsetUs(String recording) throws IOException {
+        File file = new File(recording + suffix);
+        if (!file.exists()) {
+            return 0;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!header.equals(in.readLine())) {
+                throw new IOException("not an alignment: " + file);
+            }
+            String line = in.readLine();
+            if (null == line || !line.startsWith("offsetUs ")) {
+                throw new IOException("no offset in " + file);
+            }
+            return Long.parseLong(line.substring("offsetUs ".length()).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("bad number in " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.bmapleaf.audio.component;
+
+import com.bmapleaf.audio.dsp.Resampler;
+
+import java.io.IOException;
+
+/**
+ * Places a stereo vocal on the timeline of a backing track and mixes the two, the part of
+ * {@link Mixdown} that does not need a decoder.
+ * <p>
+ * The offset is turned into frames once: a late vocal is preceded by that many frames of
+ * silence at the output rate, an early one loses that many frames of its own rate before
+ * resampling, so the placement is sample accurate whatever the two rates are. The resampler is
+ * centered on its first input and adds no delay of its own, and is drained at the end of the
+ * source so the vocal keeps its last frames.
+ */
+class VocalMixer {
+    private final Source source;
+    private final Resampler resampler;
+    private final int blockFrames;
+    private final short[] in;
+    /*vocal at the output rate, ahead of the mix*/
+    private final short[] fifo;
+    private int fifoOffset;
+    private int fifoSize;
+    private long leadIn;
+    private long skip;
+    private boolean ended;
+
+    /**
+     * Stereo frames of the vocal at its own rate.
+     */
+    interface Source {
+        /**
+         * @return frames read, 0 at the end
+         */
+        int read(short[] dst, int offset, int frames) throws IOException;
+    }
+
+    /**
+     * @param offsetUs    media time of the backing track where the vocal starts, negative if the
+     *                    vocal started before it
+     * @param blockFrames frames read from the source at a time
+     */
+    VocalMixer(Source source, int vocalRate, int outputRate, long offsetUs, int blockFrames) {
+        this.source = source;
+        this.blockFrames = blockFrames;
+        if (vocalRate != outputRate) {
+            resampler = new Resampler();
+            resampler.configure(vocalRate, outputRate, 2, blockFrames, Resampler.Quality.HIGH);
+            fifo = new short[resampler.getMaxOutputFrames(blockFrames) * 2];
+        } else {
+            resampler = null;
+            fifo = new short[blockFrames * 2];
+        }
+        in = new short[blockFrames * 2];
+        if (offsetUs >= 0) {
+            leadIn = Math.round(offsetUs * (double) outputRate / 1000000);
+        } else {
+            skip = Math.round(-offsetUs * (double) vocalRate / 1000000);
+        }
+    }
+
+    /**
+     * Fills dst with the vocal at the output rate: lead-in silence, then the source.
+     *
+     * @return frames filled, less than frames only at the end of the vocal
+     */
+    int read(short[] dst, int frames) throws IOException {
+        int done = 0;
+        while (done < frames) {
+            if (leadIn > 0) {
+                int n = (int) Math.min(leadIn, frames - done);
+                for (int i = done * 2; i < (done + n) * 2; i++) {
+                    dst[i] = 0;
+                }
+                leadIn -= n;
+                done += n;
+            } else if (fifoSize > 0) {
+                int n = Math.min(fifoSize / 2, frames - done);
+                System.arraycopy(fifo, fifoOffset, dst, done * 2, n * 2);
+                fifoOffset += n * 2;
+                fifoSize -= n * 2;
+                done += n;
+            } else if (ended) {
+                break;
+            } else {
+                int n = source.read(in, 0, blockFrames);
+                if (n == 0) {
+                    ended = true;
+                    if (null != resampler) {
+                        fifoOffset = 0;
+                        fifoSize = resampler.drain(fifo) * 2;
+                    }
+                    continue;
+                }
+                /*the head of an early vocal is dropped before the resampler sees it*/
+                int from = (int) Math.min(skip, n);
+                skip -= from;
+                if (from == n) {
+                    continue;
+                }
+                if (from > 0) {
+                    System.arraycopy(in, from * 2, in, 0, (n - from) * 2);
+                    n -= from;
+                }
+                fifoOffset = 0;
+                if (null != resampler) {
+                    fifoSize = resampler.process(in, n, fifo) * 2;
+                } else {
+                    System.arraycopy(in, 0, fifo, 0, n * 2);
+                    fifoSize = n * 2;
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * out = backing * backingGain + vocal * vocalGain, clipped to 16 bits, over the longer of the
+     * two; the shorter one counts as silence past its end.
+     *
+     * @param b frames in backing
+     * @param v frames in vocal
+     * @return frames in out
+     */
+    static int mix(short[] backing, int b, float backingGain, short[] vocal, int v, float vocalGain, short[] out) {
+        int n = Math.max(b, v);
+        for (int i = 0; i < n * 2; i++) {
+            float sum = (i < b * 2 ? backing[i] * backingGain : 0) + (i < v * 2 ? vocal[i] * vocalGain : 0);
+            out[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, (int) sum));
+        }
+        return n;
+    }
+}
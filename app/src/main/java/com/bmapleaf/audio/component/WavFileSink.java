@@ -0,0 +1,194 @@
+package com.bmapleaf.audio.component;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes 16 bit pcm to a file, raw or with a RIFF/WAVE header whose sizes are patched on close().
+ * <p>
+ * Samples are batched in one large direct buffer that goes to the FileChannel only when full, so
+ * every write() call on the channel covers bufferSize bytes at a multiple of bufferSize in the
+ * file (the header travels with the first one). With a header update interval the sizes in the
+ * header are also patched after flushes, so a file left behind by a crash stays playable up to
+ * the last flush.
+ */
+public class WavFileSink implements IAudioSink {
+    private static final int headerSize = 44;
+    private static final int pageSize = 4096;
+    private final String path;
+    private final boolean wavHeader;
+    private int bufferSize = 256 * 1024;
+    private long headerUpdateNanos;
+    private long lastHeaderUpdate;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private ShortBuffer shorts;
+    private ByteBuffer header;
+    private int sampleRate;
+    private int channels;
+    private long dataBytes;
+    private long flushedBytes;
+    private long writeCalls;
+
+    /**
+     * @param path      output file
+     * @param wavHeader true for a .wav file, false for raw pcm
+     */
+    public WavFileSink(String path, boolean wavHeader) {
+        this.path = path;
+        this.wavHeader = wavHeader;
+    }
+
+    /**
+     * Sets the size of the write batches, rounded to whole pages. Call it before open().
+     */
+    public void setBufferSize(int bytes) {
+        bufferSize = Math.max(pageSize, bytes / pageSize * pageSize);
+    }
+
+    /**
+     * Patches the header after a flush once this much time passed since the last patch.
+     *
+     * @param intervalMs 0 to patch only on close()
+     */
+    public void setHeaderUpdateInterval(long intervalMs) {
+        headerUpdateNanos = intervalMs * 1000000;
+    }
+
+    @Override
+    public void open(int sampleRate, int channels) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        dataBytes = flushedBytes = writeCalls = 0;
+        lastHeaderUpdate = System.nanoTime();
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        shorts = buffer.asShortBuffer();
+        header = ByteBuffer.allocateDirect(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        if (wavHeader) {
+            writeHeader(buffer, sampleRate, channels, 0);
+        }
+    }
+
+    @Override
+    public void write(short[] data, int offset, int size) throws IOException {
+        dataBytes += size * 2;
+        while (size > 0) {
+            if (buffer.remaining() < 2) {
+                flush();
+            }
+            int n = Math.min(size, buffer.remaining() / 2);
+            shorts.position(buffer.position() / 2);
+            shorts.put(data, offset, n);
+            buffer.position(buffer.position() + n * 2);
+            offset += n;
+            size -= n;
+        }
+    }
+
+    /**
+     * Writes little endian 16 bit samples between position and limit, eg. a codec output buffer.
+     * The position is left unchanged.
+     */
+    public void write(ByteBuffer pcm) throws IOException {
+        int position = pcm.position();
+        int limit = pcm.limit();
+        dataBytes += limit - position;
+        while (pcm.position() < limit) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            pcm.limit(Math.min(limit, pcm.position() + buffer.remaining()));
+            buffer.put(pcm);
+            pcm.limit(limit);
+        }
+        pcm.position(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null == channel) {
+            return;
+        }
+        try {
+            flush();
+            if (wavHeader) {
+                patchHeader();
+            }
+        } finally {
+            channel.close();
+            file.close();
+            channel = null;
+            file = null;
+        }
+    }
+
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @return write calls made on the FileChannel, headers included
+     */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+            writeCalls++;
+        }
+        buffer.clear();
+        flushedBytes = channel.position() - (wavHeader ? headerSize : 0);
+        if (wavHeader && headerUpdateNanos > 0) {
+            long now = System.nanoTime();
+            if (now - lastHeaderUpdate >= headerUpdateNanos) {
+                lastHeaderUpdate = now;
+                patchHeader();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the header for the data that reached the file so far.
+     */
+    private void patchHeader() throws IOException {
+        header.clear();
+        writeHeader(header, sampleRate, channels, flushedBytes);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+            writeCalls++;
+        }
+    }
+
+    /**
+     * Puts a canonical 44 byte RIFF/WAVE header for 16 bit pcm.
+     */
+    static void writeHeader(ByteBuffer out, int sampleRate, int channels, long dataBytes) {
+        int blockAlign = channels * 2;
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        out.putInt((int) Math.min(0xffffffffL, dataBytes + headerSize - 8));
+        out.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+        out.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        out.putInt(16);
+        out.putShort((short) 1);
+        out.putShort((short) channels);
+        out.putInt(sampleRate);
+        out.putInt(sampleRate * blockAlign);
+        out.putShort((short) blockAlign);
+        out.putShort((short) 16);
+        out.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        out.putInt((int) Math.min(0xffffffffL, dataBytes));
+    }
+}
@@ -0,0 +1,78 @@
+package com.bmapleaf.audio.component;
+
+import android.util.Log;
+
+import com.bmapleaf.audio.dsp.WaveformPyramid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Loads the waveform of a track from the {@link MediaCache}, or builds it in one decode pass
+ * with {@link ParallelDecoder} and stores it next to the track metadata.
+ */
+public class WaveformAnalyzer {
+    private static final String TAG = "WaveformAnalyzer";
+    public static final String waveformFile = "peaks.bin";
+    private final MediaCache cache;
+
+    public WaveformAnalyzer(MediaCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cached waveform, null if it was not built yet
+     */
+    public WaveformPyramid load(String mediaPath) throws IOException {
+        File file = cache.getFile(mediaPath, waveformFile);
+        if (file.exists()) {
+            try {
+                return WaveformPyramid.load(file);
+            } catch (IOException e) {
+                Log.w(TAG, "load: dropping unreadable " + file, e);
+                file.delete();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached waveform or decodes the track to build it. Call it off the main thread.
+     */
+    public WaveformPyramid get(String mediaPath) throws IOException, InterruptedException {
+        WaveformPyramid pyramid = load(mediaPath);
+        if (null == pyramid) {
+            pyramid = analyze(mediaPath);
+        }
+        return pyramid;
+    }
+
+    /**
+     * Decodes the whole track, builds the waveform and caches it.
+     */
+    public WaveformPyramid analyze(String mediaPath) throws IOException, InterruptedException {
+        ParallelDecoder decoder = new ParallelDecoder(mediaPath);
+        long expectedFrames = decoder.getDurationUs() * decoder.getSampleRate() / 1000000;
+        final WaveformPyramid pyramid = new WaveformPyramid(decoder.getSampleRate(), decoder.getChannels(), expectedFrames);
+        long t0 = System.currentTimeMillis();
+        long frames = decoder.decode(new ParallelDecoder.Output() {
+            @Override
+            public void write(long frame, ByteBuffer pcm) {
+                pyramid.add(frame, pcm);
+            }
+        });
+        pyramid.finish();
+        Log.d(TAG, "analyze: " + frames + " frames in " + (System.currentTimeMillis() - t0) + "ms");
+
+        pyramid.save(cache.getFile(mediaPath, waveformFile));
+        Properties metadata = new Properties();
+        metadata.setProperty(MediaCache.KEY_SAMPLE_RATE, String.valueOf(decoder.getSampleRate()));
+        metadata.setProperty(MediaCache.KEY_CHANNELS, String.valueOf(decoder.getChannels()));
+        metadata.setProperty(MediaCache.KEY_DURATION_US, String.valueOf(decoder.getDurationUs()));
+        metadata.setProperty(MediaCache.KEY_FRAMES, String.valueOf(frames));
+        cache.putMetadata(mediaPath, metadata);
+        return pyramid;
+    }
+}
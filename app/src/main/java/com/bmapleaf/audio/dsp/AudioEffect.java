@@ -0,0 +1,31 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * One processing stage of an {@link EffectChain}.
+ * <p>
+ * Blocks are interleaved float samples in [-1, 1]. process() is called on the audio thread and must
+ * not allocate, lock or block, everything it needs has to be created in prepare().
+ */
+public interface AudioEffect {
+    /**
+     * Called before the first block and whenever the stream format changes.
+     *
+     * @param sampleRate sample rate of the blocks
+     * @param channels   number of interleaved channels
+     * @param maxFrames  the largest block process() will get
+     */
+    void prepare(int sampleRate, int channels, int maxFrames);
+
+    /**
+     * Processes one block in place.
+     *
+     * @param buffer interleaved samples
+     * @param frames number of frames in the block
+     */
+    void process(float[] buffer, int frames);
+
+    /**
+     * Clears internal state (delay lines, filter memory), eg. after a seek or when un-bypassed.
+     */
+    void reset();
+}
@@ -0,0 +1,484 @@
+package com.bmapleaf.audio.dsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Onset strength, tempo and beats of a whole track, built in one pass over its pcm and kept as a
+ * small file per track, for the tempo display, loop points snapped to beats and count-ins.
+ * <p>
+ * add() computes the onset strength every 10 ms as it goes: the spectral flux of the mono mix,
+ * the sum of the rises of the log compressed magnitudes over a Hann window, each bin weighted by
+ * its share of the mel scale. finish() takes the tempo from the autocorrelation of the onset
+ * envelope, weighted towards 120 bpm so the octave errors fall on the common side, and tracks the
+ * beats by dynamic programming over the envelope (Ellis 2007): every beat is placed on a strong
+ * onset about one period after the previous. A straight line fitted through the beats gives the
+ * grid for count-ins before the first beat. The envelope is kept quantized to a byte, about 100
+ * bytes per second of audio.
+ */
+public class BeatIndex {
+    public static final float minBpm = 60;
+    public static final float maxBpm = 200;
+    private static final int magic = 0x54414542;
+    private static final int version = 1;
+    private static final float envelopeRate = 100;
+    /*how hard a beat is pulled to one period after the previous*/
+    private static final float tightness = 100;
+    private static final float preferredBpm = 120;
+    private static final float octaveWidth = 1;
+    private static final float compression = 100;
+    private final int sampleRate;
+    private final int channels;
+    private final int hopFrames;
+    private final int window;
+    private long frames;
+    private float tempo;
+    private double periodFrames;
+    private long firstBeatFrame;
+    private int[] beats = new int[0];
+    private byte[] strength = new byte[0];
+    /*analysis state, dropped by finish()*/
+    private float[] input;
+    private int filled;
+    private float[] hann;
+    private float[] re;
+    private float[] im;
+    private float[] previous;
+    private float[] weights;
+    private Fft fft;
+    private float[] envelope;
+    private int count;
+
+    /**
+     * @param channels of the interleaved pcm given to add(), mixed to mono
+     */
+    public BeatIndex(int sampleRate, int channels) {
+        this(sampleRate, channels, Math.max(1, Math.round(sampleRate / envelopeRate)));
+        input = new float[window];
+        /*the first window ends one hop into the track*/
+        filled = window - hopFrames;
+        hann = new float[window];
+        for (int i = 0; i < window; i++) {
+            hann[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / window));
+        }
+        re = new float[window];
+        im = new float[window];
+        previous = new float[window / 2 + 1];
+        /*bins weighted by their share of the mel scale, so the many high bins of a hi-hat do not
+        outweigh the few low bins of a kick*/
+        weights = new float[window / 2 + 1];
+        for (int k = 0; k <= window / 2; k++) {
+            weights[k] = 1 / (1 + (float) k * sampleRate / window / 700);
+        }
+        fft = new Fft(window);
+        envelope = new float[1024];
+    }
+
+    private BeatIndex(int sampleRate, int channels, int hopFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.hopFrames = hopFrames;
+        window = Integer.highestOneBit(hopFrames * 3);
+    }
+
+    /**
+     * Adds the next block of the track.
+     */
+    public void add(short[] data, int offset, int frames) {
+        final float scale = 1f / (32768 * channels);
+        for (int f = 0, i = offset; f < frames; f++) {
+            float sum = 0;
+            for (int c = 0; c < channels; c++, i++) {
+                sum += data[i];
+            }
+            input[filled++] = sum * scale;
+            if (filled == window) {
+                analyze();
+                System.arraycopy(input, hopFrames, input, 0, window - hopFrames);
+                filled = window - hopFrames;
+            }
+        }
+        this.frames += frames;
+    }
+
+    /**
+     * Estimates tempo and beats from everything added; add() must not be called after it.
+     */
+    public void finish() {
+        if (null == envelope) {
+            return;
+        }
+        float[] onset = normalize(envelope, count);
+        float max = 0;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, envelope[i]);
+        }
+        strength = new byte[count];
+        for (int i = 0; max > 0 && i < count; i++) {
+            strength[i] = (byte) Math.round(envelope[i] / max * 255);
+        }
+        double period = estimatePeriod(onset);
+        if (period > 0) {
+            beats = track(onset, period);
+            fitGrid(period);
+        }
+        input = hann = re = im = previous = weights = envelope = null;
+        fft = null;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return frames added
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return tempo in beats per minute, 0 if the track has no steady beat
+     */
+    public float getTempo() {
+        return tempo;
+    }
+
+    /**
+     * @return length of a beat of the grid in frames, 0 if there is no beat
+     */
+    public double getBeatPeriodFrames() {
+        return periodFrames;
+    }
+
+    /**
+     * @return frame of beat 0 of the grid, on the first tracked beat
+     */
+    public long getFirstBeatFrame() {
+        return firstBeatFrame;
+    }
+
+    /**
+     * @return frame of a beat of the straight grid; negative beats are before the first tracked
+     * one, eg. -4 to -1 for a bar of count-in
+     */
+    public long getGridFrame(double beat) {
+        return firstBeatFrame + Math.round(beat * periodFrames);
+    }
+
+    public int getBeatCount() {
+        return beats.length;
+    }
+
+    /**
+     * @return frame of a tracked beat, these follow the tempo drift of a live recording
+     */
+    public long getBeat(int index) {
+        return beats[index];
+    }
+
+    /**
+     * @return the tracked beat closest to frame, -1 if there is none
+     */
+    public long getNearestBeat(long frame) {
+        if (beats.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(beats, (int) Math.min(Integer.MAX_VALUE, frame));
+        if (i >= 0) {
+            return beats[i];
+        }
+        i = -i - 1;
+        if (i == 0) {
+            return beats[0];
+        }
+        if (i == beats.length || frame - beats[i - 1] <= beats[i] - frame) {
+            return beats[i - 1];
+        }
+        return beats[i];
+    }
+
+    /**
+     * @return frames between two values of the onset envelope
+     */
+    public int getHopFrames() {
+        return hopFrames;
+    }
+
+    /**
+     * @return onset strength around frame, 0 to 1 of the strongest onset of the track
+     */
+    public float getOnsetStrength(long frame) {
+        long i = (frame + window * 3 / 4) / hopFrames - 1;
+        if (i < 0 || i >= strength.length) {
+            return 0;
+        }
+        return (strength[(int) i] & 0xff) / 255f;
+    }
+
+    /**
+     * Writes the finished index as a little endian binary file.
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 4 + 8 + 4 + 8 + 8 + 4 + beats.length * 4 + 4 + strength.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(magic).putInt(version).putInt(sampleRate).putInt(hopFrames).putLong(frames);
+        buffer.putFloat(tempo).putDouble(periodFrames).putLong(firstBeatFrame);
+        buffer.putInt(beats.length);
+        for (int beat : beats) {
+            buffer.putInt(beat);
+        }
+        buffer.putInt(strength.length).put(strength);
+        buffer.flip();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a file written by save().
+     *
+     * @throws IOException if the file is missing, truncated or of another layout
+     */
+    public static BeatIndex load(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() < 48 || buffer.getInt() != magic || buffer.getInt() != version) {
+                throw new IOException("not a beat index: " + file);
+            }
+            BeatIndex index = new BeatIndex(buffer.getInt(), 0, buffer.getInt());
+            index.frames = buffer.getLong();
+            index.tempo = buffer.getFloat();
+            index.periodFrames = buffer.getDouble();
+            index.firstBeatFrame = buffer.getLong();
+            int n = buffer.getInt();
+            if (n < 0 || (long) n * 4 + 4 > buffer.remaining()) {
+                throw new IOException("truncated beat index: " + file);
+            }
+            index.beats = new int[n];
+            for (int i = 0; i < n; i++) {
+                index.beats[i] = buffer.getInt();
+            }
+            n = buffer.getInt();
+            if (n < 0 || n > buffer.remaining()) {
+                throw new IOException("truncated beat index: " + file);
+            }
+            index.strength = new byte[n];
+            buffer.get(index.strength);
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BeatIndex{" + tempo + " bpm, " + beats.length + " beats, " + frames + " frames}";
+    }
+
+    /**
+     * Appends the spectral flux of the full input window to the envelope.
+     */
+    private void analyze() {
+        for (int i = 0; i < window; i++) {
+            re[i] = input[i] * hann[i];
+            im[i] = 0;
+        }
+        fft.transform(re, im, false);
+        final float scale = compression * 2f / window;
+        float flux = 0;
+        for (int k = 0; k <= window / 2; k++) {
+            float magnitude = (float) Math.log(1 + scale * Math.sqrt(re[k] * re[k] + im[k] * im[k]));
+            if (magnitude > previous[k]) {
+                flux += (magnitude - previous[k]) * weights[k];
+            }
+            previous[k] = magnitude;
+        }
+        if (count == envelope.length) {
+            envelope = Arrays.copyOf(envelope, count * 2);
+        }
+        /*the first window rises from nothing*/
+        envelope[count] = count == 0 ? 0 : flux;
+        count++;
+    }
+
+    /**
+     * @return the envelope minus its local mean over a second, floored at 0 and scaled to a
+     * standard deviation of 1
+     */
+    private static float[] normalize(float[] envelope, int count) {
+        float[] onset = new float[count];
+        int half = (int) (envelopeRate / 2);
+        double[] sum = new double[count + 1];
+        for (int i = 0; i < count; i++) {
+            sum[i + 1] = sum[i] + envelope[i];
+        }
+        double square = 0;
+        for (int i = 0; i < count; i++) {
+            int from = Math.max(0, i - half), to = Math.min(count, i + half + 1);
+            float mean = (float) ((sum[to] - sum[from]) / (to - from));
+            onset[i] = Math.max(0, envelope[i] - mean);
+            square += onset[i] * onset[i];
+        }
+        float deviation = count > 0 ? (float) Math.sqrt(square / count) : 0;
+        for (int i = 0; deviation > 0 && i < count; i++) {
+            onset[i] /= deviation;
+        }
+        return onset;
+    }
+
+    /**
+     * @return beat period in envelope values from the weighted autocorrelation, refined between
+     * lags, 0 if there is no periodicity
+     */
+    private double estimatePeriod(float[] onset) {
+        float hopsPerMinute = 60f * sampleRate / hopFrames;
+        int minLag = Math.max(1, (int) Math.floor(hopsPerMinute / maxBpm));
+        int maxLag = (int) Math.ceil(hopsPerMinute / minBpm);
+        int n = onset.length;
+        if (n < maxLag * 4) {
+            return 0;
+        }
+        float[] score = new float[maxLag + 2];
+        int best = -1;
+        for (int lag = minLag - 1; lag <= maxLag + 1; lag++) {
+            double sum = 0;
+            for (int i = 0; i + lag < n; i++) {
+                sum += onset[i] * onset[i + lag];
+            }
+            double octaves = Math.log(hopsPerMinute / lag / preferredBpm) / Math.log(2);
+            score[lag] = (float) (sum / (n - lag) * Math.exp(-0.5 * octaves * octaves / (octaveWidth * octaveWidth)));
+            if (lag >= minLag && lag <= maxLag && (best < 0 || score[lag] > score[best])) {
+                best = lag;
+            }
+        }
+        if (score[best] <= 0) {
+            return 0;
+        }
+        /*parabola through the peak and its neighbours*/
+        float a = score[best - 1], b = score[best], c = score[best + 1];
+        float denominator = a - 2 * b + c;
+        double shift = denominator < 0 ? 0.5 * (a - c) / denominator : 0;
+        return best + Math.max(-0.5, Math.min(0.5, shift));
+    }
+
+    /**
+     * @return frames of the beats, the chain of onsets one period apart with the best score
+     */
+    private int[] track(float[] onset, double period) {
+        int n = onset.length;
+        int minGap = Math.max(1, (int) Math.round(period / 2));
+        int maxGap = (int) Math.round(period * 2);
+        float[] penalty = new float[maxGap + 1];
+        for (int gap = minGap; gap <= maxGap; gap++) {
+            double log = Math.log(gap / period);
+            penalty[gap] = (float) (tightness * log * log);
+        }
+        float[] score = new float[n];
+        int[] back = new int[n];
+        for (int i = 0; i < n; i++) {
+            float best = Float.NEGATIVE_INFINITY;
+            int from = -1;
+            for (int gap = minGap; gap <= maxGap && gap <= i; gap++) {
+                float s = score[i - gap] - penalty[gap];
+                if (s > best) {
+                    best = s;
+                    from = i - gap;
+                }
+            }
+            score[i] = onset[i] + (from < 0 ? 0 : best);
+            back[i] = from;
+        }
+        /*the chain ends on the best score of the last period*/
+        int last = n - 1;
+        for (int i = Math.max(0, n - (int) Math.ceil(period)); i < n; i++) {
+            if (score[i] > score[last]) {
+                last = i;
+            }
+        }
+        int[] chain = new int[n];
+        int length = 0;
+        for (int i = last; i >= 0; i = back[i]) {
+            chain[length++] = i;
+        }
+        /*the chain runs on through silence before and after the music, cut weak beats off the ends*/
+        double square = 0;
+        for (int i = 0; i < length; i++) {
+            float peak = peakAround(onset, chain[i]);
+            square += peak * peak;
+        }
+        float threshold = (float) (0.2 * Math.sqrt(square / Math.max(1, length)));
+        int end = 0, start = length;
+        while (end < start && peakAround(onset, chain[end]) < threshold) {
+            end++;
+        }
+        while (start > end && peakAround(onset, chain[start - 1]) < threshold) {
+            start--;
+        }
+        int[] result = new int[start - end];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = toFrame(chain[start - 1 - i]);
+        }
+        return result;
+    }
+
+    /**
+     * Fits tempo and the straight grid through the tracked beats by least squares.
+     */
+    private void fitGrid(double period) {
+        int n = beats.length;
+        if (n < 2) {
+            periodFrames = period * hopFrames;
+            firstBeatFrame = n == 1 ? beats[0] : 0;
+            tempo = n == 1 ? (float) (60.0 * sampleRate / periodFrames) : 0;
+            return;
+        }
+        double meanIndex = (n - 1) / 2.0, meanFrame = 0;
+        for (int beat : beats) {
+            meanFrame += beat;
+        }
+        meanFrame /= n;
+        double covariance = 0, variance = 0;
+        for (int i = 0; i < n; i++) {
+            covariance += (i - meanIndex) * (beats[i] - meanFrame);
+            variance += (i - meanIndex) * (i - meanIndex);
+        }
+        periodFrames = covariance / variance;
+        firstBeatFrame = Math.max(0, Math.round(meanFrame - meanIndex * periodFrames));
+        tempo = (float) (60.0 * sampleRate / periodFrames);
+    }
+
+    private static float peakAround(float[] onset, int i) {
+        float peak = 0;
+        for (int j = Math.max(0, i - 2); j <= Math.min(onset.length - 1, i + 2); j++) {
+            peak = Math.max(peak, onset[j]);
+        }
+        return peak;
+    }
+
+    /**
+     * @return frame of an envelope value; the flux of a window peaks as an onset passes its
+     * first quarter, where the Hann window rises fastest
+     */
+    private int toFrame(int hop) {
+        long frame = (long) (hop + 1) * hopFrames - window * 3 / 4;
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, frame));
+    }
+}
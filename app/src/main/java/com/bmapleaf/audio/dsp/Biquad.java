@@ -0,0 +1,97 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Second order IIR filter with the coefficients of the RBJ audio EQ cookbook, in transposed
+ * direct form II with a state per channel.
+ * <p>
+ * The setters only compute coefficients and keep the state, so a filter can be retuned between
+ * blocks without a click from a reset.
+ */
+public class Biquad {
+    private float b0 = 1, b1, b2, a1, a2;
+    private final float[] z1;
+    private final float[] z2;
+
+    /**
+     * @param channels number of independent states
+     */
+    public Biquad(int channels) {
+        z1 = new float[channels];
+        z2 = new float[channels];
+    }
+
+    public Biquad setLowPass(int sampleRate, float frequency, float q) {
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w), alpha = Math.sin(w) / (2 * q);
+        return set((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    public Biquad setHighPass(int sampleRate, float frequency, float q) {
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w), alpha = Math.sin(w) / (2 * q);
+        return set((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * @param gainDb boost or cut at frequency
+     * @param q      bandwidth, higher is narrower
+     */
+    public Biquad setPeaking(int sampleRate, float frequency, float gainDb, float q) {
+        double a = Math.pow(10, gainDb / 40);
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w), alpha = Math.sin(w) / (2 * q);
+        return set(1 + alpha * a, -2 * cos, 1 - alpha * a, 1 + alpha / a, -2 * cos, 1 - alpha / a);
+    }
+
+    /**
+     * @param gainDb boost or cut below frequency
+     */
+    public Biquad setLowShelf(int sampleRate, float frequency, float gainDb, float q) {
+        double a = Math.pow(10, gainDb / 40);
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w), beta = 2 * Math.sqrt(a) * Math.sin(w) / (2 * q);
+        return set(a * ((a + 1) - (a - 1) * cos + beta), 2 * a * ((a - 1) - (a + 1) * cos),
+                a * ((a + 1) - (a - 1) * cos - beta), (a + 1) + (a - 1) * cos + beta,
+                -2 * ((a - 1) + (a + 1) * cos), (a + 1) + (a - 1) * cos - beta);
+    }
+
+    /**
+     * @param gainDb boost or cut above frequency
+     */
+    public Biquad setHighShelf(int sampleRate, float frequency, float gainDb, float q) {
+        double a = Math.pow(10, gainDb / 40);
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w), beta = 2 * Math.sqrt(a) * Math.sin(w) / (2 * q);
+        return set(a * ((a + 1) + (a - 1) * cos + beta), -2 * a * ((a - 1) + (a + 1) * cos),
+                a * ((a + 1) + (a - 1) * cos - beta), (a + 1) - (a - 1) * cos + beta,
+                2 * ((a - 1) - (a + 1) * cos), (a + 1) - (a - 1) * cos - beta);
+    }
+
+    /**
+     * Normalizes and takes the coefficients, a0 becomes 1.
+     */
+    public Biquad set(double b0, double b1, double b2, double a0, double a1, double a2) {
+        this.b0 = (float) (b0 / a0);
+        this.b1 = (float) (b1 / a0);
+        this.b2 = (float) (b2 / a0);
+        this.a1 = (float) (a1 / a0);
+        this.a2 = (float) (a2 / a0);
+        return this;
+    }
+
+    /**
+     * Filters one sample of a channel.
+     */
+    public float process(float x, int channel) {
+        float y = b0 * x + z1[channel];
+        z1[channel] = b1 * x - a1 * y + z2[channel];
+        z2[channel] = b2 * x - a2 * y;
+        return y;
+    }
+
+    public void reset() {
+        for (int c = 0; c < z1.length; c++) {
+            z1[c] = z2[c] = 0;
+        }
+    }
+}
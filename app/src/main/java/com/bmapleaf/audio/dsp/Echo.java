@@ -0,0 +1,147 @@
+package com.bmapleaf.audio.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Feedback echo with the delay in beats of the song's tempo, eg. a dotted eighth (0.75 beats).
+ * <p>
+ * Every repeat goes through a one pole low pass, so later repeats get darker like on a tape
+ * echo. With ping-pong on a stereo block the repeats alternate between the channels. The delay
+ * glides to a new tempo instead of jumping, read between samples by linear interpolation, so a
+ * tempo change bends the pitch of the repeats for a moment but never clicks; feedback and wet
+ * level glide as well. The lines are allocated in prepare() for the longest delay.
+ */
+public class Echo implements AudioEffect {
+    private static final float maxDelaySeconds = 2;
+    private static final float smoothingMs = 60;
+    private final ParameterSmoother delayFrames = new ParameterSmoother(0);
+    private final ParameterSmoother feedback = new ParameterSmoother(0.35f);
+    private final ParameterSmoother wet = new ParameterSmoother(0.3f);
+    private volatile float tempo = 120;
+    private volatile float beats = 0.75f;
+    private volatile float toneHz = 4000;
+    private volatile boolean pingPong;
+    private int sampleRate;
+    private int channels;
+    private float[][] lines;
+    private float[] lowPass;
+    private int position;
+
+    /**
+     * @param bpm tempo of the song, eg. from its metadata or a beat tracker
+     */
+    public void setTempo(float bpm) {
+        tempo = Math.max(1, bpm);
+        updateDelay();
+    }
+
+    /**
+     * @param beats delay in beats, 0.5 an eighth, 0.75 a dotted eighth, 1 a quarter
+     */
+    public void setDivision(float beats) {
+        this.beats = beats;
+        updateDelay();
+    }
+
+    /**
+     * @param feedback share of a repeat that comes back, below 1
+     */
+    public void setFeedback(float feedback) {
+        this.feedback.setTarget(Math.max(0, Math.min(0.95f, feedback)));
+    }
+
+    public void setWet(float level) {
+        wet.setTarget(Math.max(0, level));
+    }
+
+    /**
+     * @param hz cutoff of the low pass every repeat goes through
+     */
+    public void setTone(float hz) {
+        toneHz = hz;
+    }
+
+    public void setPingPong(boolean pingPong) {
+        this.pingPong = pingPong;
+    }
+
+    /**
+     * @return the delay asked for, at most 2 s
+     */
+    public float getDelayMs() {
+        return Math.min(maxDelaySeconds * 1000, beats * 60000 / tempo);
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channels, int maxFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        lines = new float[channels][(int) (maxDelaySeconds * sampleRate) + 2];
+        lowPass = new float[channels];
+        delayFrames.prepare(sampleRate, smoothingMs);
+        feedback.prepare(sampleRate, smoothingMs);
+        wet.prepare(sampleRate, smoothingMs);
+        updateDelay();
+        reset();
+    }
+
+    @Override
+    public void process(float[] buffer, int frames) {
+        final int length = lines[0].length;
+        final float tone = (float) Math.exp(-2 * Math.PI * toneHz / sampleRate);
+        final boolean cross = pingPong && channels == 2;
+        for (int f = 0, i = 0; f < frames; f++, i += channels) {
+            float delay = delayFrames.next();
+            float fb = feedback.next();
+            float level = wet.next();
+            float read = position - delay;
+            if (read < 0) {
+                read += length;
+            }
+            int r0 = (int) read;
+            int r1 = r0 + 1 == length ? 0 : r0 + 1;
+            float frac = read - r0;
+            for (int c = 0; c < channels; c++) {
+                float[] line = lines[c];
+                float repeat = line[r0] + (line[r1] - line[r0]) * frac;
+                lowPass[c] = repeat + (lowPass[c] - repeat) * tone;
+            }
+            if (cross) {
+                /*the input starts on the left, every repeat changes sides*/
+                lines[0][position] = (buffer[i] + buffer[i + 1]) * 0.5f + lowPass[1] * fb;
+                lines[1][position] = lowPass[0] * fb;
+            } else {
+                for (int c = 0; c < channels; c++) {
+                    lines[c][position] = buffer[i + c] + lowPass[c] * fb;
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                buffer[i + c] += lowPass[c] * level;
+            }
+            if (++position == length) {
+                position = 0;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (null == lines) {
+            return;
+        }
+        for (float[] line : lines) {
+            Arrays.fill(line, 0);
+        }
+        Arrays.fill(lowPass, 0);
+        position = 0;
+        delayFrames.snap();
+        feedback.snap();
+        wet.snap();
+    }
+
+    private void updateDelay() {
+        if (sampleRate > 0) {
+            delayFrames.setTarget(Math.max(1, getDelayMs() * sampleRate / 1000));
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.bmapleaf.audio.dsp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replacement segments (retakes) laid over a take, spliced while the take is read.
+ * <p>
+ * Every edit replaces the frames [start, end) of the take with a recorded segment whose frame 0
+ * lies at origin in the take, so the segment may start before start (pre-roll) and run past end.
+ * Later edits win where edits overlap. With a crossfade the segment fades in over the first
+ * crossfade frames of [start, end) and out over the last ones, equal power, so the splice never
+ * reaches outside the range that was retaken. Positions are frames at the take's sample rate.
+ */
+public class EditList {
+    private static final String header = "editlist 1";
+    private final int channels;
+    private int crossfadeFrames;
+    private float[] fadeIn = new float[0];
+    private volatile Edit[] edits = new Edit[0];
+
+    public EditList(int channels) {
+        this.channels = channels;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @param frames length of the fades at both ends of every edit, 0 for hard cuts
+     */
+    public synchronized void setCrossfade(int frames) {
+        float[] table = new float[Math.max(0, frames)];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (float) Math.sin(Math.PI / 2 * (i + 0.5) / table.length);
+        }
+        fadeIn = table;
+        crossfadeFrames = table.length;
+    }
+
+    public int getCrossfade() {
+        return crossfadeFrames;
+    }
+
+    /**
+     * Adds an edit on top of the existing ones.
+     */
+    public synchronized void add(Edit edit) {
+        Edit[] list = new Edit[edits.length + 1];
+        System.arraycopy(edits, 0, list, 0, edits.length);
+        list[edits.length] = edit;
+        edits = list;
+    }
+
+    /**
+     * Removes the most recent edit, eg. to undo a retake.
+     *
+     * @return the removed edit, null if there was none
+     */
+    public synchronized Edit removeLast() {
+        if (edits.length == 0) {
+            return null;
+        }
+        Edit last = edits[edits.length - 1];
+        Edit[] list = new Edit[edits.length - 1];
+        System.arraycopy(edits, 0, list, 0, list.length);
+        edits = list;
+        return last;
+    }
+
+    public Edit[] getEdits() {
+        return edits;
+    }
+
+    /**
+     * Splices the edits into a block of the take, in place.
+     *
+     * @param frame  position of the first frame of the block in the take
+     * @param data   interleaved samples of the take
+     * @param offset offset in samples
+     * @param frames number of frames
+     */
+    public void apply(long frame, short[] data, int offset, int frames) {
+        Edit[] list = edits;
+        float[] table = fadeIn;
+        long blockEnd = frame + frames;
+        for (Edit edit : list) {
+            short[] pcm = edit.pcm;
+            if (null == pcm || edit.end <= frame || edit.start >= blockEnd) {
+                continue;
+            }
+            long to = Math.min(blockEnd, edit.end);
+            long segmentEnd = edit.origin + pcm.length / channels;
+            int fade = (int) Math.min(table.length, (edit.end - edit.start) / 2);
+            for (long f = Math.max(frame, edit.start); f < to; f++) {
+                int i = offset + (int) (f - frame) * channels;
+                long edge = Math.min(f - edit.start, edit.end - 1 - f);
+                boolean recorded = f >= edit.origin && f < segmentEnd;
+                if (edge >= fade && recorded) {
+                    /*between the fades: copy the whole run*/
+                    int run = (int) (Math.min(Math.min(to, edit.end - fade), segmentEnd) - f);
+                    System.arraycopy(pcm, (int) (f - edit.origin) * channels, data, i, run * channels);
+                    f += run - 1;
+                    continue;
+                }
+                /*the segment fades in as the take fades out; outside the segment it is silent*/
+                int k = edge >= fade ? -1 : (int) (edge * table.length / fade);
+                float g = k < 0 ? 1 : table[k];
+                float h = k < 0 ? 0 : table[table.length - 1 - k];
+                int j = (int) (f - edit.origin) * channels;
+                for (int c = 0; c < channels; c++) {
+                    int v = Math.round(data[i + c] * h + (recorded ? pcm[j + c] : 0) * g);
+                    data[i + c] = (short) (v > 32767 ? 32767 : v < -32768 ? -32768 : v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the edits as text, segments by name. The pcm is not stored.
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            out.write(header + "\n");
+            out.write("channels " + channels + "\n");
+            out.write("crossfade " + crossfadeFrames + "\n");
+            for (Edit edit : edits) {
+                out.write(edit.start + "\t" + edit.end + "\t" + edit.origin + "\t" + edit.segment + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can not write " + file);
+        }
+    }
+
+    /**
+     * Reads a file written by save(). The edits come without pcm, see {@link Edit#setPcm(short[])}.
+     */
+    public static EditList load(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!header.equals(in.readLine())) {
+                throw new IOException("not an edit list: " + file);
+            }
+            EditList list = new EditList(Integer.parseInt(value(in.readLine(), "channels", file)));
+            list.setCrossfade(Integer.parseInt(value(in.readLine(), "crossfade", file)));
+            List<Edit> edits = new ArrayList<>();
+            String line;
+            while (null != (line = in.readLine())) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("bad edit \"" + line + "\" in " + file);
+                }
+                edits.add(new Edit(fields[3], Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+            list.edits = edits.toArray(new Edit[edits.size()]);
+            return list;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad number in " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String value(String line, String key, File file) throws IOException {
+        if (null == line || !line.startsWith(key + " ")) {
+            throw new IOException("missing " + key + " in " + file);
+        }
+        return line.substring(key.length() + 1);
+    }
+
+    /**
+     * One retake: a recorded segment replacing [start, end) of the take.
+     */
+    public static class Edit {
+        public final String segment;
+        public final long start;
+        public final long end;
+        public final long origin;
+        private volatile short[] pcm;
+
+        /**
+         * @param segment name of the recorded segment
+         * @param start   first replaced frame of the take
+         * @param end     frame after the last replaced one
+         * @param origin  frame of the take where frame 0 of the segment lies
+         */
+        public Edit(String segment, long start, long end, long origin) {
+            if (end < start) {
+                throw new IllegalArgumentException("end " + end + " before start " + start);
+            }
+            this.segment = segment;
+            this.start = start;
+            this.end = end;
+            this.origin = origin;
+        }
+
+        /**
+         * @param pcm decoded segment, interleaved with the channels of the list
+         */
+        public void setPcm(short[] pcm) {
+            this.pcm = pcm;
+        }
+
+        public short[] getPcm() {
+            return pcm;
+        }
+    }
+}
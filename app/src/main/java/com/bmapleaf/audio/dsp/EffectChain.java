@@ -0,0 +1,383 @@
+package com.bmapleaf.audio.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Ordered list of {@link AudioEffect}s run on 16 bit blocks.
+ * <p>
+ * The block is converted to float once into a buffer allocated in prepare(), then every active
+ * stage processes it in place. Stages are kept in a copy-on-write array: add(), remove() and
+ * replace() prepare the new effect on the calling thread and publish the new array with a single
+ * volatile write, so the audio thread never waits and never sees a half configured stage.
+ * Each stage records how long it takes per block to find the one that causes underruns.
+ * <p>
+ * The stages themselves are prepared only while no host runs the chain: a player, recorder or
+ * monitor attach() the chain while it is installed in them, and prepare() then does nothing if the
+ * chain already fits the format and refuses another format, as reallocating the buffers of an
+ * effect under the audio thread would crash it. Hosts install chains with swap().
+ */
+public class EffectChain {
+    private static final Stage[] empty = new Stage[0];
+    private volatile Stage[] stages = empty;
+    private volatile float[] block;
+    private int sampleRate;
+    private int channels;
+    private int maxFrames;
+    private volatile long overBudgetBlocks;
+    private volatile long blocks;
+    /*hosts that may call process(), guarded by this*/
+    private int users;
+
+    /**
+     * What swap() needs of a player, recorder or monitor.
+     */
+    public interface Host {
+        /**
+         * Prepares the chain for the format the host runs at, only called while it runs.
+         */
+        void prepare(EffectChain chain);
+
+        /**
+         * Makes the chain, or null, the one the audio thread of the host processes.
+         */
+        void install(EffectChain chain);
+    }
+
+    /**
+     * Replaces the chain of a host: the new chain is prepared if the host runs and attached before
+     * the host sees it, the old one is detached once the host no longer does. Nothing happens if
+     * the chain is installed already: it may be running, preparing it again would pull its buffers
+     * from under the audio thread. Call it with the lock of the host held.
+     *
+     * @param old     the chain installed now, or null
+     * @param chain   the chain to install, or null for none
+     * @param running whether the host runs and the chain must be prepared for it
+     */
+    public static void swap(EffectChain old, EffectChain chain, boolean running, Host host) {
+        if (chain == old) {
+            return;
+        }
+        if (null != chain) {
+            if (running) {
+                host.prepare(chain);
+            }
+            chain.attach();
+        }
+        host.install(chain);
+        if (null != old) {
+            old.detach();
+        }
+    }
+
+    /**
+     * Allocates the block buffer and prepares all stages. Call it before the first process(), not
+     * from the audio thread.
+     *
+     * @throws IllegalStateException if a host runs the chain at another format
+     */
+    public synchronized void prepare(int sampleRate, int channels, int maxFrames) {
+        if (users > 0) {
+            if (isPrepared() && sampleRate == this.sampleRate && channels == this.channels && maxFrames <= this.maxFrames) {
+                return;
+            }
+            throw new IllegalStateException("effect chain runs at " + this.sampleRate + " Hz, " + this.channels
+                    + " channels, " + this.maxFrames + " frames, can not prepare it for " + sampleRate + " Hz, "
+                    + channels + " channels, " + maxFrames + " frames");
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.maxFrames = maxFrames;
+        block = new float[maxFrames * channels];
+        for (Stage stage : stages) {
+            stage.effect.prepare(sampleRate, channels, maxFrames);
+            stage.resetStats();
+        }
+        overBudgetBlocks = blocks = 0;
+    }
+
+    public boolean isPrepared() {
+        return null != block;
+    }
+
+    /**
+     * Called by a host when it installs the chain, process() may run on its audio thread from then
+     * on until detach().
+     */
+    public synchronized void attach() {
+        users++;
+    }
+
+    public synchronized void detach() {
+        if (users > 0) {
+            users--;
+        }
+    }
+
+    /**
+     * @return true while a host may run the chain
+     */
+    public synchronized boolean isAttached() {
+        return users > 0;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * Appends an effect to the end of the chain.
+     *
+     * @return the stage holding the effect
+     */
+    public synchronized Stage add(String name, AudioEffect effect) {
+        return insert(size(), name, effect);
+    }
+
+    /**
+     * Inserts an effect before the stage at {@code index}.
+     */
+    public synchronized Stage insert(int index, String name, AudioEffect effect) {
+        Stage stage = newStage(name, effect);
+        Stage[] old = stages;
+        Stage[] updated = new Stage[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, index);
+        updated[index] = stage;
+        System.arraycopy(old, index, updated, index + 1, old.length - index);
+        stages = updated;
+        return stage;
+    }
+
+    /**
+     * Atomically swaps the effect at {@code index}, the old effect finishes the block it is in.
+     *
+     * @return the stage holding the new effect
+     */
+    public synchronized Stage replace(int index, String name, AudioEffect effect) {
+        Stage stage = newStage(name, effect);
+        Stage[] updated = Arrays.copyOf(stages, stages.length);
+        stage.bypassed = updated[index].bypassed;
+        updated[index] = stage;
+        stages = updated;
+        return stage;
+    }
+
+    public synchronized void remove(int index) {
+        Stage[] old = stages;
+        Stage[] updated = new Stage[old.length - 1];
+        System.arraycopy(old, 0, updated, 0, index);
+        System.arraycopy(old, index + 1, updated, index, old.length - index - 1);
+        stages = updated;
+    }
+
+    public synchronized void clear() {
+        stages = empty;
+    }
+
+    public int size() {
+        return stages.length;
+    }
+
+    public Stage getStage(int index) {
+        return stages[index];
+    }
+
+    /**
+     * Bypasses a stage without touching its buffers, the effect is reset when it comes back.
+     */
+    public void setBypassed(int index, boolean bypassed) {
+        stages[index].bypassed = bypassed;
+    }
+
+    /**
+     * @return the stage with the highest average cost per block, null if the chain is empty
+     */
+    public Stage getSlowestStage() {
+        Stage slowest = null;
+        for (Stage stage : stages) {
+            if (null == slowest || stage.getAverageNanos() > slowest.getAverageNanos()) {
+                slowest = stage;
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * @return number of blocks whose total processing time exceeded the block duration
+     */
+    public long getOverBudgetBlocks() {
+        return overBudgetBlocks;
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Resets all effects, eg. after a seek. Called on the audio thread or while it is stopped.
+     */
+    public void reset() {
+        for (Stage stage : stages) {
+            stage.effect.reset();
+        }
+    }
+
+    /**
+     * Runs every active stage on one block in place.
+     *
+     * @param data   interleaved samples
+     * @param frames number of frames, at most the maxFrames given to prepare()
+     */
+    public void process(short[] data, int frames) {
+        process(data, 0, frames);
+    }
+
+    /**
+     * Runs every active stage on a block inside a larger array, in place.
+     *
+     * @param data   interleaved samples
+     * @param offset where the block starts in data
+     * @param frames number of frames, at most the maxFrames given to prepare()
+     */
+    public void process(short[] data, int offset, int frames) {
+        final Stage[] stages = this.stages;
+        final float[] block = this.block;
+        if (stages.length == 0 || null == block) {
+            return;
+        }
+        boolean active = false;
+        for (Stage stage : stages) {
+            if (stage.bypassed) {
+                stage.wasBypassed = true;
+            } else {
+                active = true;
+            }
+        }
+        if (!active) {
+            return;
+        }
+        final int size = frames * channels;
+        for (int i = 0; i < size; i++) {
+            block[i] = data[offset + i] * (1f / 32768);
+        }
+        long total = 0;
+        Stage slowest = null;
+        for (Stage stage : stages) {
+            if (stage.bypassed) {
+                continue;
+            }
+            if (stage.wasBypassed) {
+                stage.wasBypassed = false;
+                stage.effect.reset();
+            }
+            long t0 = System.nanoTime();
+            stage.effect.process(block, frames);
+            long spent = System.nanoTime() - t0;
+            stage.record(spent);
+            total += spent;
+            if (null == slowest || spent > slowest.lastNanos) {
+                slowest = stage;
+            }
+        }
+        for (int i = 0, v; i < size; i++) {
+            v = Math.round(block[i] * 32768);
+            if (v > 32767)
+                v = 32767;
+            else if (v < -32768)
+                v = -32768;
+            data[offset + i] = (short) v;
+        }
+        blocks++;
+        if (null != slowest && total * sampleRate > frames * 1000000000L) {
+            overBudgetBlocks++;
+            slowest.overBudget++;
+        }
+    }
+
+    private Stage newStage(String name, AudioEffect effect) {
+        if (isPrepared()) {
+            effect.prepare(sampleRate, channels, maxFrames);
+        }
+        return new Stage(name, effect);
+    }
+
+    /**
+     * An effect in the chain with its bypass flag and timing.
+     */
+    public static class Stage {
+        private final String name;
+        private final AudioEffect effect;
+        private volatile boolean bypassed;
+        private boolean wasBypassed;
+        private volatile long lastNanos;
+        private volatile long maxNanos;
+        private volatile long totalNanos;
+        private volatile long count;
+        private volatile long overBudget;
+
+        private Stage(String name, AudioEffect effect) {
+            this.name = name;
+            this.effect = effect;
+        }
+
+        private void record(long nanos) {
+            lastNanos = nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+            totalNanos += nanos;
+            count++;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public AudioEffect getEffect() {
+            return effect;
+        }
+
+        public boolean isBypassed() {
+            return bypassed;
+        }
+
+        /**
+         * @return cpu time of the last processed block in nanoseconds
+         */
+        public long getLastNanos() {
+            return lastNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getAverageNanos() {
+            long n = count;
+            return n == 0 ? 0 : totalNanos / n;
+        }
+
+        /**
+         * @return blocks over the time budget in which this stage was the most expensive one
+         */
+        public long getOverBudgetBlocks() {
+            return overBudget;
+        }
+
+        public void resetStats() {
+            lastNanos = maxNanos = totalNanos = count = overBudget = 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + (bypassed ? "(bypassed)" : "") + " avg " + getAverageNanos() / 1000 + "us max " + maxNanos / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.bmapleaf.audio.dsp;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Bank of {@link Biquad} bands run in series, eg. a low cut, a presence peak and an air shelf on
+ * the voice.
+ * <p>
+ * Frequency, gain and Q of every band glide to the values last set, and the coefficients are
+ * recomputed from them every 32 frames while they move, so sweeping a band does not click and a
+ * settled band costs no trigonometry. A peaking or shelving band at 0 dB is skipped.
+ */
+public class Equalizer implements AudioEffect {
+    private static final int tickFrames = 32;
+    private static final float smoothingMs = 30;
+    private final Band[] bands;
+    private int sampleRate;
+    private int channels;
+
+    /**
+     * Filter shapes of a band.
+     */
+    @IntDef({Type.LOW_SHELF, Type.PEAKING, Type.HIGH_SHELF, Type.LOW_PASS, Type.HIGH_PASS})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Type {
+        int LOW_SHELF = 0;
+        int PEAKING = 1;
+        int HIGH_SHELF = 2;
+        /*gain is ignored by the pass filters*/
+        int LOW_PASS = 3;
+        int HIGH_PASS = 4;
+    }
+
+    private static class Band {
+        @Type
+        volatile int type = Type.PEAKING;
+        final ParameterSmoother frequency = new ParameterSmoother(1000);
+        final ParameterSmoother gainDb = new ParameterSmoother(0);
+        final ParameterSmoother q = new ParameterSmoother(0.7071f);
+        @Type
+        int activeType = -1;
+        boolean active;
+        Biquad filter;
+    }
+
+    /**
+     * @param bands number of bands, all peaking at 1 kHz and 0 dB until set
+     */
+    public Equalizer(int bands) {
+        this.bands = new Band[bands];
+        for (int i = 0; i < bands; i++) {
+            this.bands[i] = new Band();
+        }
+    }
+
+    public int getBandCount() {
+        return bands.length;
+    }
+
+    /**
+     * Sets a band; may be called from any thread while processing.
+     *
+     * @param gainDb boost or cut, ignored by the pass filters
+     * @param q      bandwidth, 0.7071 is the flattest for the pass and shelf filters
+     */
+    public void setBand(int band, @Type int type, float frequency, float gainDb, float q) {
+        Band b = bands[band];
+        b.frequency.setTarget(frequency);
+        b.gainDb.setTarget(gainDb);
+        b.q.setTarget(q);
+        b.type = type;
+    }
+
+    public void setGain(int band, float gainDb) {
+        bands[band].gainDb.setTarget(gainDb);
+    }
+
+    public float getGain(int band) {
+        return bands[band].gainDb.getTarget();
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channels, int maxFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        for (Band b : bands) {
+            b.filter = new Biquad(channels);
+            b.frequency.prepare((float) sampleRate / tickFrames, smoothingMs);
+            b.gainDb.prepare((float) sampleRate / tickFrames, smoothingMs);
+            b.q.prepare((float) sampleRate / tickFrames, smoothingMs);
+            b.activeType = -1;
+        }
+    }
+
+    @Override
+    public void process(float[] buffer, int frames) {
+        for (int start = 0; start < frames; start += tickFrames) {
+            int end = Math.min(frames, start + tickFrames);
+            for (Band b : bands) {
+                update(b);
+                if (!b.active) {
+                    continue;
+                }
+                Biquad filter = b.filter;
+                for (int i = start * channels; i < end * channels; ) {
+                    for (int c = 0; c < channels; c++, i++) {
+                        buffer[i] = filter.process(buffer[i], c);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (Band b : bands) {
+            b.frequency.snap();
+            b.gainDb.snap();
+            b.q.snap();
+            b.activeType = -1;
+            if (null != b.filter) {
+                b.filter.reset();
+            }
+        }
+    }
+
+    /**
+     * Advances the glide of a band by one tick and retunes its filter if anything moved.
+     */
+    private void update(Band b) {
+        int type = b.type;
+        if (type == b.activeType && b.frequency.isSettled() && b.gainDb.isSettled() && b.q.isSettled()) {
+            return;
+        }
+        float frequency = Math.min(b.frequency.next(), sampleRate * 0.49f);
+        float gainDb = b.gainDb.next();
+        float q = b.q.next();
+        boolean active = type == Type.LOW_PASS || type == Type.HIGH_PASS || gainDb != 0;
+        if (active && !b.active) {
+            /*its state is from before it was skipped*/
+            b.filter.reset();
+        }
+        b.active = active;
+        b.activeType = type;
+        switch (type) {
+            case Type.LOW_SHELF:
+                b.filter.setLowShelf(sampleRate, frequency, gainDb, q);
+                break;
+            case Type.HIGH_SHELF:
+                b.filter.setHighShelf(sampleRate, frequency, gainDb, q);
+                break;
+            case Type.LOW_PASS:
+                b.filter.setLowPass(sampleRate, frequency, q);
+                break;
+            case Type.HIGH_PASS:
+                b.filter.setHighPass(sampleRate, frequency, q);
+                break;
+            default:
+                b.filter.setPeaking(sampleRate, frequency, gainDb, q);
+                break;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * In place radix 2 complex FFT of one size, with its twiddle and bit reversal tables built in
+ * the constructor so transform() does not allocate.
+ */
+class Fft {
+    private final int size;
+    private final float[] cos;
+    private final float[] sin;
+    private final int[] bitReverse;
+
+    /**
+     * @param size points, a power of two
+     */
+    Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("fft size must be a power of two, not " + size);
+        }
+        this.size = size;
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = (float) Math.cos(2 * Math.PI * i / size);
+            sin[i] = (float) Math.sin(2 * Math.PI * i / size);
+        }
+        bitReverse = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Transforms re/im in place, both in natural order. The inverse is not scaled, divide by
+     * size to get the input back.
+     */
+    void transform(float[] re, float[] im, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        float sign = inverse ? -1 : 1;
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1, step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int j = 0, t = 0; j < half; j++, t += step) {
+                    int a = start + j, b = a + half;
+                    float c = cos[t], s = sin[t] * sign;
+                    float tr = re[b] * c + im[b] * s;
+                    float ti = im[b] * c - re[b] * s;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Integrated loudness after ITU-R BS.1770 / EBU R128, measured while the pcm streams through.
+ * <p>
+ * Every channel runs through the K-weighting filter (a high shelf for the head, then a high pass),
+ * the weighted power is summed over the channels and taken in blocks of 400 ms that overlap by
+ * 75%. Blocks below the absolute gate of -70 LUFS are silence and left out, then blocks more than
+ * 10 LU below the loudness of the rest. Instead of keeping every block the meter keeps a
+ * histogram of 0.1 LU bins with the power and count of the blocks in each, so memory does not
+ * grow with the length of the track and the result is available at any time.
+ * <p>
+ * The sample peak is kept too, so a normalization gain can be limited to what does not clip.
+ */
+public class LoudnessMeter {
+    /**
+     * Reference level of ReplayGain 2.0.
+     */
+    public static final float replayGainReferenceLufs = -18;
+    private static final float absoluteGateLufs = -70;
+    private static final float relativeGateLu = -10;
+    private static final float maxLufs = 5;
+    private static final int binsPerLu = 10;
+    private static final int stepsPerBlock = 4;
+    private final int channels;
+    private final int stepFrames;
+    /*K-weighting, two biquads per channel; b0..b2, a1, a2 of the shelf and the high pass*/
+    private final double[] shelf;
+    private final double[] highPass;
+    private final double[] state;
+    /*power of the last steps of 100 ms*/
+    private final double[] steps = new double[stepsPerBlock];
+    private final double[] binPower;
+    private final long[] binCount;
+    private int stepCount;
+    private int stepFrame;
+    private double stepPower;
+    private float lastBlockLufs = Float.NEGATIVE_INFINITY;
+    private int peak;
+    private long frames;
+
+    /**
+     * @param channels interleaved channels, all weighted 1 like the front channels of BS.1770
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        stepFrames = Math.max(1, Math.round(sampleRate / 10f));
+        /*the analog prototypes of BS.1770 at any rate, the published 48 kHz coefficients result*/
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        shelf = new double[]{
+                (vh + vb * k / q + k * k) / a0,
+                2 * (k * k - vh) / a0,
+                (vh - vb * k / q + k * k) / a0,
+                2 * (k * k - 1) / a0,
+                (1 - k / q + k * k) / a0,
+        };
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        highPass = new double[]{
+                1, -2, 1,
+                2 * (k * k - 1) / a0,
+                (1 - k / q + k * k) / a0,
+        };
+        state = new double[channels * 4];
+        int bins = (int) ((maxLufs - absoluteGateLufs) * binsPerLu);
+        binPower = new double[bins];
+        binCount = new long[bins];
+    }
+
+    public void reset() {
+        for (int i = 0; i < state.length; i++) {
+            state[i] = 0;
+        }
+        for (int i = 0; i < binPower.length; i++) {
+            binPower[i] = 0;
+            binCount[i] = 0;
+        }
+        stepCount = stepFrame = 0;
+        stepPower = 0;
+        lastBlockLufs = Float.NEGATIVE_INFINITY;
+        peak = 0;
+        frames = 0;
+    }
+
+    /**
+     * Measures a block of interleaved 16 bit pcm.
+     */
+    public void add(short[] data, int offset, int frames) {
+        final double[] s = shelf, h = highPass, z = state;
+        for (int f = 0; f < frames; f++) {
+            double power = 0;
+            for (int c = 0, i = offset + f * channels; c < channels; c++, i++) {
+                int sample = data[i];
+                if (sample < 0 ? -sample > peak : sample > peak) {
+                    peak = Math.abs(sample);
+                }
+                /*transposed direct form II, shelf then high pass*/
+                double x = sample / 32768.0;
+                int p = c * 4;
+                double y = s[0] * x + z[p];
+                z[p] = s[1] * x - s[3] * y + z[p + 1];
+                z[p + 1] = s[2] * x - s[4] * y;
+                double w = h[0] * y + z[p + 2];
+                z[p + 2] = h[1] * y - h[3] * w + z[p + 3];
+                z[p + 3] = h[2] * y - h[4] * w;
+                power += w * w;
+            }
+            stepPower += power;
+            if (++stepFrame == stepFrames) {
+                endStep();
+            }
+        }
+        this.frames += frames;
+    }
+
+    /**
+     * @return the gated loudness of everything measured, negative infinity if all of it is below
+     * the absolute gate
+     */
+    public float getIntegratedLufs() {
+        double power = 0;
+        long count = 0;
+        for (int i = 0; i < binPower.length; i++) {
+            power += binPower[i];
+            count += binCount[i];
+        }
+        if (count == 0) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        double gate = toLufs(power / count) + relativeGateLu;
+        power = 0;
+        count = 0;
+        for (int i = 0; i < binPower.length; i++) {
+            /*the mean of a bin, not its edge, decides; off by less than 0.1 LU at worst*/
+            if (binCount[i] > 0 && toLufs(binPower[i] / binCount[i]) > gate) {
+                power += binPower[i];
+                count += binCount[i];
+            }
+        }
+        return count == 0 ? Float.NEGATIVE_INFINITY : (float) toLufs(power / count);
+    }
+
+    /**
+     * @return loudness of the last 400 ms block (momentary loudness), ungated
+     */
+    public float getMomentaryLufs() {
+        return lastBlockLufs;
+    }
+
+    /**
+     * @return largest sample magnitude so far, 0 to 1
+     */
+    public float getSamplePeak() {
+        return peak / 32768f;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Gain that brings a track to the target loudness, limited so its sample peak stays at full
+     * scale at most.
+     *
+     * @param integratedLufs see {@link #getIntegratedLufs()}
+     * @param samplePeak     see {@link #getSamplePeak()}
+     * @return the gain in dB, 0 for a silent track
+     */
+    public static float getNormalizationGainDb(float integratedLufs, float samplePeak, float targetLufs) {
+        if (Float.isInfinite(integratedLufs) || Float.isNaN(integratedLufs)) {
+            return 0;
+        }
+        float gainDb = targetLufs - integratedLufs;
+        if (samplePeak > 0) {
+            gainDb = Math.min(gainDb, (float) (-20 * Math.log10(samplePeak)));
+        }
+        return gainDb;
+    }
+
+    private void endStep() {
+        steps[stepCount % stepsPerBlock] = stepPower;
+        stepCount++;
+        stepPower = 0;
+        stepFrame = 0;
+        if (stepCount < stepsPerBlock) {
+            return;
+        }
+        double power = 0;
+        for (double step : steps) {
+            power += step;
+        }
+        power /= stepsPerBlock * stepFrames;
+        double lufs = toLufs(power);
+        lastBlockLufs = (float) lufs;
+        if (lufs <= absoluteGateLufs) {
+            return;
+        }
+        int bin = Math.min(binPower.length - 1, (int) ((lufs - absoluteGateLufs) * binsPerLu));
+        binPower[bin] += power;
+        binCount[bin]++;
+    }
+
+    private static double toLufs(double power) {
+        return power > 0 ? -0.691 + 10 * Math.log10(power) : Double.NEGATIVE_INFINITY;
+    }
+}
@@ -0,0 +1,112 @@
+package com.bmapleaf.audio.dsp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The reference melody of a song: notes with their start, end and pitch in the media time of
+ * the backing track, sorted and not overlapping.
+ * <p>
+ * The text form has one note per line, {@code startMs durationMs midiNote}, separated by white
+ * space; empty lines and lines starting with # are skipped.
+ */
+public class Melody {
+    private long[] startUs = new long[64];
+    private long[] endUs = new long[64];
+    private float[] notes = new float[64];
+    private int count;
+
+    /**
+     * Appends a note, after all notes added before.
+     *
+     * @param note MIDI note number, 69 is A4
+     */
+    public void add(long startUs, long endUs, float note) {
+        if (endUs <= startUs || (count > 0 && startUs < this.endUs[count - 1])) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "note %d-%d us overlaps or is out of order", startUs, endUs));
+        }
+        if (count == notes.length) {
+            this.startUs = Arrays.copyOf(this.startUs, count * 2);
+            this.endUs = Arrays.copyOf(this.endUs, count * 2);
+            notes = Arrays.copyOf(notes, count * 2);
+        }
+        this.startUs[count] = startUs;
+        this.endUs[count] = endUs;
+        notes[count] = note;
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getStartUs(int index) {
+        return startUs[index];
+    }
+
+    public long getEndUs(int index) {
+        return endUs[index];
+    }
+
+    public float getNote(int index) {
+        return notes[index];
+    }
+
+    /**
+     * @return index of the first note ending after timeUs, size() if there is none
+     */
+    public int indexAfter(long timeUs) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endUs[mid] <= timeUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public static Melody load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static Melody parse(Reader reader) throws IOException {
+        Melody melody = new Melody();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int number = 0;
+        while (null != (line = in.readLine())) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields.length < 3) {
+                    throw new IllegalArgumentException("expected start, duration and note");
+                }
+                long start = Long.parseLong(fields[0]) * 1000;
+                long duration = Long.parseLong(fields[1]) * 1000;
+                melody.add(start, start + duration, Float.parseFloat(fields[2]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("line " + number + ": " + e.getMessage());
+            }
+        }
+        return melody;
+    }
+}
@@ -0,0 +1,135 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Scores sung pitch against a {@link Melody}, note by note as the song goes.
+ * <p>
+ * Every pitch estimate inside a note adds a credit: 1 within the tolerance of the note, falling
+ * to 0 a semitone further out, 0 when unvoiced. The octave is ignored so men and women score
+ * alike on the same melody. A note is finished, and reported, by the first estimate at or after
+ * its end; its score is the mean credit of its estimates. Only the note in progress is kept,
+ * so memory does not depend on the length of the song. A jump back in time (a seek) restarts
+ * at the note there, and notes sung again are scored again.
+ */
+public class NoteScorer {
+    private static final long seekThresholdUs = 250000;
+    private final Melody melody;
+    private float toleranceSemitones = 0.5f;
+    private float minConfidence = 0.5f;
+    private OnNoteScoredListener onNoteScoredListener;
+    private int cursor;
+    private long lastTimeUs = Long.MIN_VALUE;
+    private int hops;
+    private float credit;
+    /*totals over the finished notes, weighted by duration*/
+    private double scoredUs;
+    private double weightedScore;
+    private int scoredNotes;
+
+    public interface OnNoteScoredListener {
+        /**
+         * @param index index of the note in the melody
+         * @param score 0 to 1
+         * @param total score of the song so far, 0 to 100
+         */
+        void onNoteScored(int index, float score, float total);
+    }
+
+    public NoteScorer(Melody melody) {
+        this.melody = melody;
+    }
+
+    /**
+     * @param semitones distance from the note, any octave, that still gets full credit
+     */
+    public void setTolerance(float semitones) {
+        toleranceSemitones = semitones;
+    }
+
+    /**
+     * @param confidence estimates below it count as unvoiced
+     */
+    public void setMinimumConfidence(float confidence) {
+        minConfidence = confidence;
+    }
+
+    public void setOnNoteScoredListener(OnNoteScoredListener l) {
+        onNoteScoredListener = l;
+    }
+
+    /**
+     * Adds one pitch estimate.
+     *
+     * @param mediaTimeUs time of the estimate in the backing track
+     * @param midiNote    fractional MIDI note sung, NaN if unvoiced
+     */
+    public void add(long mediaTimeUs, float midiNote, float confidence) {
+        if (mediaTimeUs < lastTimeUs - seekThresholdUs) {
+            seek(mediaTimeUs);
+        }
+        lastTimeUs = mediaTimeUs;
+        int count = melody.size();
+        while (cursor < count && melody.getEndUs(cursor) <= mediaTimeUs) {
+            finishNote();
+        }
+        if (cursor < count && melody.getStartUs(cursor) <= mediaTimeUs) {
+            hops++;
+            if (!Float.isNaN(midiNote) && confidence >= minConfidence) {
+                credit += creditOf(midiNote - melody.getNote(cursor));
+            }
+        }
+    }
+
+    /**
+     * Restarts at the note playing at timeUs; the note in progress is dropped unscored.
+     */
+    public void seek(long timeUs) {
+        cursor = melody.indexAfter(timeUs);
+        lastTimeUs = timeUs;
+        hops = 0;
+        credit = 0;
+    }
+
+    /**
+     * Finishes all notes left, eg. at the end of the song; notes never sung score 0.
+     */
+    public void finish() {
+        while (cursor < melody.size()) {
+            finishNote();
+        }
+    }
+
+    /**
+     * @return score of the finished notes, 0 to 100
+     */
+    public float getTotal() {
+        return scoredUs > 0 ? (float) (100 * weightedScore / scoredUs) : 0;
+    }
+
+    public int getScoredNotes() {
+        return scoredNotes;
+    }
+
+    private void finishNote() {
+        float score = hops > 0 ? credit / hops : 0;
+        double duration = melody.getEndUs(cursor) - melody.getStartUs(cursor);
+        scoredUs += duration;
+        weightedScore += score * duration;
+        scoredNotes++;
+        int index = cursor++;
+        hops = 0;
+        credit = 0;
+        OnNoteScoredListener l = onNoteScoredListener;
+        if (null != l) {
+            l.onNoteScored(index, score, getTotal());
+        }
+    }
+
+    private float creditOf(float difference) {
+        /*fold into -6..6 semitones*/
+        float distance = Math.abs(difference - 12 * Math.round(difference / 12));
+        if (distance <= toleranceSemitones) {
+            return 1;
+        }
+        return Math.max(0, 1 - (distance - toleranceSemitones));
+    }
+}
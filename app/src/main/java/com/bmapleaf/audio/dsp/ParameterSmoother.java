@@ -0,0 +1,62 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * One pole glide of a parameter towards the value last set, so a slider moved on the UI thread
+ * does not step the audio (zipper noise). The target is set from any thread, the value is
+ * advanced on the audio thread once per tick, a sample or a sub-block.
+ */
+class ParameterSmoother {
+    /*closer than this the value jumps to the target*/
+    private static final float epsilon = 1e-5f;
+    private volatile float target;
+    private float value;
+    private float coefficient = 1;
+
+    ParameterSmoother(float initial) {
+        target = value = initial;
+    }
+
+    /**
+     * @param ticksPerSecond how often next() is called, eg. the sample rate
+     * @param timeMs         time constant of the glide, 0 for none
+     */
+    void prepare(float ticksPerSecond, float timeMs) {
+        coefficient = timeMs <= 0 ? 1 : (float) (1 - Math.exp(-1000 / (timeMs * ticksPerSecond)));
+        value = target;
+    }
+
+    void setTarget(float target) {
+        this.target = target;
+    }
+
+    float getTarget() {
+        return target;
+    }
+
+    float getValue() {
+        return value;
+    }
+
+    boolean isSettled() {
+        return value == target;
+    }
+
+    /**
+     * @return the value one tick later
+     */
+    float next() {
+        float t = target;
+        float v = value + (t - value) * coefficient;
+        if (Math.abs(t - v) <= epsilon * Math.max(1, Math.abs(t))) {
+            v = t;
+        }
+        return value = v;
+    }
+
+    /**
+     * Jumps to the target, eg. on reset().
+     */
+    void snap() {
+        value = target;
+    }
+}
@@ -0,0 +1,283 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Streaming YIN fundamental frequency estimator for 16 bit blocks, eg. the recorder's captured
+ * blocks.
+ * <p>
+ * The mono mix is decimated by averaging to at most 24 kHz, which still resolves the range of
+ * a voice, and collected into a window covering two periods of the lowest frequency. Every hop
+ * the cumulative mean normalized difference of the window is searched for the first dip under
+ * the threshold and refined by parabolic interpolation; its depth gives the confidence. All
+ * buffers are allocated in prepare(), process() does not allocate.
+ * <p>
+ * The latest estimate is published with a sequence counter: the audio thread never waits, a
+ * reader copies it with {@link #getLatest(Pitch)} and retries only while a hop is being
+ * written. Listeners get every hop on the audio thread.
+ */
+public class PitchTracker {
+    private static final int maxRate = 24000;
+    private float minFrequency = 70;
+    private float maxFrequency = 1000;
+    private float threshold = 0.15f;
+    private float minLevelDb = -50;
+    private int hopMs = 10;
+    private int channels;
+    private int decimation;
+    private float rate;
+    private int tauMin;
+    private int tauMax;
+    private int window;
+    private int hop;
+    private float[] buffer;
+    private float[] difference;
+    private int fill;
+    private float decimated;
+    private int decimatedCount;
+    private long frames;
+    private volatile OnPitchListener onPitchListener;
+
+    /*published estimate, written between two increments of sequence*/
+    private volatile int sequence;
+    private volatile float latestFrequency;
+    private volatile float latestConfidence;
+    private volatile long latestFrame = -1;
+
+    /**
+     * One estimate.
+     */
+    public static class Pitch {
+        /**
+         * fundamental frequency in Hz, 0 if the hop is unvoiced or too quiet
+         */
+        public float frequency;
+        /**
+         * 0 to 1, how periodic the window is
+         */
+        public float confidence;
+        /**
+         * input frame at the center of the analysis window, -1 before the first hop
+         */
+        public long frame = -1;
+
+        public boolean isVoiced() {
+            return frequency > 0;
+        }
+
+        /**
+         * @return fractional MIDI note number, 69 is A4 = 440 Hz; NaN if unvoiced
+         */
+        public float getMidiNote() {
+            return toMidiNote(frequency);
+        }
+    }
+
+    /**
+     * Called on the audio thread for every hop, must not block.
+     */
+    public interface OnPitchListener {
+        /**
+         * @param frame input frame at the center of the analysis window
+         */
+        void onPitch(long frame, float frequency, float confidence);
+    }
+
+    /**
+     * Sets the range searched, call it before prepare().
+     */
+    public void setRange(float minHz, float maxHz) {
+        minFrequency = minHz;
+        maxFrequency = maxHz;
+    }
+
+    /**
+     * @param threshold dip of the normalized difference that counts as a period, YIN uses 0.1
+     *                  to 0.2; lower rejects more breathy or noisy hops
+     */
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param db windows quieter than this are reported unvoiced without a search
+     */
+    public void setMinimumLevel(float db) {
+        minLevelDb = db;
+    }
+
+    /**
+     * @param ms time between two estimates, call it before prepare()
+     */
+    public void setHop(int ms) {
+        hopMs = ms;
+    }
+
+    public void setOnPitchListener(OnPitchListener l) {
+        onPitchListener = l;
+    }
+
+    /**
+     * Allocates the analysis buffers for the input format and forgets all input. Call it before
+     * the first process(), not from the audio thread.
+     */
+    public synchronized void prepare(int sampleRate, int channels) {
+        this.channels = channels;
+        decimation = Math.max(1, (sampleRate + maxRate - 1) / maxRate);
+        rate = (float) sampleRate / decimation;
+        tauMin = Math.max(2, (int) (rate / maxFrequency));
+        tauMax = (int) Math.ceil(rate / minFrequency) + 1;
+        window = tauMax;
+        hop = Math.max(1, Math.round(rate * hopMs / 1000));
+        buffer = new float[window + tauMax + 1];
+        difference = new float[tauMax + 2];
+        reset();
+    }
+
+    public boolean isPrepared() {
+        return null != buffer;
+    }
+
+    /**
+     * @return input frames between two estimates
+     */
+    public int getHopFrames() {
+        return hop * decimation;
+    }
+
+    /**
+     * @return input frames from the center of the analysis window, the frame an estimate is
+     * stamped with, to the frame that completed it
+     */
+    public int getLatencyFrames() {
+        return buffer.length * decimation / 2;
+    }
+
+    /**
+     * Forgets all input and the published estimate.
+     */
+    public void reset() {
+        fill = 0;
+        decimated = 0;
+        decimatedCount = 0;
+        frames = 0;
+        publish(-1, 0, 0);
+    }
+
+    /**
+     * Feeds a block, estimating at every hop that completes in it.
+     *
+     * @param samples interleaved samples, whole frames
+     */
+    public void process(short[] data, int offset, int samples) {
+        float scale = 1f / (32768f * channels * decimation);
+        for (int i = offset, end = offset + samples - samples % channels; i < end; ) {
+            int mix = 0;
+            for (int c = 0; c < channels; c++, i++) {
+                mix += data[i];
+            }
+            frames++;
+            decimated += mix;
+            if (++decimatedCount < decimation) {
+                continue;
+            }
+            buffer[fill++] = decimated * scale;
+            decimated = 0;
+            decimatedCount = 0;
+            if (fill == buffer.length) {
+                analyze();
+                System.arraycopy(buffer, hop, buffer, 0, fill - hop);
+                fill -= hop;
+            }
+        }
+    }
+
+    /**
+     * Copies the latest estimate without waiting for the audio thread.
+     *
+     * @return false before the first hop
+     */
+    public boolean getLatest(Pitch out) {
+        int before;
+        do {
+            before = sequence;
+            out.frequency = latestFrequency;
+            out.confidence = latestConfidence;
+            out.frame = latestFrame;
+        } while ((before & 1) != 0 || before != sequence);
+        return out.frame >= 0;
+    }
+
+    /**
+     * @return fractional MIDI note number of frequency, NaN if it is not positive
+     */
+    public static float toMidiNote(float frequency) {
+        if (frequency <= 0) {
+            return Float.NaN;
+        }
+        return (float) (69 + 12 * Math.log(frequency / 440.0) / Math.log(2));
+    }
+
+    private void analyze() {
+        long frame = frames - (long) buffer.length * decimation / 2;
+        float energy = 0;
+        for (int j = 0; j < window + tauMax; j++) {
+            energy += buffer[j] * buffer[j];
+        }
+        float levelDb = (float) (10 * Math.log10(energy / (window + tauMax) + 1e-20));
+        if (levelDb < minLevelDb) {
+            publish(frame, 0, 0);
+            return;
+        }
+        /*cumulative mean normalized difference, d'(0) = 1*/
+        float[] x = buffer;
+        float[] d = difference;
+        d[0] = 1;
+        float running = 0;
+        for (int tau = 1; tau <= tauMax; tau++) {
+            float sum = 0;
+            for (int j = 0; j < window; j++) {
+                float delta = x[j] - x[j + tau];
+                sum += delta * delta;
+            }
+            running += sum;
+            d[tau] = running > 0 ? sum * tau / running : 1;
+        }
+        int best = -1;
+        for (int tau = tauMin; tau < tauMax; tau++) {
+            if (d[tau] < threshold) {
+                while (tau + 1 < tauMax && d[tau + 1] < d[tau]) {
+                    tau++;
+                }
+                best = tau;
+                break;
+            }
+        }
+        if (best < 0) {
+            /*no dip deep enough: unvoiced, the deepest one still tells how close it was*/
+            float min = 1;
+            for (int tau = tauMin; tau < tauMax; tau++) {
+                min = Math.min(min, d[tau]);
+            }
+            publish(frame, 0, Math.max(0, Math.min(1, 1 - min)) * 0.5f);
+            return;
+        }
+        float period = best;
+        float a = d[best - 1], b = d[best], c = d[best + 1];
+        float curvature = a - 2 * b + c;
+        if (curvature > 0) {
+            period += 0.5f * (a - c) / curvature;
+        }
+        publish(frame, rate / period, Math.max(0, Math.min(1, 1 - b)));
+    }
+
+    private void publish(long frame, float frequency, float confidence) {
+        sequence++;
+        latestFrequency = frequency;
+        latestConfidence = confidence;
+        latestFrame = frame;
+        sequence++;
+        OnPitchListener l = onPitchListener;
+        if (null != l && frame >= 0) {
+            l.onPitch(frame, frequency, confidence);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.bmapleaf.audio.dsp;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+
+/**
+ * Streaming polyphase resampler for interleaved 16 bit PCM.
+ * <p>
+ * The filter bank is a Kaiser windowed sinc split into {@code phases} sub filters, the output
+ * sample is linearly interpolated between the two sub filters around the fractional read position,
+ * so any ratio can be used with one table. The cut off follows the playback speed: a speed that
+ * reads the input faster than the output rate lowers the cut off below the output nyquist, and
+ * setSpeed() designs a new table then, swapped in whole for the next process() call.
+ * All buffers are allocated in {@link #configure(int, int, int, int, int)}, {@link #process(short[], int, short[])}
+ * never allocates.
+ */
+public class Resampler {
+    private static final float minSpeed = 0.5f;
+    private static final float maxSpeed = 2.0f;
+    /*taps per phase, phases and kaiser beta of each quality*/
+    private static final int[] taps = {8, 16, 32};
+    private static final int[] phases = {32, 128, 512};
+    private static final double[] beta = {5.0, 7.0, 9.0};
+    private int inputRate;
+    private int outputRate;
+    private int channels;
+    private int maxInputFrames;
+    private int numTaps;
+    private int numPhases;
+    private int half;
+    private double kaiserBeta;
+    private volatile float[] coefficients;
+    /*cut off of the current table, relative to the input nyquist*/
+    private double cutoff;
+    private float[] history;
+    private int available;
+    private double position;
+    private double baseStep;
+    private volatile double step;
+    private volatile float speed = 1f;
+
+    /**
+     * Prepares the filter bank and the internal buffers.
+     *
+     * @param inputRate      sample rate of the data passed to process()
+     * @param outputRate     sample rate of the produced data
+     * @param channels       number of interleaved channels
+     * @param maxInputFrames the largest number of frames a single process() call will get
+     * @param quality        one of {@link Quality}
+     */
+    public void configure(int inputRate, int outputRate, int channels, int maxInputFrames, @Quality int quality) {
+        if (inputRate <= 0 || outputRate <= 0 || channels <= 0 || maxInputFrames <= 0) {
+            throw new IllegalArgumentException("configure() with invalid rate, channels or frames");
+        }
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        this.maxInputFrames = maxInputFrames;
+        numTaps = taps[quality];
+        numPhases = phases[quality];
+        half = numTaps / 2;
+        baseStep = (double) inputRate / outputRate;
+        step = baseStep * speed;
+        kaiserBeta = beta[quality];
+        coefficients = null;
+        updateFilter();
+        history = new float[(numTaps + maxInputFrames + 1) * channels];
+        reset();
+    }
+
+    /**
+     * Drops the filter history, call it after a seek.
+     */
+    public void reset() {
+        if (null == history) {
+            return;
+        }
+        Arrays.fill(history, 0f);
+        /*half - 1 zero frames in front, so the first output is centered on the first input*/
+        available = half - 1;
+        position = half - 1;
+    }
+
+    /**
+     * Sets the varispeed ratio, 1 plays at the original speed and pitch.
+     *
+     * @param speed playback speed, clamped to [0.5, 2]
+     */
+    public void setSpeed(float speed) {
+        this.speed = Math.max(minSpeed, Math.min(maxSpeed, speed));
+        step = baseStep * this.speed;
+        if (null != coefficients) {
+            updateFilter();
+        }
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * @return true if the rates match and speed is 1, the data can be used as is
+     */
+    public boolean isPassThrough() {
+        return inputRate == outputRate && speed == 1f;
+    }
+
+    /**
+     * @param inputFrames frames passed to one process() call
+     * @return the size in frames the output buffer must have
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        return (int) Math.ceil(inputFrames / (baseStep * minSpeed)) + 2;
+    }
+
+    /**
+     * Resamples one block. All input frames are consumed, the output lags the input by half the
+     * filter length.
+     *
+     * @param in       interleaved input samples
+     * @param inFrames number of frames in {@code in}
+     * @param out      interleaved output, at least {@link #getMaxOutputFrames(int)} frames
+     * @return number of frames written to {@code out}
+     */
+    public int process(short[] in, int inFrames, short[] out) {
+        if (inFrames > maxInputFrames) {
+            throw new IllegalArgumentException("process() called with " + inFrames + " frames, max " + maxInputFrames);
+        }
+        final int channels = this.channels;
+        final int numTaps = this.numTaps;
+        final float[] history = this.history;
+        final float[] coefficients = this.coefficients;
+        for (int i = 0, j = available * channels, n = inFrames * channels; i < n; i++, j++) {
+            history[j] = in[i];
+        }
+        available += inFrames;
+
+        final double step = this.step;
+        int produced = 0;
+        int index;
+        while ((index = (int) position) + half < available) {
+            double phase = (position - index) * numPhases;
+            int p = (int) phase;
+            float weight = (float) (phase - p);
+            int c0 = p * numTaps;
+            int c1 = c0 + numTaps;
+            int base = (index - half + 1) * channels;
+            for (int ch = 0; ch < channels; ch++) {
+                float s0 = 0, s1 = 0;
+                for (int k = 0, h = base + ch; k < numTaps; k++, h += channels) {
+                    float x = history[h];
+                    s0 += x * coefficients[c0 + k];
+                    s1 += x * coefficients[c1 + k];
+                }
+                int data = Math.round(s0 + (s1 - s0) * weight);
+                if (data > 32767)
+                    data = 32767;
+                else if (data < -32768)
+                    data = -32768;
+                out[produced * channels + ch] = (short) data;
+            }
+            produced++;
+            position += step;
+        }
+
+        /*drop the frames no longer reachable by the filter*/
+        int shift = (int) position - half + 1;
+        if (shift > 0) {
+            if (shift > available) {
+                shift = available;
+            }
+            System.arraycopy(history, shift * channels, history, 0, (available - shift) * channels);
+            available -= shift;
+            position -= shift;
+        }
+        return produced;
+    }
+
+    /**
+     * Hands out what process() still holds back at the end of the stream, the last half filter
+     * length of input, by feeding as much silence. Call reset() before the next process().
+     *
+     * @param out interleaved output, at least {@link #getMaxOutputFrames(int)} of maxInputFrames
+     * @return number of frames written to {@code out}
+     */
+    public int drain(short[] out) {
+        return process(new short[half * channels], half, out);
+    }
+
+    /**
+     * Designs the table for the current step if its cut off lets the step alias, or is more than
+     * 5% below what the step allows. A new table is designed 2.5% below the limit, so a speed
+     * slider moved by a few percent does not redesign on every call.
+     */
+    private synchronized void updateFilter() {
+        /*keep the pass band below both nyquist frequencies*/
+        double wanted = Math.min(1.0, 1.0 / step) * 0.95;
+        if (null != coefficients && cutoff <= wanted && cutoff >= wanted * 0.95) {
+            return;
+        }
+        double design = null == coefficients || wanted >= 0.95 ? wanted : wanted * 0.975;
+        float[] table = new float[(numPhases + 1) * numTaps];
+        designFilter(table, numTaps, numPhases, design, kaiserBeta);
+        cutoff = design;
+        coefficients = table;
+    }
+
+    private static void designFilter(float[] table, int numTaps, int numPhases, double cutoff, double beta) {
+        int half = numTaps / 2;
+        double i0Beta = besselI0(beta);
+        for (int p = 0; p <= numPhases; p++) {
+            double frac = (double) p / numPhases;
+            double sum = 0;
+            for (int k = 0; k < numTaps; k++) {
+                double t = k - half + 1 - frac;
+                double x = t / half;
+                double window = Math.abs(x) >= 1 ? 0 : besselI0(beta * Math.sqrt(1 - x * x)) / i0Beta;
+                double sinc = t == 0 ? 1 : Math.sin(Math.PI * cutoff * t) / (Math.PI * cutoff * t);
+                double h = cutoff * sinc * window;
+                table[p * numTaps + k] = (float) h;
+                sum += h;
+            }
+            /*unity gain at DC for every phase*/
+            for (int k = 0; k < numTaps; k++) {
+                table[p * numTaps + k] /= sum;
+            }
+        }
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1, term = 1, q = x * x / 4;
+        for (int k = 1; k < 50 && term > sum * 1e-12; k++) {
+            term *= q / ((double) k * k);
+            sum += term;
+        }
+        return sum;
+    }
+
+    /**
+     * Cost/quality tiers, LOW is cheap enough for old single core devices.
+     */
+    @IntDef({Quality.LOW, Quality.MEDIUM, Quality.HIGH})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Quality {
+        int LOW = 0;
+        int MEDIUM = 1;
+        int HIGH = 2;
+    }
+}
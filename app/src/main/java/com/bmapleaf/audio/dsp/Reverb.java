@@ -0,0 +1,186 @@
+package com.bmapleaf.audio.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Feedback delay network reverb: eight delay lines of mutually prime lengths fed back through a
+ * Hadamard matrix, with a low pass in every line for the damping of the high frequencies.
+ * <p>
+ * The mono mix of the input goes through a pre-delay into all lines, even lines make the left
+ * and odd lines the right output, so the tail is wide whatever the input. The gain of a line
+ * is set from its length for the decay time (RT60) asked for. The reverb is added to the dry
+ * signal at the wet level; decay, damping and wet level glide to the values last set. The lines
+ * are allocated in prepare() for the largest lengths.
+ */
+public class Reverb implements AudioEffect {
+    private static final int lines = 8;
+    /*line lengths, prime numbers of samples at 48 kHz*/
+    private static final float[] lengthsMs = {29.979f, 35.604f, 40.229f, 44.521f, 49.854f, 55.479f, 62.479f, 68.729f};
+    private static final float maxPreDelayMs = 100;
+    private static final float smoothingMs = 50;
+    private static final int tickFrames = 32;
+    private final ParameterSmoother decaySeconds = new ParameterSmoother(1.6f);
+    private final ParameterSmoother damping = new ParameterSmoother(0.4f);
+    private final ParameterSmoother wet = new ParameterSmoother(0.25f);
+    private volatile float preDelayMs = 20;
+    private int sampleRate;
+    private int channels;
+    private final float[][] delays = new float[lines][];
+    private final int[] positions = new int[lines];
+    private final float[] gains = new float[lines];
+    private final float[] lowPass = new float[lines];
+    private final float[] mix = new float[lines];
+    private float[] preDelay;
+    private int preDelayPosition;
+    private float dampingCoefficient;
+    private boolean tuned;
+    private int tick;
+    /*keeps the decaying tail out of denormal numbers*/
+    private float offset = 1e-18f;
+
+    /**
+     * @param seconds time the tail takes to fall by 60 dB
+     */
+    public void setDecay(float seconds) {
+        decaySeconds.setTarget(Math.max(0.1f, seconds));
+    }
+
+    /**
+     * @param damping 0 keeps the highs ringing as long as the lows, 1 dulls the tail quickly
+     */
+    public void setDamping(float damping) {
+        this.damping.setTarget(Math.max(0, Math.min(0.95f, damping)));
+    }
+
+    /**
+     * @param level gain of the reverb added to the dry signal
+     */
+    public void setWet(float level) {
+        wet.setTarget(Math.max(0, level));
+    }
+
+    /**
+     * @param ms delay of the tail behind the dry signal, up to 100 ms
+     */
+    public void setPreDelay(float ms) {
+        preDelayMs = Math.max(0, Math.min(maxPreDelayMs, ms));
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channels, int maxFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        for (int i = 0; i < lines; i++) {
+            delays[i] = new float[Math.max(1, Math.round(lengthsMs[i] * sampleRate / 1000))];
+        }
+        preDelay = new float[(int) (maxPreDelayMs * sampleRate / 1000) + 1];
+        decaySeconds.prepare((float) sampleRate / tickFrames, smoothingMs);
+        damping.prepare((float) sampleRate / tickFrames, smoothingMs);
+        wet.prepare(sampleRate, smoothingMs);
+        reset();
+    }
+
+    @Override
+    public void process(float[] buffer, int frames) {
+        final int preDelayFrames = Math.min(preDelay.length - 1, Math.round(preDelayMs * sampleRate / 1000));
+        offset = -offset;
+        for (int f = 0, i = 0; f < frames; f++, i += channels) {
+            if (tick-- == 0) {
+                tick = tickFrames - 1;
+                update();
+            }
+            float in = 0;
+            for (int c = 0; c < channels; c++) {
+                in += buffer[i + c];
+            }
+            in /= channels;
+            preDelay[preDelayPosition] = in;
+            int read = preDelayPosition - preDelayFrames;
+            in = preDelay[read < 0 ? read + preDelay.length : read] + offset;
+            if (++preDelayPosition == preDelay.length) {
+                preDelayPosition = 0;
+            }
+            /*read the lines, damp them, mix with the Hadamard matrix and write back*/
+            float left = 0, right = 0;
+            for (int l = 0; l < lines; l++) {
+                float out = delays[l][positions[l]];
+                if ((l & 1) == 0) {
+                    left += (l & 2) == 0 ? out : -out;
+                } else {
+                    right += (l & 2) == 0 ? out : -out;
+                }
+                lowPass[l] = out + (lowPass[l] - out) * dampingCoefficient;
+                mix[l] = lowPass[l];
+            }
+            hadamard(mix);
+            for (int l = 0; l < lines; l++) {
+                delays[l][positions[l]] = in + mix[l] * gains[l];
+                if (++positions[l] == delays[l].length) {
+                    positions[l] = 0;
+                }
+            }
+            float level = wet.next() * 0.5f;
+            if (channels == 1) {
+                buffer[i] += (left + right) * 0.5f * level;
+            } else {
+                for (int c = 0; c < channels; c++) {
+                    buffer[i + c] += ((c & 1) == 0 ? left : right) * level;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int l = 0; l < lines; l++) {
+            if (null != delays[l]) {
+                Arrays.fill(delays[l], 0);
+            }
+            positions[l] = 0;
+            lowPass[l] = 0;
+        }
+        if (null != preDelay) {
+            Arrays.fill(preDelay, 0);
+        }
+        preDelayPosition = 0;
+        decaySeconds.snap();
+        damping.snap();
+        wet.snap();
+        tuned = false;
+        tick = 0;
+    }
+
+    /**
+     * Advances decay and damping by one tick and recomputes the line gains while they move.
+     */
+    private void update() {
+        if (tuned && decaySeconds.isSettled() && damping.isSettled()) {
+            return;
+        }
+        float decay = decaySeconds.next();
+        dampingCoefficient = damping.next();
+        tuned = true;
+        for (int l = 0; l < lines; l++) {
+            gains[l] = (float) Math.pow(10, -3.0 * delays[l].length / (decay * sampleRate));
+        }
+    }
+
+    /**
+     * Orthogonal 8 x 8 Hadamard transform in place, scaled to keep the energy.
+     */
+    private static void hadamard(float[] x) {
+        for (int h = 1; h < lines; h <<= 1) {
+            for (int i = 0; i < lines; i += h << 1) {
+                for (int j = i; j < i + h; j++) {
+                    float a = x[j], b = x[j + h];
+                    x[j] = a + b;
+                    x[j + h] = a - b;
+                }
+            }
+        }
+        final float scale = 0.35355339f;
+        for (int i = 0; i < lines; i++) {
+            x[i] *= scale;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Magnitude spectrum of the rendered or captured audio in logarithmic bands, for visualizers.
+ * <p>
+ * The mono mix is decimated by averaging down to twice the highest band frequency and collected
+ * in a ring of fftSize samples. At the update rate the ring is Hann windowed and transformed by a
+ * real FFT (a complex FFT of half the size and one split pass), the power of the bins is summed
+ * per band and published in dB, 0 dB being a full scale sine. Twiddle and bit reversal tables and
+ * all buffers are allocated in prepare(), process() does not allocate; at most one transform runs
+ * per process() call, however many updates were due.
+ * <p>
+ * Bands are published in two buffers: the audio thread writes the one readers are not told
+ * about, then flips a sequence counter, so a reader copies the other with
+ * {@link #getLatest(Spectrum)} without ever blocking it and retries only if a whole update
+ * happened in between. The time the transforms take is measured; above the load limit the
+ * analyzer halves its update rate, and setEnabled(false) makes process() return at once.
+ */
+public class SpectrumAnalyzer {
+    private static final float silenceDb = -100;
+    private static final int maxThrottle = 16;
+    private int fftSize = 1024;
+    private int bandCount = 32;
+    private float minFrequency = 50;
+    private float maxFrequency = 16000;
+    private float updateRate = 30;
+    private float maxLoad = 0.05f;
+    private volatile boolean enabled = true;
+    private int sampleRate;
+    private int channels;
+    private int decimation;
+    private float rate;
+    private int hop;
+    private int throttle;
+    /*input ring and transform*/
+    private float[] ring;
+    private int ringPos;
+    private int filled;
+    private float decimated;
+    private int decimatedCount;
+    private int sinceUpdate;
+    private float[] window;
+    private float[] re;
+    private float[] im;
+    private Fft fft;
+    private float[] splitCos;
+    private float[] splitSin;
+    private int[] bandStart;
+    private int[] bandEnd;
+    private float powerScale;
+    private long frames;
+    private long analysisNanos;
+
+    /*published bands, two buffers flipped by sequence*/
+    private float[][] published;
+    private final long[] publishedFrame = new long[2];
+    private volatile int sequence;
+    private volatile float averageNanos;
+    private volatile float load;
+
+    /**
+     * One published spectrum.
+     */
+    public static class Spectrum {
+        /**
+         * level per band in dB, 0 for a full scale sine in the band
+         */
+        public final float[] bands;
+        /**
+         * input frame at the end of the window, -1 before the first update
+         */
+        public long frame = -1;
+        /**
+         * number of the update, changes with every new spectrum
+         */
+        public int sequence;
+
+        public Spectrum(int bands) {
+            this.bands = new float[bands];
+        }
+    }
+
+    /**
+     * @param size points of the transform, a power of two; call it before prepare()
+     */
+    public void setSize(int size) {
+        if (size < 16 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("fft size must be a power of two, not " + size);
+        }
+        fftSize = size;
+    }
+
+    /**
+     * Sets the bands, logarithmically spaced from minHz to maxHz; call it before prepare().
+     */
+    public void setBands(int count, float minHz, float maxHz) {
+        bandCount = count;
+        minFrequency = minHz;
+        maxFrequency = maxHz;
+    }
+
+    /**
+     * @param perSecond spectra published per second, eg. the display refresh rate
+     */
+    public void setUpdateRate(float perSecond) {
+        updateRate = perSecond;
+        if (sampleRate > 0) {
+            hop = Math.max(1, Math.round(rate / updateRate));
+        }
+    }
+
+    /**
+     * @param load share of one core the transforms may take before the update rate is halved
+     */
+    public void setMaxLoad(float load) {
+        maxLoad = load;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Allocates the tables and buffers for the input format and forgets all input. Call it before
+     * the first process(), not from the audio thread.
+     */
+    public synchronized void prepare(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        decimation = Math.max(1, (int) (sampleRate / (2 * maxFrequency)));
+        rate = (float) sampleRate / decimation;
+        hop = Math.max(1, Math.round(rate / updateRate));
+        int n = fftSize, m = n / 2;
+        ring = new float[n];
+        re = new float[m];
+        im = new float[m];
+        window = new float[n];
+        for (int i = 0; i < n; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / n));
+        }
+        fft = new Fft(m);
+        splitCos = new float[m];
+        splitSin = new float[m];
+        for (int k = 0; k < m; k++) {
+            splitCos[k] = (float) Math.cos(2 * Math.PI * k / n);
+            splitSin[k] = (float) Math.sin(2 * Math.PI * k / n);
+        }
+        /*band edges in bins, every band at least one bin wide*/
+        bandStart = new int[bandCount];
+        bandEnd = new int[bandCount];
+        float binHz = rate / n;
+        float top = Math.min(maxFrequency, rate / 2);
+        int next = Math.max(1, Math.round(minFrequency / binHz));
+        for (int b = 0; b < bandCount; b++) {
+            double edge = minFrequency * Math.pow(top / minFrequency, (b + 1.0) / bandCount);
+            bandStart[b] = Math.min(next, m);
+            bandEnd[b] = Math.min(m + 1, Math.max(bandStart[b] + 1, (int) Math.round(edge / binHz)));
+            next = bandEnd[b];
+        }
+        /*half the power of a windowed full scale sine lands in the positive bins*/
+        powerScale = 32f / (3f * n * n);
+        published = new float[2][bandCount];
+        reset();
+    }
+
+    public boolean isPrepared() {
+        return null != ring;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * @return center frequency of a band in Hz, for labels
+     */
+    public float getBandFrequency(int band) {
+        float binHz = rate / fftSize;
+        return (float) Math.sqrt(bandStart[band] * binHz * Math.max(bandStart[band], bandEnd[band] - 1) * binHz);
+    }
+
+    /**
+     * @return input frames between two spectra, after throttling
+     */
+    public int getUpdateFrames() {
+        return hop * throttle * decimation;
+    }
+
+    /**
+     * @return mean time one update takes
+     */
+    public float getAverageNanos() {
+        return averageNanos;
+    }
+
+    /**
+     * @return share of one core the updates take at the current rate
+     */
+    public float getLoad() {
+        return load;
+    }
+
+    /**
+     * Forgets all input and the published spectrum.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = 0;
+        }
+        ringPos = filled = 0;
+        decimated = 0;
+        decimatedCount = 0;
+        sinceUpdate = 0;
+        throttle = 1;
+        frames = 0;
+        analysisNanos = 0;
+        averageNanos = load = 0;
+        publishedFrame[0] = publishedFrame[1] = -1;
+        sequence = 0;
+    }
+
+    /**
+     * Feeds a block, publishing a spectrum if an update is due by its end.
+     *
+     * @param samples interleaved samples, whole frames
+     */
+    public void process(short[] data, int offset, int samples) {
+        if (!enabled) {
+            return;
+        }
+        float scale = 1f / (32768f * channels * decimation);
+        for (int i = offset, end = offset + samples - samples % channels; i < end; ) {
+            int mix = 0;
+            for (int c = 0; c < channels; c++, i++) {
+                mix += data[i];
+            }
+            frames++;
+            decimated += mix;
+            if (++decimatedCount < decimation) {
+                continue;
+            }
+            ring[ringPos] = decimated * scale;
+            ringPos = (ringPos + 1) & (ring.length - 1);
+            decimated = 0;
+            decimatedCount = 0;
+            sinceUpdate++;
+            if (filled < ring.length) {
+                filled++;
+            }
+        }
+        if (filled == ring.length && sinceUpdate >= hop * throttle) {
+            sinceUpdate = 0;
+            long t0 = System.nanoTime();
+            analyze();
+            measure(System.nanoTime() - t0);
+        }
+    }
+
+    /**
+     * Copies the latest spectrum without waiting for the audio thread.
+     *
+     * @return false before the first update
+     */
+    public boolean getLatest(Spectrum out) {
+        int before;
+        do {
+            before = sequence;
+            if (before == 0) {
+                return false;
+            }
+            float[] bands = published[before & 1];
+            System.arraycopy(bands, 0, out.bands, 0, Math.min(bands.length, out.bands.length));
+            out.frame = publishedFrame[before & 1];
+        } while (before != sequence);
+        out.sequence = before;
+        return true;
+    }
+
+    private void analyze() {
+        int n = fftSize, m = n / 2;
+        /*pack the windowed ring, oldest first, as m complex points*/
+        for (int k = 0; k < m; k++) {
+            int p = (ringPos + 2 * k) & (n - 1);
+            re[k] = ring[p] * window[2 * k];
+            im[k] = ring[(p + 1) & (n - 1)] * window[2 * k + 1];
+        }
+        fft.transform(re, im, false);
+        int back = (sequence + 1) & 1;
+        float[] bands = published[back];
+        int band = 0;
+        float power = 0;
+        for (int k = 0; k <= m && band < bandCount; k++) {
+            float binPower;
+            if (k == 0 || k == m) {
+                float x = k == 0 ? re[0] + im[0] : re[0] - im[0];
+                binPower = x * x;
+            } else {
+                /*split the transform of the even and odd samples into bin k of the real one*/
+                float ar = re[k], ai = im[k], br = re[m - k], bi = im[m - k];
+                float er = (ar + br) * 0.5f, ei = (ai - bi) * 0.5f;
+                float or = (ai + bi) * 0.5f, oi = (br - ar) * 0.5f;
+                float c = splitCos[k], s = splitSin[k];
+                float xr = er + c * or + s * oi;
+                float xi = ei + c * oi - s * or;
+                binPower = xr * xr + xi * xi;
+            }
+            if (k < bandStart[band]) {
+                continue;
+            }
+            power += binPower;
+            if (k == bandEnd[band] - 1) {
+                float db = power > 0 ? (float) (10 * Math.log10(power * powerScale)) : silenceDb;
+                bands[band++] = Math.max(silenceDb, db);
+                power = 0;
+            }
+        }
+        while (band < bandCount) {
+            bands[band++] = silenceDb;
+        }
+        publishedFrame[back] = frames;
+        sequence++;
+    }
+
+    /**
+     * Averages the cost of an update and throttles the rate against the load limit.
+     */
+    private void measure(long nanos) {
+        analysisNanos = analysisNanos == 0 ? nanos : (analysisNanos * 7 + nanos) / 8;
+        float intervalNanos = getUpdateFrames() * 1e9f / sampleRate;
+        float current = analysisNanos / intervalNanos;
+        if (current > maxLoad && throttle < maxThrottle) {
+            throttle *= 2;
+        } else if (current < maxLoad / 4 && throttle > 1) {
+            throttle /= 2;
+        }
+        averageNanos = analysisNanos;
+        load = current;
+    }
+}
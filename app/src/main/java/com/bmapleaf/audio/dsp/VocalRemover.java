@@ -0,0 +1,221 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Reduces what is panned to the center of a stereo song, usually the lead vocal, for karaoke
+ * over tracks that still have it. Three tiers of {@link Resampler.Quality}:
+ * <ul>
+ * <li>LOW subtracts the mid signal (L + R) / 2 from both channels. Costs nothing, but bass, kick
+ * and snare are in the center as well and go with the voice.</li>
+ * <li>MEDIUM subtracts only the part of the mid signal between the low and the high cutoff, by
+ * adding back its low pass and high pass. The band cancels exactly, whatever the phase of the
+ * filters, and bass and cymbals stay.</li>
+ * <li>HIGH works on a short time spectrum (2048 points, 75% overlap, square root Hann windows):
+ * a bin is center in as much as left and right are equal in level and phase there, and only that
+ * share of it is removed, within the band. Instruments panned to a side stay where they are.
+ * Delays the signal by the frame size; both channels go through one complex transform.</li>
+ * </ul>
+ * Mono or multichannel blocks pass unchanged. All buffers are allocated in prepare().
+ */
+public class VocalRemover implements AudioEffect {
+    private static final int frameSize = 2048;
+    private static final int hop = frameSize / 4;
+    /*sharpness of the spectral mask, a bin 6 dB off center gets 17% of the removal*/
+    private static final int sharpness = 8;
+    @Resampler.Quality
+    private final int quality;
+    private volatile float amount = 1;
+    private float lowHz = 120;
+    private float highHz = 8000;
+    private int sampleRate;
+    private int channels;
+    private Biquad lowPass;
+    private Biquad highPass;
+    /*spectral mode*/
+    private Fft fft;
+    private float[] window;
+    private float[] inLeft;
+    private float[] inRight;
+    private float[] outLeft;
+    private float[] outRight;
+    private float[] readyLeft;
+    private float[] readyRight;
+    private float[] re;
+    private float[] im;
+    private int fill;
+    private int lowBin;
+    private int highBin;
+
+    public VocalRemover(@Resampler.Quality int quality) {
+        this.quality = quality;
+    }
+
+    @Resampler.Quality
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * @param amount 0 keeps the vocal, 1 removes as much as the tier can
+     */
+    public void setAmount(float amount) {
+        this.amount = Math.max(0, Math.min(1, amount));
+    }
+
+    public float getAmount() {
+        return amount;
+    }
+
+    /**
+     * Sets the band the vocal is removed in, call it before prepare(). Not used by LOW.
+     */
+    public void setBand(float lowHz, float highHz) {
+        this.lowHz = lowHz;
+        this.highHz = highHz;
+    }
+
+    /**
+     * @return frames the output is late by, frameSize for HIGH and 0 otherwise
+     */
+    public int getLatencyFrames() {
+        return quality == Resampler.Quality.HIGH ? frameSize : 0;
+    }
+
+    @Override
+    public void prepare(int sampleRate, int channels, int maxFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        float high = Math.min(highHz, sampleRate * 0.45f);
+        lowPass = new Biquad(1).setLowPass(sampleRate, lowHz, 0.7071f);
+        highPass = new Biquad(1).setHighPass(sampleRate, high, 0.7071f);
+        if (quality == Resampler.Quality.HIGH) {
+            fft = new Fft(frameSize);
+            window = new float[frameSize];
+            for (int i = 0; i < frameSize; i++) {
+                window[i] = (float) Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * i / frameSize));
+            }
+            inLeft = new float[frameSize];
+            inRight = new float[frameSize];
+            outLeft = new float[frameSize];
+            outRight = new float[frameSize];
+            readyLeft = new float[hop];
+            readyRight = new float[hop];
+            re = new float[frameSize];
+            im = new float[frameSize];
+            lowBin = Math.max(1, Math.round(lowHz * frameSize / sampleRate));
+            highBin = Math.min(frameSize / 2 - 1, Math.round(high * frameSize / sampleRate));
+        }
+        reset();
+    }
+
+    @Override
+    public void process(float[] buffer, int frames) {
+        if (channels != 2) {
+            return;
+        }
+        final float a = amount;
+        switch (quality) {
+            case Resampler.Quality.LOW:
+                for (int i = 0; i < frames * 2; i += 2) {
+                    float mid = (buffer[i] + buffer[i + 1]) * 0.5f * a;
+                    buffer[i] -= mid;
+                    buffer[i + 1] -= mid;
+                }
+                break;
+            case Resampler.Quality.MEDIUM:
+                for (int i = 0; i < frames * 2; i += 2) {
+                    float mid = (buffer[i] + buffer[i + 1]) * 0.5f;
+                    /*the band is what the low and the high pass leave*/
+                    float band = (mid - lowPass.process(mid, 0) - highPass.process(mid, 0)) * a;
+                    buffer[i] -= band;
+                    buffer[i + 1] -= band;
+                }
+                break;
+            default:
+                processSpectral(buffer, frames, a);
+                break;
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (null != lowPass) {
+            lowPass.reset();
+            highPass.reset();
+        }
+        if (null != fft) {
+            for (int i = 0; i < frameSize; i++) {
+                inLeft[i] = inRight[i] = outLeft[i] = outRight[i] = 0;
+            }
+            for (int i = 0; i < hop; i++) {
+                readyLeft[i] = readyRight[i] = 0;
+            }
+            fill = frameSize - hop;
+        }
+    }
+
+    private void processSpectral(float[] buffer, int frames, float a) {
+        for (int i = 0; i < frames * 2; i += 2) {
+            int j = fill - (frameSize - hop);
+            inLeft[fill] = buffer[i];
+            inRight[fill] = buffer[i + 1];
+            buffer[i] = readyLeft[j];
+            buffer[i + 1] = readyRight[j];
+            if (++fill == frameSize) {
+                processFrame(a);
+                fill = frameSize - hop;
+            }
+        }
+    }
+
+    /**
+     * Removes the center of the frame in the input buffers, overlap-adds the result and moves
+     * the next hop to the ready buffers.
+     */
+    private void processFrame(float a) {
+        final int n = frameSize;
+        /*left as the real, right as the imaginary part of one transform*/
+        for (int i = 0; i < n; i++) {
+            re[i] = inLeft[i] * window[i];
+            im[i] = inRight[i] * window[i];
+        }
+        fft.transform(re, im, false);
+        for (int k = lowBin; k <= highBin; k++) {
+            float ar = re[k], ai = im[k], br = re[n - k], bi = im[n - k];
+            float lr = (ar + br) * 0.5f, li = (ai - bi) * 0.5f;
+            float rr = (ai + bi) * 0.5f, ri = (br - ar) * 0.5f;
+            float power = lr * lr + li * li + rr * rr + ri * ri;
+            if (power <= 1e-20f) {
+                continue;
+            }
+            /*1 for equal level and phase, 0 for one side only or opposite phase*/
+            float similarity = Math.max(0, 2 * (lr * rr + li * ri) / power);
+            float g = similarity;
+            for (int p = 1; p < sharpness; p++) {
+                g *= similarity;
+            }
+            g *= a * 0.5f;
+            float cr = (lr + rr) * g, ci = (li + ri) * g;
+            /*Z(k) = L + iR loses C + iC, Z(n - k) its conjugate counterpart*/
+            re[k] -= cr - ci;
+            im[k] -= ci + cr;
+            re[n - k] -= cr + ci;
+            im[n - k] -= cr - ci;
+        }
+        fft.transform(re, im, true);
+        /*square root Hann twice is Hann, which sums to 2 at 75% overlap*/
+        float scale = 0.5f / n;
+        for (int i = 0; i < n; i++) {
+            outLeft[i] += re[i] * window[i] * scale;
+            outRight[i] += im[i] * window[i] * scale;
+        }
+        System.arraycopy(outLeft, 0, readyLeft, 0, hop);
+        System.arraycopy(outRight, 0, readyRight, 0, hop);
+        System.arraycopy(outLeft, hop, outLeft, 0, n - hop);
+        System.arraycopy(outRight, hop, outRight, 0, n - hop);
+        for (int i = n - hop; i < n; i++) {
+            outLeft[i] = outRight[i] = 0;
+        }
+        System.arraycopy(inLeft, hop, inLeft, 0, n - hop);
+        System.arraycopy(inRight, hop, inRight, 0, n - hop);
+    }
+}
@@ -0,0 +1,132 @@
+package com.bmapleaf.audio.dsp;
+
+/**
+ * Block-wise voice activity detection from short-term energy and zero-crossing rate, to gate
+ * the silent stretches (instrumental breaks, room noise) of a vocal recording.
+ * <p>
+ * A block is voice when its energy stands thresholdDb above the tracked noise floor. A block
+ * only a little above the floor also needs a zero-crossing rate below that of broadband noise
+ * (hiss, fans); sung vowels cross zero a few times per period, noise about every other sample.
+ * The floor follows quieter blocks down at once and rises slowly, so a held note does not turn
+ * into the floor but a noisier room does. After voice the gate stays open for the hangover, so
+ * tails and breaths between phrases are kept.
+ */
+public class VoiceActivityDetector {
+    private static final float silenceDb = -100;
+    private final int sampleRate;
+    private final int channels;
+    private float thresholdDb = 12;
+    private float minDb = -60;
+    private float maxNoiseZeroCrossings = 0.25f;
+    private float floorRiseDbPerSecond = 1;
+    private long hangoverFrames;
+    private float floorDb = Float.NaN;
+    private long holdFrames;
+    private float lastEnergyDb = silenceDb;
+    private float lastZeroCrossings;
+
+    public VoiceActivityDetector(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        setHangover(300);
+    }
+
+    /**
+     * @param db how far above the noise floor a block counts as voice
+     */
+    public void setThreshold(float db) {
+        thresholdDb = db;
+    }
+
+    /**
+     * @param db blocks quieter than this never open the gate, whatever the floor
+     */
+    public void setMinimumLevel(float db) {
+        minDb = db;
+    }
+
+    /**
+     * @param ms time the gate stays open after the last voice block
+     */
+    public void setHangover(int ms) {
+        hangoverFrames = (long) ms * sampleRate / 1000;
+    }
+
+    public float getNoiseFloorDb() {
+        return Float.isNaN(floorDb) ? silenceDb : floorDb;
+    }
+
+    public float getLastEnergyDb() {
+        return lastEnergyDb;
+    }
+
+    /**
+     * @return zero crossings per frame of the last block, 0 to 1
+     */
+    public float getLastZeroCrossingRate() {
+        return lastZeroCrossings;
+    }
+
+    /**
+     * Classifies one block.
+     *
+     * @param samples interleaved samples, whole frames
+     * @return true if the block is voice or within the hangover after voice
+     */
+    public boolean process(short[] data, int offset, int samples) {
+        int frames = samples / channels;
+        if (frames == 0) {
+            return holdFrames > 0;
+        }
+        /*energy of all channels, zero crossings of the mono mix*/
+        double sum = 0;
+        int crossings = 0;
+        int previous = 0;
+        for (int f = 0, i = offset; f < frames; f++) {
+            int mix = 0;
+            for (int c = 0; c < channels; c++, i++) {
+                int v = data[i];
+                sum += v * v;
+                mix += v;
+            }
+            if (previous != 0 && mix != 0 && (mix ^ previous) < 0) {
+                crossings++;
+            }
+            if (mix != 0) {
+                previous = mix;
+            }
+        }
+        float energyDb = (float) Math.max(silenceDb, 10 * Math.log10(sum / (frames * channels) / (32768.0 * 32768.0)));
+        float zeroCrossings = (float) crossings / frames;
+        lastEnergyDb = energyDb;
+        lastZeroCrossings = zeroCrossings;
+
+        if (Float.isNaN(floorDb) || energyDb < floorDb) {
+            floorDb = energyDb;
+        } else {
+            floorDb = Math.min(energyDb, floorDb + floorRiseDbPerSecond * frames / sampleRate);
+        }
+        float above = energyDb - floorDb;
+        boolean voice = energyDb > minDb && above > thresholdDb
+                && (zeroCrossings < maxNoiseZeroCrossings || above > 2 * thresholdDb);
+        if (voice) {
+            holdFrames = hangoverFrames;
+            return true;
+        }
+        if (holdFrames > 0) {
+            holdFrames -= frames;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the noise floor and closes the gate, eg. before a new recording.
+     */
+    public void reset() {
+        floorDb = Float.NaN;
+        holdFrames = 0;
+        lastEnergyDb = silenceDb;
+        lastZeroCrossings = 0;
+    }
+}
@@ -0,0 +1,324 @@
+package com.bmapleaf.audio.dsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Min/max peaks of a track at several zoom levels.
+ * <p>
+ * Level 0 holds one min/max pair per {@link #baseBucket} frames over all channels, every further
+ * level merges {@link #factor} buckets of the level below. Level 0 is filled while decoding,
+ * add() may be called out of order (eg. from parallel decode segments) because buckets are only
+ * ever merged with min/max. finish() derives the upper levels until one bucket covers the track,
+ * so their number grows with its length. A query for N pixels picks the coarsest level whose
+ * bucket is not wider than a pixel, so every pixel reads at most factor + 1 buckets whatever the
+ * length of the track and the zoom.
+ */
+public class WaveformPyramid {
+    public static final int baseBucket = 256;
+    public static final int factor = 4;
+    /*256 * 4^15 frames is more than a year at 48 kHz*/
+    private static final int maxLevels = 16;
+    private static final int magic = 0x5059524b;
+    private static final int version = 2;
+    private final int sampleRate;
+    private final int channels;
+    private long frames;
+    /*levels built by finish(), 0 before*/
+    private int levels;
+    private short[][] min = new short[maxLevels][];
+    private short[][] max = new short[maxLevels][];
+    private int[] count = new int[maxLevels];
+
+    /**
+     * @param expectedFrames estimated length, used to size level 0 up front
+     */
+    public WaveformPyramid(int sampleRate, int channels, long expectedFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        int buckets = (int) (expectedFrames / baseBucket + 1);
+        min[0] = newBuckets(buckets, Short.MAX_VALUE);
+        max[0] = newBuckets(buckets, Short.MIN_VALUE);
+    }
+
+    private WaveformPyramid(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    /**
+     * Adds interleaved 16 bit samples.
+     *
+     * @param frame  index of the first frame of the block in the track
+     * @param data   interleaved samples
+     * @param offset offset in samples
+     * @param frames number of frames
+     */
+    public synchronized void add(long frame, short[] data, int offset, int frames) {
+        if (frames <= 0) {
+            return;
+        }
+        ensureBuckets(frame + frames);
+        short[] min = this.min[0];
+        short[] max = this.max[0];
+        int bucket = (int) (frame / baseBucket);
+        int left = (int) (baseBucket - frame % baseBucket);
+        short mn = min[bucket], mx = max[bucket];
+        for (int i = offset, end = offset + frames * channels; i < end; ) {
+            for (int c = 0; c < channels; c++, i++) {
+                short v = data[i];
+                if (v < mn) mn = v;
+                if (v > mx) mx = v;
+            }
+            if (--left == 0) {
+                min[bucket] = mn;
+                max[bucket] = mx;
+                bucket++;
+                left = baseBucket;
+                if (i < end) {
+                    mn = min[bucket];
+                    mx = max[bucket];
+                }
+            }
+        }
+        if (left != baseBucket) {
+            min[bucket] = mn;
+            max[bucket] = mx;
+        }
+        this.frames = Math.max(this.frames, frame + frames);
+    }
+
+    /**
+     * Adds little endian 16 bit interleaved samples between position and limit, as produced by
+     * MediaCodec. The buffer position is left unchanged.
+     */
+    public synchronized void add(long frame, ByteBuffer pcm) {
+        int frames = pcm.remaining() / 2 / channels;
+        if (frames <= 0) {
+            return;
+        }
+        ensureBuckets(frame + frames);
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        short[] min = this.min[0];
+        short[] max = this.max[0];
+        for (int i = pcm.position(), f = 0; f < frames; f++) {
+            int bucket = (int) ((frame + f) / baseBucket);
+            short mn = min[bucket], mx = max[bucket];
+            for (int c = 0; c < channels; c++, i += 2) {
+                short v = pcm.getShort(i);
+                if (v < mn) mn = v;
+                if (v > mx) mx = v;
+            }
+            min[bucket] = mn;
+            max[bucket] = mx;
+        }
+        this.frames = Math.max(this.frames, frame + frames);
+    }
+
+    /**
+     * Builds the upper levels from level 0, call it once decoding is done.
+     */
+    public synchronized void finish() {
+        count[0] = (int) ((frames + baseBucket - 1) / baseBucket);
+        int level = 1;
+        for (; level < maxLevels && count[level - 1] > 1; level++) {
+            int n = (count[level - 1] + factor - 1) / factor;
+            short[] lowerMin = min[level - 1], lowerMax = max[level - 1];
+            short[] mn = new short[n], mx = new short[n];
+            for (int b = 0; b < n; b++) {
+                short a = Short.MAX_VALUE, z = Short.MIN_VALUE;
+                for (int j = b * factor, end = Math.min(j + factor, count[level - 1]); j < end; j++) {
+                    if (lowerMin[j] < a) a = lowerMin[j];
+                    if (lowerMax[j] > z) z = lowerMax[j];
+                }
+                mn[b] = a;
+                mx[b] = z;
+            }
+            min[level] = mn;
+            max[level] = mx;
+            count[level] = n;
+        }
+        levels = level;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return number of frames seen
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return zoom levels, the last has a single bucket; 0 before finish()
+     */
+    public int getLevelCount() {
+        return levels;
+    }
+
+    int getBucketCount(int level) {
+        return count[level];
+    }
+
+    /**
+     * @return the level a query of framesPerPixel reads
+     */
+    int getLevel(double framesPerPixel) {
+        int level = 0;
+        while (level + 1 < levels && bucketSize(level + 1) <= framesPerPixel) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Fills one min/max pair per pixel for [startFrame, endFrame), in O(width).
+     *
+     * @param width number of pixels, outMin and outMax must hold at least that many values
+     * @return number of pixels filled
+     */
+    public int getPeaks(long startFrame, long endFrame, int width, short[] outMin, short[] outMax) {
+        if (width <= 0 || endFrame <= startFrame || levels == 0 || count[0] == 0) {
+            return 0;
+        }
+        double framesPerPixel = (double) (endFrame - startFrame) / width;
+        int level = getLevel(framesPerPixel);
+        long bucketSize = bucketSize(level);
+        short[] min = this.min[level];
+        short[] max = this.max[level];
+        int last = count[level] - 1;
+        for (int x = 0; x < width; x++) {
+            long f0 = startFrame + (long) (x * framesPerPixel);
+            long f1 = Math.max(f0 + 1, startFrame + (long) ((x + 1) * framesPerPixel));
+            int b0 = (int) Math.min(f0 / bucketSize, last + 1);
+            int b1 = (int) Math.min((f1 - 1) / bucketSize, last);
+            short mn = Short.MAX_VALUE, mx = Short.MIN_VALUE;
+            for (int b = b0; b <= b1; b++) {
+                if (min[b] < mn) mn = min[b];
+                if (max[b] > mx) mx = max[b];
+            }
+            if (mn > mx) {
+                /*past the end or an empty bucket*/
+                mn = mx = 0;
+            }
+            outMin[x] = mn;
+            outMax[x] = mx;
+        }
+        return width;
+    }
+
+    /**
+     * Writes the finished pyramid as a little endian binary file.
+     */
+    public void save(File file) throws IOException {
+        int size = 4 * 4 + 8 + 4 * 3;
+        for (int level = 0; level < levels; level++) {
+            size += 4 + count[level] * 4;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(magic).putInt(version).putInt(sampleRate).putInt(channels).putLong(frames);
+        buffer.putInt(baseBucket).putInt(factor).putInt(levels);
+        for (int level = 0; level < levels; level++) {
+            buffer.putInt(count[level]);
+            for (int b = 0; b < count[level]; b++) {
+                buffer.putShort(min[level][b]).putShort(max[level][b]);
+            }
+        }
+        buffer.flip();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a file written by save().
+     *
+     * @throws IOException if the file is missing, truncated or of another layout
+     */
+    public static WaveformPyramid load(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            if (buffer.remaining() < 36 || buffer.getInt() != magic || buffer.getInt() != version) {
+                throw new IOException("not a waveform file: " + file);
+            }
+            WaveformPyramid pyramid = new WaveformPyramid(buffer.getInt(), buffer.getInt());
+            pyramid.frames = buffer.getLong();
+            if (buffer.getInt() != baseBucket || buffer.getInt() != factor) {
+                throw new IOException("waveform file layout differs: " + file);
+            }
+            int levels = buffer.getInt();
+            if (levels < 1 || levels > maxLevels) {
+                throw new IOException("waveform file layout differs: " + file);
+            }
+            pyramid.levels = levels;
+            for (int level = 0; level < levels; level++) {
+                int n = buffer.getInt();
+                if (n < 0 || n * 4 > buffer.remaining()) {
+                    throw new IOException("truncated waveform file: " + file);
+                }
+                short[] mn = new short[n], mx = new short[n];
+                for (int b = 0; b < n; b++) {
+                    mn[b] = buffer.getShort();
+                    mx[b] = buffer.getShort();
+                }
+                pyramid.min[level] = mn;
+                pyramid.max[level] = mx;
+                pyramid.count[level] = n;
+            }
+            return pyramid;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long bucketSize(int level) {
+        long size = baseBucket;
+        for (int i = 0; i < level; i++) {
+            size *= factor;
+        }
+        return size;
+    }
+
+    private void ensureBuckets(long endFrame) {
+        int needed = (int) ((endFrame + baseBucket - 1) / baseBucket);
+        if (needed > min[0].length) {
+            /*grows by half, so a wrong duration estimate costs a few copies, not one per block*/
+            int size = Math.max(needed, min[0].length + min[0].length / 2);
+            int old = min[0].length;
+            min[0] = Arrays.copyOf(min[0], size);
+            max[0] = Arrays.copyOf(max[0], size);
+            Arrays.fill(min[0], old, size, Short.MAX_VALUE);
+            Arrays.fill(max[0], old, size, Short.MIN_VALUE);
+        }
+    }
+
+    private static short[] newBuckets(int n, short value) {
+        short[] buckets = new short[n];
+        Arrays.fill(buckets, value);
+        return buckets;
+    }
+}
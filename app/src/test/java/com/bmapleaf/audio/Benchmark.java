@@ -0,0 +1,107 @@
+package com.bmapleaf.audio;
+
+import java.util.Locale;
+
+/**
+ * Minimal JMH style harness for the host unit tests: warmup iterations, then measured iterations,
+ * reporting mean and standard deviation of the time per operation, and for audio work how it
+ * compares with real time.
+ * <p>
+ * Timings depend on the machine, so benchmarks only report them and never assert on them. The
+ * *Benchmark classes are left out of the default test run, gradle test -Pbenchmark runs them.
+ */
+public class Benchmark {
+    private final String name;
+    private int warmupIterations = 5;
+    private int measureIterations = 10;
+    private int operationsPerIteration = 1;
+    private double opsPerSecond;
+
+    public Benchmark(String name) {
+        this.name = name;
+    }
+
+    public Benchmark warmup(int iterations) {
+        warmupIterations = iterations;
+        return this;
+    }
+
+    public Benchmark measure(int iterations) {
+        measureIterations = iterations;
+        return this;
+    }
+
+    /**
+     * @param operations how many operations (eg. frames) one run of the body processes
+     */
+    public Benchmark operations(int operations) {
+        operationsPerIteration = operations;
+        return this;
+    }
+
+    /**
+     * Adds the real time factor and the share of a core to the report.
+     *
+     * @param opsPerSecond operations needed per second of audio (eg. sample rate)
+     */
+    public Benchmark realTime(double opsPerSecond) {
+        this.opsPerSecond = opsPerSecond;
+        return this;
+    }
+
+    public Result run(Runnable body) {
+        for (int i = 0; i < warmupIterations; i++) {
+            body.run();
+        }
+        double[] nsPerOp = new double[measureIterations];
+        for (int i = 0; i < measureIterations; i++) {
+            long t0 = System.nanoTime();
+            body.run();
+            nsPerOp[i] = (double) (System.nanoTime() - t0) / operationsPerIteration;
+        }
+        double mean = 0;
+        for (double v : nsPerOp) {
+            mean += v;
+        }
+        mean /= nsPerOp.length;
+        double variance = 0;
+        for (double v : nsPerOp) {
+            variance += (v - mean) * (v - mean);
+        }
+        Result result = new Result(name, mean, Math.sqrt(variance / nsPerOp.length), opsPerSecond);
+        System.out.println(result);
+        return result;
+    }
+
+    public static class Result {
+        public final String name;
+        public final double nsPerOp;
+        public final double stdDev;
+        private final double opsPerSecond;
+
+        Result(String name, double nsPerOp, double stdDev, double opsPerSecond) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.stdDev = stdDev;
+            this.opsPerSecond = opsPerSecond;
+        }
+
+        /**
+         * @param opsPerSecond operations needed per second of audio (eg. sample rate)
+         * @return how many times faster than real time
+         */
+        public double realTimeFactor(double opsPerSecond) {
+            return 1e9 / (nsPerOp * opsPerSecond);
+        }
+
+        @Override
+        public String toString() {
+            String line = String.format(Locale.US, "%-40s %12.2f ns/op  (+- %.2f)", name, nsPerOp, stdDev);
+            if (opsPerSecond <= 0) {
+                return line;
+            }
+            double factor = realTimeFactor(opsPerSecond);
+            return line + String.format(Locale.US, "%n  real time factor %.0f, %.2f %% of a core", factor, 100 / factor);
+        }
+    }
+}
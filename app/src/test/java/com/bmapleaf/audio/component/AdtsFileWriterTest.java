@@ -0,0 +1,61 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The ADTS framing of {@link AdtsFileWriter}: every frame is found again by walking the
+ * headers, with the sample rate, channels and length it was written with.
+ */
+public class AdtsFileWriterTest {
+    @Test
+    public void framesCanBeWalked() throws IOException {
+        File file = File.createTempFile("chunk", ".aac");
+        AdtsFileWriter writer = new AdtsFileWriter(44100, 2, 4096);
+        writer.open(file.getPath());
+        int[] sizes = {371, 2, 1500, 4000 - 7, 640};
+        for (int n = 0; n < sizes.length; n++) {
+            ByteBuffer frame = ByteBuffer.allocate(sizes[n]);
+            while (frame.hasRemaining()) {
+                frame.put((byte) n);
+            }
+            frame.flip();
+            writer.write(frame);
+            assertEquals(0, frame.remaining());
+        }
+        writer.close();
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] data = new byte[(int) in.length()];
+        in.readFully(data);
+        in.close();
+        file.delete();
+        int offset = 0;
+        for (int n = 0; n < sizes.length; n++) {
+            assertEquals(0xFF, data[offset] & 0xFF);
+            assertEquals(0xF1, data[offset + 1] & 0xFF);
+            /*LC, 44.1 kHz is index 4*/
+            assertEquals(1, (data[offset + 2] & 0xFF) >> 6);
+            assertEquals(4, (data[offset + 2] >> 2) & 0xF);
+            int channels = ((data[offset + 2] & 1) << 2) | ((data[offset + 3] & 0xFF) >> 6);
+            assertEquals(2, channels);
+            int length = ((data[offset + 3] & 3) << 11) | ((data[offset + 4] & 0xFF) << 3) | ((data[offset + 5] & 0xFF) >> 5);
+            assertEquals(7 + sizes[n], length);
+            assertEquals(n, data[offset + 7]);
+            assertEquals(n, data[offset + length - 1]);
+            offset += length;
+        }
+        assertEquals(data.length, offset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSampleRate() {
+        new AdtsFileWriter(44000, 2, 4096);
+    }
+}
@@ -0,0 +1,86 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link BatchTranscoder} giving up a pipeline when a codec runs out and running the job again,
+ * without codecs: the inputs fail to open the way a decoder would.
+ */
+public class BatchTranscoderTest {
+
+    @Test(timeout = 10000)
+    public void outOfCodecsQueuesTheJobAgain() throws Exception {
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        final BatchTranscoder.Job[] retried = new BatchTranscoder.Job[1];
+        BatchTranscoder transcoder = new BatchTranscoder(44100, 2, 2) {
+            @Override
+            PcmStream openInput(String inputPath) throws IOException {
+                if (inputPath.equals("holder")) {
+                    /*holds its codecs until the other job went from running back to queued*/
+                    holding.countDown();
+                    await(running);
+                    while (attempts.get() == 1 && (null == retried[0] || retried[0].getState() != State.QUEUED)) {
+                        sleep();
+                    }
+                    throw new IOException("holder done");
+                }
+                if (attempts.incrementAndGet() == 1) {
+                    running.countDown();
+                    await(holding);
+                    throw new IllegalStateException("no codec instance left");
+                }
+                throw new IOException("retried");
+            }
+        };
+        BatchTranscoder.Job holder = transcoder.submit("holder", "holder.wav");
+        BatchTranscoder.Job job = transcoder.submit("job", "job.wav");
+        retried[0] = job;
+        job.await();
+        holder.await();
+        assertEquals(2, attempts.get());
+        assertEquals(BatchTranscoder.State.FAILED, job.getState());
+        assertEquals("retried", job.getError().getMessage());
+        assertEquals(1, transcoder.getConcurrency());
+        assertEquals(0, transcoder.getRunningJobs());
+        transcoder.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void outOfCodecsAloneFails() throws Exception {
+        BatchTranscoder transcoder = new BatchTranscoder(44100, 2, 2) {
+            @Override
+            PcmStream openInput(String inputPath) {
+                throw new IllegalStateException("no codec at all");
+            }
+        };
+        BatchTranscoder.Job job = transcoder.submit("job", "job.wav");
+        job.await();
+        assertEquals(BatchTranscoder.State.FAILED, job.getState());
+        assertEquals(2, transcoder.getConcurrency());
+        transcoder.shutdown();
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.bmapleaf.audio.component;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of getting one captured block into a codec input buffer, 44.1 kHz stereo, per path of
+ * {@link AudioRecorder}. Direct ByteBuffers stand in for the codec input buffers, filling the
+ * ring or the codec buffer from a short[] stands in for AudioRecord.read(), which every path
+ * pays. A processing step negates the block where the recorder would run the listener.
+ * <ul>
+ * <li>queued: the ring read into a block, putShort() into a staging ByteBuffer, writeSample()
+ * copies it into the codec buffer; what the recorder did before</li>
+ * <li>monitored: the ring read into a block and processed there, one bulk copy into the codec
+ * buffer; a live monitor reads the same ring and needs the raw samples</li>
+ * <li>in ring: the block processed where it lies in the ring, one bulk copy into the codec
+ * buffer</li>
+ * <li>direct: AudioRecord reads into the codec buffer, nothing to process or copy</li>
+ * </ul>
+ */
+public class CaptureCopyBenchmark {
+    private static final int sampleRate = 44100;
+    private static final int channels = 2;
+    private static final int blockSize = 1024;
+    private static final int blocks = 2000;
+    private static final double blocksPerSecond = (double) sampleRate * channels / blockSize;
+
+    private final CaptureRing ring = new CaptureRing(sampleRate * channels * 2, channels, blockSize);
+    private final CaptureRing.Reader reader = ring.newReader();
+    private final short[] source = new short[blockSize];
+    private final short[] block = new short[blockSize];
+    private final ByteBuffer staging = ByteBuffer.allocateDirect(blockSize * 2).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer codecInput = ByteBuffer.allocateDirect(blockSize * 2 * 4).order(ByteOrder.LITTLE_ENDIAN);
+
+    @Test
+    public void copiesSaved() {
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (short) (i * 31);
+        }
+        Benchmark.Result queued = new Benchmark("queued, 3 copies").warmup(20).measure(30).operations(blocks).run(new Runnable() {
+            @Override
+            public void run() {
+                for (int b = 0; b < blocks; b++) {
+                    ring.write(source, 0, blockSize, 0);
+                    int samples = reader.read(block, 0, blockSize);
+                    process(block, 0, samples);
+                    staging.clear();
+                    for (int i = 0; i < samples; i++) {
+                        staging.putShort(block[i]);
+                    }
+                    staging.flip();
+                    codecInput.clear();
+                    codecInput.put(staging);
+                }
+            }
+        });
+        assertProcessed();
+        Benchmark.Result monitored = new Benchmark("monitored, 2 copies").warmup(20).measure(30).operations(blocks).run(new Runnable() {
+            @Override
+            public void run() {
+                for (int b = 0; b < blocks; b++) {
+                    ring.write(source, 0, blockSize, 0);
+                    int samples = reader.read(block, 0, blockSize);
+                    process(block, 0, samples);
+                    codecInput.clear();
+                    codecInput.asShortBuffer().put(block, 0, samples);
+                }
+            }
+        });
+        assertProcessed();
+        Benchmark.Result inRing = new Benchmark("in ring, 1 copy").warmup(20).measure(30).operations(blocks).run(new Runnable() {
+            @Override
+            public void run() {
+                for (int b = 0; b < blocks; b++) {
+                    ring.write(source, 0, blockSize, 0);
+                    int samples = reader.acquire(blockSize);
+                    short[] array = reader.blockArray();
+                    int offset = reader.blockOffset();
+                    process(array, offset, samples);
+                    codecInput.clear();
+                    codecInput.asShortBuffer().put(array, offset, samples);
+                    reader.release();
+                }
+            }
+        });
+        assertProcessed();
+        assertTrue(reader.blockArray() == ring.array());
+        assertEquals(0, reader.getOverruns());
+        Benchmark.Result direct = new Benchmark("direct, no copy").warmup(20).measure(30).operations(blocks).run(new Runnable() {
+            @Override
+            public void run() {
+                for (int b = 0; b < blocks; b++) {
+                    codecInput.clear();
+                    codecInput.asShortBuffer().put(source, 0, blockSize);
+                }
+            }
+        });
+        assertEquals(source[blockSize - 1], codecInput.getShort((blockSize - 1) * 2));
+
+        System.out.println(String.format(Locale.US, "saved per second of audio against queued: monitored %.1f us, in ring %.1f us, direct %.1f us",
+                saved(queued, monitored), saved(queued, inRing), saved(queued, direct)));
+    }
+
+    private static void process(short[] data, int offset, int samples) {
+        for (int i = offset; i < offset + samples; i++) {
+            data[i] = (short) ~data[i];
+        }
+    }
+
+    private void assertProcessed() {
+        assertEquals((short) ~source[blockSize - 1], codecInput.getShort((blockSize - 1) * 2));
+    }
+
+    private static double saved(Benchmark.Result before, Benchmark.Result after) {
+        return (before.nsPerOp - after.nsPerOp) * blocksPerSecond / 1000;
+    }
+}
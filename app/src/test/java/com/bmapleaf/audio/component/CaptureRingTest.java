@@ -0,0 +1,245 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Overrun detection of {@link CaptureRing}: lost samples come out as silence at their exact
+ * position and everything else in order.
+ */
+public class CaptureRingTest {
+    private static final int channels = 2;
+    private static final int block = 256;
+
+    @Test
+    public void readsInOrderAcrossTheWrap() {
+        CaptureRing ring = new CaptureRing(1024, channels, block);
+        CaptureRing.Reader reader = ring.newReader();
+        short[] out = new short[block];
+        int next = 0;
+        for (int i = 0; i < 40; i++) {
+            ring.write(ramp(i * block, block), 0, block, 0);
+            assertEquals(block, reader.read(out, 0, out.length));
+            for (short v : out) {
+                assertEquals((short) next++, v);
+            }
+        }
+        assertEquals(0, reader.getOverruns());
+    }
+
+    @Test
+    public void overrunIsSilenceAtExactPosition() {
+        CaptureRing ring = new CaptureRing(1024, channels, block);
+        CaptureRing.Reader reader = ring.newReader();
+        final List<long[]> overruns = new ArrayList<>();
+        reader.setOnOverrunListener(new CaptureRing.OnOverrunListener() {
+            @Override
+            public void onOverrun(CaptureRing.Reader reader, long frame, int frames) {
+                overruns.add(new long[]{frame, frames});
+            }
+        });
+        /*2048 samples into a 1024 ring: the oldest 1024 + block are unsafe*/
+        for (int i = 0; i < 8; i++) {
+            ring.write(ramp(i * block, block), 0, block, 0);
+        }
+        short[] out = new short[2048];
+        int n = reader.read(out, 0, out.length);
+        assertEquals(2048, n);
+        int lost = 2048 - 1024 + block;
+        for (int i = 0; i < n; i++) {
+            assertEquals("sample " + i, i < lost ? 0 : (short) i, out[i]);
+        }
+        assertEquals(1, overruns.size());
+        assertEquals(0, overruns.get(0)[0]);
+        assertEquals(lost / channels, overruns.get(0)[1]);
+        assertEquals(lost / channels, reader.getLostFrames());
+
+        /*the reader caught up, nothing more is lost*/
+        ring.write(ramp(2048, block), 0, block, 0);
+        assertEquals(block, reader.read(out, 0, out.length));
+        assertEquals((short) 2048, out[0]);
+        assertEquals(1, reader.getOverruns());
+    }
+
+    @Test
+    public void sharedBlocksWithoutCopy() {
+        CaptureRing ring = new CaptureRing(1024, channels, block);
+        CaptureRing.Reader first = ring.newReader();
+        CaptureRing.Reader second = ring.newReader();
+        int next = 0;
+        for (int i = 0; i < 12; i++) {
+            ring.write(ramp(i * block, block), 0, block, 0);
+            /*both readers see the very same samples inside the ring*/
+            int n = first.acquire(4096);
+            assertEquals(block, n);
+            assertEquals(n, second.acquire(4096));
+            assertTrue(first.blockArray() == ring.array());
+            assertTrue(second.blockArray() == first.blockArray());
+            assertEquals(first.blockOffset(), second.blockOffset());
+            for (int k = 0; k < n; k++) {
+                assertEquals((short) next++, first.blockArray()[first.blockOffset() + k]);
+            }
+            assertTrue(first.release());
+            assertTrue(second.release());
+        }
+        assertEquals(12 * block, first.getPosition());
+        assertEquals(0, first.getOverruns());
+    }
+
+    @Test
+    public void sharedBlockOverrun() {
+        CaptureRing ring = new CaptureRing(1024, channels, block);
+        CaptureRing.Reader reader = ring.newReader();
+        for (int i = 0; i < 8; i++) {
+            ring.write(ramp(i * block, block), 0, block, 0);
+        }
+        /*lost samples come as a block of silence, not from the ring*/
+        int lost = 2048 - 1024 + block;
+        long position = 0;
+        while (position < lost) {
+            int n = reader.acquire(4096);
+            assertTrue(reader.blockArray() != ring.array());
+            for (int k = 0; k < n; k++) {
+                assertEquals(0, reader.blockArray()[reader.blockOffset() + k]);
+            }
+            assertTrue(reader.release());
+            position += n;
+        }
+        assertEquals(lost, position);
+        assertEquals(lost / channels, reader.getLostFrames());
+
+        /*the writer laps a block while it is being read: release() reports it torn*/
+        int n = reader.acquire(block);
+        assertTrue(reader.blockArray() == ring.array());
+        assertEquals((short) lost, reader.blockArray()[reader.blockOffset()]);
+        for (int i = 8; i < 11; i++) {
+            ring.write(ramp(i * block, block), 0, block, 0);
+        }
+        assertTrue(!reader.release());
+        assertEquals(lost + n, reader.getPosition());
+        assertEquals((lost + block) / channels, reader.getLostFrames());
+    }
+
+    @Test
+    public void skipToLatestKeepsTheNewestBlock() {
+        CaptureRing ring = new CaptureRing(1024, channels, block);
+        CaptureRing.Reader reader = ring.newReader();
+        for (int i = 0; i < 3; i++) {
+            ring.write(ramp(i * block, block), 0, block, 0);
+        }
+        assertEquals(2 * block, reader.skipToLatest(block + 1));
+        assertEquals(0, reader.skipToLatest(block));
+        short[] out = new short[block];
+        assertEquals(block, reader.read(out, 0, out.length));
+        assertEquals((short) (2 * block), out[0]);
+        assertEquals(0, reader.getOverruns());
+    }
+
+    @Test
+    public void concurrentReaderKeepsTimeline() throws InterruptedException {
+        final int capacity = 4096;
+        final CaptureRing ring = new CaptureRing(capacity, channels, block);
+        final CaptureRing.Reader reader = ring.newReader();
+        final long total = 4000000;
+        /*the writer stays half a ring ahead, except for a burst of 3 rings every 2^20 samples
+        that it only starts once the reader has stopped at the burst*/
+        final long burstEvery = 1 << 20;
+        final int burst = 3 * capacity;
+        final List<long[]> overruns = new ArrayList<>();
+        reader.setOnOverrunListener(new CaptureRing.OnOverrunListener() {
+            @Override
+            public void onOverrun(CaptureRing.Reader reader, long frame, int frames) {
+                /*one report per read, joined into one gap*/
+                long[] last = overruns.isEmpty() ? null : overruns.get(overruns.size() - 1);
+                if (null != last && last[0] + last[1] == frame) {
+                    last[1] += frames;
+                } else {
+                    overruns.add(new long[]{frame, frames});
+                }
+            }
+        });
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] src = new short[block];
+                for (long p = 0; p < total; p += block) {
+                    long inBurst = p % burstEvery;
+                    if (p > 0 && inBurst == 0) {
+                        while (reader.getPosition() < p) {
+                            Thread.yield();
+                        }
+                    } else if (p < burstEvery || inBurst >= burst) {
+                        while (p - reader.getPosition() > capacity / 2) {
+                            Thread.yield();
+                        }
+                    }
+                    for (int i = 0; i < block; i++) {
+                        src[i] = (short) (p + i);
+                    }
+                    ring.write(src, 0, block, System.nanoTime());
+                }
+                ring.close();
+            }
+        });
+        writer.start();
+        short[] out = new short[1000];
+        long position = 0;
+        long silent = 0;
+        while (!reader.isEndOfStream()) {
+            long nextBurst = (position / burstEvery + 1) * burstEvery;
+            if (position > 0 && position % burstEvery == 0) {
+                /*hold still until the writer has lapped the reader*/
+                while (ring.getWritePosition() < position + burst) {
+                    Thread.yield();
+                }
+            }
+            int n = reader.read(out, 0, (int) Math.min(out.length, nextBurst - position));
+            if (n == 0) {
+                reader.await(1000000);
+                continue;
+            }
+            for (int i = 0; i < n; i++, position++) {
+                /*every sample is either its own value or lost*/
+                if (out[i] != (short) position) {
+                    assertEquals("sample " + position, 0, out[i]);
+                    assertTrue("sample " + position + " lost outside a gap", inGap(overruns, position / channels));
+                    silent++;
+                }
+            }
+        }
+        writer.join();
+        assertEquals(total, position);
+        /*exactly the bursts were lost: 2 rings and the block being written, at the burst start*/
+        int lost = burst - capacity + block;
+        assertEquals(total / burstEvery, overruns.size());
+        for (int i = 0; i < overruns.size(); i++) {
+            assertEquals((i + 1) * burstEvery / channels, overruns.get(i)[0]);
+            assertEquals(lost / channels, overruns.get(i)[1]);
+        }
+        assertEquals(overruns.size() * lost / channels, reader.getLostFrames());
+        assertTrue(silent <= reader.getLostFrames() * channels);
+        assertTrue(reader.getLostFrames() * channels < total / 100);
+    }
+
+    private static boolean inGap(List<long[]> overruns, long frame) {
+        for (long[] gap : overruns) {
+            if (frame >= gap[0] && frame < gap[0] + gap[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static short[] ramp(int start, int length) {
+        short[] data = new short[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (short) (start + i);
+        }
+        return data;
+    }
+}
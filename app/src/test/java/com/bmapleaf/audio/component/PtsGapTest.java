@@ -0,0 +1,24 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link PtsGap}: rounding of the pts is no gap, a jump past the tolerance is one to the frame.
+ */
+public class PtsGapTest {
+
+    @Test
+    public void jumpsBeyondTheToleranceAreGaps() {
+        /*a buffer right after the previous, and 1 ms late from pts rounding*/
+        assertEquals(0, PtsGap.frames(1000000, 48000, 48000));
+        assertEquals(0, PtsGap.frames(1001000, 48000, 48000));
+        assertEquals(0, PtsGap.frames(1005000, 48000, 48000));
+        /*overlaps are left to the decoder*/
+        assertEquals(0, PtsGap.frames(900000, 48000, 48000));
+        /*250 ms gated out, 11025 frames at 44.1 kHz*/
+        assertEquals(11025, PtsGap.frames(1250000, 44100, 44100));
+        assertEquals(241, PtsGap.frames(1005011, 48000, 48000));
+    }
+}
@@ -0,0 +1,102 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SegmentManifest} as the recorder writes it and as a crash leaves it behind.
+ */
+public class SegmentManifestTest {
+    private static final int sampleRate = 44100;
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("segments", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "practice" + SegmentManifest.suffix);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void chunksRollOver() throws IOException {
+        SegmentManifest manifest = new SegmentManifest(file, sampleRate, 2);
+        File first = manifest.openChunk(0, ".aac");
+        assertEquals(new File(dir, "practice.0001.aac"), first);
+        /*listed before anything is written*/
+        assertTrue(SegmentManifest.load(file).getChunks().get(0).isOpen());
+
+        File second = manifest.openChunk(sampleRate * 60, ".aac");
+        assertEquals("practice.0002.aac", second.getName());
+        manifest.closeChunk(sampleRate * 90 + 1024);
+
+        SegmentManifest loaded = SegmentManifest.load(file);
+        assertEquals(sampleRate, loaded.getSampleRate());
+        assertEquals(2, loaded.getChannels());
+        List<SegmentManifest.Chunk> chunks = loaded.getChunks();
+        assertEquals(2, chunks.size());
+        assertEquals(sampleRate * 60, chunks.get(0).getFrames());
+        assertEquals(sampleRate * 60, chunks.get(1).startFrame);
+        assertEquals(sampleRate * 30 + 1024, chunks.get(1).getFrames());
+        assertFalse(chunks.get(1).isOpen());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void crashLeavesLastChunkOpen() throws IOException {
+        SegmentManifest manifest = new SegmentManifest(file, sampleRate, 1);
+        manifest.openChunk(0, ".wav");
+        manifest.openChunk(sampleRate * 10, ".wav");
+        manifest.openChunk(sampleRate * 20, ".wav");
+        /*no closeChunk(): the app died while writing the third chunk*/
+        List<SegmentManifest.Chunk> chunks = SegmentManifest.load(file).getChunks();
+        assertEquals(3, chunks.size());
+        assertFalse(chunks.get(1).isOpen());
+        assertTrue(chunks.get(2).isOpen());
+        assertEquals(sampleRate * 20, chunks.get(2).startFrame);
+    }
+
+    @Test
+    public void indexOfTime() throws IOException {
+        SegmentManifest manifest = new SegmentManifest(file, sampleRate, 2);
+        manifest.openChunk(0, ".aac");
+        manifest.openChunk(sampleRate * 10, ".aac");
+        manifest.openChunk(sampleRate * 20, ".aac");
+        assertEquals(0, manifest.indexOf(0));
+        assertEquals(0, manifest.indexOf(9999999));
+        assertEquals(1, manifest.indexOf(10000000));
+        assertEquals(2, manifest.indexOf(25000000));
+        assertEquals(2, manifest.indexOf(Long.MAX_VALUE / sampleRate));
+        assertEquals(20000000, manifest.startUsOf(manifest.getChunks().get(2)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File other = new File(dir, "take.m4a" + SegmentManifest.suffix);
+        FileOutputStream out = new FileOutputStream(other);
+        out.write("ftyp".getBytes("UTF-8"));
+        out.close();
+        SegmentManifest.load(other);
+    }
+}
@@ -0,0 +1,55 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * {@link TimelineAligner} on measurements of a recording that started 0.4 s before the backing
+ * track and hears it 60 ms late, with a few ms of timestamp jitter and some outliers.
+ */
+public class TimelineAlignerTest {
+    private static final int sampleRate = 48000;
+    private static final long offsetUs = -400000 - 60000;
+
+    @Test
+    public void medianIgnoresOutliers() {
+        TimelineAligner aligner = new TimelineAligner(sampleRate, 31);
+        assertFalse(aligner.isAligned());
+        Random random = new Random(7);
+        for (int n = 0; n < 100; n++) {
+            long frame = sampleRate + n * sampleRate / 4;
+            long jitterUs = (long) (random.nextGaussian() * 2000);
+            if (n % 10 == 3) {
+                /*a timestamp taken while the output was rerouted*/
+                jitterUs += 200000;
+            }
+            aligner.add(frame, offsetUs + frame * 1000000 / sampleRate + jitterUs);
+        }
+        assertEquals(offsetUs, aligner.getOffsetUs(), 2000);
+        assertEquals(offsetUs + 2000000, aligner.toMediaUs(sampleRate * 2), 2000);
+        assertEquals(200000, aligner.getJitterUs(), 20000);
+    }
+
+    @Test
+    public void savedNextToTheRecording() throws IOException {
+        File recording = File.createTempFile("vocal", ".m4a");
+        File saved = new File(recording.getPath() + TimelineAligner.suffix);
+        try {
+            assertEquals(0, TimelineAligner.loadOffsetUs(recording.getPath()));
+            TimelineAligner aligner = new TimelineAligner(sampleRate, 5);
+            aligner.add(sampleRate, offsetUs + 1000000);
+            aligner.add(sampleRate * 2, offsetUs + 2000000);
+            aligner.save(recording.getPath());
+            assertEquals(offsetUs, TimelineAligner.loadOffsetUs(recording.getPath()));
+        } finally {
+            saved.delete();
+            recording.delete();
+        }
+    }
+}
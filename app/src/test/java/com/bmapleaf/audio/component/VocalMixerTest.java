@@ -0,0 +1,139 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link VocalMixer} placement of a click in the vocal at the sample the offset asks for, for a
+ * late and an early vocal at the output rate and at another rate, and the mix.
+ */
+public class VocalMixerTest {
+    private static final int block = 256;
+    private static final short click = 16384;
+
+    @Test
+    public void lateVocalIsPrecededBySilence() throws IOException {
+        /*12345 us at 48 kHz is 592.56 frames*/
+        short[] out = mixdown(clickAt(0, 5000), 48000, 48000, 12345);
+        assertEquals(593 + 5000, out.length / 2);
+        assertEquals(593, peak(out));
+        assertEquals(click, out[593 * 2 + 1]);
+        assertEquals(1, count(out));
+    }
+
+    @Test
+    public void earlyVocalLosesItsHead() throws IOException {
+        /*a skip across several source reads, 1250 frames*/
+        short[] out = mixdown(clickAt(2000, 5000), 48000, 48000, -26042);
+        assertEquals(5000 - 1250, out.length / 2);
+        assertEquals(750, peak(out));
+        assertEquals(1, count(out));
+        /*a click the skip drops entirely*/
+        out = mixdown(clickAt(1000, 5000), 48000, 48000, -26042);
+        assertEquals(0, count(out));
+    }
+
+    @Test
+    public void otherRateIsPlacedAtTheOutputRate() throws IOException {
+        /*10 ms late: 480 frames at 48 kHz, whatever the vocal rate*/
+        short[] out = mixdown(clickAt(0, 44100), 44100, 48000, 10000);
+        assertEquals(480, peak(out));
+        /*50 ms early: 2205 frames lost at 44.1 kHz, the click at 4410 lands at 2400*/
+        out = mixdown(clickAt(4410, 44100), 44100, 48000, -50000);
+        assertEquals(2400, peak(out));
+        /*the resampled length follows the rate, the resampler drained at the end*/
+        out = mixdown(clickAt(0, 44100), 44100, 48000, 0);
+        assertTrue(Math.abs(48000 - out.length / 2) <= 1);
+        out = mixdown(clickAt(44099, 44100), 44100, 48000, 0);
+        assertTrue(Math.abs(47999 - peak(out)) <= 1);
+        out = mixdown(clickAt(0, 48000), 48000, 44100, 0);
+        assertEquals(0, peak(out));
+    }
+
+    @Test
+    public void mixClipsAndExtendsTheShorterSide() {
+        short[] backing = {1000, -1000, 30000, -30000, 500, 500};
+        short[] vocal = {2000, 2000, 10000, -10000};
+        short[] out = new short[6];
+        assertEquals(3, VocalMixer.mix(backing, 3, 0.5f, vocal, 2, 2f, out));
+        assertEquals(4500, out[0]);
+        assertEquals(3500, out[1]);
+        assertEquals(Short.MAX_VALUE, out[2]);
+        assertEquals(Short.MIN_VALUE, out[3]);
+        assertEquals(250, out[4]);
+        assertEquals(2, VocalMixer.mix(backing, 0, 1, vocal, 2, 1, out));
+        assertEquals(2000, out[0]);
+        assertEquals(-10000, out[3]);
+    }
+
+    /**
+     * @return the whole vocal as {@link Mixdown} reads it, in blocks
+     */
+    private static short[] mixdown(short[] vocal, int vocalRate, int outputRate, long offsetUs) throws IOException {
+        VocalMixer mixer = new VocalMixer(source(vocal), vocalRate, outputRate, offsetUs, block);
+        short[] all = new short[0];
+        short[] dst = new short[block * 2];
+        int n;
+        while ((n = mixer.read(dst, block)) > 0) {
+            short[] grown = new short[all.length + n * 2];
+            System.arraycopy(all, 0, grown, 0, all.length);
+            System.arraycopy(dst, 0, grown, all.length, n * 2);
+            all = grown;
+        }
+        return all;
+    }
+
+    /**
+     * Reads of at most 300 frames, so reads and blocks of the mixer do not line up.
+     */
+    private static VocalMixer.Source source(final short[] pcm) {
+        return new VocalMixer.Source() {
+            int position;
+
+            @Override
+            public int read(short[] dst, int offset, int frames) {
+                int n = Math.min(Math.min(frames, 300), (pcm.length - position) / 2);
+                System.arraycopy(pcm, position, dst, offset, n * 2);
+                position += n * 2;
+                return n;
+            }
+        };
+    }
+
+    private static short[] clickAt(int frame, int frames) {
+        short[] pcm = new short[frames * 2];
+        pcm[frame * 2] = click;
+        pcm[frame * 2 + 1] = click;
+        return pcm;
+    }
+
+    /**
+     * @return frame of the largest left sample
+     */
+    private static int peak(short[] pcm) {
+        int peak = 0;
+        for (int f = 1; f < pcm.length / 2; f++) {
+            if (Math.abs(pcm[f * 2]) > Math.abs(pcm[peak * 2])) {
+                peak = f;
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return frames above half the click
+     */
+    private static int count(short[] pcm) {
+        int count = 0;
+        for (int f = 0; f < pcm.length / 2; f++) {
+            if (Math.abs(pcm[f * 2]) > click / 2) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
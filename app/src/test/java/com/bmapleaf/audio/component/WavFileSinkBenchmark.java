@@ -0,0 +1,55 @@
+package com.bmapleaf.audio.component;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Throughput of {@link WavFileSink} for 8 channels at 192 kHz written in capture sized blocks.
+ */
+public class WavFileSinkBenchmark {
+    private static final int sampleRate = 192000;
+    private static final int channels = 8;
+    private static final int blockFrames = 512;
+    private static final int seconds = 10;
+
+    @Test
+    public void throughput() throws IOException {
+        final File file = File.createTempFile("wav_sink", ".wav");
+        final short[] block = new short[blockFrames * channels];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (short) (i * 7);
+        }
+        final int blocks = sampleRate * seconds / blockFrames;
+        final WavFileSink[] last = new WavFileSink[1];
+        Benchmark.Result result = new Benchmark("wav 8ch 192kHz").warmup(2).measure(5).operations(blocks * blockFrames)
+                .realTime(sampleRate).run(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            WavFileSink sink = new WavFileSink(file.getAbsolutePath(), true);
+                            sink.setHeaderUpdateInterval(1000);
+                            sink.open(sampleRate, channels);
+                            for (int b = 0; b < blocks; b++) {
+                                sink.write(block, 0, block.length);
+                            }
+                            sink.close();
+                            last[0] = sink;
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+        long dataBytes = (long) blocks * block.length * 2;
+        System.out.println(String.format(Locale.US, "  %.0f MB/s, %d write calls for %d MB",
+                dataBytes / 1e6 * result.realTimeFactor(sampleRate) / seconds, last[0].getWriteCalls(), dataBytes >> 20));
+        assertEquals(dataBytes + 44, file.length());
+        file.delete();
+    }
+}
@@ -0,0 +1,76 @@
+package com.bmapleaf.audio.component;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Write batching of {@link WavFileSink} and the header it leaves behind with and without
+ * close().
+ */
+public class WavFileSinkTest {
+    @Test
+    public void batchesWritesAndPatchesTheHeader() throws IOException {
+        File file = File.createTempFile("wav_sink", ".wav");
+        short[] block = new short[512 * 8];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (short) (i * 7);
+        }
+        int blocks = 2000;
+        WavFileSink sink = new WavFileSink(file.getAbsolutePath(), true);
+        sink.setHeaderUpdateInterval(1000);
+        sink.open(192000, 8);
+        for (int b = 0; b < blocks; b++) {
+            sink.write(block, 0, block.length);
+        }
+        sink.close();
+        long dataBytes = (long) blocks * block.length * 2;
+        /*one call per 256 KB batch plus the header patches*/
+        assertTrue(sink.getWriteCalls() <= dataBytes / (256 * 1024) + 2 + 10);
+        assertEquals(dataBytes, sink.getDataBytes());
+        assertEquals(dataBytes, readHeader(file).getInt(40) & 0xffffffffL);
+        assertEquals(dataBytes + 44, file.length());
+        file.delete();
+    }
+
+    @Test
+    public void headerUpdatedWithoutClose() throws Exception {
+        File file = File.createTempFile("wav_sink_crash", ".wav");
+        WavFileSink sink = new WavFileSink(file.getAbsolutePath(), true);
+        sink.setBufferSize(4096);
+        sink.setHeaderUpdateInterval(1);
+        sink.open(44100, 2);
+        short[] block = new short[4096];
+        for (int i = 0; i < 10; i++) {
+            sink.write(block, 0, block.length);
+            Thread.sleep(2);
+        }
+        /*no close(): what a crash leaves behind*/
+        ByteBuffer header = readHeader(file);
+        long declared = header.getInt(40) & 0xffffffffL;
+        assertTrue(declared > 0);
+        assertTrue(declared + 44 <= file.length());
+        assertEquals(declared + 36, header.getInt(4) & 0xffffffffL);
+        sink.close();
+        assertEquals(10 * 4096 * 2, readHeader(file).getInt(40));
+        file.delete();
+    }
+
+    private static ByteBuffer readHeader(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+            in.getChannel().read(header, 0);
+            return header;
+        } finally {
+            in.close();
+        }
+    }
+}
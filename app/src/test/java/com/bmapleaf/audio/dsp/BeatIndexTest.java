@@ -0,0 +1,136 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BeatIndex} on synthetic drum patterns fed in 4096 frame stereo blocks like the analyzer's.
+ */
+public class BeatIndexTest {
+    private static final int blockFrames = 4096;
+
+    @Test
+    public void clickTrackGivesTempoAndBeats() {
+        for (int rate : new int[]{44100, 48000}) {
+            long start = rate / 2;
+            BeatIndex index = analyze(pattern(rate, 30, 120, start, false, 0), rate);
+            assertEquals("rate " + rate, 120, index.getTempo(), 0.5f);
+            double period = rate * 0.5;
+            assertEquals(period, index.getBeatPeriodFrames(), rate * 0.002);
+            assertTrue(index.getBeatCount() >= 55);
+            /*every beat on a kick, within 15 ms*/
+            for (int b = 0; b < index.getBeatCount(); b++) {
+                long beat = index.getBeat(b);
+                double kicks = (beat - start) / period;
+                assertEquals("beat " + b + " at " + beat, Math.round(kicks), kicks, 0.015 * rate / period);
+            }
+            assertEquals(start, index.getFirstBeatFrame(), 0.015 * rate);
+            assertEquals(start - 4 * period, index.getGridFrame(-4), 0.02 * rate);
+        }
+    }
+
+    @Test
+    public void offbeatHatsDoNotShiftTheBeat() {
+        int rate = 44100;
+        long start = rate / 4;
+        BeatIndex index = analyze(pattern(rate, 30, 96, start, true, 0.05f), rate);
+        assertEquals(96, index.getTempo(), 1);
+        double period = rate * 60 / 96.0;
+        long beat = index.getBeat(index.getBeatCount() / 2);
+        double kicks = (beat - start) / period;
+        assertEquals(Math.round(kicks), kicks, 0.02 * rate / period);
+    }
+
+    @Test
+    public void nearestBeatAndOnsetStrength() {
+        int rate = 48000;
+        BeatIndex index = analyze(pattern(rate, 20, 120, 0, false, 0), rate);
+        long beat = index.getBeat(10);
+        assertEquals(beat, index.getNearestBeat(beat + rate / 10));
+        assertEquals(beat, index.getNearestBeat(beat - rate / 10));
+        assertEquals(index.getBeat(0), index.getNearestBeat(-1000));
+        assertTrue(index.getOnsetStrength(beat) > 0.5f);
+        assertTrue(index.getOnsetStrength(beat + rate / 4) < 0.1f);
+    }
+
+    @Test
+    public void silenceHasNoBeat() {
+        int rate = 44100;
+        BeatIndex index = analyze(new short[rate * 10 * 2], rate);
+        assertEquals(0, index.getTempo(), 0);
+        assertEquals(0, index.getBeatCount());
+        assertEquals(-1, index.getNearestBeat(rate));
+        assertEquals(rate * 10, index.getFrames());
+    }
+
+    @Test
+    public void saveAndLoadKeepEverything() throws Exception {
+        int rate = 44100;
+        BeatIndex index = analyze(pattern(rate, 15, 140, rate / 3, true, 0.02f), rate);
+        File file = File.createTempFile("beats", ".bin");
+        try {
+            index.save(file);
+            /*about 100 bytes a second and 4 a beat*/
+            assertTrue(file.length() < 15 * 100 + 40 * 4 + 64);
+            BeatIndex loaded = BeatIndex.load(file);
+            assertEquals(index.getTempo(), loaded.getTempo(), 0);
+            assertEquals(index.getBeatPeriodFrames(), loaded.getBeatPeriodFrames(), 0);
+            assertEquals(index.getFirstBeatFrame(), loaded.getFirstBeatFrame());
+            assertEquals(index.getFrames(), loaded.getFrames());
+            assertEquals(index.getBeatCount(), loaded.getBeatCount());
+            for (int b = 0; b < index.getBeatCount(); b++) {
+                assertEquals(index.getBeat(b), loaded.getBeat(b));
+            }
+            for (long f = 0; f < index.getFrames(); f += 441) {
+                assertEquals(index.getOnsetStrength(f), loaded.getOnsetStrength(f), 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static BeatIndex analyze(short[] pcm, int rate) {
+        BeatIndex index = new BeatIndex(rate, 2);
+        for (int i = 0; i < pcm.length; i += blockFrames * 2) {
+            index.add(pcm, i, Math.min(blockFrames, (pcm.length - i) / 2));
+        }
+        index.finish();
+        return index;
+    }
+
+    /**
+     * @return stereo kicks on the beats from start, hats between them if asked, over noise
+     */
+    private static short[] pattern(int rate, int seconds, float bpm, long start, boolean hats, float noise) {
+        float[] mono = new float[rate * seconds];
+        double period = rate * 60 / bpm;
+        for (int beat = 0; start + beat * period < mono.length; beat++) {
+            long at = start + Math.round(beat * period);
+            for (int i = 0; i < rate / 5 && at + i < mono.length; i++) {
+                /*a kick: a falling sine with a fast decay*/
+                double t = (double) i / rate;
+                double frequency = 50 + 100 * Math.exp(-t * 40);
+                mono[(int) (at + i)] += (float) (0.6 * Math.exp(-t * 12) * Math.sin(2 * Math.PI * frequency * t));
+            }
+            if (hats) {
+                Random random = new Random(beat);
+                long off = at + Math.round(period / 2);
+                for (int i = 0; i < rate / 20 && off + i < mono.length; i++) {
+                    mono[(int) (off + i)] += (float) (0.15 * Math.exp(-i * 80.0 / rate) * (random.nextFloat() * 2 - 1));
+                }
+            }
+        }
+        Random random = new Random(1);
+        short[] pcm = new short[mono.length * 2];
+        for (int i = 0; i < mono.length; i++) {
+            float x = mono[i] + noise * (random.nextFloat() * 2 - 1);
+            pcm[2 * i] = pcm[2 * i + 1] = (short) Math.max(-32768, Math.min(32767, x * 32767));
+        }
+        return pcm;
+    }
+}
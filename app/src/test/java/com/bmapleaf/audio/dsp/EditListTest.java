@@ -0,0 +1,127 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splicing of {@link EditList}: the take is mono 1000, retakes are 2000 and 3000, so every output
+ * sample tells where it came from.
+ */
+public class EditListTest {
+    private static final short take = 1000;
+
+    @Test
+    public void hardSpliceIsSampleAccurate() {
+        EditList list = new EditList(1);
+        list.add(edit(2000, 100, 200, 90, 200));
+        short[] data = block(300);
+        /*split the block so the edges land inside and across blocks*/
+        list.apply(0, data, 0, 150);
+        list.apply(150, data, 150, 150);
+        for (int f = 0; f < 300; f++) {
+            assertEquals("frame " + f, f >= 100 && f < 200 ? 2000 : take, data[f]);
+        }
+    }
+
+    @Test
+    public void crossfadeStaysInsideRange() {
+        EditList list = new EditList(1);
+        list.setCrossfade(10);
+        list.add(edit(2000, 100, 200, 0, 300));
+        short[] data = block(300);
+        list.apply(0, data, 0, 300);
+        for (int f = 0; f < 300; f++) {
+            if (f < 100 || f >= 200) {
+                assertEquals("frame " + f, take, data[f]);
+            } else if (f >= 110 && f < 190) {
+                assertEquals("frame " + f, 2000, data[f]);
+            } else {
+                /*equal power sums may overshoot both, but it is a mix of the two*/
+                assertTrue("frame " + f, data[f] > take && data[f] != 2000);
+            }
+        }
+        /*equal power: the gains at the middle of the fade are both about 0.707*/
+        float g = (float) Math.sin(Math.PI / 4 * 1.1);
+        float h = (float) Math.cos(Math.PI / 4 * 1.1);
+        assertEquals(Math.round(take * h + 2000 * g), data[105], 1);
+        assertEquals(data[105], data[194]);
+    }
+
+    @Test
+    public void silenceOutsideSegment() {
+        EditList list = new EditList(2);
+        list.add(edit(2000, 100, 200, 120, 2 * 50));
+        short[] data = new short[300 * 2];
+        Arrays.fill(data, take);
+        list.apply(0, data, 0, 300);
+        for (int f = 0; f < 300; f++) {
+            int expected = f < 100 || f >= 200 ? take : f >= 120 && f < 170 ? 2000 : 0;
+            assertEquals("frame " + f, expected, data[2 * f]);
+            assertEquals("frame " + f, expected, data[2 * f + 1]);
+        }
+    }
+
+    @Test
+    public void laterEditsWin() {
+        EditList list = new EditList(1);
+        list.add(edit(2000, 100, 200, 100, 100));
+        list.add(edit(3000, 150, 250, 150, 100));
+        short[] data = block(300);
+        list.apply(0, data, 0, 300);
+        assertEquals(take, data[99]);
+        assertEquals(2000, data[149]);
+        assertEquals(3000, data[150]);
+        assertEquals(3000, data[249]);
+        assertEquals(take, data[250]);
+
+        list.removeLast();
+        data = block(300);
+        list.apply(0, data, 0, 300);
+        assertEquals(2000, data[150]);
+        assertEquals(take, data[200]);
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        File file = File.createTempFile("take", ".edits");
+        EditList list = new EditList(2);
+        list.setCrossfade(441);
+        list.add(new EditList.Edit("take.m4a.retake1.m4a", 44100, 88200, 22050));
+        list.add(new EditList.Edit("take.m4a.retake 2.wav", 100, 200, 100));
+        list.save(file);
+
+        EditList loaded = EditList.load(file);
+        assertEquals(2, loaded.getChannels());
+        assertEquals(441, loaded.getCrossfade());
+        assertEquals(2, loaded.getEdits().length);
+        EditList.Edit edit = loaded.getEdits()[1];
+        assertEquals("take.m4a.retake 2.wav", edit.segment);
+        assertEquals(100, edit.start);
+        assertEquals(200, edit.end);
+        assertEquals(100, edit.origin);
+        assertNull(edit.getPcm());
+        assertEquals(22050, loaded.getEdits()[0].origin);
+        file.delete();
+    }
+
+    private static EditList.Edit edit(int value, long start, long end, long origin, int samples) {
+        EditList.Edit edit = new EditList.Edit("segment", start, end, origin);
+        short[] pcm = new short[samples];
+        Arrays.fill(pcm, (short) value);
+        edit.setPcm(pcm);
+        return edit;
+    }
+
+    private static short[] block(int frames) {
+        short[] data = new short[frames];
+        Arrays.fill(data, take);
+        return data;
+    }
+}
@@ -0,0 +1,204 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link EffectChain} stage order, bypass, conversion of the 16 bit blocks, preparing while a
+ * host runs the chain and swapping the chain of a host.
+ */
+public class EffectChainTest {
+    private static final int rate = 48000;
+    private static final int frames = 64;
+
+    /**
+     * Adds a constant, or multiplies, and counts its calls.
+     */
+    private static class Step implements AudioEffect {
+        final float add;
+        final float multiply;
+        int prepares;
+        int resets;
+        int maxFrames;
+
+        Step(float add, float multiply) {
+            this.add = add;
+            this.multiply = multiply;
+        }
+
+        @Override
+        public void prepare(int sampleRate, int channels, int maxFrames) {
+            prepares++;
+            this.maxFrames = maxFrames;
+        }
+
+        @Override
+        public void process(float[] buffer, int frames) {
+            for (int i = 0; i < frames * 2; i++) {
+                buffer[i] = (buffer[i] + add) * multiply;
+            }
+        }
+
+        @Override
+        public void reset() {
+            resets++;
+        }
+    }
+
+    @Test
+    public void stagesRunInOrder() {
+        EffectChain chain = new EffectChain();
+        chain.add("add", new Step(0.25f, 1));
+        chain.add("double", new Step(0, 2));
+        chain.prepare(rate, 2, frames);
+        short[] block = block(0);
+        chain.process(block, frames);
+        assertEquals(16384, block[0]);
+        chain.insert(0, "double first", new Step(0, 2));
+        block = block(0.125f);
+        chain.process(block, frames);
+        /*(0.125 * 2 + 0.25) * 2*/
+        assertEquals(32767, block[1]);
+        chain.remove(0);
+        chain.replace(1, "halve", new Step(0, 0.5f));
+        block = block(0.25f);
+        chain.process(block, frames);
+        assertEquals(8192, block[2]);
+        assertEquals("halve", chain.getStage(1).getName());
+    }
+
+    @Test
+    public void bypassSkipsAndResetsOnReturn() {
+        EffectChain chain = new EffectChain();
+        Step step = new Step(0.5f, 1);
+        chain.add("add", step);
+        chain.prepare(rate, 2, frames);
+        chain.setBypassed(0, true);
+        short[] block = block(0.25f);
+        chain.process(block, frames);
+        assertEquals(8192, block[0]);
+        assertEquals(0, step.resets);
+        chain.setBypassed(0, false);
+        chain.process(block, frames);
+        assertEquals(24576, block[0]);
+        assertEquals(1, step.resets);
+        /*replace keeps the bypass*/
+        chain.setBypassed(0, true);
+        chain.replace(0, "other", new Step(0.5f, 1));
+        assertTrue(chain.getStage(0).isBypassed());
+    }
+
+    @Test
+    public void conversionIsExactAndClips() {
+        EffectChain chain = new EffectChain();
+        chain.add("identity", new Step(0, 1));
+        chain.prepare(rate, 2, frames);
+        short[] block = new short[frames * 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (short) (i * 1021 - 32768);
+        }
+        short[] copy = block.clone();
+        chain.process(block, frames);
+        for (int i = 0; i < block.length; i++) {
+            assertEquals(copy[i], block[i]);
+        }
+        chain.replace(0, "loud", new Step(0, 4));
+        chain.process(block, frames);
+        assertEquals(-32768, block[0]);
+        assertEquals(32767, block[block.length - 1]);
+    }
+
+    @Test
+    public void runningChainIsNotPreparedAgain() {
+        EffectChain chain = new EffectChain();
+        Step step = new Step(0, 1);
+        chain.add("step", step);
+        chain.prepare(rate, 2, frames);
+        chain.attach();
+        assertTrue(chain.isAttached());
+        /*a second host at the same format shares it as it is*/
+        chain.prepare(rate, 2, frames / 2);
+        assertEquals(1, step.prepares);
+        assertEquals(frames, step.maxFrames);
+        try {
+            chain.prepare(44100, 2, frames);
+            fail("prepared a running chain for another rate");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            chain.prepare(rate, 2, frames * 2);
+            fail("prepared a running chain for longer blocks");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(rate, chain.getSampleRate());
+        chain.detach();
+        assertFalse(chain.isAttached());
+        chain.prepare(44100, 2, frames * 2);
+        assertEquals(2, step.prepares);
+        assertEquals(44100, chain.getSampleRate());
+    }
+
+    @Test
+    public void stagesAddedToAPreparedChainArePrepared() {
+        EffectChain chain = new EffectChain();
+        chain.prepare(rate, 2, frames);
+        chain.attach();
+        Step step = new Step(0, 1);
+        chain.add("late", step);
+        assertEquals(1, step.prepares);
+        assertEquals(frames, step.maxFrames);
+    }
+
+    @Test
+    public void swapAttachesBeforeAndDetachesAfter() {
+        final EffectChain[] installed = new EffectChain[1];
+        final int[] prepares = new int[1];
+        EffectChain.Host host = new EffectChain.Host() {
+            @Override
+            public void prepare(EffectChain chain) {
+                prepares[0]++;
+                chain.prepare(rate, 2, frames);
+            }
+
+            @Override
+            public void install(EffectChain chain) {
+                /*the host never sees a chain it may not run*/
+                assertTrue(null == chain || chain.isAttached());
+                installed[0] = chain;
+            }
+        };
+        EffectChain first = new EffectChain();
+        EffectChain.swap(null, first, false, host);
+        assertTrue(installed[0] == first);
+        assertTrue(first.isAttached());
+        assertEquals(0, prepares[0]);
+
+        EffectChain second = new EffectChain();
+        EffectChain.swap(installed[0], second, true, host);
+        assertTrue(installed[0] == second);
+        assertTrue(second.isPrepared());
+        assertFalse(first.isAttached());
+        assertEquals(1, prepares[0]);
+
+        /*the installed chain is left alone*/
+        EffectChain.swap(installed[0], second, true, host);
+        assertEquals(1, prepares[0]);
+        assertTrue(second.isAttached());
+
+        EffectChain.swap(installed[0], null, true, host);
+        assertTrue(null == installed[0]);
+        assertFalse(second.isAttached());
+    }
+
+    private static short[] block(float value) {
+        short[] block = new short[frames * 2];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (short) Math.round(value * 32768);
+        }
+        return block;
+    }
+}
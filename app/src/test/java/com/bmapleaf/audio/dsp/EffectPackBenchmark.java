@@ -0,0 +1,92 @@
+package com.bmapleaf.audio.dsp;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * Cost of {@link Equalizer}, {@link Reverb} and {@link Echo}, and of a vocal chain of all three
+ * on 16 bit blocks, at 44.1 kHz stereo in 512 frame blocks.
+ */
+public class EffectPackBenchmark {
+    private static final int rate = 44100;
+    private static final int blockFrames = 512;
+    private static final int seconds = 2;
+
+    @Test
+    public void equalizerCost() {
+        Equalizer eq = new Equalizer(5);
+        eq.setBand(0, Equalizer.Type.HIGH_PASS, 90, 0, 0.7071f);
+        eq.setBand(1, Equalizer.Type.PEAKING, 250, -3, 1);
+        eq.setBand(2, Equalizer.Type.PEAKING, 3000, 4, 1.2f);
+        eq.setBand(3, Equalizer.Type.PEAKING, 6500, -2, 3);
+        eq.setBand(4, Equalizer.Type.HIGH_SHELF, 10000, 3, 0.7071f);
+        bench("Equalizer 5 bands", eq);
+    }
+
+    @Test
+    public void reverbCost() {
+        bench("Reverb FDN 8 lines", new Reverb());
+    }
+
+    @Test
+    public void echoCost() {
+        Echo echo = new Echo();
+        echo.setPingPong(true);
+        bench("Echo ping-pong", echo);
+    }
+
+    @Test
+    public void vocalChainOnShortBlocks() {
+        final EffectChain chain = new EffectChain();
+        Equalizer eq = new Equalizer(3);
+        eq.setBand(0, Equalizer.Type.HIGH_PASS, 90, 0, 0.7071f);
+        eq.setBand(1, Equalizer.Type.PEAKING, 3000, 4, 1.2f);
+        eq.setBand(2, Equalizer.Type.HIGH_SHELF, 10000, 3, 0.7071f);
+        chain.add("eq", eq);
+        chain.add("echo", new Echo());
+        chain.add("reverb", new Reverb());
+        chain.prepare(rate, 2, blockFrames);
+        final short[] input = new short[rate * seconds * 2];
+        for (int i = 0; i < input.length / 2; i++) {
+            input[2 * i] = input[2 * i + 1] = (short) (8000 * Math.sin(2 * Math.PI * 220 * i / rate));
+        }
+        final short[] block = new short[blockFrames * 2];
+        new Benchmark("EffectChain eq + echo + reverb, short blocks")
+                .warmup(3).measure(5).operations(rate * seconds).realTime(rate)
+                .run(new Runnable() {
+                    @Override
+                    public void run() {
+                        chain.reset();
+                        for (int i = 0; i + block.length <= input.length; i += block.length) {
+                            System.arraycopy(input, i, block, 0, block.length);
+                            chain.process(block, blockFrames);
+                        }
+                    }
+                });
+        for (int s = 0; s < chain.size(); s++) {
+            System.out.println("  " + chain.getStage(s));
+        }
+        System.out.println("  " + chain.getOverBudgetBlocks() + " of " + chain.getBlocks() + " blocks over budget");
+    }
+
+    private static void bench(String name, final AudioEffect effect) {
+        effect.prepare(rate, 2, blockFrames);
+        final float[] input = new float[rate * seconds * 2];
+        EffectPackTest.sine(input, 220, 0);
+        new Benchmark(name)
+                .warmup(3).measure(5).operations(rate * seconds).realTime(rate)
+                .run(new Runnable() {
+                    private final float[] block = new float[blockFrames * 2];
+
+                    @Override
+                    public void run() {
+                        effect.reset();
+                        for (int i = 0; i + block.length <= input.length; i += block.length) {
+                            System.arraycopy(input, i, block, 0, block.length);
+                            effect.process(block, blockFrames);
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,202 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Responses of {@link Equalizer}, {@link Reverb} and {@link Echo} at 44.1 kHz stereo in 512 frame
+ * blocks.
+ */
+public class EffectPackTest {
+    private static final int rate = 44100;
+    private static final int blockFrames = 512;
+
+    @Test
+    public void equalizerBands() {
+        Equalizer eq = new Equalizer(1);
+        eq.setBand(0, Equalizer.Type.PEAKING, 1000, 6, 1);
+        assertEquals(6, gainDb(eq, 1000), 0.2f);
+        assertEquals(0, gainDb(eq, 100), 0.3f);
+        eq.setBand(0, Equalizer.Type.LOW_SHELF, 200, -6, 0.7071f);
+        assertEquals(-6, gainDb(eq, 40), 0.3f);
+        assertEquals(0, gainDb(eq, 5000), 0.3f);
+        eq.setBand(0, Equalizer.Type.HIGH_PASS, 100, 0, 0.7071f);
+        assertTrue(gainDb(eq, 25) < -20);
+    }
+
+    @Test
+    public void equalizerGainGlides() {
+        Equalizer eq = new Equalizer(1);
+        eq.prepare(rate, 2, blockFrames);
+        float[] block = new float[blockFrames * 2];
+        long phase = 0;
+        for (int b = 0; b < 20; b++) {
+            phase = sine(block, 1000, phase);
+            eq.process(block, blockFrames);
+        }
+        eq.setGain(0, 12);
+        /*the first tick after the change is still close to the old gain*/
+        phase = sine(block, 1000, phase);
+        eq.process(block, 32);
+        assertTrue(peak(block, 0, 32) < 0.5 * 1.5);
+        for (int b = 0; b < 40; b++) {
+            phase = sine(block, 1000, phase);
+            eq.process(block, blockFrames);
+        }
+        assertEquals(0.5 * Math.pow(10, 12 / 20.0), peak(block, 0, blockFrames), 0.05);
+    }
+
+    @Test
+    public void reverbDecaysAtItsTime() {
+        Reverb reverb = new Reverb();
+        reverb.setDecay(1);
+        reverb.setDamping(0);
+        reverb.setPreDelay(0);
+        reverb.setWet(1);
+        float[] out = impulse(reverb, 3);
+        double early = rms(out, rate / 10, rate / 5);
+        double late = rms(out, rate * 11 / 10, rate * 6 / 5);
+        float dropDb = (float) (20 * Math.log10(late / early));
+        assertEquals(-60, dropDb, 8);
+        /*the two sides are different lines*/
+        double lr = 0, ll = 0, rr = 0;
+        for (int f = rate / 10; f < rate / 2; f++) {
+            lr += out[2 * f] * out[2 * f + 1];
+            ll += out[2 * f] * out[2 * f];
+            rr += out[2 * f + 1] * out[2 * f + 1];
+        }
+        assertTrue(Math.abs(lr / Math.sqrt(ll * rr)) < 0.5);
+    }
+
+    @Test
+    public void reverbLongDecayIsStable() {
+        Reverb reverb = new Reverb();
+        reverb.setDecay(20);
+        reverb.setDamping(0);
+        float[] out = impulse(reverb, 10);
+        float max = peak(out, out.length / 4 - blockFrames, out.length / 4);
+        assertTrue(!Float.isNaN(max) && max < 1);
+        assertTrue(peak(out, out.length / 2 - blockFrames, out.length / 2) > 0);
+    }
+
+    @Test
+    public void echoFollowsTheTempo() {
+        Echo echo = new Echo();
+        echo.setTempo(120);
+        echo.setDivision(0.5f);
+        echo.setTone(20000);
+        echo.setFeedback(0.5f);
+        echo.setWet(1);
+        float[] out = impulse(echo, 1);
+        /*an eighth at 120 bpm is 250 ms*/
+        assertEquals(rate / 4, loudestFrame(out, 0, rate / 4 + 100, rate / 8), 1);
+        assertEquals(rate / 2, loudestFrame(out, 0, rate / 2 + 100, rate * 3 / 8), 2);
+        assertEquals(0.5, out[2 * (rate / 2)] / out[2 * (rate / 4)], 0.1);
+    }
+
+    @Test
+    public void echoPingPongAlternates() {
+        Echo echo = new Echo();
+        echo.setPingPong(true);
+        echo.setDivision(0.5f);
+        echo.setWet(1);
+        float[] out = impulse(echo, 1);
+        assertTrue(peak(out, rate / 4 - 100, rate / 4 + 100, 0) > 10 * peak(out, rate / 4 - 100, rate / 4 + 100, 1));
+        assertTrue(peak(out, rate / 2 - 100, rate / 2 + 100, 1) > 10 * peak(out, rate / 2 - 100, rate / 2 + 100, 0));
+    }
+
+    @Test
+    public void echoTempoChangeDoesNotClick() {
+        Echo echo = new Echo();
+        echo.prepare(rate, 2, blockFrames);
+        float[] block = new float[blockFrames * 2];
+        long phase = 0;
+        float last = 0, maxStep = 0;
+        for (int b = 0; b < 200; b++) {
+            if (b == 100) {
+                echo.setTempo(90);
+            }
+            phase = sine(block, 440, phase);
+            echo.process(block, blockFrames);
+            for (int f = 0; f < blockFrames; f++) {
+                maxStep = Math.max(maxStep, Math.abs(block[2 * f] - last));
+                last = block[2 * f];
+            }
+        }
+        /*the dry sine alone steps up to 0.031*/
+        assertTrue("step " + maxStep, maxStep < 0.06f);
+    }
+
+    /**
+     * @return gain of a settled sine through a freshly prepared effect, from the peaks
+     */
+    private static float gainDb(AudioEffect effect, float frequency) {
+        effect.prepare(rate, 2, blockFrames);
+        float[] block = new float[blockFrames * 2];
+        long phase = 0;
+        float max = 0;
+        for (int b = 0; b < rate / blockFrames; b++) {
+            phase = sine(block, frequency, phase);
+            effect.process(block, blockFrames);
+            if (b > rate / blockFrames / 2) {
+                max = Math.max(max, peak(block, 0, blockFrames));
+            }
+        }
+        return (float) (20 * Math.log10(max / 0.5));
+    }
+
+    /**
+     * @return output of a stereo impulse followed by silence
+     */
+    private static float[] impulse(AudioEffect effect, int seconds) {
+        effect.prepare(rate, 2, blockFrames);
+        float[] out = new float[(rate * seconds / blockFrames) * blockFrames * 2];
+        out[0] = out[1] = 0.5f;
+        float[] block = new float[blockFrames * 2];
+        for (int i = 0; i < out.length; i += block.length) {
+            System.arraycopy(out, i, block, 0, block.length);
+            effect.process(block, blockFrames);
+            System.arraycopy(block, 0, out, i, block.length);
+        }
+        return out;
+    }
+
+    static long sine(float[] block, float frequency, long phase) {
+        for (int f = 0; f < block.length / 2; f++, phase++) {
+            block[2 * f] = block[2 * f + 1] = (float) (0.5 * Math.sin(2 * Math.PI * frequency * phase / rate));
+        }
+        return phase;
+    }
+
+    private static float peak(float[] data, int fromFrame, int toFrame) {
+        return Math.max(peak(data, fromFrame, toFrame, 0), peak(data, fromFrame, toFrame, 1));
+    }
+
+    private static float peak(float[] data, int fromFrame, int toFrame, int channel) {
+        float max = 0;
+        for (int f = fromFrame; f < toFrame; f++) {
+            max = Math.max(max, Math.abs(data[2 * f + channel]));
+        }
+        return max;
+    }
+
+    private static double rms(float[] data, int fromFrame, int toFrame) {
+        double sum = 0;
+        for (int i = 2 * fromFrame; i < 2 * toFrame; i++) {
+            sum += data[i] * data[i];
+        }
+        return Math.sqrt(sum / (2 * (toFrame - fromFrame)));
+    }
+
+    private static int loudestFrame(float[] data, int channel, int toFrame, int fromFrame) {
+        int best = fromFrame;
+        for (int f = fromFrame; f < toFrame; f++) {
+            if (Math.abs(data[2 * f + channel]) > Math.abs(data[2 * best + channel])) {
+                best = f;
+            }
+        }
+        return best;
+    }
+}
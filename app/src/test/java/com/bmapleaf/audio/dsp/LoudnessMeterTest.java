@@ -0,0 +1,85 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LoudnessMeter} against the stereo sine cases of EBU Tech 3341, fed in 512 frame blocks
+ * like the player's.
+ */
+public class LoudnessMeterTest {
+    private static final int channels = 2;
+    private static final int frames = 512;
+    private final short[] block = new short[frames * channels];
+    private long phase;
+
+    @Test
+    public void sineAtMinus23ReadsMinus23() {
+        for (int rate : new int[]{44100, 48000}) {
+            LoudnessMeter meter = new LoudnessMeter(rate, channels);
+            phase = 0;
+            feed(meter, rate, 20, -23);
+            assertEquals("rate " + rate, -23, meter.getIntegratedLufs(), 0.1f);
+            assertEquals(-23, meter.getMomentaryLufs(), 0.1f);
+            assertEquals(Math.pow(10, -23 / 20.0), meter.getSamplePeak(), 0.001);
+        }
+    }
+
+    @Test
+    public void silenceIsGatedAbsolutely() {
+        LoudnessMeter meter = new LoudnessMeter(48000, channels);
+        feed(meter, 48000, 5, Float.NEGATIVE_INFINITY);
+        assertTrue(Float.isInfinite(meter.getIntegratedLufs()));
+        feed(meter, 48000, 20, -23);
+        feed(meter, 48000, 20, Float.NEGATIVE_INFINITY);
+        assertEquals(-23, meter.getIntegratedLufs(), 0.1f);
+    }
+
+    @Test
+    public void quietPartsAreGatedRelatively() {
+        /*Tech 3341 case 3: -36, -23, -36 dBFS for 10, 60 and 10 s reads -23*/
+        LoudnessMeter meter = new LoudnessMeter(48000, channels);
+        feed(meter, 48000, 10, -36);
+        feed(meter, 48000, 60, -23);
+        feed(meter, 48000, 10, -36);
+        assertEquals(-23, meter.getIntegratedLufs(), 0.1f);
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LoudnessMeter meter = new LoudnessMeter(48000, channels);
+        feed(meter, 48000, 5, -10);
+        meter.reset();
+        assertEquals(0, meter.getFrames());
+        feed(meter, 48000, 10, -30);
+        assertEquals(-30, meter.getIntegratedLufs(), 0.1f);
+        assertEquals(Math.pow(10, -30 / 20.0), meter.getSamplePeak(), 0.001);
+    }
+
+    @Test
+    public void normalizationGainIsLimitedByThePeak() {
+        assertEquals(5, LoudnessMeter.getNormalizationGainDb(-23, 0.1f, -18), 0.001f);
+        /*a peak at -3 dBFS leaves 3 dB*/
+        assertEquals(3, LoudnessMeter.getNormalizationGainDb(-23, (float) Math.pow(10, -3 / 20.0), -18), 0.01f);
+        assertEquals(-8, LoudnessMeter.getNormalizationGainDb(-10, 1f, -18), 0.001f);
+        assertEquals(0, LoudnessMeter.getNormalizationGainDb(Float.NEGATIVE_INFINITY, 0, -18), 0);
+    }
+
+    /**
+     * Feeds seconds of a 1 kHz sine at db dBFS peak, in phase on both channels.
+     */
+    private void feed(LoudnessMeter meter, int rate, int seconds, float db) {
+        double amplitude = 32768 * Math.pow(10, db / 20);
+        long total = (long) seconds * rate;
+        for (long done = 0; done < total; done += frames) {
+            int n = (int) Math.min(frames, total - done);
+            for (int f = 0; f < n; f++, phase++) {
+                short v = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 1000 * phase / rate));
+                block[2 * f] = block[2 * f + 1] = v;
+            }
+            meter.add(block, 0, n);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Incremental scoring of {@link NoteScorer} against a three note {@link Melody}, fed with one
+ * estimate every 10 ms like the recorder's pitch tracker.
+ */
+public class NoteScorerTest {
+    private static final String song = "# start duration note\n"
+            + "0 500 60\n"
+            + "\n"
+            + "500 500 64\n"
+            + "1500 1000 67\n";
+
+    @Test
+    public void parsesTheTextForm() throws IOException {
+        Melody melody = Melody.parse(new StringReader(song));
+        assertEquals(3, melody.size());
+        assertEquals(1500000, melody.getStartUs(2));
+        assertEquals(2500000, melody.getEndUs(2));
+        assertEquals(67, melody.getNote(2), 0);
+        assertEquals(2, melody.indexAfter(1200000));
+        assertEquals(3, melody.indexAfter(2500000));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOverlappingNotes() throws IOException {
+        Melody.parse(new StringReader("0 500 60\n400 500 62\n"));
+    }
+
+    @Test
+    public void notesAreScoredWhenTheyEnd() throws IOException {
+        NoteScorer scorer = new NoteScorer(Melody.parse(new StringReader(song)));
+        final List<Float> scores = new ArrayList<>();
+        scorer.setOnNoteScoredListener(new NoteScorer.OnNoteScoredListener() {
+            @Override
+            public void onNoteScored(int index, float score, float total) {
+                assertEquals(scores.size(), index);
+                scores.add(score);
+            }
+        });
+        /*first note right an octave down, second a quarter tone sharp, third half unvoiced*/
+        for (long t = 0; t < 3000000; t += 10000) {
+            float note;
+            if (t < 500000) {
+                note = 48;
+            } else if (t < 1000000) {
+                note = 64.25f;
+            } else if (t >= 1500000 && t < 2000000) {
+                note = 67;
+            } else {
+                note = Float.NaN;
+            }
+            scorer.add(t, note, 0.9f);
+            if (t == 990000) {
+                /*nothing is final before the next estimate*/
+                assertEquals(1, scores.size());
+            }
+        }
+        assertEquals(3, scores.size());
+        assertEquals(1, scores.get(0), 0);
+        assertEquals(1, scores.get(1), 0);
+        assertEquals(0.5f, scores.get(2), 0.02f);
+        /*weighted by duration: (500 + 500 + 500) / 2000*/
+        assertEquals(75, scorer.getTotal(), 1);
+    }
+
+    @Test
+    public void creditFallsOffOverASemitone() throws IOException {
+        NoteScorer scorer = new NoteScorer(Melody.parse(new StringReader("0 1000 60\n")));
+        for (long t = 0; t < 1000000; t += 10000) {
+            scorer.add(t, 61, 0.9f);
+        }
+        scorer.finish();
+        assertEquals(50, scorer.getTotal(), 0.5);
+    }
+
+    @Test
+    public void seekBackScoresAgain() throws IOException {
+        NoteScorer scorer = new NoteScorer(Melody.parse(new StringReader(song)));
+        for (long t = 0; t < 1200000; t += 10000) {
+            scorer.add(t, 42, 0.9f);
+        }
+        assertEquals(2, scorer.getScoredNotes());
+        for (long t = 0; t < 1200000; t += 10000) {
+            scorer.add(t, t < 500000 ? 60 : 64, 0.9f);
+        }
+        assertEquals(4, scorer.getScoredNotes());
+        assertEquals(50, scorer.getTotal(), 1);
+        scorer.finish();
+        /*the third note was never sung*/
+        assertEquals(5, scorer.getScoredNotes());
+    }
+
+    @Test
+    public void lowConfidenceIsUnvoiced() throws IOException {
+        NoteScorer scorer = new NoteScorer(Melody.parse(new StringReader("0 1000 60\n")));
+        for (long t = 0; t < 1000000; t += 10000) {
+            scorer.add(t, 60, 0.2f);
+        }
+        scorer.finish();
+        assertEquals(0, scorer.getTotal(), 0);
+    }
+}
@@ -0,0 +1,27 @@
+package com.bmapleaf.audio.dsp;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * Cost of {@link PitchTracker} at 44.1 kHz stereo, fed in recorder sized blocks.
+ */
+public class PitchTrackerBenchmark {
+    private static final int rate = 44100;
+
+    @Test
+    public void costPerSecond() {
+        final short[] input = PitchTrackerTest.tone(220, 3, rate * 2);
+        final PitchTracker tracker = PitchTrackerTest.newTracker();
+        new Benchmark("PitchTracker YIN 70-1000 Hz")
+                .warmup(3).measure(5).operations(rate * 2).realTime(rate)
+                .run(new Runnable() {
+                    @Override
+                    public void run() {
+                        tracker.reset();
+                        PitchTrackerTest.feed(tracker, input);
+                    }
+                });
+    }
+}
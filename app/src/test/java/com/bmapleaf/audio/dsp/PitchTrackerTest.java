@@ -0,0 +1,112 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Accuracy of {@link PitchTracker} on synthetic tones at 44.1 kHz stereo, fed in recorder sized
+ * blocks.
+ */
+public class PitchTrackerTest {
+    private static final int rate = 44100;
+    private static final int blockFrames = 1024;
+
+    @Test
+    public void sinesWithinFiveCents() {
+        float[] frequencies = {82.4f, 110, 196, 261.6f, 440, 659.3f, 880};
+        for (float frequency : frequencies) {
+            PitchTracker tracker = newTracker();
+            feed(tracker, tone(frequency, 1, rate / 2));
+            PitchTracker.Pitch pitch = new PitchTracker.Pitch();
+            assertTrue(tracker.getLatest(pitch));
+            assertTrue(frequency + " Hz unvoiced", pitch.isVoiced());
+            assertEquals(frequency + " Hz", PitchTracker.toMidiNote(frequency), pitch.getMidiNote(), 0.05);
+            assertTrue(pitch.confidence > 0.9f);
+        }
+    }
+
+    @Test
+    public void harmonicsDoNotJumpAnOctave() {
+        /*strong second and third harmonic, like a bright vowel*/
+        PitchTracker tracker = newTracker();
+        feed(tracker, tone(147, 4, rate / 2));
+        PitchTracker.Pitch pitch = new PitchTracker.Pitch();
+        tracker.getLatest(pitch);
+        assertEquals(147, pitch.frequency, 147 * 0.01);
+    }
+
+    @Test
+    public void noiseAndSilenceAreUnvoiced() {
+        PitchTracker tracker = newTracker();
+        short[] noise = new short[rate / 2 * 2];
+        Random random = new Random(1);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (short) (random.nextGaussian() * 3000);
+        }
+        feed(tracker, noise);
+        PitchTracker.Pitch pitch = new PitchTracker.Pitch();
+        tracker.getLatest(pitch);
+        assertFalse(pitch.isVoiced());
+        assertTrue(pitch.confidence < 0.5f);
+
+        feed(tracker, new short[rate / 2 * 2]);
+        tracker.getLatest(pitch);
+        assertFalse(pitch.isVoiced());
+        assertEquals(0, pitch.confidence, 0);
+    }
+
+    @Test
+    public void everyHopIsReportedInOrder() {
+        PitchTracker tracker = newTracker();
+        final long[] last = {-1};
+        final int[] hops = {0};
+        tracker.setOnPitchListener(new PitchTracker.OnPitchListener() {
+            @Override
+            public void onPitch(long frame, float frequency, float confidence) {
+                assertTrue(frame > last[0]);
+                last[0] = frame;
+                hops[0]++;
+            }
+        });
+        feed(tracker, tone(220, 1, rate));
+        /*one second, less the first window*/
+        assertEquals(100, hops[0], 10);
+        PitchTracker.Pitch pitch = new PitchTracker.Pitch();
+        tracker.getLatest(pitch);
+        assertEquals(last[0], pitch.frame);
+    }
+
+    static PitchTracker newTracker() {
+        PitchTracker tracker = new PitchTracker();
+        tracker.prepare(rate, 2);
+        return tracker;
+    }
+
+    static void feed(PitchTracker tracker, short[] input) {
+        for (int i = 0; i < input.length; i += blockFrames * 2) {
+            tracker.process(input, i, Math.min(blockFrames * 2, input.length - i));
+        }
+    }
+
+    /**
+     * @param harmonics number of harmonics, falling off as 1/n
+     */
+    static short[] tone(float frequency, int harmonics, int frames) {
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double v = 0;
+            for (int n = 1; n <= harmonics; n++) {
+                v += Math.sin(2 * Math.PI * frequency * n * i / rate) / n;
+            }
+            short s = (short) (v * 12000 / Math.max(1, harmonics / 2.0));
+            data[2 * i] = s;
+            data[2 * i + 1] = s;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,55 @@
+package com.bmapleaf.audio.dsp;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * Per tier cost of {@link Resampler}, 44.1 kHz stereo to 48 kHz.
+ */
+public class ResamplerBenchmark {
+    private static final int inRate = 44100;
+    private static final int outRate = 48000;
+    private static final int blockFrames = 512;
+    private static final int seconds = 2;
+
+    @Test
+    public void low() {
+        bench(Resampler.Quality.LOW, "LOW");
+    }
+
+    @Test
+    public void medium() {
+        bench(Resampler.Quality.MEDIUM, "MEDIUM");
+    }
+
+    @Test
+    public void high() {
+        bench(Resampler.Quality.HIGH, "HIGH");
+    }
+
+    private void bench(@Resampler.Quality int quality, String name) {
+        final short[] input = ResamplerTest.sine(1000, inRate, inRate * seconds);
+        final Resampler resampler = new Resampler();
+        resampler.configure(inRate, outRate, 2, blockFrames, quality);
+        final short[] output = new short[resampler.getMaxOutputFrames(blockFrames) * 2];
+        new Benchmark("Resampler " + name)
+                .warmup(3).measure(5).operations(inRate * seconds).realTime(inRate)
+                .run(new Runnable() {
+                    private final short[] scratch = new short[blockFrames * 2];
+
+                    @Override
+                    public void run() {
+                        resampler.reset();
+                        for (int i = 0; i + blockFrames * 2 <= input.length; i += blockFrames * 2) {
+                            resampler.process(copy(input, i, blockFrames * 2, scratch), blockFrames, output);
+                        }
+                    }
+                });
+    }
+
+    private static short[] copy(short[] src, int offset, int length, short[] dst) {
+        System.arraycopy(src, offset, dst, 0, length);
+        return dst;
+    }
+}
@@ -0,0 +1,139 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link Resampler} output frequency, length and aliasing, in 512 frame stereo blocks.
+ */
+public class ResamplerTest {
+    private static final int inRate = 44100;
+    private static final int outRate = 48000;
+    private static final int blockFrames = 512;
+    private static final int seconds = 2;
+
+    @Test
+    public void keepsFrequencyAndLength() {
+        final short[] input = sine(1000, inRate, inRate * seconds);
+        Resampler resampler = new Resampler();
+        resampler.configure(inRate, outRate, 2, blockFrames, Resampler.Quality.HIGH);
+        short[] output = new short[outRate * seconds * 2 + 4096];
+        int produced = run(resampler, input, output);
+        assertEquals((double) outRate * seconds, produced, blockFrames);
+        /*1 kHz over 2 s -> 4000 zero crossings per channel*/
+        int crossings = 0;
+        for (int i = 2 * 64; i < produced * 2; i += 2) {
+            if ((output[i - 2] < 0) != (output[i] < 0)) {
+                crossings++;
+            }
+        }
+        assertEquals(4000, crossings, 10);
+    }
+
+    @Test
+    public void drainHandsOutTheTail() {
+        /*a click on the very last input frame, held back by process()*/
+        short[] input = new short[blockFrames * 2];
+        input[input.length - 2] = input[input.length - 1] = 16384;
+        for (int rate : new int[]{inRate, outRate, 32000}) {
+            Resampler resampler = new Resampler();
+            resampler.configure(inRate, rate, 2, blockFrames, Resampler.Quality.HIGH);
+            short[] out = new short[resampler.getMaxOutputFrames(blockFrames) * 2];
+            int n = resampler.process(input, blockFrames, out);
+            int peak = 0;
+            for (int i = 0; i < n * 2; i++) {
+                peak = Math.max(peak, Math.abs(out[i]));
+            }
+            assertTrue(peak < 1000);
+            int tail = resampler.drain(out);
+            for (int i = 0; i < tail * 2; i++) {
+                peak = Math.max(peak, Math.abs(out[i]));
+            }
+            assertTrue(peak > 8000);
+            /*every output frame before the end of the input, none past it*/
+            assertEquals(Math.ceil(blockFrames * (double) rate / inRate), n + tail, 0);
+        }
+    }
+
+    @Test
+    public void speedChangesLength() {
+        short[] input = sine(440, inRate, inRate);
+        Resampler resampler = new Resampler();
+        resampler.configure(inRate, inRate, 2, blockFrames, Resampler.Quality.LOW);
+        resampler.setSpeed(2f);
+        short[] output = new short[inRate * 2];
+        int produced = run(resampler, input, output);
+        assertEquals(inRate / 2, produced, blockFrames);
+    }
+
+    @Test
+    public void fastSpeedDoesNotAlias() {
+        /*17 kHz read twice as fast is 34 kHz, it would fold back to 10.1 kHz*/
+        for (int quality : new int[]{Resampler.Quality.MEDIUM, Resampler.Quality.HIGH}) {
+            Resampler resampler = new Resampler();
+            resampler.configure(inRate, inRate, 2, blockFrames, quality);
+            resampler.setSpeed(2f);
+            short[] output = new short[inRate * 2];
+            int produced = run(resampler, sine(17000, inRate, inRate), output);
+            assertTrue("quality " + quality, rms(output, 256, produced) < 16000 * 0.7071 * 0.01);
+        }
+    }
+
+    @Test
+    public void fastSpeedKeepsThePassBand() {
+        Resampler resampler = new Resampler();
+        resampler.configure(inRate, inRate, 2, blockFrames, Resampler.Quality.HIGH);
+        resampler.setSpeed(1.5f);
+        short[] output = new short[inRate * 2];
+        int produced = run(resampler, sine(2000, inRate, inRate), output);
+        assertEquals(16000 * 0.7071, rms(output, 256, produced), 16000 * 0.7071 * 0.05);
+    }
+
+    @Test
+    public void speedBackToNormalRestoresTheBand() {
+        Resampler resampler = new Resampler();
+        resampler.configure(inRate, inRate, 2, blockFrames, Resampler.Quality.HIGH);
+        resampler.setSpeed(2f);
+        resampler.setSpeed(1f);
+        short[] output = new short[inRate * 2];
+        int produced = run(resampler, sine(18000, inRate, inRate), output);
+        assertEquals(16000 * 0.7071, rms(output, 256, produced), 16000 * 0.7071 * 0.05);
+    }
+
+    private static int run(Resampler resampler, short[] input, short[] output) {
+        short[] block = new short[blockFrames * 2];
+        short[] out = new short[resampler.getMaxOutputFrames(blockFrames) * 2];
+        int produced = 0;
+        for (int i = 0; i + block.length <= input.length; i += block.length) {
+            int n = resampler.process(copy(input, i, block.length, block), blockFrames, out);
+            System.arraycopy(out, 0, output, produced * 2, n * 2);
+            produced += n;
+        }
+        return produced;
+    }
+
+    private static short[] copy(short[] src, int offset, int length, short[] dst) {
+        System.arraycopy(src, offset, dst, 0, length);
+        return dst;
+    }
+
+    private static double rms(short[] data, int fromFrame, int toFrame) {
+        double sum = 0;
+        for (int i = 2 * fromFrame; i < 2 * toFrame; i++) {
+            sum += (double) data[i] * data[i];
+        }
+        return Math.sqrt(sum / (2 * (toFrame - fromFrame)));
+    }
+
+    static short[] sine(double frequency, int rate, int frames) {
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            short v = (short) (Math.sin(2 * Math.PI * frequency * i / rate) * 16000);
+            data[2 * i] = v;
+            data[2 * i + 1] = v;
+        }
+        return data;
+    }
+}
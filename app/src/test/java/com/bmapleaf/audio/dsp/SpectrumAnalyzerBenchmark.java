@@ -0,0 +1,31 @@
+package com.bmapleaf.audio.dsp;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * Cost of {@link SpectrumAnalyzer} at 44.1 kHz stereo, fed in player sized blocks.
+ */
+public class SpectrumAnalyzerBenchmark {
+    private static final int rate = 44100;
+
+    @Test
+    public void costPerSecond() {
+        final short[] input = SpectrumAnalyzerTest.tone(440, 0.5, rate * 2);
+        final SpectrumAnalyzer analyzer = SpectrumAnalyzerTest.newAnalyzer();
+        analyzer.setSize(2048);
+        analyzer.setUpdateRate(60);
+        analyzer.prepare(rate, 2);
+        new Benchmark("SpectrumAnalyzer 2048 points, 60 per second")
+                .warmup(3).measure(5).operations(rate * 2).realTime(rate)
+                .run(new Runnable() {
+                    @Override
+                    public void run() {
+                        analyzer.reset();
+                        SpectrumAnalyzerTest.feed(analyzer, input);
+                    }
+                });
+        System.out.println("  " + (int) analyzer.getAverageNanos() / 1000 + " us per update");
+    }
+}
@@ -0,0 +1,94 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Levels and update rate of {@link SpectrumAnalyzer} on sines at 44.1 kHz stereo, fed in player
+ * sized blocks.
+ */
+public class SpectrumAnalyzerTest {
+    private static final int rate = 44100;
+    private static final int blockFrames = 512;
+
+    @Test
+    public void sineLandsInItsBand() {
+        for (float frequency : new float[]{100, 1000, 5000}) {
+            SpectrumAnalyzer analyzer = newAnalyzer();
+            feed(analyzer, tone(frequency, 0.5, rate / 2));
+            SpectrumAnalyzer.Spectrum spectrum = new SpectrumAnalyzer.Spectrum(analyzer.getBandCount());
+            assertTrue(analyzer.getLatest(spectrum));
+            int loudest = 0;
+            for (int b = 1; b < spectrum.bands.length; b++) {
+                if (spectrum.bands[b] > spectrum.bands[loudest]) {
+                    loudest = b;
+                }
+            }
+            float center = analyzer.getBandFrequency(loudest);
+            assertTrue(frequency + " Hz in band at " + center, center / frequency < 1.2f && frequency / center < 1.2f);
+            /*half scale is -6 dB, the main lobe may straddle two bands*/
+            assertEquals(frequency + " Hz", -6, spectrum.bands[loudest], 3.5f);
+            assertTrue(spectrum.bands[0] < -60 || loudest < 4);
+            assertTrue(spectrum.bands[spectrum.bands.length - 1] < -60);
+        }
+    }
+
+    @Test
+    public void updatesAtTheRequestedRate() {
+        SpectrumAnalyzer analyzer = newAnalyzer();
+        analyzer.setUpdateRate(30);
+        SpectrumAnalyzer.Spectrum spectrum = new SpectrumAnalyzer.Spectrum(analyzer.getBandCount());
+        assertFalse(analyzer.getLatest(spectrum));
+        feed(analyzer, tone(440, 0.5, rate));
+        analyzer.getLatest(spectrum);
+        /*one update per block at most, so the count rounds up to whole blocks*/
+        assertEquals(30, spectrum.sequence, 3);
+        /*stamped with the end of the block that completed it*/
+        assertEquals(0, spectrum.frame % blockFrames);
+        assertTrue(spectrum.frame > rate - rate / 30 - blockFrames);
+    }
+
+    @Test
+    public void disabledDoesNothing() {
+        SpectrumAnalyzer analyzer = newAnalyzer();
+        analyzer.setEnabled(false);
+        feed(analyzer, tone(440, 0.5, rate));
+        assertFalse(analyzer.getLatest(new SpectrumAnalyzer.Spectrum(analyzer.getBandCount())));
+    }
+
+    @Test
+    public void silenceIsTheFloor() {
+        SpectrumAnalyzer analyzer = newAnalyzer();
+        feed(analyzer, new short[rate / 2 * 2]);
+        SpectrumAnalyzer.Spectrum spectrum = new SpectrumAnalyzer.Spectrum(analyzer.getBandCount());
+        analyzer.getLatest(spectrum);
+        for (float band : spectrum.bands) {
+            assertEquals(-100, band, 0);
+        }
+    }
+
+    static SpectrumAnalyzer newAnalyzer() {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+        analyzer.prepare(rate, 2);
+        return analyzer;
+    }
+
+    static void feed(SpectrumAnalyzer analyzer, short[] input) {
+        for (int i = 0; i < input.length; i += blockFrames * 2) {
+            analyzer.process(input, i, Math.min(blockFrames * 2, input.length - i));
+        }
+    }
+
+    static short[] tone(float frequency, double amplitude, int frames) {
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            short s = (short) Math.round(32767 * amplitude * Math.sin(2 * Math.PI * frequency * i / rate));
+            data[2 * i] = s;
+            data[2 * i + 1] = s;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,49 @@
+package com.bmapleaf.audio.dsp;
+
+import com.bmapleaf.audio.Benchmark;
+
+import org.junit.Test;
+
+/**
+ * What each tier of {@link VocalRemover} costs at 44.1 kHz stereo in player sized blocks.
+ */
+public class VocalRemoverBenchmark {
+    private static final int rate = 44100;
+    private static final int blockFrames = 512;
+    private static final int seconds = 2;
+
+    @Test
+    public void low() {
+        bench(Resampler.Quality.LOW, "LOW mid/side");
+    }
+
+    @Test
+    public void medium() {
+        bench(Resampler.Quality.MEDIUM, "MEDIUM band limited");
+    }
+
+    @Test
+    public void high() {
+        bench(Resampler.Quality.HIGH, "HIGH spectral");
+    }
+
+    private void bench(@Resampler.Quality int quality, String name) {
+        final float[] input = VocalRemoverTest.tone(440, 1, 0.8f, rate * seconds);
+        final VocalRemover remover = new VocalRemover(quality);
+        remover.prepare(rate, 2, blockFrames);
+        new Benchmark("VocalRemover " + name)
+                .warmup(3).measure(5).operations(rate * seconds).realTime(rate)
+                .run(new Runnable() {
+                    private final float[] block = new float[blockFrames * 2];
+
+                    @Override
+                    public void run() {
+                        remover.reset();
+                        for (int i = 0; i + block.length <= input.length; i += block.length) {
+                            System.arraycopy(input, i, block, 0, block.length);
+                            remover.process(block, blockFrames);
+                        }
+                    }
+                });
+    }
+}
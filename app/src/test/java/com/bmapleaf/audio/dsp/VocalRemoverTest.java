@@ -0,0 +1,85 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How much of a centered and of a panned tone each tier of {@link VocalRemover} removes, at
+ * 44.1 kHz stereo in player sized blocks.
+ */
+public class VocalRemoverTest {
+    private static final int rate = 44100;
+    private static final int blockFrames = 512;
+    private static final int seconds = 2;
+
+    @Test
+    public void everyTierRemovesACenteredVoice() {
+        for (int quality = Resampler.Quality.LOW; quality <= Resampler.Quality.HIGH; quality++) {
+            float db = reductionDb(quality, 1000, 1, 1);
+            assertTrue("tier " + quality + ": " + db + " dB", db < -20);
+        }
+    }
+
+    @Test
+    public void mediumKeepsTheBass() {
+        assertTrue(reductionDb(Resampler.Quality.LOW, 50, 1, 1) < -20);
+        assertTrue(reductionDb(Resampler.Quality.MEDIUM, 50, 1, 1) > -3);
+    }
+
+    @Test
+    public void highKeepsWhatIsPanned() {
+        /*a guitar 9.5 dB to the left*/
+        float db = reductionDb(Resampler.Quality.HIGH, 1000, 1, 0.33f);
+        assertTrue(db + " dB", db > -1.5f);
+        assertTrue(reductionDb(Resampler.Quality.HIGH, 1000, 1, 0) > -0.5f);
+        /*the simple tiers take most of it*/
+        assertTrue(reductionDb(Resampler.Quality.LOW, 1000, 1, 0.33f) < -3);
+    }
+
+    @Test
+    public void amountZeroIsTransparent() {
+        for (int quality = Resampler.Quality.LOW; quality <= Resampler.Quality.HIGH; quality++) {
+            VocalRemover remover = new VocalRemover(quality);
+            remover.setAmount(0);
+            assertTrue(Math.abs(reductionDb(remover, 1000, 1, 1)) < 0.1f);
+        }
+    }
+
+    private static float reductionDb(@Resampler.Quality int quality, float frequency, float left, float right) {
+        return reductionDb(new VocalRemover(quality), frequency, left, right);
+    }
+
+    /**
+     * @return output over input power of a tone at the given channel gains, after the latency
+     */
+    private static float reductionDb(VocalRemover remover, float frequency, float left, float right) {
+        remover.prepare(rate, 2, blockFrames);
+        float[] input = tone(frequency, left, right, rate * seconds);
+        float[] output = input.clone();
+        float[] block = new float[blockFrames * 2];
+        for (int i = 0; i + block.length <= output.length; i += block.length) {
+            System.arraycopy(output, i, block, 0, block.length);
+            remover.process(block, blockFrames);
+            System.arraycopy(block, 0, output, i, block.length);
+        }
+        /*skip the latency and the settling of the filters*/
+        int from = 2 * (remover.getLatencyFrames() + rate / 2);
+        double in = 0, out = 0;
+        for (int i = from; i < output.length; i++) {
+            in += input[i] * input[i];
+            out += output[i] * output[i];
+        }
+        return (float) (10 * Math.log10(out / in));
+    }
+
+    static float[] tone(float frequency, float left, float right, int frames) {
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            float v = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / rate));
+            data[2 * i] = v * left;
+            data[2 * i + 1] = v * right;
+        }
+        return data;
+    }
+}
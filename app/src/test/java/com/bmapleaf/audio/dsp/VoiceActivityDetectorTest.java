@@ -0,0 +1,124 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Gating decisions of {@link VoiceActivityDetector} on room noise, a sung tone and hiss, in
+ * 512 frame stereo blocks at 44.1 kHz like the recorder's.
+ */
+public class VoiceActivityDetectorTest {
+    private static final int sampleRate = 44100;
+    private static final int channels = 2;
+    private static final int frames = 512;
+    private final Random random = new Random(1);
+    private final short[] block = new short[frames * channels];
+    private long phase;
+
+    @Test
+    public void noiseIsGatedVoiceIsNot() {
+        VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate, channels);
+        /*a second of room noise at -50 dBFS sets the floor*/
+        for (int b = 0; b < 86; b++) {
+            assertFalse("block " + b, vad.process(noise(-50), 0, block.length));
+        }
+        assertEquals(-50, vad.getNoiseFloorDb(), 2);
+        /*a 220 Hz note 30 dB above it*/
+        for (int b = 0; b < 86; b++) {
+            assertTrue("block " + b, vad.process(tone(220, -20, -50), 0, block.length));
+        }
+        assertTrue(vad.getLastZeroCrossingRate() < 0.05f);
+    }
+
+    @Test
+    public void hangoverKeepsTails() {
+        VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate, channels);
+        vad.setHangover(200);
+        for (int b = 0; b < 40; b++) {
+            vad.process(noise(-55), 0, block.length);
+        }
+        for (int b = 0; b < 20; b++) {
+            vad.process(tone(440, -15, -55), 0, block.length);
+        }
+        /*200 ms is 8820 frames, about 17 blocks*/
+        int open = 0;
+        while (vad.process(noise(-55), 0, block.length)) {
+            open++;
+        }
+        assertEquals(8820 / frames + 1, open);
+    }
+
+    @Test
+    public void hissJustAboveTheFloorIsNoise() {
+        VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate, channels);
+        vad.setHangover(0);
+        for (int b = 0; b < 40; b++) {
+            vad.process(noise(-60), 0, block.length);
+        }
+        /*15 dB louder hiss: above the threshold, but it crosses zero like noise*/
+        assertFalse(vad.process(noise(-45), 0, block.length));
+        assertTrue(vad.getLastZeroCrossingRate() > 0.4f);
+        /*a tone as loud is voice*/
+        assertTrue(vad.process(tone(330, -45, -90), 0, block.length));
+        /*and hiss far above the floor, like a sung "s", is voice too*/
+        assertTrue(vad.process(noise(-30), 0, block.length));
+    }
+
+    @Test
+    public void floorFollowsANoisierRoom() {
+        VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate, channels);
+        vad.setHangover(0);
+        for (int b = 0; b < 40; b++) {
+            vad.process(noise(-65), 0, block.length);
+        }
+        /*the fan goes on: hiss 20 dB up opens the gate with its level alone, for a while*/
+        int open = 0;
+        for (int b = 0; b < 86 * 60; b++) {
+            if (vad.process(noise(-45), 0, block.length)) {
+                open++;
+            }
+        }
+        assertTrue(vad.getNoiseFloorDb() > -47);
+        assertTrue("open " + open, open < 86 * 20);
+        assertFalse(vad.process(noise(-45), 0, block.length));
+    }
+
+    @Test
+    public void digitalSilenceStaysClosed() {
+        VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate, channels);
+        short[] zeros = new short[block.length];
+        for (int b = 0; b < 10; b++) {
+            assertFalse(vad.process(zeros, 0, zeros.length));
+        }
+        /*barely audible blocks stay under the minimum level even far above the floor*/
+        assertFalse(vad.process(tone(220, -70, -200), 0, block.length));
+    }
+
+    private short[] noise(float db) {
+        double amplitude = 32768 * Math.pow(10, db / 20);
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (short) (random.nextGaussian() * amplitude);
+        }
+        return block;
+    }
+
+    /**
+     * @param db      rms of the tone
+     * @param noiseDb rms of the noise added to it
+     */
+    private short[] tone(double frequency, float db, float noiseDb) {
+        double amplitude = 32768 * Math.pow(10, db / 20) * Math.sqrt(2);
+        double noise = 32768 * Math.pow(10, noiseDb / 20);
+        for (int f = 0; f < frames; f++, phase++) {
+            short v = (short) (amplitude * Math.sin(2 * Math.PI * frequency * phase / sampleRate) + random.nextGaussian() * noise);
+            block[f * 2] = v;
+            block[f * 2 + 1] = v;
+        }
+        return block;
+    }
+}
@@ -0,0 +1,184 @@
+package com.bmapleaf.audio.dsp;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link WaveformPyramid} levels, peak queries against a scan of the samples, out of order and
+ * empty blocks, and the cache file.
+ */
+public class WaveformPyramidTest {
+    private static final int channels = 2;
+
+    @Test
+    public void levelsFollowTheLength() {
+        /*10 minutes at 44.1 kHz, 103360 base buckets, 4^9 is the first power above*/
+        long frames = 44100L * 600;
+        WaveformPyramid pyramid = new WaveformPyramid(44100, channels, frames);
+        short[] block = new short[4096 * channels];
+        for (long f = 0; f < frames; f += 4096) {
+            pyramid.add(f, block, 0, (int) Math.min(4096, frames - f));
+        }
+        pyramid.finish();
+        assertEquals(10, pyramid.getLevelCount());
+        assertEquals(1, pyramid.getBucketCount(pyramid.getLevelCount() - 1));
+        /*the whole track on a few pixels reads the top levels only*/
+        double framesPerPixel = (double) frames / 100;
+        long bucket = bucketOf(pyramid.getLevel(framesPerPixel));
+        assertTrue(bucket <= framesPerPixel && framesPerPixel < bucket * WaveformPyramid.factor);
+
+        /*4 base buckets, merged into one*/
+        WaveformPyramid tiny = new WaveformPyramid(44100, channels, 1000);
+        tiny.add(0, block, 0, 1000);
+        tiny.finish();
+        assertEquals(2, tiny.getLevelCount());
+    }
+
+    @Test
+    public void peaksMatchTheSamples() {
+        short[] pcm = noise(300000, 1);
+        WaveformPyramid pyramid = build(pcm, 300000);
+        int[][] queries = {{0, 300000, 1}, {0, 300000, 37}, {1000, 1500, 500}, {12345, 290000, 800},
+                {0, 300000, 300000}, {299000, 300000, 3}};
+        for (int[] q : queries) {
+            int width = q[2];
+            short[] mn = new short[width], mx = new short[width];
+            assertEquals(width, pyramid.getPeaks(q[0], q[1], width, mn, mx));
+            double framesPerPixel = (double) (q[1] - q[0]) / width;
+            long bucket = bucketOf(pyramid.getLevel(framesPerPixel));
+            for (int x = 0; x < width; x++) {
+                long f0 = q[0] + (long) (x * framesPerPixel);
+                long f1 = Math.max(f0 + 1, q[0] + (long) ((x + 1) * framesPerPixel));
+                /*a pixel covers whole buckets, at most one bucket more on each side*/
+                short[] exact = scan(pcm, f0, f1);
+                short[] outer = scan(pcm, f0 / bucket * bucket, Math.min(300000, (f1 + bucket - 1) / bucket * bucket));
+                assertTrue(mn[x] <= exact[0] && mn[x] >= outer[0]);
+                assertTrue(mx[x] >= exact[1] && mx[x] <= outer[1]);
+            }
+        }
+        short[] mn = new short[1], mx = new short[1];
+        pyramid.getPeaks(0, 300000, 1, mn, mx);
+        short[] all = scan(pcm, 0, 300000);
+        assertEquals(all[0], mn[0]);
+        assertEquals(all[1], mx[0]);
+    }
+
+    @Test
+    public void outOfOrderAndEmptyBlocks() {
+        short[] pcm = noise(10000, 2);
+        WaveformPyramid ordered = build(pcm, 10000);
+        WaveformPyramid shuffled = new WaveformPyramid(44100, channels, 100);
+        /*an empty block right at the end of the buckets*/
+        shuffled.add(256, pcm, 0, 0);
+        ByteBuffer bytes = ByteBuffer.allocate(5000 * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(pcm, 5000 * channels, 5000 * channels);
+        shuffled.add(5000, bytes);
+        shuffled.add(0, pcm, 0, 5000);
+        shuffled.add(5000, ByteBuffer.allocate(0));
+        shuffled.finish();
+        assertEquals(10000, shuffled.getFrames());
+        assertSamePeaks(ordered, shuffled);
+    }
+
+    @Test
+    public void emptyPyramidHasNoPeaks() {
+        WaveformPyramid pyramid = new WaveformPyramid(44100, channels, 0);
+        short[] mn = new short[4], mx = new short[4];
+        assertEquals(0, pyramid.getPeaks(0, 1000, 4, mn, mx));
+        pyramid.add(0, new short[0], 0, 0);
+        pyramid.finish();
+        assertEquals(0, pyramid.getPeaks(0, 1000, 4, mn, mx));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        short[] pcm = noise(200000, 3);
+        WaveformPyramid pyramid = build(pcm, 200000);
+        File file = File.createTempFile("peaks", ".bin");
+        try {
+            pyramid.save(file);
+            WaveformPyramid loaded = WaveformPyramid.load(file);
+            assertEquals(44100, loaded.getSampleRate());
+            assertEquals(channels, loaded.getChannels());
+            assertEquals(200000, loaded.getFrames());
+            assertEquals(pyramid.getLevelCount(), loaded.getLevelCount());
+            assertSamePeaks(pyramid, loaded);
+
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[]{1, 2, 3});
+            out.close();
+            try {
+                WaveformPyramid.load(file);
+                fail("loaded a broken file");
+            } catch (IOException expected) {
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertSamePeaks(WaveformPyramid a, WaveformPyramid b) {
+        long frames = a.getFrames();
+        for (int width : new int[]{1, 7, 100, 1000}) {
+            short[] amn = new short[width], amx = new short[width], bmn = new short[width], bmx = new short[width];
+            a.getPeaks(0, frames, width, amn, amx);
+            b.getPeaks(0, frames, width, bmn, bmx);
+            for (int x = 0; x < width; x++) {
+                assertEquals(amn[x], bmn[x]);
+                assertEquals(amx[x], bmx[x]);
+            }
+        }
+    }
+
+    private static WaveformPyramid build(short[] pcm, int frames) {
+        WaveformPyramid pyramid = new WaveformPyramid(44100, channels, frames / 2);
+        for (int f = 0; f < frames; f += 1000) {
+            pyramid.add(f, pcm, f * channels, Math.min(1000, frames - f));
+        }
+        pyramid.finish();
+        return pyramid;
+    }
+
+    private static long bucketOf(int level) {
+        long bucket = WaveformPyramid.baseBucket;
+        for (int i = 0; i < level; i++) {
+            bucket *= WaveformPyramid.factor;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return min and max over all channels of [from, to)
+     */
+    private static short[] scan(short[] pcm, long from, long to) {
+        short mn = Short.MAX_VALUE, mx = Short.MIN_VALUE;
+        for (long i = from * channels; i < to * channels; i++) {
+            mn = (short) Math.min(mn, pcm[(int) i]);
+            mx = (short) Math.max(mx, pcm[(int) i]);
+        }
+        return new short[]{mn, mx};
+    }
+
+    /**
+     * @return noise with a slow envelope, so the peaks differ along the track
+     */
+    private static short[] noise(int frames, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[frames * channels];
+        for (int i = 0; i < pcm.length; i++) {
+            double envelope = 0.5 + 0.5 * Math.sin(i / 20000.0);
+            pcm[i] = (short) ((random.nextFloat() * 2 - 1) * 32767 * envelope);
+        }
+        return pcm;
+    }
+}
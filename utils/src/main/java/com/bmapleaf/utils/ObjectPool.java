@@ -22,7 +22,7 @@ public class ObjectPool<T> {
         this.poolName = null != poolName && !poolName.isEmpty() ? poolName : TAG;
     }
 
-    public T acquire() {
+    public synchronized T acquire() {
         if (objects.isEmpty()) {
             T t = objectFactory.newObject();
             Log.d(poolName, "new " + t.getClass().getSimpleName());
@@ -32,13 +32,13 @@ public class ObjectPool<T> {
         }
     }
 
-    public void release(T object) {
+    public synchronized void release(T object) {
         if (!objects.contains(object)) {
             objects.add(object);
         }
     }
 
-    public void clear() {
+    public synchronized void clear() {
         objects.clear();
     }
 